@@ -44,6 +44,15 @@ public enum ApiFunctionType implements ApiFunction {
 		return returns;
 	}
 	
+	public static ApiFunctionType forOpcode (int opcode) {
+		for (ApiFunctionType type : values()) {
+			if (type.code == opcode) {
+				return type;
+			}
+		}
+		return null;
+	}
+	
 	private static Map<String, ApiFunctionType> lookup;
 	
 	public static ApiFunctionType forName (String name) {
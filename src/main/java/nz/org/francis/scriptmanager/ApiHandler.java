@@ -0,0 +1,147 @@
+package nz.org.francis.scriptmanager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import nz.org.francis.scriptmanager.executer.Context;
+
+/**
+ * The implementation of an api function, called directly by the executer through an {@link ApiRegistry}.
+ * <p>
+ * A handler declares the signature it implements. The general form takes its arguments from the context's stacks and leaves its return values there,
+ * while the typed forms (such as {@link IntIntToInt}) do that themselves, so simple functions only deal with plain values.
+ *
+ * @author Francis
+ */
+public abstract class ApiHandler {
+
+	private final List<ScriptDataType> params;
+	private final List<ScriptDataType> returns;
+
+	/**
+	 * @param params The types of the function's parameters
+	 * @param returns The types of the function's return values
+	 */
+	protected ApiHandler (ScriptDataType[] params, ScriptDataType[] returns) {
+		this.params = Collections.unmodifiableList(Arrays.asList(params));
+		this.returns = Collections.unmodifiableList(Arrays.asList(returns));
+	}
+
+	public List<ScriptDataType> getParamSignature () {
+		return params;
+	}
+
+	public List<ScriptDataType> getReturnSignature () {
+		return returns;
+	}
+
+	/**
+	 * Runs the function. The arguments are on the context's stacks with the last one on top, and the return values should be left there in the same order.
+	 * @param context The context of the calling script
+	 */
+	public abstract void invoke (Context context);
+
+	/**
+	 * A function of type (Int)()
+	 */
+	public static abstract class IntToVoid extends ApiHandler {
+
+		protected IntToVoid () {
+			super(new ScriptDataType[] { ScriptDataType.INT }, new ScriptDataType[0]);
+		}
+
+		public abstract void apply (int value);
+
+		@Override
+		public final void invoke (Context context) {
+			apply(context.getInt());
+		}
+	}
+
+	/**
+	 * A function of type (Int)(Int)
+	 */
+	public static abstract class IntToInt extends ApiHandler {
+
+		protected IntToInt () {
+			super(new ScriptDataType[] { ScriptDataType.INT }, new ScriptDataType[] { ScriptDataType.INT });
+		}
+
+		public abstract int apply (int value);
+
+		@Override
+		public final void invoke (Context context) {
+			context.putInt(apply(context.getInt()));
+		}
+	}
+
+	/**
+	 * A function of type (Int, Int)(Int)
+	 */
+	public static abstract class IntIntToInt extends ApiHandler {
+
+		protected IntIntToInt () {
+			super(new ScriptDataType[] { ScriptDataType.INT, ScriptDataType.INT }, new ScriptDataType[] { ScriptDataType.INT });
+		}
+
+		public abstract int apply (int left, int right);
+
+		@Override
+		public final void invoke (Context context) {
+			int right = context.getInt();
+			int left = context.getInt();
+			context.putInt(apply(left, right));
+		}
+	}
+
+	/**
+	 * A function of type ()(Int)
+	 */
+	public static abstract class VoidToInt extends ApiHandler {
+
+		protected VoidToInt () {
+			super(new ScriptDataType[0], new ScriptDataType[] { ScriptDataType.INT });
+		}
+
+		public abstract int apply ();
+
+		@Override
+		public final void invoke (Context context) {
+			context.putInt(apply());
+		}
+	}
+
+	/**
+	 * A function of type (String)()
+	 */
+	public static abstract class StringToVoid extends ApiHandler {
+
+		protected StringToVoid () {
+			super(new ScriptDataType[] { ScriptDataType.STRING }, new ScriptDataType[0]);
+		}
+
+		public abstract void apply (String value);
+
+		@Override
+		public final void invoke (Context context) {
+			apply((String) context.getObj());
+		}
+	}
+
+	/**
+	 * A function of type (String)(Int)
+	 */
+	public static abstract class StringToInt extends ApiHandler {
+
+		protected StringToInt () {
+			super(new ScriptDataType[] { ScriptDataType.STRING }, new ScriptDataType[] { ScriptDataType.INT });
+		}
+
+		public abstract int apply (String value);
+
+		@Override
+		public final void invoke (Context context) {
+			context.putInt(apply((String) context.getObj()));
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package nz.org.francis.scriptmanager;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps api function opcodes to their signatures and implementations.
+ * <p>
+ * The handlers are held in an array indexed by opcode, so the executer can call a function with a single array read,
+ * rather than looking it up through the script manager and dispatching on it in {@link ScriptManager#invokeApiFunction(ApiFunction, nz.org.francis.scriptmanager.executer.Context)}.
+ * Functions registered without a handler are still called through the script manager.
+ * <p>
+ * A new registry declares every {@link ApiFunctionType}, without a handler. The host can then provide handlers for them, and register its own functions.
+ * Registering is synchronised and publishes a new copy of the arrays, so functions can be registered while scripts are running on other threads.
+ *
+ * @author Francis
+ */
+public class ApiRegistry {
+
+	/**
+	 * The largest opcode a function can have, which keeps the arrays a reasonable size
+	 */
+	public static final int MAX_OPCODE = 0xFFFF;
+
+	private volatile ApiFunction[] functions = new ApiFunction[16];
+	private volatile ApiHandler[] handlers = new ApiHandler[16];
+
+	private final Map<String, ApiFunction> byName = new HashMap<>();
+
+	/**
+	 * Creates a registry holding the built in functions
+	 */
+	public ApiRegistry () {
+		for (ApiFunctionType type : ApiFunctionType.values()) {
+			register(type, null);
+		}
+	}
+
+	/**
+	 * Registers a function, replacing any handler already registered for it
+	 * @param function The function's signature
+	 * @param handler The function's implementation, or null to call it through the script manager
+	 * @throws IllegalArgumentException If the handler's signature doesn't match the function's,
+	 * or the function's opcode or name is already used by a different function
+	 */
+	public synchronized void register (ApiFunction function, ApiHandler handler) {
+		int opcode = function.getOpcode();
+		if (handler != null && (!handler.getParamSignature().equals(function.getParamSignature())
+				|| !handler.getReturnSignature().equals(function.getReturnSignature()))) {
+			throw new IllegalArgumentException("The handler's signature doesn't match "+function.getName());
+		}
+		checkFree(opcode, function.getName());
+		int length = Math.max(functions.length, Integer.highestOneBit(opcode) * 2);
+		ApiFunction[] newFunctions = Arrays.copyOf(functions, length);
+		ApiHandler[] newHandlers = Arrays.copyOf(handlers, length);
+		newFunctions[opcode] = function;
+		newHandlers[opcode] = handler;
+		byName.put(function.getName(), function);
+		handlers = newHandlers;//Published before the function, so anything which can see the function can see its handler
+		functions = newFunctions;
+	}
+
+	/**
+	 * Registers a host function, taking its signature from the handler
+	 * @param opcode The opcode scripts will call the function with
+	 * @param name The name scripts will call the function by
+	 * @param handler The function's implementation
+	 * @return The function's signature
+	 */
+	public ApiFunction register (final int opcode, final String name, final ApiHandler handler) {
+		ApiFunction function = new ApiFunction() {
+			@Override
+			public int getOpcode() {
+				return opcode;
+			}
+
+			@Override
+			public String getName() {
+				return name;
+			}
+
+			@Override
+			public List<ScriptDataType> getParamSignature() {
+				return handler.getParamSignature();
+			}
+
+			@Override
+			public List<ScriptDataType> getReturnSignature() {
+				return handler.getReturnSignature();
+			}
+		};
+		register(function, handler);
+		return function;
+	}
+
+	/**
+	 * Registers every method of the host marked with {@link ScriptFunction}, including static ones and ones inherited from its superclasses.
+	 * A method overridden in a subclass is only registered once, with the subclass's annotation. Each method's signature is taken from its Java types.
+	 * <p>
+	 * Every method is bound and checked before any are registered, so if one can't be, the registry is left as it was.
+	 * @param host The object the methods will be called on
+	 * @return The registered functions
+	 * @throws IllegalArgumentException If a method uses a type scripts can't, or its opcode or name is already in use
+	 */
+	public synchronized List<ApiFunction> registerAll (Object host) {
+		List<Method> methods = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+		for (Class<?> type = host.getClass();type != null;type = type.getSuperclass()) {
+			List<String> declared = new ArrayList<>();
+			for (Method method : type.getDeclaredMethods()) {
+				String key = method.getName()+Arrays.toString(method.getParameterTypes());
+				declared.add(key);//Including bridges, so the superclass method they override isn't registered either
+				if (method.isBridge() || method.isSynthetic() || seen.contains(key)) {//Bridges are given the annotations of the method they call
+					continue;
+				}
+				if (method.getAnnotation(ScriptFunction.class) != null) {
+					methods.add(method);
+				}
+			}
+			seen.addAll(declared);
+		}
+
+		List<String> names = new ArrayList<>(methods.size());
+		List<Integer> opcodes = new ArrayList<>(methods.size());
+		List<ApiHandler> handlers = new ArrayList<>(methods.size());
+		Set<String> batchNames = new HashSet<>();
+		Set<Integer> batchOpcodes = new HashSet<>();
+		for (Method method : methods) {
+			int opcode = method.getAnnotation(ScriptFunction.class).opcode();
+			if (opcode != -1 && !batchOpcodes.add(opcode)) {
+				throw new IllegalArgumentException("Opcode "+opcode+" is used more than once in "+host.getClass().getName());
+			}
+		}
+		for (Method method : methods) {
+			ScriptFunction annotation = method.getAnnotation(ScriptFunction.class);
+			String name = annotation.name().isEmpty() ? method.getName() : annotation.name();
+			int opcode = annotation.opcode();
+			if (opcode == -1) {//Fixed opcodes were taken above, so this can't be given one of them
+				opcode = nextFreeOpcode(batchOpcodes);
+				batchOpcodes.add(opcode);
+			}
+			if (!batchNames.add(name)) {
+				throw new IllegalArgumentException(name+" is used more than once in "+host.getClass().getName());
+			}
+			checkFree(opcode, name);
+			handlers.add(BoundApiHandler.bind(host, method));
+			names.add(name);
+			opcodes.add(opcode);
+		}
+
+		List<ApiFunction> registered = new ArrayList<>(methods.size());
+		for (int i=0;i<names.size();i++) {
+			registered.add(register(opcodes.get(i), names.get(i), handlers.get(i)));
+		}
+		return registered;
+	}
+
+	/**
+	 * @throws IllegalArgumentException If the opcode is invalid, or the opcode or name is already used by a different function
+	 */
+	private void checkFree (int opcode, String name) {
+		if (opcode < 0 || opcode > MAX_OPCODE) {
+			throw new IllegalArgumentException("Invalid opcode for "+name+": "+opcode);
+		}
+		ApiFunction existing = getFunction(opcode);
+		if (existing != null && !existing.getName().equals(name)) {
+			throw new IllegalArgumentException("Opcode "+opcode+" is already used by "+existing.getName());
+		}
+		existing = byName.get(name);
+		if (existing != null && existing.getOpcode() != opcode) {
+			throw new IllegalArgumentException(name+" is already registered with opcode "+existing.getOpcode());
+		}
+	}
+
+	private int nextFreeOpcode (Set<Integer> taken) {
+		ApiFunction[] functions = this.functions;
+		int opcode = 0;
+		while ((opcode < functions.length && functions[opcode] != null) || taken.contains(opcode)) {
+			opcode++;
+		}
+		return opcode;
+	}
+
+	/**
+	 * @return The function with the opcode, or null if there isn't one
+	 */
+	public ApiFunction getFunction (int opcode) {
+		ApiFunction[] functions = this.functions;
+		return opcode >= 0 && opcode < functions.length ? functions[opcode] : null;
+	}
+
+	/**
+	 * @return The function with the name, or null if there isn't one
+	 */
+	public synchronized ApiFunction getFunction (String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * Finds the signature of a function, in the script manager's registry if it has one, or through the script manager otherwise
+	 * @param scriptManager The script manager
+	 * @param opcode The function's opcode
+	 * @return The function, or null if there isn't one
+	 */
+	public static ApiFunction findFunction (ScriptManager scriptManager, int opcode) {
+		ApiRegistry registry = scriptManager.getApiRegistry();
+		ApiFunction function = registry == null ? null : registry.getFunction(opcode);
+		return function != null ? function : scriptManager.getApiFuncType(opcode);
+	}
+
+	/**
+	 * Finds the implementation of a function. This is called for every api call, so it's kept to a bounds check and an array read.
+	 * @param opcode The function's opcode
+	 * @return The handler, or null if the function should be called through the script manager
+	 */
+	public ApiHandler getHandler (int opcode) {
+		ApiHandler[] handlers = this.handlers;
+		return opcode >= 0 && opcode < handlers.length ? handlers[opcode] : null;
+	}
+}
@@ -0,0 +1,173 @@
+package nz.org.francis.scriptmanager;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import nz.org.francis.scriptmanager.executer.Context;
+import nz.org.francis.scriptmanager.executer.jvm.ClassFileWriter;
+import nz.org.francis.scriptmanager.executer.jvm.CodeBuffer;
+
+/**
+ * Calls a host method marked with {@link ScriptFunction}.
+ * <p>
+ * The method is turned into a single {@link MethodHandle} of type (Context)void when it's bound, which pops the arguments from the context's stacks
+ * (last argument first), calls the method, and pushes its result. Int and boolean values go straight between the int stack and the method, without being boxed.
+ * <p>
+ * A method handle held in an ordinary field is called indirectly, which costs several times as much as a hand written handler.
+ * So each binding gets a hidden subclass holding its handle in a static final field, which the JIT treats as a constant and inlines through.
+ *
+ * @author Francis
+ */
+abstract class BoundApiHandler extends ApiHandler {
+
+	private static final String SELF = BoundApiHandler.class.getName().replace('.', '/');
+
+	/**
+	 * The subclass is the same for every binding, as only its class data differs
+	 */
+	private static final byte[] CLASS_FILE = generate();
+
+	private static final MethodHandle POP_INT;
+	private static final MethodHandle POP_BOOLEAN;
+	private static final MethodHandle POP_STRING;
+	private static final MethodHandle PUSH_INT;
+	private static final MethodHandle PUSH_BOOLEAN;
+	private static final MethodHandle PUSH_STRING;
+
+	static {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			POP_INT = lookup.findVirtual(Context.class, "getInt", MethodType.methodType(int.class));
+			POP_BOOLEAN = lookup.findStatic(BoundApiHandler.class, "popBoolean", MethodType.methodType(boolean.class, Context.class));
+			POP_STRING = lookup.findVirtual(Context.class, "getObj", MethodType.methodType(Object.class))
+					.asType(MethodType.methodType(String.class, Context.class));
+			PUSH_INT = lookup.findVirtual(Context.class, "putInt", MethodType.methodType(void.class, int.class));
+			PUSH_BOOLEAN = lookup.findStatic(BoundApiHandler.class, "pushBoolean", MethodType.methodType(void.class, Context.class, boolean.class));
+			PUSH_STRING = lookup.findVirtual(Context.class, "putObj", MethodType.methodType(void.class, Object.class))
+					.asType(MethodType.methodType(void.class, Context.class, String.class));
+		} catch (ReflectiveOperationException ex) {
+			throw new ExceptionInInitializerError(ex);
+		}
+	}
+
+	private static boolean popBoolean (Context context) {
+		return context.getInt() == 1;
+	}
+
+	private static void pushBoolean (Context context, boolean value) {
+		context.putInt(value ? 1 : 0);
+	}
+
+	BoundApiHandler (ScriptDataType[] params, ScriptDataType[] returns) {
+		super(params, returns);
+	}
+
+	/**
+	 * Binds a host method
+	 * @param host The object the method is called on, which is ignored for static methods
+	 * @param method The method
+	 * @return The handler
+	 * @throws IllegalArgumentException If the method has a parameter or return type which scripts can't use
+	 */
+	static BoundApiHandler bind (Object host, Method method) {
+		Class<?>[] javaParams = method.getParameterTypes();
+		ScriptDataType[] params = new ScriptDataType[javaParams.length];
+		for (int i=0;i<javaParams.length;i++) {
+			params[i] = scriptType(javaParams[i], method);
+		}
+		ScriptDataType[] returns = method.getReturnType() == void.class ? new ScriptDataType[0]
+				: new ScriptDataType[] { scriptType(method.getReturnType(), method) };
+
+		MethodHandle target;
+		try {
+			method.setAccessible(true);//The host class doesn't need to be public
+			target = MethodHandles.lookup().unreflect(method);
+		} catch (IllegalAccessException | RuntimeException ex) {
+			throw new IllegalArgumentException("Can't access "+method, ex);
+		}
+		if (!Modifier.isStatic(method.getModifiers())) {
+			target = target.bindTo(host);
+		}
+
+		//Push the result: (params..., Context)void
+		MethodHandle invoker;
+		Class<?> returnType = method.getReturnType();
+		if (returnType == void.class) {
+			invoker = MethodHandles.dropArguments(target, javaParams.length, Context.class);
+		} else {
+			MethodHandle push = returnType == int.class ? PUSH_INT : returnType == boolean.class ? PUSH_BOOLEAN : PUSH_STRING;
+			push = MethodHandles.permuteArguments(push, MethodType.methodType(void.class, returnType, Context.class), 1, 0);
+			invoker = MethodHandles.collectArguments(push, 0, target);
+		}
+
+		//Pop the arguments. Each fold takes the later arguments and the context, and pops the argument in front of them.
+		//The last fold added runs first, so the last argument is popped first.
+		for (int i=0;i<javaParams.length;i++) {
+			Class<?> type = javaParams[i];
+			MethodHandle pop = type == int.class ? POP_INT : type == boolean.class ? POP_BOOLEAN : POP_STRING;
+			Class<?>[] later = Arrays.copyOfRange(javaParams, i+1, javaParams.length);
+			pop = MethodHandles.dropArguments(pop, 0, later);
+			invoker = MethodHandles.foldArguments(invoker, pop);
+		}
+		try {
+			Class<?> type = MethodHandles.lookup().defineHiddenClassWithClassData(CLASS_FILE, invoker, true).lookupClass();
+			return (BoundApiHandler) type.getDeclaredConstructor(ScriptDataType[].class, ScriptDataType[].class).newInstance(params, returns);
+		} catch (ReflectiveOperationException ex) {
+			throw new IllegalStateException("Failed to load the handler for "+method, ex);
+		}
+	}
+
+	/**
+	 * Generates the subclass, which loads its class data (the method handle) into a static final field and calls it from {@link #invoke(Context)}.
+	 * @return The class file
+	 */
+	private static byte[] generate () {
+		String name = SELF+"$Bound";
+		String handleType = "Ljava/lang/invoke/MethodHandle;";
+		String signatureType = "[L"+ScriptDataType.class.getName().replace('.', '/')+";";
+		ClassFileWriter classFile = new ClassFileWriter(ClassFileWriter.ACC_FINAL | ClassFileWriter.ACC_SUPER, name, SELF);
+		classFile.addField(ClassFileWriter.ACC_STATIC | ClassFileWriter.ACC_FINAL, "INVOKER", handleType);
+
+		CodeBuffer init = new CodeBuffer(classFile);
+		init.invoke(CodeBuffer.INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;");
+		init.pushString("_");
+		init.pushClass("java/lang/invoke/MethodHandle");
+		init.invoke(CodeBuffer.INVOKESTATIC, "java/lang/invoke/MethodHandles", "classData",
+				"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;");
+		init.type(CodeBuffer.CHECKCAST, "java/lang/invoke/MethodHandle");
+		init.field(CodeBuffer.PUTSTATIC, name, "INVOKER", handleType);
+		init.op(CodeBuffer.RETURN);
+		classFile.addMethod(ClassFileWriter.ACC_STATIC, "<clinit>", "()V", init.toByteArray(), 3, 0);
+
+		CodeBuffer constructor = new CodeBuffer(classFile);
+		constructor.local(CodeBuffer.ALOAD, 0);
+		constructor.local(CodeBuffer.ALOAD, 1);
+		constructor.local(CodeBuffer.ALOAD, 2);
+		constructor.invoke(CodeBuffer.INVOKESPECIAL, SELF, "<init>", "("+signatureType+signatureType+")V");
+		constructor.op(CodeBuffer.RETURN);
+		classFile.addMethod(0, "<init>", "("+signatureType+signatureType+")V", constructor.toByteArray(), 3, 3);
+
+		String contextType = "L"+Context.class.getName().replace('.', '/')+";";
+		CodeBuffer invoke = new CodeBuffer(classFile);
+		invoke.field(CodeBuffer.GETSTATIC, name, "INVOKER", handleType);
+		invoke.local(CodeBuffer.ALOAD, 1);
+		invoke.invoke(CodeBuffer.INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact", "("+contextType+")V");
+		invoke.op(CodeBuffer.RETURN);
+		classFile.addMethod(ClassFileWriter.ACC_PUBLIC, "invoke", "("+contextType+")V", invoke.toByteArray(), 2, 2);
+		return classFile.toByteArray();
+	}
+
+	private static ScriptDataType scriptType (Class<?> type, Method method) {
+		if (type == int.class) {
+			return ScriptDataType.INT;
+		} else if (type == boolean.class) {
+			return ScriptDataType.BOOLEAN;
+		} else if (type == String.class) {
+			return ScriptDataType.STRING;
+		}
+		throw new IllegalArgumentException("Scripts can't use "+type.getName()+", in "+method);
+	}
+}
@@ -0,0 +1,203 @@
+package nz.org.francis.scriptmanager;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import nz.org.francis.scriptmanager.executer.Context;
+
+/**
+ * Declares the variables scripts can attach to each entity (such as a player), and holds their values.
+ * <p>
+ * Each variable is a column, given a dense ID when it's declared, holding one int for every entity. The entity is bound to the context running the script
+ * (see {@link Context#setEntity(int)}), so a script reads its entity's value with the variable's ID and the entity's ID.
+ * Columns are split into fixed size chunks, which are only allocated once an entity in them is written to,
+ * so there's no object per entity, nothing is boxed, and growing a column never copies the values already in it.
+ * <p>
+ * Only int-based variables can be declared, as other values are held as objects by the executer.
+ * Columns and chunks are published with release writes, so any thread can use the variables while another is growing a column,
+ * but values are read and written like plain global variables, so each entity's scripts should be run by one thread at a time.
+ *
+ * @author Francis
+ */
+public class EntityVariables {
+
+	/**
+	 * A declared variable
+	 */
+	public static final class Variable {
+		private final String name;
+		private final ScriptDataType type;
+		private final int id;
+
+		private Variable (String name, ScriptDataType type, int id) {
+			this.name = name;
+			this.type = type;
+			this.id = id;
+		}
+
+		public String getName () {
+			return name;
+		}
+
+		public ScriptDataType getType () {
+			return type;
+		}
+
+		public int getId () {
+			return id;
+		}
+	}
+
+	/**
+	 * The default number of variables which can be declared
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * The number of entities in each chunk of a column
+	 */
+	public static final int CHUNK_SIZE = 4096;
+
+	private static final int CHUNK_SHIFT = Integer.numberOfTrailingZeros(CHUNK_SIZE);
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private static final int[][] NO_CHUNKS = new int[0][];
+
+	private static final VarHandle COLUMNS = MethodHandles.arrayElementVarHandle(int[][][].class);
+	private static final VarHandle CHUNKS = MethodHandles.arrayElementVarHandle(int[][].class);
+
+	/*
+	 * The chunks of each column, indexed by variable ID then entity ID / CHUNK_SIZE.
+	 * A column's chunk array is replaced when it grows, but the chunks themselves are shared with the old array, so no writes are lost.
+	 * Both levels are only written by allocate, with release writes, and read with acquire reads, so a reader never sees a copied array without its chunks.
+	 */
+	private final int[][][] columns;
+
+	private final Map<String, Variable> byName = new HashMap<>();
+	private int count = 0;
+
+	public EntityVariables () {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity The number of variables which can be declared
+	 */
+	public EntityVariables (int capacity) {
+		columns = new int[capacity][][];
+		Arrays.fill(columns, NO_CHUNKS);
+	}
+
+	/**
+	 * Declares a variable, which starts as 0 (or false) for every entity.
+	 * Declaring a variable again with the same type returns the existing variable.
+	 * @param name The name scripts refer to the variable by, without the leading @
+	 * @param type The variable's type, which must be int-based
+	 * @return The variable
+	 * @throws IllegalArgumentException If the type isn't int-based, or a variable with the name has already been declared with a different type
+	 * @throws IllegalStateException If there's no room left for another variable
+	 */
+	public synchronized Variable declare (String name, ScriptDataType type) {
+		if (!type.intBase()) {
+			throw new IllegalArgumentException("Entity variables must be int-based, so @"+name+" can't be "+type);
+		}
+		Variable existing = byName.get(name);
+		if (existing != null) {
+			if (existing.type != type) {
+				throw new IllegalArgumentException("@"+name+" is already declared as "+existing.type);
+			}
+			return existing;
+		}
+		if (count == columns.length) {
+			throw new IllegalStateException("No room for another entity variable");
+		}
+		Variable variable = new Variable(name, type, count++);
+		byName.put(name, variable);
+		return variable;
+	}
+
+	/**
+	 * @return The variable with the name, or null if it hasn't been declared
+	 */
+	public synchronized Variable get (String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * @param id The variable's ID
+	 * @param entity The entity's ID
+	 * @return The entity's value
+	 * @throws IllegalArgumentException If the entity ID is negative
+	 */
+	public int getInt (int id, int entity) {
+		int[][] chunks = (int[][]) COLUMNS.getAcquire(columns, id);
+		int chunk = entity >>> CHUNK_SHIFT;//A negative ID gives a chunk past the end, so it's caught below without a separate check
+		int[] values;
+		if (chunk < chunks.length && (values = (int[]) CHUNKS.getAcquire(chunks, chunk)) != null) {
+			return values[entity & CHUNK_MASK];
+		}
+		checkEntity(entity);
+		return 0;//Nothing in this chunk has been written yet
+	}
+
+	/**
+	 * @param id The variable's ID
+	 * @param entity The entity's ID
+	 * @param value The entity's new value
+	 * @throws IllegalArgumentException If the entity ID is negative
+	 */
+	public void setInt (int id, int entity, int value) {
+		int[][] chunks = (int[][]) COLUMNS.getAcquire(columns, id);
+		int chunk = entity >>> CHUNK_SHIFT;
+		int[] values;
+		if (chunk >= chunks.length || (values = (int[]) CHUNKS.getAcquire(chunks, chunk)) == null) {
+			checkEntity(entity);
+			values = allocate(id, chunk);
+		}
+		values[entity & CHUNK_MASK] = value;
+	}
+
+	/**
+	 * Resets every variable of the entity to 0, so its ID can be given to a new entity
+	 * @param entity The entity's ID
+	 */
+	public void clear (int entity) {
+		checkEntity(entity);
+		int chunk = entity >>> CHUNK_SHIFT;
+		int count;
+		synchronized (this) {
+			count = this.count;
+		}
+		for (int id=0;id<count;id++) {
+			int[][] chunks = (int[][]) COLUMNS.getAcquire(columns, id);
+			int[] values;
+			if (chunk < chunks.length && (values = (int[]) CHUNKS.getAcquire(chunks, chunk)) != null) {
+				values[entity & CHUNK_MASK] = 0;
+			}
+		}
+	}
+
+	private synchronized int[] allocate (int id, int chunk) {
+		int[][] chunks = columns[id];//Only written under this lock, so a plain read sees the latest array
+		if (chunk < chunks.length && chunks[chunk] != null) {
+			return chunks[chunk];
+		}
+		int[] values = new int[CHUNK_SIZE];
+		if (chunk < chunks.length) {
+			CHUNKS.setRelease(chunks, chunk, values);
+		} else {
+			chunks = Arrays.copyOf(chunks, Math.max(chunk + 1, chunks.length * 2));
+			chunks[chunk] = values;//Not shared until the release write below
+			COLUMNS.setRelease(columns, id, chunks);
+		}
+		return values;
+	}
+
+	private static void checkEntity (int entity) {
+		if (entity < 0) {
+			throw new IllegalArgumentException("Invalid entity: "+entity+(entity == Context.NO_ENTITY ? " (no entity is bound to the context)" : ""));
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package nz.org.francis.scriptmanager;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Declares the global variables scripts can use, and holds their values.
+ * <p>
+ * Each variable is given a dense ID when it's declared, which the linker compiles into the scripts which use it, so reading a variable is a single array read.
+ * Int-based variables are kept in an int array and the rest in an object array, each with its own IDs, in the same way as local variables.
+ * The arrays are allocated up front and never replaced, so scripts on any thread can use them without a lock.
+ * <p>
+ * Each variable has an {@link Access} mode, which decides how it's read and written.
+ * Plain variables are the cheapest, but writes to them may not be seen by scripts on other threads straight away.
+ *
+ * @author Francis
+ */
+public class GlobalVariables {
+
+	/**
+	 * How a variable is read and written
+	 */
+	public enum Access {
+		/**
+		 * Ordinary array reads and writes, for variables which are only used from one thread, or where a stale value doesn't matter
+		 */
+		PLAIN,
+		/**
+		 * Volatile reads and writes, so a write is seen by every thread which reads the variable after it
+		 */
+		VOLATILE,
+		/**
+		 * Volatile reads and writes, which the host can also update atomically with the compare and set methods
+		 */
+		ATOMIC;
+	}
+
+	/**
+	 * A declared variable
+	 */
+	public static final class Variable {
+		private final String name;
+		private final ScriptDataType type;
+		private final Access access;
+		private final int id;
+
+		private Variable (String name, ScriptDataType type, Access access, int id) {
+			this.name = name;
+			this.type = type;
+			this.access = access;
+			this.id = id;
+		}
+
+		public String getName () {
+			return name;
+		}
+
+		public ScriptDataType getType () {
+			return type;
+		}
+
+		public Access getAccess () {
+			return access;
+		}
+
+		/**
+		 * @return The variable's ID, among the int-based variables if its type is int-based or among the object variables otherwise
+		 */
+		public int getId () {
+			return id;
+		}
+	}
+
+	/**
+	 * The default number of variables of each kind
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+	private static final VarHandle OBJS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+	private final int[] ints;
+	private final Object[] objs;
+	private final Access[] intAccess;
+	private final Access[] objAccess;
+
+	private final Map<String, Variable> byName = new HashMap<>();
+	private int intCount = 0;
+	private int objCount = 0;
+
+	public GlobalVariables () {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity The number of int-based variables which can be declared, and the number of object variables
+	 */
+	public GlobalVariables (int capacity) {
+		ints = new int[capacity];
+		objs = new Object[capacity];
+		intAccess = new Access[capacity];
+		objAccess = new Access[capacity];
+	}
+
+	/**
+	 * Declares a variable, which starts as 0 (or false) if it's int-based, or null otherwise.
+	 * Declaring a variable again with the same type and access mode returns the existing variable.
+	 * @param name The name scripts refer to the variable by, without the leading %
+	 * @param type The variable's type
+	 * @param access How the variable is read and written
+	 * @return The variable
+	 * @throws IllegalArgumentException If a variable with the name has already been declared with a different type or access mode
+	 * @throws IllegalStateException If there's no room left for variables of the type
+	 */
+	public synchronized Variable declare (String name, ScriptDataType type, Access access) {
+		Variable existing = byName.get(name);
+		if (existing != null) {
+			if (existing.type != type || existing.access != access) {
+				throw new IllegalArgumentException("%"+name+" is already declared as "+existing.access+" "+existing.type);
+			}
+			return existing;
+		}
+		Variable variable;
+		if (type.intBase()) {
+			if (intCount == ints.length) {
+				throw new IllegalStateException("No room for another int-based global variable");
+			}
+			variable = new Variable(name, type, access, intCount);
+			intAccess[intCount++] = access;
+		} else {
+			if (objCount == objs.length) {
+				throw new IllegalStateException("No room for another object global variable");
+			}
+			variable = new Variable(name, type, access, objCount);
+			objAccess[objCount++] = access;
+		}
+		byName.put(name, variable);
+		return variable;
+	}
+
+	/**
+	 * @return The variable with the name, or null if it hasn't been declared
+	 */
+	public synchronized Variable get (String name) {
+		return byName.get(name);
+	}
+
+	public int getInt (int id) {
+		return intAccess[id] == Access.PLAIN ? ints[id] : (int) INTS.getVolatile(ints, id);
+	}
+
+	public void setInt (int id, int value) {
+		if (intAccess[id] == Access.PLAIN) {
+			ints[id] = value;
+		} else {
+			INTS.setVolatile(ints, id, value);
+		}
+	}
+
+	public Object getObj (int id) {
+		return objAccess[id] == Access.PLAIN ? objs[id] : OBJS.getVolatile(objs, id);
+	}
+
+	public void setObj (int id, Object value) {
+		if (objAccess[id] == Access.PLAIN) {
+			objs[id] = value;
+		} else {
+			OBJS.setVolatile(objs, id, value);
+		}
+	}
+
+	/**
+	 * Sets an atomic int-based variable, if it holds the expected value
+	 * @return True if the variable was set
+	 * @throws IllegalStateException If the variable isn't atomic
+	 */
+	public boolean compareAndSetInt (int id, int expected, int value) {
+		checkAtomic(intAccess[id], id);
+		return INTS.compareAndSet(ints, id, expected, value);
+	}
+
+	/**
+	 * Adds to an atomic int-based variable
+	 * @return The value before it was added to
+	 * @throws IllegalStateException If the variable isn't atomic
+	 */
+	public int getAndAddInt (int id, int delta) {
+		checkAtomic(intAccess[id], id);
+		return (int) INTS.getAndAdd(ints, id, delta);
+	}
+
+	/**
+	 * Sets an atomic object variable, if it holds the expected value (compared by identity)
+	 * @return True if the variable was set
+	 * @throws IllegalStateException If the variable isn't atomic
+	 */
+	public boolean compareAndSetObj (int id, Object expected, Object value) {
+		checkAtomic(objAccess[id], id);
+		return OBJS.compareAndSet(objs, id, expected, value);
+	}
+
+	private static void checkAtomic (Access access, int id) {
+		if (access != Access.ATOMIC) {//Plain writes aren't ordered with the update, so updates are only allowed on variables declared for them
+			throw new IllegalStateException("Global variable "+id+" isn't atomic");
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package nz.org.francis.scriptmanager;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of a host object as an api function, to be registered with {@link ApiRegistry#registerAll(Object)}.
+ * <p>
+ * The function's signature is taken from the method: parameters and return values may be int, boolean or String,
+ * and a void method has no return values. Static methods are registered too.
+ *
+ * @author Francis
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ScriptFunction {
+	
+	/**
+	 * @return The name scripts call the function by, or an empty string to use the method's name
+	 */
+	String name() default "";
+	
+	/**
+	 * Scripts are compiled against the opcode, so functions which are used by scripts compiled ahead of time should have a fixed opcode.
+	 * @return The opcode of the function, or -1 to use the first free opcode
+	 */
+	int opcode() default -1;
+}
@@ -14,4 +14,38 @@ public interface ScriptManager {
 	public ApiFunction getApiFuncType (int id);
 	
 	public void invokeApiFunction (ApiFunction function, Context ctx);
+	
+	/**
+	 * Returns the registry the executer uses to call api functions directly. 
+	 * Functions which have a handler in the registry are called through it, and the rest through {@link #invokeApiFunction(ApiFunction, Context)}.
+	 * @return The registry, or null if every function is called through the script manager
+	 */
+	public default ApiRegistry getApiRegistry () {
+		return null;
+	}
+	
+	/**
+	 * Returns the table the executer uses to resolve script calls. 
+	 * When there's a table, {@link #getById(int)} should return the same scripts as it.
+	 * @return The table, or null if scripts are looked up through {@link #getById(int)}
+	 */
+	public default ScriptTable getScriptTable () {
+		return null;
+	}
+	
+	/**
+	 * Returns the global variables the executer reads and writes. These should be the same variables the scripts were linked against.
+	 * @return The variables, or null if scripts can't use global variables
+	 */
+	public default GlobalVariables getGlobalVariables () {
+		return null;
+	}
+	
+	/**
+	 * Returns the entity variables the executer reads and writes, for the entity bound to each context. These should be the same variables the scripts were linked against.
+	 * @return The variables, or null if scripts can't use entity variables
+	 */
+	public default EntityVariables getEntityVariables () {
+		return null;
+	}
 }
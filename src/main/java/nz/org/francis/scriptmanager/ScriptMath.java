@@ -0,0 +1,44 @@
+package nz.org.francis.scriptmanager;
+
+/**
+ * Integer arithmetic shared by the compiler and the executers, so constant folding gives the same results as running the script
+ * 
+ * @author Francis
+ */
+public class ScriptMath {
+	
+	private ScriptMath () {
+		
+	}
+	
+	/**
+	 * Raises the base to the provided power using integer arithmetic. 
+	 * Like the other integer operators, the result wraps around on overflow.
+	 * Negative exponents give the truncated result, which is zero unless the base is 1 or -1.
+	 * @param base The base
+	 * @param exponent The exponent
+	 * @return The base raised to the exponent
+	 * @throws ArithmeticException If zero is raised to a negative power
+	 */
+	public static int power (int base, int exponent) {
+		if (exponent < 0) {
+			if (base == 0) {
+				throw new ArithmeticException("Zero raised to a negative power");
+			} else if (base == 1) {
+				return 1;
+			} else if (base == -1) {
+				return (exponent & 1) == 0 ? 1 : -1;
+			}
+			return 0;
+		}
+		int result = 1;
+		while (exponent != 0) {
+			if ((exponent & 1) != 0) {
+				result *= base;
+			}
+			base *= base;
+			exponent >>>= 1;
+		}
+		return result;
+	}
+}
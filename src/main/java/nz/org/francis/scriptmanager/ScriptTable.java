@@ -0,0 +1,144 @@
+package nz.org.francis.scriptmanager;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.Opcodes;
+
+/**
+ * Holds the loaded scripts in an array indexed by script ID, so the executer can resolve a script call with a single array read.
+ * <p>
+ * Scripts are linked as they're loaded: every script call in the table must resolve to a loaded script, or the whole load is rejected,
+ * so a missing callee is reported when it's loaded rather than when the call runs.
+ * Loading publishes a new copy of the array, so a batch of scripts (including replacements for scripts which are already loaded) becomes visible to running scripts all at once.
+ * A replacement must have the same signature as the script it replaces, as its callers (and any code compiled from them) were built against that signature,
+ * and any loaded script which inlined the replaced script must be relinked and loaded in the same batch, so it doesn't keep running the old copy.
+ * For the same reason, a script which couldn't suspend can't be replaced by one which can (directly or through its calls),
+ * as callers compiled to a tier which can't suspend (see {@link nz.org.francis.scriptmanager.executer.ScriptScheduler#maySuspend}) would fail when it did.
+ *
+ * @author Francis
+ */
+public class ScriptTable {
+
+	private volatile CompiledScript[] scripts = new CompiledScript[16];
+
+	/**
+	 * Loads a script, replacing the loaded script with the same ID
+	 * @param script The script
+	 * @throws CompilationException If the script calls a script which isn't loaded, or it replaces a script with a different signature or which couldn't suspend when it can
+	 */
+	public void load (CompiledScript script) throws CompilationException {
+		load(Collections.singleton(script));
+	}
+
+	/**
+	 * Links and loads a batch of scripts, replacing any loaded scripts with the same IDs. Nothing is loaded if any script fails to link.
+	 * @param batch The scripts
+	 * @throws CompilationException If a script calls a script which isn't loaded or in the batch, or it replaces a script with a different signature,
+	 * which couldn't suspend when it can, or which was inlined into a loaded script outside the batch
+	 */
+	public synchronized void load (Collection<CompiledScript> batch) throws CompilationException {
+		CompiledScript[] scripts = this.scripts;
+		int length = scripts.length;
+		for (CompiledScript script : batch) {
+			if (script.getId() < 0) {
+				throw new CompilationException("Invalid ID for "+script.getName()+": "+script.getId());
+			}
+			while (script.getId() >= length) {
+				length *= 2;
+			}
+		}
+		CompiledScript[] newScripts = Arrays.copyOf(scripts, length);
+		for (CompiledScript script : batch) {
+			CompiledScript existing = newScripts[script.getId()];
+			if (existing != null && (!existing.getParams().equals(script.getParams()) || !existing.getReturns().equals(script.getReturns()))) {
+				throw new CompilationException(script.getName()+" can't replace "+existing.getName()+" as their signatures differ");
+			}
+			newScripts[script.getId()] = script;
+		}
+		for (CompiledScript script : batch) {
+			link(script, newScripts);
+		}
+		checkInlined(scripts, newScripts);
+		for (CompiledScript script : batch) {
+			CompiledScript existing = scripts.length > script.getId() ? scripts[script.getId()] : null;
+			if (existing != null && !maySuspend(existing, scripts) && maySuspend(script, newScripts)) {
+				throw new CompilationException(script.getName()+" can't replace "+existing.getName()+" as it can suspend, and its callers may have been compiled on the basis that it couldn't");
+			}
+		}
+		this.scripts = newScripts;
+	}
+
+	/**
+	 * Checks whether the script, or any script it calls in the table, contains a "sleep" or "wait"
+	 */
+	private static boolean maySuspend (CompiledScript script, CompiledScript[] scripts) {
+		Set<CompiledScript> visited = new HashSet<>();
+		ArrayDeque<CompiledScript> pending = new ArrayDeque<>();
+		pending.add(script);
+		visited.add(script);
+		while (!pending.isEmpty()) {
+			CompiledScript current = pending.poll();
+			int[] code = current.getBaseCode();
+			int[] operands = current.getOperands();
+			for (int pos=0;pos<code.length;pos++) {
+				if (code[pos] == Opcodes.SLEEP || code[pos] == Opcodes.WAIT_EVENT) {
+					return true;
+				} else if ((code[pos] == Opcodes.INVOKE_SCRIPT || code[pos] == Opcodes.TAIL_CALL) && operands[pos] >= 0 && operands[pos] < scripts.length) {
+					CompiledScript callee = scripts[operands[pos]];
+					if (callee != null && visited.add(callee)) {
+						pending.add(callee);
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks that every script the script calls is in the table
+	 */
+	private static void link (CompiledScript script, CompiledScript[] scripts) throws CompilationException {
+		int[] code = script.getBaseCode();
+		int[] operands = script.getOperands();
+		for (int pos=0;pos<code.length;pos++) {
+			if (code[pos] == Opcodes.INVOKE_SCRIPT || code[pos] == Opcodes.TAIL_CALL) {
+				int id = operands[pos];
+				if (id < 0 || id >= scripts.length || scripts[id] == null) {
+					throw new CompilationException(script.getName()+" calls script "+id+", which isn't loaded");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that none of the scripts kept from the old table inlined a script which has been replaced
+	 */
+	private static void checkInlined (CompiledScript[] oldScripts, CompiledScript[] newScripts) throws CompilationException {
+		for (int id=0;id<oldScripts.length;id++) {
+			CompiledScript script = oldScripts[id];
+			if (script == null || newScripts[id] != script) {
+				continue;
+			}
+			for (int inlined : script.getInlinedScripts()) {
+				if (inlined < oldScripts.length && oldScripts[inlined] != null && newScripts[inlined] != oldScripts[inlined]) {
+					throw new CompilationException(script.getName()+" inlined "+oldScripts[inlined].getName()+", so it must be relinked and loaded with its replacement");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds a loaded script. This is called for every script call, so it's kept to a bounds check and an array read.
+	 * @param id The script's ID
+	 * @return The script, or null if there isn't one
+	 */
+	public CompiledScript get (int id) {
+		CompiledScript[] scripts = this.scripts;
+		return id >= 0 && id < scripts.length ? scripts[id] : null;
+	}
+}
@@ -10,9 +10,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import nz.org.francis.scriptmanager.BufferUtility;
 import nz.org.francis.scriptmanager.Script;
 import nz.org.francis.scriptmanager.ScriptDataType;
+import nz.org.francis.scriptmanager.executer.Executable;
 import nz.org.francis.scriptmanager.compiler.ScriptHeader;
 
 /**
@@ -21,15 +23,18 @@ import nz.org.francis.scriptmanager.compiler.ScriptHeader;
  */
 public class CompiledScript implements Script {
 	
-	private static final byte VERSION = 1;
+	/**
+	 * The version of the encoded format. Version 2 added the shift instruction and superinstructions, version 3 added the suspend instructions, version 4 added the tail call instruction, version 5 added the int global instructions, and version 6 added the entity variable instructions; 
+	 * earlier scripts are otherwise identical, so they can still be decoded.
+	 */
+	private static final byte VERSION = 6;
 	
 	public static CompiledScript construct (int id, String name, ScriptOpcode[] instructions, Map<Integer, Object> constants, 
 			List<ScriptDataType> params, List<ScriptDataType>responses, int intLocalCount, int objLocalCount) {
 		CompiledScript script = new CompiledScript(id);
 		script.name = name;
-		script.instructions = instructions;
-		script.constants = constants;
-		script.params = params;
+		script.assemble(instructions, constants);
+		script.setParams(params);
 		script.responses = responses;
 		script.intLocalCount = intLocalCount;
 		script.objLocalCount = objLocalCount;
@@ -40,31 +45,101 @@ public class CompiledScript implements Script {
 			int intLocalCount, int objLocalCount) {
 		CompiledScript script = new CompiledScript(header.getId());
 		script.name = header.getName();
-		script.instructions = instructions;
-		script.constants = constants;
-		script.params = header.getParams();
+		script.assemble(instructions, constants);
+		script.setParams(header.getParams());
 		script.responses = header.getReturns();
 		script.intLocalCount = intLocalCount;
 		script.objLocalCount = objLocalCount;
 		return script;
 	}
 	
-	protected ScriptOpcode[] instructions;
+	/**
+	 * The numeric opcode (see {@link Opcodes}) for each instruction
+	 */
+	protected int[] code;
+	
+	/**
+	 * The opcodes with superinstructions replaced by the first instruction of their sequence. 
+	 * This is the same array as {@link #code} if the script doesn't have any superinstructions.
+	 */
+	protected int[] baseCode;
+	
+	/**
+	 * The operand for each instruction. This holds the value of the integer constant for instructions which have one, 
+	 * or the index into the constant pool for {@link ScriptOpcode#LOAD_STR_CONST}.
+	 */
+	protected int[] operands;
+	
+	/**
+	 * Holds the object constants (strings) referenced by the instructions
+	 */
+	protected Object[] constantPool;
+	
 	protected List<ScriptDataType> params;
+	private boolean[] intParams;//Always set along with params (see setParams), so it's filled in before the script is shared between threads
 	protected List<ScriptDataType> responses;
 	
-	protected Map<Integer, Object> constants = new HashMap<>();
-	
 	protected int intLocalCount;
 	protected int objLocalCount;
 	
+	/**
+	 * The IDs of the scripts whose bodies were copied into this script by the {@link Inliner}
+	 */
+	int[] inlinedScripts = new int[0];
+	
 	private final int id;
 	private String name;
 	
+	private volatile Executable executable;
+	
+	/*
+	 * Hotness counters used to decide when to optimise the script. 
+	 * These are deliberately unsynchronised: an occasional lost update only delays promotion slightly.
+	 */
+	private int invocationCount;
+	private int backEdgeCount;
+	
+	private volatile int promotionRequested;
+	
+	private static final AtomicIntegerFieldUpdater<CompiledScript> promotionUpdater = 
+			AtomicIntegerFieldUpdater.newUpdater(CompiledScript.class, "promotionRequested");
+	
 	public CompiledScript (int id) {
 		this.id = id;
 	}
 	
+	/**
+	 * Flattens the instructions and their constants into the form used for execution
+	 * @param instructions The instructions for the script
+	 * @param constants The constants for the instructions, keyed by instruction position
+	 */
+	private void assemble (ScriptOpcode[] instructions, Map<Integer, Object> constants) {
+		code = new int[instructions.length];
+		int[] base = new int[instructions.length];
+		operands = new int[instructions.length];
+		List<Object> pool = new ArrayList<>();
+		Map<Object, Integer> poolLookup = new HashMap<>();
+		for (int pos=0;pos<instructions.length;pos++) {
+			code[pos] = instructions[pos].getOpcode();
+			base[pos] = instructions[pos].getBase().getOpcode();
+			if (instructions[pos] == ScriptOpcode.LOAD_STR_CONST) {
+				Object value = constants.get(pos);
+				Integer index = poolLookup.get(value);
+				if (index == null) {
+					index = pool.size();
+					pool.add(value);
+					poolLookup.put(value, index);
+				}
+				operands[pos] = index;
+			} else if (instructions[pos].hasIntConst()) {
+				Object value = constants.get(pos);
+				operands[pos] = value == null ? 0 : (int) value;
+			}
+		}
+		constantPool = pool.toArray();
+		baseCode = Arrays.equals(code, base) ? code : base;
+	}
+	
 	public int getId () {
 		return id;
 	}
@@ -84,11 +159,12 @@ public class CompiledScript implements Script {
     }
 	
 	public int getEncodedSize () {
-		int size = name.length()+params.size()+responses.size()+(instructions.length*2)+10;
-		for (int pos=0;pos<instructions.length;pos++) {
-			if (instructions[pos] == ScriptOpcode.LOAD_STR_CONST) {
-				size += ((String) constants.get(pos)).length()+1;
-			} else if (instructions[pos].hasIntConst()) {
+		int size = name.length()+params.size()+responses.size()+(code.length*2)+10;
+		for (int pos=0;pos<code.length;pos++) {
+			ScriptOpcode instr = ScriptOpcode.forOpcode(code[pos]);
+			if (instr == ScriptOpcode.LOAD_STR_CONST) {
+				size += ((String) constantPool[operands[pos]]).length()+1;
+			} else if (instr.hasIntConst()) {
 				size += 4;
 			}
 		}
@@ -97,23 +173,142 @@ public class CompiledScript implements Script {
     
     @Override
     public ScriptOpcode getInstruction (int pos) {
-        return instructions[pos];
+        return ScriptOpcode.forOpcode(code[pos]);
     }
     
     @Override
     public int getInstructionCount () {
-        return instructions.length;
+        return code.length;
     }
     
     @Override
     public Object getConstant (int pos) {
-        return constants.get(pos);
+		ScriptOpcode instr = ScriptOpcode.forOpcode(code[pos]);
+		if (instr == ScriptOpcode.LOAD_STR_CONST) {
+			return constantPool[operands[pos]];
+		} else if (instr.hasIntConst()) {
+			return operands[pos];
+		}
+        return null;
     }
+	
+	/**
+	 * Returns the numeric opcodes for this script. The returned array is shared, so it must not be modified.
+	 * @return The opcode for each instruction
+	 */
+	public int[] getCode () {
+		return code;
+	}
+	
+	/**
+	 * Returns the opcodes for this script without superinstructions, for executers which only handle the basic instructions.
+	 * Every instruction in a superinstruction's sequence keeps its own operand, so this can be used with {@link #getOperands()}.
+	 * The returned array is shared, so it must not be modified.
+	 * @return The basic opcode for each instruction
+	 */
+	public int[] getBaseCode () {
+		return baseCode;
+	}
+	
+	/**
+	 * Returns the operand for each instruction. The returned array is shared, so it must not be modified.
+	 * @return The instruction operands
+	 */
+	public int[] getOperands () {
+		return operands;
+	}
+	
+	/**
+	 * Returns the object constants referenced by this script. The returned array is shared, so it must not be modified.
+	 * @return The constant pool
+	 */
+	public Object[] getConstantPool () {
+		return constantPool;
+	}
     
     public List<ScriptDataType> getParams () {
         return Collections.unmodifiableList(params);
     }
 	
+	/**
+	 * Returns where each parameter is held, for copying arguments on every call without going through {@link #getParams()}. 
+	 * The returned array is shared, so it must not be modified.
+	 * @return For each parameter, true if it's held in an int local or false if it's held in an object local
+	 */
+	public boolean[] getIntParams () {
+		return intParams;
+	}
+	
+	private void setParams (List<ScriptDataType> params) {
+		boolean[] intParams = new boolean[params.size()];
+		for (int i=0;i<intParams.length;i++) {
+			intParams[i] = params.get(i).intBase();
+		}
+		this.params = params;
+		this.intParams = intParams;
+	}
+    
+    public List<ScriptDataType> getReturns () {
+        return Collections.unmodifiableList(responses);
+    }
+	
+	/**
+	 * Returns the optimised form of this script, if one has been installed
+	 * @return The executable, or null if this script should be interpreted
+	 */
+	public Executable getExecutable () {
+		return executable;
+	}
+	
+	/**
+	 * Installs an optimised form of this script, which will be used for any invocations started after this call
+	 * @param executable The executable, or null to go back to interpreting the script
+	 */
+	public void setExecutable (Executable executable) {
+		this.executable = executable;
+	}
+	
+	/**
+	 * Returns the scripts which were inlined into this script, including any inlined into them. 
+	 * This script must be relinked if any of them are replaced. The returned array is shared, so it must not be modified.
+	 * @return The IDs of the inlined scripts, in ascending order
+	 */
+	public int[] getInlinedScripts () {
+		return inlinedScripts;
+	}
+	
+	/**
+	 * Records an interpreted invocation of this script
+	 * @return The number of invocations recorded so far
+	 */
+	public int countInvocation () {
+		return ++invocationCount;
+	}
+	
+	/**
+	 * Records a backward jump (a loop iteration) while interpreting this script
+	 * @return The number of backward jumps recorded so far
+	 */
+	public int countBackEdge () {
+		return ++backEdgeCount;
+	}
+	
+	public int getInvocationCount () {
+		return invocationCount;
+	}
+	
+	public int getBackEdgeCount () {
+		return backEdgeCount;
+	}
+	
+	/**
+	 * Marks this script as queued for optimisation
+	 * @return True if this is the first request, false if the script has already been queued
+	 */
+	public boolean requestPromotion () {
+		return promotionRequested == 0 && promotionUpdater.compareAndSet(this, 0, 1);
+	}
+	
 	public void encode (ByteBuffer buffer) throws IOException {
 		buffer.put(VERSION);
 		BufferUtility.writeString(buffer, name);
@@ -128,31 +323,33 @@ public class CompiledScript implements Script {
 		buffer.putShort((short) intLocalCount);
 		buffer.putShort((short) objLocalCount);
 		
-		buffer.putShort((short) instructions.length);
-		for (ScriptOpcode instr : instructions) {
-			buffer.putShort((short) instr.getOpcode());
+		buffer.putShort((short) code.length);
+		for (int opcode : code) {
+			buffer.putShort((short) opcode);
 		}
 		
-		for (int pos=0;pos<instructions.length;pos++) {
-			if (instructions[pos] == ScriptOpcode.LOAD_STR_CONST) {
-				BufferUtility.writeString(buffer, (String) constants.get(pos));
-			} else if (instructions[pos].hasIntConst()) {
-				buffer.putInt((int) constants.get(pos));
+		for (int pos=0;pos<code.length;pos++) {
+			ScriptOpcode instr = ScriptOpcode.forOpcode(code[pos]);
+			if (instr == ScriptOpcode.LOAD_STR_CONST) {
+				BufferUtility.writeString(buffer, (String) constantPool[operands[pos]]);
+			} else if (instr.hasIntConst()) {
+				buffer.putInt(operands[pos]);
 			}
 		}
 	}
 	
 	public void decode (ByteBuffer buffer) throws IOException {
 		int version = buffer.get();
-		if (version != 1) {
+		if (version < 1 || version > VERSION) {
 			throw new RuntimeException("Unsupported version number: "+version);
 		}
 		name = BufferUtility.readString(buffer);
 		int count = buffer.get() & 0xff;
-		params = new ArrayList<>(count);
+		List<ScriptDataType> params = new ArrayList<>(count);
 		for (int pos=0;pos<count;pos++) {
 			params.add(ScriptDataType.forID(buffer.get() & 0xff));
 		}
+		setParams(params);
 		
 		count = buffer.get() & 0xff;
 		responses = new ArrayList<>(count);
@@ -163,11 +360,12 @@ public class CompiledScript implements Script {
 		objLocalCount = buffer.getShort();
 		
 		count = buffer.getShort();
-		instructions = new ScriptOpcode[count];
+		ScriptOpcode[] instructions = new ScriptOpcode[count];
 		for (int pos=0;pos<count;pos++) {
 			instructions[pos] = ScriptOpcode.forOpcode(buffer.getShort() & 0xffff);
 		}
 		
+		Map<Integer, Object> constants = new HashMap<>();
 		for (int pos=0;pos<instructions.length;pos++) {
 			if (instructions[pos] == ScriptOpcode.LOAD_STR_CONST) {
 				constants.put(pos, BufferUtility.readString(buffer));
@@ -175,15 +373,17 @@ public class CompiledScript implements Script {
 				constants.put(pos, buffer.getInt());
 			}
 		}
+		assemble(instructions, constants);
 	}
 
 	@Override
 	public int hashCode() {
 		int hash = 5;
-		hash = 89 * hash + Arrays.deepHashCode(this.instructions);
+		hash = 89 * hash + Arrays.hashCode(this.code);
+		hash = 89 * hash + Arrays.hashCode(this.operands);
+		hash = 89 * hash + Arrays.hashCode(this.constantPool);
 		hash = 89 * hash + Objects.hashCode(this.params);
 		hash = 89 * hash + Objects.hashCode(this.responses);
-		hash = 89 * hash + Objects.hashCode(this.constants);
 		hash = 89 * hash + this.intLocalCount;
 		hash = 89 * hash + this.objLocalCount;
 		hash = 89 * hash + Objects.hashCode(this.name);
@@ -199,16 +399,19 @@ public class CompiledScript implements Script {
 			return false;
 		}
 		final CompiledScript other = (CompiledScript) obj;
-		if (!Arrays.deepEquals(this.instructions, other.instructions)) {
+		if (!Arrays.equals(this.code, other.code)) {
 			return false;
 		}
-		if (!Objects.equals(this.params, other.params)) {
+		if (!Arrays.equals(this.operands, other.operands)) {
 			return false;
 		}
-		if (!Objects.equals(this.responses, other.responses)) {
+		if (!Arrays.equals(this.constantPool, other.constantPool)) {
 			return false;
 		}
-		if (!Objects.equals(this.constants, other.constants)) {
+		if (!Objects.equals(this.params, other.params)) {
+			return false;
+		}
+		if (!Objects.equals(this.responses, other.responses)) {
 			return false;
 		}
 		if (this.intLocalCount != other.intLocalCount) {
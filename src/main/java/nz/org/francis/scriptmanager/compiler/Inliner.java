@@ -0,0 +1,243 @@
+package nz.org.francis.scriptmanager.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import nz.org.francis.scriptmanager.ScriptDataType;
+
+/**
+ * Replaces calls to small scripts with a copy of the called script's body, which saves the frame, local arrays and parameter copying of a real call.
+ * <p>
+ * The callee's parameters are popped into fresh local slots in the caller, after the caller's own locals, and its other int locals are zeroed
+ * so they start the same way as in a real call. Each RETURN becomes a jump to the instruction after the call, as the return values are already on the stacks.
+ * Callees are inlined after their own calls have been inlined, and calls which lead back to a script being inlined are left as real calls, so recursion is preserved.
+ * The callee's tail calls become ordinary calls, as they no longer end a script; the optimiser marks them again if they're still in tail position in the caller.
+ * <p>
+ * Callees with object locals other than their parameters aren't inlined, as there's no instruction to reset an object local to null.
+ * As the caller holds a copy of the callee, callers must be relinked when a script they inlined is replaced (see {@link CompiledScript#getInlinedScripts()}).
+ *
+ * @author Francis
+ */
+public class Inliner {
+
+	/**
+	 * The default size limit, which covers helpers of a few statements
+	 */
+	public static final int DEFAULT_MAX_SIZE = 16;
+
+	private final int maxSize;
+
+	public Inliner () {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize The largest callee, in instructions, which is inlined
+	 */
+	public Inliner (int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public int getMaxSize () {
+		return maxSize;
+	}
+
+	/**
+	 * Inlines calls between the scripts
+	 * @param scripts The scripts, keyed by ID
+	 * @param optimiser The optimiser to run over each script with inlined calls, or null to leave the spliced instructions as they are
+	 * @return The scripts, with the ones which had calls inlined replaced by new scripts with the same IDs
+	 */
+	public Map<Integer, CompiledScript> inline (Map<Integer, CompiledScript> scripts, InstructionOptimiser optimiser) {
+		Map<Integer, CompiledScript> done = new HashMap<>();
+		Set<Integer> inProgress = new HashSet<>();
+		for (CompiledScript script : scripts.values()) {
+			inline(script, scripts, optimiser, done, inProgress);
+		}
+		return done;
+	}
+
+	private CompiledScript inline (CompiledScript script, Map<Integer, CompiledScript> scripts, InstructionOptimiser optimiser,
+			Map<Integer, CompiledScript> done, Set<Integer> inProgress) {
+		CompiledScript result = done.get(script.getId());
+		if (result != null) {
+			return result;
+		}
+		inProgress.add(script.getId());
+		int[] code = script.getBaseCode();
+		int[] operands = script.getOperands();
+		Map<Integer, CompiledScript> callees = new HashMap<>();
+		for (int pos=0;pos<code.length;pos++) {
+			if ((code[pos] == Opcodes.INVOKE_SCRIPT || code[pos] == Opcodes.TAIL_CALL) && !inProgress.contains(operands[pos]) && scripts.containsKey(operands[pos])) {
+				CompiledScript callee = inline(scripts.get(operands[pos]), scripts, optimiser, done, inProgress);
+				if (canInline(callee)) {
+					callees.put(callee.getId(), callee);
+				}
+			}
+		}
+		inProgress.remove(script.getId());
+		result = callees.isEmpty() ? script : splice(script, callees, optimiser);
+		done.put(script.getId(), result);
+		return result;
+	}
+
+	private boolean canInline (CompiledScript callee) {
+		if (callee.getInstructionCount() > maxSize) {
+			return false;
+		}
+		int objParams = 0;
+		for (ScriptDataType param : callee.getParams()) {
+			if (!param.intBase()) {
+				objParams++;
+			}
+		}
+		return callee.getObjLocalCount() == objParams;
+	}
+
+	/**
+	 * Builds a copy of the script with the calls to the callees replaced by their bodies
+	 */
+	private static CompiledScript splice (CompiledScript script, Map<Integer, CompiledScript> callees, InstructionOptimiser optimiser) {
+		InstructionList caller = toInstructionList(script);
+		int size = caller.size();
+		int intBase = script.getIntLocalCount();
+		int objBase = script.getObjLocalCount();
+		int extraInts = 0, extraObjs = 0;
+
+		List<ScriptOpcode> opcodes = new ArrayList<>();
+		List<Object> constants = new ArrayList<>();//Jumps hold absolute targets: for the caller's own jumps these are old positions, fixed up once the new positions are known
+		List<Integer> callerJumps = new ArrayList<>();
+		int[] newIndex = new int[size+1];
+		Set<Integer> inlined = new LinkedHashSet<>();
+		for (int id : script.getInlinedScripts()) {
+			inlined.add(id);
+		}
+
+		for (int pos=0;pos<size;pos++) {
+			newIndex[pos] = opcodes.size();
+			ScriptOpcode opcode = caller.get(pos);
+			CompiledScript callee = opcode == ScriptOpcode.INVOKE_SCRIPT || opcode == ScriptOpcode.TAIL_CALL ? callees.get(caller.getInt(pos)) : null;
+			if (callee == null) {
+				if (opcode.isJump()) {
+					callerJumps.add(opcodes.size());
+				}
+				opcodes.add(opcode);
+				constants.add(caller.getConstant(pos));
+				continue;
+			}
+			//Pop the arguments into the callee's parameters, last first
+			List<ScriptDataType> params = callee.getParams();
+			int intParams = 0, objParams = 0;
+			for (ScriptDataType param : params) {
+				if (param.intBase()) {
+					intParams++;
+				} else {
+					objParams++;
+				}
+			}
+			int intPos = intParams, objPos = objParams;
+			for (int i=params.size()-1;i>=0;i--) {
+				if (params.get(i).intBase()) {
+					opcodes.add(ScriptOpcode.ASSIGN_LOCAL_INT);
+					constants.add(intBase + --intPos);
+				} else {
+					opcodes.add(ScriptOpcode.ASSIGN_LOCAL);
+					constants.add(objBase + --objPos);
+				}
+			}
+			for (int local=intParams;local<callee.getIntLocalCount();local++) {
+				opcodes.add(ScriptOpcode.LOAD_INT_CONST);
+				constants.add(0);
+				opcodes.add(ScriptOpcode.ASSIGN_LOCAL_INT);
+				constants.add(intBase + local);
+			}
+			//Copy the body, moving its locals and jumps
+			InstructionList body = toInstructionList(callee);
+			int start = opcodes.size();
+			int end = start + body.size();
+			for (int i=0;i<body.size();i++) {
+				ScriptOpcode bodyOpcode = body.get(i);
+				Object constant = body.getConstant(i);
+				if (bodyOpcode == ScriptOpcode.RETURN) {
+					bodyOpcode = ScriptOpcode.JUMP;
+					constant = end;
+				} else if (bodyOpcode == ScriptOpcode.TAIL_CALL) {
+					bodyOpcode = ScriptOpcode.INVOKE_SCRIPT;//The callee's frame is now the caller's, so its tail calls have to return here
+				} else if (bodyOpcode.isJump()) {
+					constant = start + body.getTarget(i);
+				} else if (bodyOpcode == ScriptOpcode.LOAD_INT_LOCAL || bodyOpcode == ScriptOpcode.ASSIGN_LOCAL_INT) {
+					constant = intBase + (Integer) constant;
+				} else if (bodyOpcode == ScriptOpcode.LOAD_LOCAL || bodyOpcode == ScriptOpcode.ASSIGN_LOCAL) {
+					constant = objBase + (Integer) constant;
+				}
+				opcodes.add(bodyOpcode);
+				constants.add(constant);
+			}
+			//The callee's locals are dead once it returns, so every inlined call can share the same slots
+			extraInts = Math.max(extraInts, callee.getIntLocalCount());
+			extraObjs = Math.max(extraObjs, callee.getObjLocalCount());
+			inlined.add(callee.getId());
+			for (int id : callee.getInlinedScripts()) {
+				inlined.add(id);
+			}
+		}
+		newIndex[size] = opcodes.size();
+		for (int pos : callerJumps) {
+			constants.set(pos, newIndex[(Integer) constants.get(pos)]);
+		}
+
+		Map<Integer, Object> constantMap = new HashMap<>();
+		for (int pos=0;pos<opcodes.size();pos++) {
+			Object constant = constants.get(pos);
+			if (constant != null) {
+				constantMap.put(pos, opcodes.get(pos).isJump() ? (Integer) constant - (pos + 1) : constant);
+			}
+		}
+		ScriptOpcode[] instructions = opcodes.toArray(new ScriptOpcode[opcodes.size()]);
+		if (optimiser != null) {
+			InstructionList spliced = new InstructionList(opcodes, constantMap);
+			optimiser.optimise(spliced);
+			instructions = spliced.toInstructions();
+			constantMap = spliced.toConstants();
+		}
+		CompiledScript result = CompiledScript.construct(script.getId(), script.getName(), instructions, constantMap,
+				script.getParams(), script.getReturns(), intBase + extraInts, objBase + extraObjs);
+		result.inlinedScripts = toArray(inlined);
+		return result;
+	}
+
+	private static int[] toArray (Set<Integer> values) {
+		int[] array = new int[values.size()];
+		int i = 0;
+		for (int value : values) {
+			array[i++] = value;
+		}
+		Arrays.sort(array);
+		return array;
+	}
+
+	/**
+	 * Rebuilds the editable form of a script's instructions, with superinstructions split back into their sequences
+	 */
+	private static InstructionList toInstructionList (CompiledScript script) {
+		int[] code = script.getBaseCode();
+		int[] operands = script.getOperands();
+		List<ScriptOpcode> instructions = new ArrayList<>(code.length);
+		Map<Integer, Object> constants = new HashMap<>();
+		for (int pos=0;pos<code.length;pos++) {
+			ScriptOpcode opcode = ScriptOpcode.forOpcode(code[pos]);
+			instructions.add(opcode);
+			if (opcode == ScriptOpcode.LOAD_STR_CONST) {
+				constants.put(pos, script.getConstantPool()[operands[pos]]);
+			} else if (opcode.hasIntConst()) {
+				constants.put(pos, operands[pos]);
+			}
+		}
+		return new InstructionList(instructions, constants);
+	}
+}
@@ -0,0 +1,148 @@
+package nz.org.francis.scriptmanager.compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An editable copy of a script's instructions, used by the {@link OptimisationPass}es. 
+ * While in this form, jumps hold the absolute index of their target rather than a relative offset, 
+ * so instructions can be removed without breaking the jumps around them.
+ * 
+ * @author Francis
+ */
+public class InstructionList {
+	
+	private final List<ScriptOpcode> opcodes;
+	private final List<Object> constants;
+	
+	/**
+	 * @param instructions The instructions, as written by the parser
+	 * @param constants The constant for each instruction which has one, keyed by the index of the instruction
+	 * @throws IllegalArgumentException If a jump is missing its offset, or jumps outside the script
+	 */
+	public InstructionList (List<ScriptOpcode> instructions, Map<Integer, Object> constants) {
+		int size = instructions.size();
+		this.opcodes = new ArrayList<>(instructions);
+		this.constants = new ArrayList<>(size);
+		for (int pos=0;pos<size;pos++) {
+			Object constant = constants.get(pos);
+			if (opcodes.get(pos).isJump()) {
+				if (!(constant instanceof Integer)) {
+					throw new IllegalArgumentException("Missing jump offset at instruction "+pos);
+				}
+				int target = pos + 1 + (Integer) constant;
+				if (target < 0 || target > size) {
+					throw new IllegalArgumentException("Jump at instruction "+pos+" leaves the script");
+				}
+				constant = target;
+			}
+			this.constants.add(constant);
+		}
+	}
+	
+	public int size () {
+		return opcodes.size();
+	}
+	
+	public ScriptOpcode get (int pos) {
+		return opcodes.get(pos);
+	}
+	
+	public Object getConstant (int pos) {
+		return constants.get(pos);
+	}
+	
+	/**
+	 * @return The integer constant for the instruction
+	 */
+	public int getInt (int pos) {
+		return (Integer) constants.get(pos);
+	}
+	
+	public void set (int pos, ScriptOpcode opcode, Object constant) {
+		opcodes.set(pos, opcode);
+		constants.set(pos, constant);
+	}
+	
+	/**
+	 * @return The index of the instruction the jump at the provided position goes to. This is {@link #size()} for a jump to the end of the script.
+	 */
+	public int getTarget (int pos) {
+		return (Integer) constants.get(pos);
+	}
+	
+	public void setTarget (int pos, int target) {
+		constants.set(pos, target);
+	}
+	
+	/**
+	 * @return An array flagging every instruction (and the end of the script) which is the target of a jump
+	 */
+	public boolean[] findJumpTargets () {
+		boolean[] targets = new boolean[size()+1];
+		for (int pos=0;pos<size();pos++) {
+			if (opcodes.get(pos).isJump()) {
+				targets[getTarget(pos)] = true;
+			}
+		}
+		return targets;
+	}
+	
+	/**
+	 * Removes the flagged instructions. 
+	 * Jumps to a removed instruction are redirected to the first instruction after it which is kept.
+	 * @param removed Flags for the instructions to remove
+	 */
+	public void remove (boolean[] removed) {
+		int size = size();
+		int[] newIndex = new int[size+1];
+		int kept = 0;
+		for (int pos=0;pos<size;pos++) {
+			newIndex[pos] = kept;
+			if (!removed[pos]) {
+				kept++;
+			}
+		}
+		newIndex[size] = kept;
+		List<ScriptOpcode> oldOpcodes = new ArrayList<>(opcodes);
+		List<Object> oldConstants = new ArrayList<>(constants);
+		opcodes.clear();
+		constants.clear();
+		for (int pos=0;pos<size;pos++) {
+			if (removed[pos]) {
+				continue;
+			}
+			ScriptOpcode opcode = oldOpcodes.get(pos);
+			Object constant = oldConstants.get(pos);
+			if (opcode.isJump()) {
+				constant = newIndex[(Integer) constant];
+			}
+			opcodes.add(opcode);
+			constants.add(constant);
+		}
+	}
+	
+	public ScriptOpcode[] toInstructions () {
+		return opcodes.toArray(new ScriptOpcode[opcodes.size()]);
+	}
+	
+	/**
+	 * @return The constants in the form used by {@link CompiledScript#construct}, with jumps converted back to relative offsets
+	 */
+	public Map<Integer, Object> toConstants () {
+		Map<Integer, Object> map = new HashMap<>();
+		for (int pos=0;pos<size();pos++) {
+			Object constant = constants.get(pos);
+			if (constant == null) {
+				continue;
+			}
+			if (opcodes.get(pos).isJump()) {
+				constant = (Integer) constant - (pos + 1);
+			}
+			map.put(pos, constant);
+		}
+		return map;
+	}
+}
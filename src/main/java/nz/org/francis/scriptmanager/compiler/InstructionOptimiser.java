@@ -0,0 +1,77 @@
+package nz.org.francis.scriptmanager.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs a series of {@link OptimisationPass}es over a script's instructions. 
+ * The passes are repeated until none of them make any changes, as one pass often opens up opportunities for another.
+ * Final passes, such as fusing superinstructions, are then run once each.
+ * 
+ * @author Francis
+ */
+public class InstructionOptimiser {
+	
+	private static final int MAX_ROUNDS = 10;
+	
+	private final List<OptimisationPass> passes;
+	private final List<OptimisationPass> finalPasses = new ArrayList<>();
+	
+	public InstructionOptimiser (OptimisationPass... passes) {
+		this.passes = new ArrayList<>(Arrays.asList(passes));
+	}
+	
+	/**
+	 * @return An optimiser with jump threading, peephole simplification and unreachable code removal, followed by superinstruction fusing
+	 */
+	public static InstructionOptimiser standard () {
+		InstructionOptimiser optimiser = new InstructionOptimiser(new JumpThreadingPass(), new PeepholePass(), new UnreachableCodePass());
+		optimiser.addFinalPass(new TailCallPass());
+		optimiser.addFinalPass(new SuperinstructionPass());
+		return optimiser;
+	}
+	
+	public List<OptimisationPass> getPasses () {
+		return Collections.unmodifiableList(passes);
+	}
+	
+	public void addPass (OptimisationPass pass) {
+		passes.add(pass);
+	}
+	
+	public List<OptimisationPass> getFinalPasses () {
+		return Collections.unmodifiableList(finalPasses);
+	}
+	
+	/**
+	 * Adds a pass which is run once, after the other passes have finished
+	 */
+	public void addFinalPass (OptimisationPass pass) {
+		finalPasses.add(pass);
+	}
+	
+	/**
+	 * Optimises the instructions in place
+	 * @param code The instructions to optimise
+	 * @return True if anything was changed
+	 */
+	public boolean optimise (InstructionList code) {
+		boolean changed = false;
+		for (int round=0;round<MAX_ROUNDS;round++) {
+			boolean roundChanged = false;
+			for (OptimisationPass pass : passes) {
+				roundChanged |= pass.apply(code);
+			}
+			if (!roundChanged) {
+				break;
+			}
+			changed = true;
+		}
+		for (OptimisationPass pass : finalPasses) {
+			changed |= pass.apply(code);
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,35 @@
+package nz.org.francis.scriptmanager.compiler;
+
+/**
+ * Redirects jumps which land on an unconditional jump straight to its final destination, 
+ * and replaces unconditional jumps to a return with the return itself.
+ * 
+ * @author Francis
+ */
+public class JumpThreadingPass implements OptimisationPass {
+
+	@Override
+	public boolean apply(InstructionList code) {
+		boolean changed = false;
+		int size = code.size();
+		for (int pos=0;pos<size;pos++) {
+			if (!code.get(pos).isJump()) {
+				continue;
+			}
+			int target = code.getTarget(pos);
+			int steps = 0;
+			while (target < size && code.get(target) == ScriptOpcode.JUMP && steps++ < size) {//The step limit stops infinite loops from hanging the compiler
+				target = code.getTarget(target);
+			}
+			if (target != code.getTarget(pos)) {
+				code.setTarget(pos, target);
+				changed = true;
+			}
+			if (code.get(pos) == ScriptOpcode.JUMP && target < size && code.get(target) == ScriptOpcode.RETURN) {
+				code.set(pos, ScriptOpcode.RETURN, null);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+}
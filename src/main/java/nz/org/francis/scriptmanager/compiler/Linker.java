@@ -6,8 +6,10 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import nz.org.francis.scriptmanager.ScriptDataType;
-import nz.org.francis.scriptmanager.ApiFunctionType;
 import nz.org.francis.scriptmanager.ApiFunction;
+import nz.org.francis.scriptmanager.ApiRegistry;
+import nz.org.francis.scriptmanager.EntityVariables;
+import nz.org.francis.scriptmanager.GlobalVariables;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
@@ -21,8 +23,55 @@ public class Linker {
 	
 	private final Map<String, ScriptHeader> scriptLookup = new HashMap<>();
 	
+	private final ApiRegistry apiRegistry;
+	
+	private final GlobalVariables globals;
+	
+	private final EntityVariables entities;
+	
+	/**
+	 * Creates a linker which only knows about the built in api functions, and no global or entity variables
+	 */
 	public Linker () {
-		
+		this(new ApiRegistry());
+	}
+	
+	/**
+	 * @param apiRegistry The registry used to look up the api functions scripts call
+	 */
+	public Linker (ApiRegistry apiRegistry) {
+		this(apiRegistry, new GlobalVariables(0));
+	}
+	
+	/**
+	 * @param apiRegistry The registry used to look up the api functions scripts call
+	 * @param globals The global variables scripts can use
+	 */
+	public Linker (ApiRegistry apiRegistry, GlobalVariables globals) {
+		this(apiRegistry, globals, new EntityVariables(0));
+	}
+	
+	/**
+	 * @param apiRegistry The registry used to look up the api functions scripts call
+	 * @param globals The global variables scripts can use
+	 * @param entities The variables scripts can use on the entity they're run for
+	 */
+	public Linker (ApiRegistry apiRegistry, GlobalVariables globals, EntityVariables entities) {
+		this.apiRegistry = apiRegistry;
+		this.globals = globals;
+		this.entities = entities;
+	}
+	
+	public ApiRegistry getApiRegistry () {
+		return apiRegistry;
+	}
+	
+	public GlobalVariables getGlobalVariables () {
+		return globals;
+	}
+	
+	public EntityVariables getEntityVariables () {
+		return entities;
 	}
 	
 	public void registerScript (String name, ScriptHeader header) {
@@ -45,16 +94,52 @@ public class Linker {
 		return scriptLookup.get(name);
 	}
 	
+	/**
+	 * Finds an ID which hasn't been assigned to any registered script
+	 * @return The next free script ID
+	 */
+	public int nextScriptId () {
+		int id = 0;
+		for (ScriptHeader header : scriptLookup.values()) {
+			id = Math.max(id, header.getId());
+		}
+		return id+1;
+	}
+	
+	/**
+	 * @return The type of the global variable, or null if it hasn't been declared
+	 */
 	public ScriptDataType getGlobalVarType (String identifier) {
-		return ScriptDataType.INT;
+		GlobalVariables.Variable variable = globals.get(identifier);
+		return variable == null ? null : variable.getType();
 	}
 	
+	/**
+	 * @return The ID of the global variable, or -1 if it hasn't been declared
+	 */
 	public int getGlobalVarId (String identifier) {
-		return -1;
+		GlobalVariables.Variable variable = globals.get(identifier);
+		return variable == null ? -1 : variable.getId();
+	}
+	
+	/**
+	 * @return The type of the entity variable, or null if it hasn't been declared
+	 */
+	public ScriptDataType getEntityVarType (String identifier) {
+		EntityVariables.Variable variable = entities.get(identifier);
+		return variable == null ? null : variable.getType();
+	}
+	
+	/**
+	 * @return The ID of the entity variable, or -1 if it hasn't been declared
+	 */
+	public int getEntityVarId (String identifier) {
+		EntityVariables.Variable variable = entities.get(identifier);
+		return variable == null ? -1 : variable.getId();
 	}
 	
 	public ApiFunction getApiFunction (String identifier) {
-		return ApiFunctionType.forName(identifier);
+		return apiRegistry.getFunction(identifier);
 	}
 	
 }
@@ -0,0 +1,62 @@
+package nz.org.francis.scriptmanager.compiler;
+
+/**
+ * Numeric opcodes used in the flattened instruction stream of a {@link CompiledScript}.
+ * These are kept as compile-time constants so the executer can switch on them directly.
+ * 
+ * @author Francis
+ */
+public final class Opcodes {
+	
+	public static final int LOAD_INT_CONST = 0;
+	public static final int LOAD_STR_CONST = 1;
+	public static final int LOAD_LOCAL = 2;
+	public static final int LOAD_INT_LOCAL = 3;
+	public static final int ASSIGN_LOCAL = 4;
+	public static final int ASSIGN_LOCAL_INT = 5;
+	public static final int LOAD_GLOBAL = 6;
+	public static final int ASSIGN_GLOBAL = 7;
+	public static final int DROP_OBJ = 8;
+	public static final int DROP_INT = 9;
+	public static final int INVOKE_API = 10;
+	public static final int INVOKE_SCRIPT = 11;
+	public static final int RETURN = 12;
+	public static final int SLEEP = 13;//Suspends the script for the number of ticks on top of the int stack
+	public static final int WAIT_EVENT = 14;//Suspends the script until the event on top of the int stack is fired
+	public static final int TAIL_CALL = 15;//INVOKE_SCRIPT whose results are returned straight away, so the callee can take over the caller's frame
+	public static final int LOAD_INT_GLOBAL = 16;
+	public static final int ASSIGN_GLOBAL_INT = 17;
+	public static final int JUMP = 19;
+	public static final int JUMP_TRUE = 20;
+	public static final int JUMP_FALSE = 21;
+	public static final int JUMP_EQ = 22;
+	public static final int JUMP_NT_EQ = 23;
+	public static final int JUMP_GT = 24;
+	public static final int JUMP_LT = 25;
+	public static final int JUMP_GT_EQ = 26;
+	public static final int JUMP_LT_EQ = 27;
+	public static final int LOAD_ENTITY_INT = 28;//Reads a variable of the entity bound to the context
+	public static final int ASSIGN_ENTITY_INT = 29;
+	public static final int ADD = 100;
+	public static final int SUBTRACT = 101;
+	public static final int MULTIPLY = 102;
+	public static final int DIVIDE = 103;
+	public static final int POWER = 104;
+	public static final int MODULO = 105;
+	public static final int SHIFT_LEFT = 106;
+	
+	/*
+	 * Superinstructions. These replace the first instruction of a common sequence, and take their extra operands 
+	 * from the rest of the sequence, which is left in place (so jump offsets are unchanged) and skipped when executed.
+	 */
+	public static final int LOCAL_ADD_CONST = 200;//LOAD_INT_LOCAL a, LOAD_INT_CONST c, ADD, ASSIGN_LOCAL_INT b
+	public static final int LOCAL_SUB_CONST = 201;//LOAD_INT_LOCAL a, LOAD_INT_CONST c, SUBTRACT, ASSIGN_LOCAL_INT b
+	public static final int JUMP_LOCAL_CONST = 202;//LOAD_INT_LOCAL a, LOAD_INT_CONST c, JUMP_(comparison)
+	public static final int JUMP_LOCAL_LOCAL = 203;//LOAD_INT_LOCAL a, LOAD_INT_LOCAL b, JUMP_(comparison)
+	public static final int STORE_INT_CONST = 204;//LOAD_INT_CONST c, ASSIGN_LOCAL_INT a
+	public static final int COPY_INT_LOCAL = 205;//LOAD_INT_LOCAL a, ASSIGN_LOCAL_INT b
+	
+	private Opcodes () {
+		
+	}
+}
@@ -0,0 +1,16 @@
+package nz.org.francis.scriptmanager.compiler;
+
+/**
+ * A transformation applied to a script's instructions between parsing and {@link CompiledScript#construct}
+ * 
+ * @author Francis
+ */
+public interface OptimisationPass {
+	
+	/**
+	 * Applies the pass to the instructions
+	 * @param code The instructions to optimise
+	 * @return True if anything was changed
+	 */
+	public boolean apply (InstructionList code);
+}
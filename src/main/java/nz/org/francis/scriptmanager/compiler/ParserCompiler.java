@@ -6,13 +6,20 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import nz.org.francis.scriptmanager.ApiRegistry;
 import nz.org.francis.scriptmanager.CompilationException;
 import nz.org.francis.scriptmanager.Compiler;
-import nz.org.francis.scriptmanager.Script;
+import nz.org.francis.scriptmanager.EntityVariables;
+import nz.org.francis.scriptmanager.GlobalVariables;
 
 /**
  *
@@ -22,7 +29,41 @@ public class ParserCompiler implements Compiler {
 	
 	private final Linker linker;
 	private final Map<Integer, CompiledScript> scripts = new HashMap<>();
+	private final Map<Integer, CompiledScript> unlinked = new HashMap<>();//The scripts as they were compiled, before any calls were inlined
 	private final File lookupTableFile;
+	private InstructionOptimiser optimiser = InstructionOptimiser.standard();
+	private Inliner inliner = new Inliner();
+	
+	public ParserCompiler () {
+		this(new ApiRegistry());
+	}
+	
+	/**
+	 * @param apiRegistry The registry used to look up the api functions scripts call, including any registered by the host
+	 */
+	public ParserCompiler (ApiRegistry apiRegistry) {
+		this.linker = new Linker(apiRegistry);
+		this.lookupTableFile = null;
+	}
+	
+	/**
+	 * @param apiRegistry The registry used to look up the api functions scripts call, including any registered by the host
+	 * @param globals The global variables scripts can use
+	 */
+	public ParserCompiler (ApiRegistry apiRegistry, GlobalVariables globals) {
+		this.linker = new Linker(apiRegistry, globals);
+		this.lookupTableFile = null;
+	}
+	
+	/**
+	 * @param apiRegistry The registry used to look up the api functions scripts call, including any registered by the host
+	 * @param globals The global variables scripts can use
+	 * @param entities The variables scripts can use on the entity they're run for
+	 */
+	public ParserCompiler (ApiRegistry apiRegistry, GlobalVariables globals, EntityVariables entities) {
+		this.linker = new Linker(apiRegistry, globals, entities);
+		this.lookupTableFile = null;
+	}
 	
 	public ParserCompiler (File lookupTable) {
 		this.linker = new Linker();
@@ -41,9 +82,46 @@ public class ParserCompiler implements Compiler {
 		}
 	}
 	
+	/**
+	 * Sets the optimiser which is run over each script's instructions before it's constructed
+	 * @param optimiser The optimiser, or null to leave the instructions as they were parsed
+	 */
+	public void setOptimiser (InstructionOptimiser optimiser) {
+		this.optimiser = optimiser;
+	}
+	
+	public InstructionOptimiser getOptimiser () {
+		return optimiser;
+	}
+	
+	/**
+	 * Sets the inliner used by {@link #link()}
+	 * @param inliner The inliner, or null to leave every script call in place
+	 */
+	public void setInliner (Inliner inliner) {
+		this.inliner = inliner;
+	}
+	
+	public Inliner getInliner () {
+		return inliner;
+	}
+	
+	/**
+	 * Runs the link-time passes over every script compiled so far, which inlines calls to small scripts. 
+	 * This should be called once all the sources have been compiled, as calls can only be inlined if the callee has been compiled,
+	 * and again after recompiling a script, so its callers pick up the new version.
+	 * The scripts with inlined calls are replaced, so they must be fetched again with {@link #getScript(int)} or {@link #getScripts()}.
+	 */
+	public void link () {
+		if (inliner != null) {
+			scripts.putAll(inliner.inline(unlinked, optimiser));
+		}
+	}
+	
 	public void saveFiles (File outputFile) {
-		linker.writeLookupTable(lookupTableFile);
-		
+		if (lookupTableFile != null) {
+			linker.writeLookupTable(lookupTableFile);
+		}
 	}
 	
     @Override
@@ -51,12 +129,8 @@ public class ParserCompiler implements Compiler {
 		try (FileChannel channel = new FileInputStream(script).getChannel()) {
 			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
 			channel.read(buffer);
-			CharBuffer cBuffer = buffer.asCharBuffer();
-			SourceScanner scanner = new SourceScanner(cBuffer);
-			readHeaders(scanner);
-			cBuffer.flip();
-			compileScripts(scanner);
-            return scripts.get(scanner);
+			buffer.flip();
+			return compileScriptFromString(StandardCharsets.UTF_8.decode(buffer).toString());
 		}
 	}
 
@@ -65,11 +139,27 @@ public class ParserCompiler implements Compiler {
         return null;
     }
 
+    /**
+     * Compiles every script in the provided source. The compiled scripts can be retrieved with {@link #getScript(int)}.
+     * @param source The source code for one or more scripts
+     * @return The first script in the source, or null if the source doesn't contain any scripts
+     * @throws ParserException If the source contains invalid code
+     */
     @Override
-    public Script compileScriptFromString(String source) throws CompilationException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public CompiledScript compileScriptFromString(String source) throws ParserException {
+		readHeaders(new SourceScanner(CharBuffer.wrap(source)));
+		List<CompiledScript> compiled = compileScripts(new SourceScanner(CharBuffer.wrap(source)));
+		return compiled.isEmpty() ? null : compiled.get(0);
     }
 	
+	public CompiledScript getScript (int id) {
+		return scripts.get(id);
+	}
+	
+	public Collection<CompiledScript> getScripts () {
+		return Collections.unmodifiableCollection(scripts.values());
+	}
+	
 	private void readLookupTable (File lookupTable) {
 		try (FileChannel channel = new FileInputStream(lookupTable).getChannel()) {
 			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
@@ -85,16 +175,21 @@ public class ParserCompiler implements Compiler {
 	private void readHeaders (SourceScanner scanner) throws ParserException {
 		ScriptParser parser = new ScriptParser(scanner, linker);
 		while (scanner.getToken() != Token.EOF) {
+			parser.clearScript();
 			parser.parseHeader();
-			ScriptHeader header = new ScriptHeader(1, parser.getBinding(), parser.getParamSignature(), parser.getReturnSignature());
+			ScriptHeader existing = linker.lookup(parser.getBinding());
+			int id = existing == null ? linker.nextScriptId() : existing.getId();
+			ScriptHeader header = new ScriptHeader(id, parser.getBinding(), parser.getParamSignature(), parser.getReturnSignature());
 			linker.registerScript(parser.getBinding(), header);
 			parser.skipBody();
 		}
 	}
 	
-	private void compileScripts (SourceScanner scanner) throws ParserException {
+	private List<CompiledScript> compileScripts (SourceScanner scanner) throws ParserException {
 		ScriptParser parser = new ScriptParser(scanner, linker);
+		List<CompiledScript> compiled = new ArrayList<>();
 		while (scanner.getToken() != Token.EOF) {
+			parser.clearScript();
 			parser.parseHeader();
 			parser.parseBody();
 			ScriptHeader header = linker.lookup(parser.getBinding());
@@ -109,8 +204,18 @@ public class ParserCompiler implements Compiler {
 					objLocalCount++;
 				}
 			}
-			CompiledScript script = CompiledScript.construct(header, parser.instructions.toArray(new ScriptOpcode[0]), parser.constants, intLocalCount, objLocalCount);
+			CompiledScript script;
+			if (optimiser == null) {
+				script = CompiledScript.construct(header, parser.instructions.toArray(new ScriptOpcode[0]), parser.constants, intLocalCount, objLocalCount);
+			} else {
+				InstructionList code = new InstructionList(parser.instructions, parser.constants);
+				optimiser.optimise(code);
+				script = CompiledScript.construct(header, code.toInstructions(), code.toConstants(), intLocalCount, objLocalCount);
+			}
 			scripts.put(header.getId(), script);
+			unlinked.put(header.getId(), script);
+			compiled.add(script);
 		}
+		return compiled;
 	}
 }
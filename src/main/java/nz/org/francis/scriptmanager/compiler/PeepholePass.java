@@ -0,0 +1,144 @@
+package nz.org.francis.scriptmanager.compiler;
+
+/**
+ * Simplifies short sequences of instructions:
+ * <ul>
+ * <li>Jumps to the next instruction are removed</li>
+ * <li>A conditional jump over an unconditional jump becomes the opposite conditional jump</li>
+ * <li>Values which are loaded and then immediately dropped are removed</li>
+ * <li>Conditional jumps on constant values become either an unconditional jump or nothing</li>
+ * </ul>
+ * A sequence is only combined when none of its instructions after the first are the target of a jump,
+ * as a jump into the middle would otherwise see different stack contents.
+ *
+ * @author Francis
+ */
+public class PeepholePass implements OptimisationPass {
+
+	@Override
+	public boolean apply(InstructionList code) {
+		int size = code.size();
+		boolean[] targets = code.findJumpTargets();
+		boolean[] removed = new boolean[size];
+		boolean changed = false;
+		for (int pos=0;pos<size;pos++) {
+			ScriptOpcode opcode = code.get(pos);
+			ScriptOpcode next = pos+1 < size && !targets[pos+1] ? code.get(pos+1) : null;
+			ScriptOpcode third = pos+2 < size && next != null && !targets[pos+2] ? code.get(pos+2) : null;
+			if (opcode.isJump() && code.getTarget(pos) == pos+1) {
+				if (opcode == ScriptOpcode.JUMP) {
+					removed[pos] = true;
+					changed = true;
+				} else if (opcode == ScriptOpcode.JUMP_TRUE || opcode == ScriptOpcode.JUMP_FALSE) {
+					code.set(pos, ScriptOpcode.DROP_INT, null);
+					changed = true;
+				}
+			} else if (isComparison(opcode) && next == ScriptOpcode.JUMP && code.getTarget(pos) == pos+2) {
+				code.set(pos, invert(opcode), code.getTarget(pos+1));
+				removed[pos+1] = true;
+				changed = true;
+				pos++;
+			} else if (isIntLoad(opcode) && next == ScriptOpcode.DROP_INT
+					|| isObjLoad(opcode) && next == ScriptOpcode.DROP_OBJ) {
+				removed[pos] = removed[pos+1] = true;
+				changed = true;
+				pos++;
+			} else if (opcode == ScriptOpcode.LOAD_INT_CONST && (next == ScriptOpcode.JUMP_TRUE || next == ScriptOpcode.JUMP_FALSE)) {
+				int value = code.getInt(pos);
+				boolean taken = next == ScriptOpcode.JUMP_TRUE ? value == 1 : value == 0;
+				foldJump(code, removed, pos, 1, taken);
+				changed = true;
+				pos++;
+			} else if (opcode == ScriptOpcode.LOAD_INT_CONST && next == ScriptOpcode.LOAD_INT_CONST && isComparison(third)) {
+				boolean taken = compare(third, code.getInt(pos), code.getInt(pos+1));
+				foldJump(code, removed, pos, 2, taken);
+				changed = true;
+				pos += 2;
+			}
+		}
+		if (changed) {
+			code.remove(removed);
+		}
+		return changed;
+	}
+
+	/**
+	 * Replaces a conditional jump on constant values.
+	 * The loads are removed, and the jump either becomes unconditional or is removed as well.
+	 * @param loads The number of constant loads before the jump
+	 */
+	private static void foldJump (InstructionList code, boolean[] removed, int pos, int loads, boolean taken) {
+		int jumpPos = pos + loads;
+		for (int i=pos;i<jumpPos;i++) {
+			removed[i] = true;
+		}
+		if (taken) {
+			code.set(jumpPos, ScriptOpcode.JUMP, code.getTarget(jumpPos));
+		} else {
+			removed[jumpPos] = true;
+		}
+	}
+
+	private static boolean isIntLoad (ScriptOpcode opcode) {
+		return opcode == ScriptOpcode.LOAD_INT_CONST || opcode == ScriptOpcode.LOAD_INT_LOCAL;
+	}
+
+	private static boolean isObjLoad (ScriptOpcode opcode) {
+		return opcode == ScriptOpcode.LOAD_STR_CONST || opcode == ScriptOpcode.LOAD_LOCAL;
+	}
+
+	private static boolean isComparison (ScriptOpcode opcode) {
+		if (opcode == null) {
+			return false;
+		}
+		switch (opcode) {
+			case JUMP_EQ:
+			case JUMP_NT_EQ:
+			case JUMP_GT:
+			case JUMP_LT:
+			case JUMP_GT_EQ:
+			case JUMP_LT_EQ:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static ScriptOpcode invert (ScriptOpcode opcode) {
+		switch (opcode) {
+			case JUMP_EQ:
+				return ScriptOpcode.JUMP_NT_EQ;
+			case JUMP_NT_EQ:
+				return ScriptOpcode.JUMP_EQ;
+			case JUMP_GT:
+				return ScriptOpcode.JUMP_LT_EQ;
+			case JUMP_LT:
+				return ScriptOpcode.JUMP_GT_EQ;
+			case JUMP_GT_EQ:
+				return ScriptOpcode.JUMP_LT;
+			case JUMP_LT_EQ:
+				return ScriptOpcode.JUMP_GT;
+			default:
+				throw new IllegalArgumentException("Not a comparison: "+opcode);
+		}
+	}
+
+	private static boolean compare (ScriptOpcode opcode, int val1, int val2) {
+		switch (opcode) {
+			case JUMP_EQ:
+				return val1 == val2;
+			case JUMP_NT_EQ:
+				return val1 != val2;
+			case JUMP_GT:
+				return val1 > val2;
+			case JUMP_LT:
+				return val1 < val2;
+			case JUMP_GT_EQ:
+				return val1 >= val2;
+			case JUMP_LT_EQ:
+				return val1 <= val2;
+			default:
+				throw new IllegalArgumentException("Not a comparison: "+opcode);
+		}
+	}
+}
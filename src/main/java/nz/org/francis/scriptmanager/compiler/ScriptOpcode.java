@@ -5,37 +5,53 @@ package nz.org.francis.scriptmanager.compiler;
  * @author Francis
  */
 public enum ScriptOpcode {
-	LOAD_INT_CONST(0, true),
-	LOAD_STR_CONST(1),
-	LOAD_LOCAL(2, true),
-	LOAD_INT_LOCAL(3, true),
-	ASSIGN_LOCAL(4, true),
-	ASSIGN_LOCAL_INT(5, true),
-	LOAD_GLOBAL(6, true),
-	ASSIGN_GLOBAL(7, true),
-	DROP_OBJ(8),
-	DROP_INT(9),
-	INVOKE_API(10, true),
-	INVOKE_SCRIPT(11, true),
-	RETURN(12),
-	JUMP(19, true),
-	JUMP_TRUE(20, true),
-	JUMP_FALSE(21, true),
-	JUMP_EQ(22, true),
-	JUMP_NT_EQ(23, true),
-	JUMP_GT(24, true),
-	JUMP_LT(25, true),
-	JUMP_GT_EQ(26, true),
-	JUMP_LT_EQ(27, true),
-	ADD(100),
-	SUBTRACT(101),
-	MULTIPLY(102),
-	DIVIDE(103),
-	POWER(104),
-	MODULO(105);
+	LOAD_INT_CONST(Opcodes.LOAD_INT_CONST, true),
+	LOAD_STR_CONST(Opcodes.LOAD_STR_CONST),
+	LOAD_LOCAL(Opcodes.LOAD_LOCAL, true),
+	LOAD_INT_LOCAL(Opcodes.LOAD_INT_LOCAL, true),
+	ASSIGN_LOCAL(Opcodes.ASSIGN_LOCAL, true),
+	ASSIGN_LOCAL_INT(Opcodes.ASSIGN_LOCAL_INT, true),
+	LOAD_GLOBAL(Opcodes.LOAD_GLOBAL, true),
+	ASSIGN_GLOBAL(Opcodes.ASSIGN_GLOBAL, true),
+	DROP_OBJ(Opcodes.DROP_OBJ),
+	DROP_INT(Opcodes.DROP_INT),
+	INVOKE_API(Opcodes.INVOKE_API, true),
+	INVOKE_SCRIPT(Opcodes.INVOKE_SCRIPT, true),
+	RETURN(Opcodes.RETURN),
+	SLEEP(Opcodes.SLEEP),
+	WAIT_EVENT(Opcodes.WAIT_EVENT),
+	TAIL_CALL(Opcodes.TAIL_CALL, true),
+	LOAD_INT_GLOBAL(Opcodes.LOAD_INT_GLOBAL, true),
+	ASSIGN_GLOBAL_INT(Opcodes.ASSIGN_GLOBAL_INT, true),
+	JUMP(Opcodes.JUMP, true),
+	JUMP_TRUE(Opcodes.JUMP_TRUE, true),
+	JUMP_FALSE(Opcodes.JUMP_FALSE, true),
+	JUMP_EQ(Opcodes.JUMP_EQ, true),
+	JUMP_NT_EQ(Opcodes.JUMP_NT_EQ, true),
+	JUMP_GT(Opcodes.JUMP_GT, true),
+	JUMP_LT(Opcodes.JUMP_LT, true),
+	JUMP_GT_EQ(Opcodes.JUMP_GT_EQ, true),
+	JUMP_LT_EQ(Opcodes.JUMP_LT_EQ, true),
+	LOAD_ENTITY_INT(Opcodes.LOAD_ENTITY_INT, true),
+	ASSIGN_ENTITY_INT(Opcodes.ASSIGN_ENTITY_INT, true),
+	ADD(Opcodes.ADD),
+	SUBTRACT(Opcodes.SUBTRACT),
+	MULTIPLY(Opcodes.MULTIPLY),
+	DIVIDE(Opcodes.DIVIDE),
+	POWER(Opcodes.POWER),
+	MODULO(Opcodes.MODULO),
+	SHIFT_LEFT(Opcodes.SHIFT_LEFT, true),
+	LOCAL_ADD_CONST(Opcodes.LOCAL_ADD_CONST, LOAD_INT_LOCAL, 4),
+	LOCAL_SUB_CONST(Opcodes.LOCAL_SUB_CONST, LOAD_INT_LOCAL, 4),
+	JUMP_LOCAL_CONST(Opcodes.JUMP_LOCAL_CONST, LOAD_INT_LOCAL, 3),
+	JUMP_LOCAL_LOCAL(Opcodes.JUMP_LOCAL_LOCAL, LOAD_INT_LOCAL, 3),
+	STORE_INT_CONST(Opcodes.STORE_INT_CONST, LOAD_INT_CONST, 2),
+	COPY_INT_LOCAL(Opcodes.COPY_INT_LOCAL, LOAD_INT_LOCAL, 2);
 	
 	private final int opcode;
 	private final boolean hasConst;
+	private final ScriptOpcode base;
+	private final int length;
 	
 	ScriptOpcode (int code) {
 		this(code, false);
@@ -44,6 +60,21 @@ public enum ScriptOpcode {
 	ScriptOpcode (int code, boolean hasConst) {
 		this.opcode = code;
 		this.hasConst = hasConst;
+		this.base = null;
+		this.length = 1;
+	}
+	
+	/**
+	 * Creates a superinstruction, which replaces the first instruction of a sequence
+	 * @param code The opcode
+	 * @param base The first instruction of the sequence. This determines the superinstruction's constant.
+	 * @param length The number of instructions in the sequence
+	 */
+	ScriptOpcode (int code, ScriptOpcode base, int length) {
+		this.opcode = code;
+		this.hasConst = base.hasConst;
+		this.base = base;
+		this.length = length;
 	}
 	
 	public int getOpcode () {
@@ -54,13 +85,45 @@ public enum ScriptOpcode {
 		return hasConst;
 	}
 	
-	public static ScriptOpcode forOpcode (int opcode) {
+	/**
+	 * @return The instruction replaced by this superinstruction, or this instruction if it isn't a superinstruction
+	 */
+	public ScriptOpcode getBase () {
+		return base == null ? this : base;
+	}
+	
+	/**
+	 * @return The number of instructions covered by this instruction. This is 1 for everything but superinstructions.
+	 */
+	public int getLength () {
+		return length;
+	}
+	
+	/**
+	 * @return True if the instruction's constant is a jump offset
+	 */
+	public boolean isJump () {
+		return opcode >= Opcodes.JUMP && opcode <= Opcodes.JUMP_LT_EQ;
+	}
+	
+	private static final ScriptOpcode[] lookup;
+	
+	static {
+		int max = 0;
+		for (ScriptOpcode type : values()) {
+			max = Math.max(max, type.opcode);
+		}
+		lookup = new ScriptOpcode[max+1];
 		for (ScriptOpcode type : values()) {
-			if (type.opcode == opcode) {
-				return type;
-			}
+			lookup[type.opcode] = type;
+		}
+	}
+	
+	public static ScriptOpcode forOpcode (int opcode) {
+		if (opcode < 0 || opcode >= lookup.length) {
+			return null;
 		}
-		return null;
+		return lookup[opcode];
 	}
 	
 }
@@ -2,11 +2,13 @@ package nz.org.francis.scriptmanager.compiler;
 
 import nz.org.francis.scriptmanager.ScriptDataType;
 import nz.org.francis.scriptmanager.ApiFunction;
+import nz.org.francis.scriptmanager.ScriptMath;
 import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
@@ -160,10 +162,15 @@ public class ScriptParser {
 		accept(Token.LBRACE);
 		Token token = scanner.getToken();
 		while (token != Token.RBRACE) {
+			if (token == Token.EOF) {
+				throw new ParserException("Unexpected end of file. Expected '}'", scanner.getLineNum());
+			}
 			if (token == Token.LBRACE) {
-				skipBody();
+				skipBody();//Leaves the scanner on the token after the nested block
+				token = scanner.getToken();
+			} else {
+				token = scanner.nextToken();
 			}
-			token = scanner.nextToken();
 		}
 		accept(Token.RBRACE);
 	}
@@ -248,6 +255,13 @@ public class ScriptParser {
 		return identifier.startsWith("%");
 	}
 	
+	private boolean isEntityVariable (String identifier) {
+		if (identifier.isEmpty()) {
+			return false;
+		}
+		return identifier.startsWith("@");
+	}
+	
 	private boolean isScriptCall (String identifier) {
 		if (identifier.isEmpty()) {
 			return false;
@@ -450,12 +464,14 @@ public class ScriptParser {
 				parseWhileLoop();
 				break;
 			case RETURN:
+				scanner.nextToken();
 				parseParams(Token.SEMI);
 				accept(Token.SEMI);
 				if (stack.size() != returnSignature.size()) {
 					throw new ParserException("Invalid return statement: expected "+returnSignature.size()+" values but got "+stack.size(), scanner.getLineNum());
 				}
-				for (ScriptDataType type : returnSignature) {
+				for (int i=returnSignature.size()-1;i>=0;i--) {//The last value is on top of the stack
+					ScriptDataType type = returnSignature.get(i);
 					ScriptDataType actualType = stack.pop();
 					if (actualType != type) {
 						throw new ParserException("Invalid return statement: expected "+type+" but got "+actualType, scanner.getLineNum());
@@ -463,6 +479,24 @@ public class ScriptParser {
 				}
 				instructions.add(ScriptOpcode.RETURN);
 				break;
+			case YIELD://Suspend until the next tick
+				scanner.nextToken();
+				accept(Token.SEMI);
+				instructions.add(ScriptOpcode.LOAD_INT_CONST);
+				setConst(instructions.size(), 1);
+				instructions.add(ScriptOpcode.SLEEP);
+				break;
+			case SLEEP://Suspend for a number of ticks
+			case WAIT://Suspend until an event is fired
+				scanner.nextToken();
+				parseInfix(Token.SEMI);
+				accept(Token.SEMI);
+				ScriptDataType argType = stack.pop();
+				if (argType != ScriptDataType.INT) {
+					throw new ParserException("Incompatible data types. Expected: "+ScriptDataType.INT+", got: "+argType, scanner.getLineNum());
+				}
+				instructions.add(token == Token.SLEEP ? ScriptOpcode.SLEEP : ScriptOpcode.WAIT_EVENT);
+				break;
 			case IDENTIFIER:
 				String identifier = scanner.getStringValue();
 				if (isDataType(identifier)) {//Type identifier (for variable declaration)
@@ -483,46 +517,66 @@ public class ScriptParser {
 					token = scanner.nextToken();
 					if (token == Token.EQ) {
 						parseAssignment(var);
-					} else if (token != Token.SEMI) {
+					} else if (token == Token.SEMI) {
+						scanner.nextToken();
+					} else {
 						throw new ParserException("Unexpected token: '"+token+"'", scanner.getLineNum());
 					}
-					scanner.nextToken();
 				} else if (isLocalVariable(identifier)) {//Local variable setter
 					LocalVariable var = localVars.get(identifier);
 					if (var == null) {
 						throw new ParserException("Undefined local variable: "+identifier, scanner.getLineNum());
 					}
+					scanner.nextToken();
 					parseAssignment(var);
 				} else if (isGlobalVariable(identifier)) {//Global variable setter
 					ScriptDataType type = linker.getGlobalVarType(identifier.substring(1));
 					if (type == null) {
 						throw new ParserException("Undefined global variable: "+identifier);
 					}
+					scanner.nextToken();
 					accept(Token.EQ);//For now, only regular assignments are allowed (in future, +=, -=, etc will be supported)
 					parseInfix(Token.SEMI);//Get the value
 					ScriptDataType assignedType = stack.pop();
 					if (type != assignedType) {
 						throw new ParserException("Incompatible data types. Expected: "+type+", got: "+assignedType, scanner.getLineNum());
 					}
-					instructions.add(ScriptOpcode.ASSIGN_GLOBAL);
+					instructions.add(type.intBase() ? ScriptOpcode.ASSIGN_GLOBAL_INT : ScriptOpcode.ASSIGN_GLOBAL);
 					setConst(instructions.size(), linker.getGlobalVarId(identifier.substring(1)));
 					accept(Token.SEMI);
+				} else if (isEntityVariable(identifier)) {//Entity variable setter
+					ScriptDataType type = linker.getEntityVarType(identifier.substring(1));
+					if (type == null) {
+						throw new ParserException("Undefined entity variable: "+identifier);
+					}
+					scanner.nextToken();
+					accept(Token.EQ);
+					parseInfix(Token.SEMI);
+					ScriptDataType assignedType = stack.pop();
+					if (type != assignedType) {
+						throw new ParserException("Incompatible data types. Expected: "+type+", got: "+assignedType, scanner.getLineNum());
+					}
+					instructions.add(ScriptOpcode.ASSIGN_ENTITY_INT);
+					setConst(instructions.size(), linker.getEntityVarId(identifier.substring(1)));
+					accept(Token.SEMI);
 				} else if (isScriptCall(identifier)) {
 					ScriptHeader script = linker.lookup(identifier.substring(1));
 					if (script == null) {
 						throw new ParserException("Call to undefined script: "+identifier);
 					}
 					parseScriptCall(script);
-					while (!stack.isEmpty()) {
-						ScriptDataType type = stack.pop();
-						//The return values are not assigned, so they must be dropped from the stack
-						if (type.intBase()) {
-							instructions.add(ScriptOpcode.DROP_INT);
-						} else {
-							instructions.add(ScriptOpcode.DROP_OBJ);
-						}
+					dropReturnValues();
+					accept(Token.SEMI);
+				} else if (isApiCall(identifier)) {
+					ApiFunction function = linker.getApiFunction(identifier);
+					if (function == null) {
+						throw new ParserException("Call to undefined api function: "+identifier);
 					}
+					parseApiCall(function);
+					dropReturnValues();
 					accept(Token.SEMI);
+				} else {
+					throw new ParserException("Unexpected identifier: "+identifier, scanner.getLineNum());
 				}
 				break;
 			default:
@@ -530,6 +584,18 @@ public class ScriptParser {
 		}
 	}
 	
+	private void dropReturnValues () {
+		while (!stack.isEmpty()) {
+			ScriptDataType type = stack.pop();
+			//The return values are not assigned, so they must be dropped from the stack
+			if (type.intBase()) {
+				instructions.add(ScriptOpcode.DROP_INT);
+			} else {
+				instructions.add(ScriptOpcode.DROP_OBJ);
+			}
+		}
+	}
+	
 	private void parseAssignment (LocalVariable var) throws ParserException {
 		accept(Token.EQ);//For now, only regular assignments are allowed (in future, +=, -=, etc will be supported)
 		parseInfix(Token.SEMI);//Get the value
@@ -544,18 +610,19 @@ public class ScriptParser {
 	
 	private void parseScriptCall (ScriptHeader script) throws ParserException {
 		if (scanner.nextToken() == Token.LPAREN) {//This means the script has arguments
+			scanner.nextToken();
 			int num;
 			try {
 				num = parseParams(Token.RPAREN);
 			} catch (ParserException ex) {
-				throw new ParserException("Error on call to script: "+script, ex);
+				throw new ParserException("Error on call to script: "+script.getName(), ex);
 			}
 			if (num != script.getParams().size()) {
-				throw new ParserException("Wrong signature for script: "+script);
+				throw new ParserException("Wrong signature for script: "+script.getName());
 			}
-			for (ScriptDataType type : script.getParams()) {
-				if (type != stack.pop()) {
-					throw new ParserException("Wrong signature for script: "+script);
+			for (int i=script.getParams().size()-1;i>=0;i--) {//The last argument is on top of the stack
+				if (script.getParams().get(i) != stack.pop()) {
+					throw new ParserException("Wrong signature for script: "+script.getName());
 				}
 			}
 			accept(Token.RPAREN);
@@ -569,6 +636,7 @@ public class ScriptParser {
 	
 	private void parseApiCall (ApiFunction function) throws ParserException {
 		if (scanner.nextToken() == Token.LPAREN) {//This means the call has arguments
+			scanner.nextToken();
 			int num;
 			try {
 				num = parseParams(Token.RPAREN);
@@ -578,12 +646,12 @@ public class ScriptParser {
 			if (num != function.getParamSignature().size()) {
 				throw new ParserException("Wrong signature for builtin function: "+function.getName());
 			}
-			for (ScriptDataType type : function.getParamSignature()) {
-				if (type != stack.pop()) {
+			for (int i=function.getParamSignature().size()-1;i>=0;i--) {//The last argument is on top of the stack
+				if (function.getParamSignature().get(i) != stack.pop()) {
 					throw new ParserException("Wrong signature for builtin function: "+function.getName());
 				}
 			}
-			scanner.nextToken();
+			accept(Token.RPAREN);
 		}
 		instructions.add(ScriptOpcode.INVOKE_API);
 		setConst(instructions.size(), function.getOpcode());
@@ -713,70 +781,148 @@ public class ScriptParser {
 				return ScriptOpcode.DIVIDE;
 			case PERCENT://Modulo
 				return ScriptOpcode.MODULO;
+			case CARET://Power
+				return ScriptOpcode.POWER;
+			default:
+				return null;
+		}
+	}
+	
+	/**
+	 * Adds an arithmetic instruction, folding it into a constant if both operands are constants. 
+	 * Operations on a constant right operand are simplified where the result is always the same:
+	 * adding or subtracting zero, multiplying, dividing or raising to one, and multiplying by a power of two (which becomes a shift).
+	 * Division by a power of two isn't changed, as shifting rounds negative numbers the wrong way.
+	 * @param operator The arithmetic instruction
+	 */
+	private void addOperator (ScriptOpcode operator) {
+		int size = instructions.size();
+		if (size >= 2 && instructions.get(size-1) == ScriptOpcode.LOAD_INT_CONST && instructions.get(size-2) == ScriptOpcode.LOAD_INT_CONST) {
+			int val1 = (Integer) constants.get(size-2);
+			int val2 = (Integer) constants.get(size-1);
+			Integer result = fold(operator, val1, val2);
+			if (result != null) {
+				removeLastInstruction();
+				constants.put(size-2, result);
+				return;
+			}
+		}
+		if (size >= 1 && instructions.get(size-1) == ScriptOpcode.LOAD_INT_CONST) {
+			int val2 = (Integer) constants.get(size-1);
+			if (isIdentity(operator, val2)) {
+				removeLastInstruction();
+				return;
+			}
+			if (operator == ScriptOpcode.MULTIPLY && val2 > 0 && Integer.bitCount(val2) == 1) {
+				instructions.set(size-1, ScriptOpcode.SHIFT_LEFT);
+				constants.put(size-1, Integer.numberOfTrailingZeros(val2));
+				return;
+			}
+		}
+		instructions.add(operator);
+	}
+	
+	private void removeLastInstruction () {
+		instructions.remove(instructions.size()-1);
+		constants.remove(instructions.size());
+	}
+	
+	private static boolean isIdentity (ScriptOpcode operator, int val2) {
+		switch (operator) {
+			case ADD:
+			case SUBTRACT:
+				return val2 == 0;
+			case MULTIPLY:
+			case DIVIDE:
+			case POWER:
+				return val2 == 1;
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * @return The result of the operation, or null if it would throw an exception when run
+	 */
+	private static Integer fold (ScriptOpcode operator, int val1, int val2) {
+		switch (operator) {
+			case ADD:
+				return val1 + val2;
+			case SUBTRACT:
+				return val1 - val2;
+			case MULTIPLY:
+				return val1 * val2;
+			case DIVIDE:
+				return val2 == 0 ? null : val1 / val2;
+			case MODULO:
+				return val2 == 0 ? null : val1 % val2;
+			case POWER:
+				return val1 == 0 && val2 < 0 ? null : ScriptMath.power(val1, val2);
 			default:
 				return null;
 		}
 	}
 	
+	private static int precedence (ScriptOpcode operator) {
+		switch (operator) {
+			case POWER:
+				return 3;
+			case MULTIPLY:
+			case DIVIDE:
+			case MODULO:
+				return 2;
+			default:
+				return 1;
+		}
+	}
+	
 	private void parseInfix (Token... breakTokens) throws ParserException {
 		parseParam(breakTokens);
 		List<Token> breakList = Arrays.asList(breakTokens);
 		Token token = scanner.getToken();
-		Stack<ScriptOpcode> opStack = new Stack<>();
+		Deque<ScriptOpcode> opStack = new ArrayDeque<>();
 		while (!breakList.contains(token)) {
-			ScriptDataType op1 = stack.pop();
 			ScriptOpcode operator = opcodeForInfix(token);
 			if (operator == null) {
 				throw new ParserException("Unexpected token: "+scanner.getToken());
 			}
+			//Operators are left-associative, apart from the power operator
+			while (!opStack.isEmpty() && (precedence(opStack.peek()) > precedence(operator) 
+					|| precedence(opStack.peek()) == precedence(operator) && operator != ScriptOpcode.POWER)) {
+				addOperator(opStack.pop());
+			}
+			opStack.push(operator);
 			scanner.nextToken();
 			parseParam(breakTokens);
 			ScriptDataType op2 = stack.pop();
+			ScriptDataType op1 = stack.pop();
 			if (op1 != ScriptDataType.INT || op1 != op2) {
-				throw new ParserException("Invalid use of plus operator: "+scanner.getToken());
+				throw new ParserException("Invalid use of "+token.getName()+" operator: "+scanner.getToken());
 			}
+			stack.push(op2);
 			token = scanner.getToken();
-			ScriptOpcode nextOp = opcodeForInfix(token);
-			if (operator == ScriptOpcode.ADD || operator == ScriptOpcode.SUBTRACT) {
-				if (nextOp == ScriptOpcode.MULTIPLY || nextOp == ScriptOpcode.DIVIDE || nextOp == ScriptOpcode.MODULO) {
-					opStack.push(operator);//Next operator has higher precidence
-					stack.push(op2);
-				} else {
-					Iterator<ScriptOpcode> it = opStack.iterator();
-					while (it.hasNext()) {
-						ScriptOpcode op = it.next();
-						it.remove();
-						op2 = stack.pop();
-						instructions.add(op);
-						stack.push(op2);						
-					}
-					instructions.add(operator);
-					stack.push(op2);
-				}
-			} else {
-				instructions.add(operator);
-				stack.push(op2);				
-			}			
 		}
-		if (!opStack.isEmpty()) {
-			for (ScriptOpcode op : opStack) {
-				ScriptDataType operand2 = stack.pop();
-				instructions.add(op);
-				stack.push(operand2);						
-			}
+		while (!opStack.isEmpty()) {
+			addOperator(opStack.pop());
 		}
 	}
 	
+	/**
+	 * Parses a comma-separated list of values, up to (but not including) the break token
+	 * @param breakTokens The token which terminates the list
+	 * @return The number of values parsed
+	 * @throws ParserException If the list contains invalid code
+	 */
 	protected int parseParams (Token breakTokens) throws ParserException {
 		int num = 0;
 		while (scanner.getToken() != breakTokens) {
 			parseInfix(Token.COMMA, breakTokens);
-			//parseParam(Token.COMMA, breakTokens);
-			if (scanner.getToken() != Token.COMMA && scanner.getToken() != breakTokens) {
+			num++;
+			if (scanner.getToken() == Token.COMMA) {
+				scanner.nextToken();
+			} else if (scanner.getToken() != breakTokens) {
 				throw new ParserException("Unexpected token: "+scanner.getToken());
 			}
-			scanner.nextToken();
-			num++;
 		}
 		return num;
 	}
@@ -828,10 +974,19 @@ public class ScriptParser {
 					if (type == null) {
 						throw new ParserException("Undefined global variable: "+identifier);
 					}
-					instructions.add(ScriptOpcode.LOAD_GLOBAL);
+					instructions.add(type.intBase() ? ScriptOpcode.LOAD_INT_GLOBAL : ScriptOpcode.LOAD_GLOBAL);
 					setConst(instructions.size(), linker.getGlobalVarId(identifier.substring(1)));
 					stack.push(type);
 					scanner.nextToken();
+				} else if (isEntityVariable(identifier)) {//Variable of the context's entity
+					ScriptDataType type = linker.getEntityVarType(identifier.substring(1));
+					if (type == null) {
+						throw new ParserException("Undefined entity variable: "+identifier);
+					}
+					instructions.add(ScriptOpcode.LOAD_ENTITY_INT);
+					setConst(instructions.size(), linker.getEntityVarId(identifier.substring(1)));
+					stack.push(type);
+					scanner.nextToken();
 				} else if (isScriptCall(identifier)) {//Call to another script
 					ScriptHeader script = linker.lookup(identifier.substring(1));
 					if (script == null) {
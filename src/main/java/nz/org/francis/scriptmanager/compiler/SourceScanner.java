@@ -285,6 +285,15 @@ public class SourceScanner {
 						token = Token.PERCENT;
 					}
 					return token;
+				case '@'://Call to entity variable
+					scanChar();
+					if (isIdentifierChar(ch)) {
+						strBuffer.append('@');
+						scanIdentifier();
+					} else {
+						token = Token.AT;
+					}
+					return token;
 				case '$'://Call to local variable
 					scanChar();
 					if (isIdentifierChar(ch)) {
@@ -0,0 +1,78 @@
+package nz.org.francis.scriptmanager.compiler;
+
+/**
+ * Replaces common instruction sequences with superinstructions. 
+ * Only the first instruction of each sequence is replaced, so this must be the last pass: 
+ * other passes would treat the rest of the sequence as instructions of their own.
+ * <p>
+ * A sequence is only fused when no jumps land inside it, as a superinstruction always runs the whole sequence.
+ * 
+ * @author Francis
+ */
+public class SuperinstructionPass implements OptimisationPass {
+
+	@Override
+	public boolean apply(InstructionList code) {
+		boolean[] targets = code.findJumpTargets();
+		boolean changed = false;
+		for (int pos=0;pos<code.size();pos++) {
+			ScriptOpcode fused = match(code, pos);
+			if (fused == null || !isFree(targets, pos, fused.getLength())) {
+				continue;
+			}
+			code.set(pos, fused, code.getConstant(pos));
+			pos += fused.getLength()-1;
+			changed = true;
+		}
+		return changed;
+	}
+	
+	/**
+	 * @return True if nothing jumps into the sequence after its first instruction
+	 */
+	private static boolean isFree (boolean[] targets, int pos, int length) {
+		for (int i=pos+1;i<pos+length;i++) {
+			if (targets[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static ScriptOpcode match (InstructionList code, int pos) {
+		ScriptOpcode first = code.get(pos);
+		ScriptOpcode second = get(code, pos+1);
+		ScriptOpcode third = get(code, pos+2);
+		ScriptOpcode fourth = get(code, pos+3);
+		if (first == ScriptOpcode.LOAD_INT_LOCAL) {
+			if (second == ScriptOpcode.LOAD_INT_CONST && fourth == ScriptOpcode.ASSIGN_LOCAL_INT) {
+				if (third == ScriptOpcode.ADD) {
+					return ScriptOpcode.LOCAL_ADD_CONST;
+				} else if (third == ScriptOpcode.SUBTRACT) {
+					return ScriptOpcode.LOCAL_SUB_CONST;
+				}
+			}
+			if (third != null && isComparison(third)) {
+				if (second == ScriptOpcode.LOAD_INT_CONST) {
+					return ScriptOpcode.JUMP_LOCAL_CONST;
+				} else if (second == ScriptOpcode.LOAD_INT_LOCAL) {
+					return ScriptOpcode.JUMP_LOCAL_LOCAL;
+				}
+			}
+			if (second == ScriptOpcode.ASSIGN_LOCAL_INT) {
+				return ScriptOpcode.COPY_INT_LOCAL;
+			}
+		} else if (first == ScriptOpcode.LOAD_INT_CONST && second == ScriptOpcode.ASSIGN_LOCAL_INT) {
+			return ScriptOpcode.STORE_INT_CONST;
+		}
+		return null;
+	}
+	
+	private static ScriptOpcode get (InstructionList code, int pos) {
+		return pos < code.size() ? code.get(pos) : null;
+	}
+	
+	private static boolean isComparison (ScriptOpcode opcode) {
+		return opcode.isJump() && opcode != ScriptOpcode.JUMP && opcode != ScriptOpcode.JUMP_TRUE && opcode != ScriptOpcode.JUMP_FALSE;
+	}
+}
@@ -0,0 +1,25 @@
+package nz.org.francis.scriptmanager.compiler;
+
+/**
+ * Marks script calls in tail position, where the call's results are returned straight away, as tail calls.
+ * <p>
+ * The interpreter runs a tail call in the caller's frame rather than a new one, so a script which recurses through tail calls runs in constant space.
+ * The return after the call is left in place, so the other tiers can treat a tail call as an ordinary call.
+ * 
+ * @author Francis
+ */
+public class TailCallPass implements OptimisationPass {
+
+	@Override
+	public boolean apply(InstructionList code) {
+		boolean changed = false;
+		int size = code.size();
+		for (int pos=0;pos<size;pos++) {
+			if (code.get(pos) == ScriptOpcode.INVOKE_SCRIPT && (pos+1 == size || code.get(pos+1) == ScriptOpcode.RETURN)) {
+				code.set(pos, ScriptOpcode.TAIL_CALL, code.getConstant(pos));
+				changed = true;
+			}
+		}
+		return changed;
+	}
+}
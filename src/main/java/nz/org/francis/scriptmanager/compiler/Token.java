@@ -15,6 +15,9 @@ public enum Token {
 	IF("if"),
     RETURN("return"),
     WHILE("while"),
+    YIELD("yield"),
+    SLEEP("sleep"),
+    WAIT("wait"),
     INTLITERAL,
     LONGLITERAL,
     FLOATLITERAL,
@@ -57,7 +60,8 @@ public enum Token {
     BAR("|"),
     CARET("^"),
     PERCENT("%"),
-    DOLLAR("$");
+    DOLLAR("$"),
+    AT("@");
 	
 	private String name;
 
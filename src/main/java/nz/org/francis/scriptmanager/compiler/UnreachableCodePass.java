@@ -0,0 +1,49 @@
+package nz.org.francis.scriptmanager.compiler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Removes instructions which can't be reached from the start of the script, such as code after a return.
+ * 
+ * @author Francis
+ */
+public class UnreachableCodePass implements OptimisationPass {
+
+	@Override
+	public boolean apply(InstructionList code) {
+		int size = code.size();
+		boolean[] reached = new boolean[size+1];
+		Deque<Integer> pending = new ArrayDeque<>();
+		pending.push(0);
+		while (!pending.isEmpty()) {
+			int pos = pending.pop();
+			if (reached[pos]) {
+				continue;
+			}
+			reached[pos] = true;
+			if (pos == size) {
+				continue;
+			}
+			ScriptOpcode opcode = code.get(pos);
+			if (opcode.isJump()) {
+				pending.push(code.getTarget(pos));
+			}
+			if (opcode != ScriptOpcode.JUMP && opcode != ScriptOpcode.RETURN) {
+				pending.push(pos+1);
+			}
+		}
+		boolean[] removed = new boolean[size];
+		boolean changed = false;
+		for (int pos=0;pos<size;pos++) {
+			if (!reached[pos]) {
+				removed[pos] = true;
+				changed = true;
+			}
+		}
+		if (changed) {
+			code.remove(removed);
+		}
+		return changed;
+	}
+}
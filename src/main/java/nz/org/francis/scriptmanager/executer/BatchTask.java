@@ -0,0 +1,50 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+
+/**
+ * Runs a range of a batch (see {@link Executer#executeBatch(java.util.concurrent.ForkJoinPool, CompiledScript, List)}), 
+ * splitting it in half until each part is small enough to run on one thread.
+ * 
+ * @author Francis
+ */
+class BatchTask extends RecursiveAction {
+	
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * The number of leaf tasks per pool thread. Extra tasks let idle workers steal from busy ones when some runs take longer than others.
+	 */
+	static final int LEAVES_PER_THREAD = 4;
+	
+	private final Executer executer;
+	private final CompiledScript script;
+	private final List<Object[]> arguments;
+	private final Object[][] results;
+	private final int from;
+	private final int to;
+	private final int leafSize;
+	
+	BatchTask (Executer executer, CompiledScript script, List<Object[]> arguments, Object[][] results, int from, int to, int leafSize) {
+		this.executer = executer;
+		this.script = script;
+		this.arguments = arguments;
+		this.results = results;
+		this.from = from;
+		this.to = to;
+		this.leafSize = leafSize;
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from <= leafSize) {
+			executer.executeRange(script, arguments, results, from, to);
+		} else {
+			int mid = (from + to) >>> 1;
+			invokeAll(new BatchTask(executer, script, arguments, results, from, mid, leafSize),
+					new BatchTask(executer, script, arguments, results, mid, to, leafSize));
+		}
+	}
+}
@@ -1,9 +1,14 @@
 package nz.org.francis.scriptmanager.executer;
 
 import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.ApiFunction;
 import nz.org.francis.scriptmanager.ScriptDataType;
 import nz.org.francis.scriptmanager.compiler.ScriptOpcode;
-import java.util.Stack;
+import java.util.Arrays;
+import java.util.EmptyStackException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  *
@@ -11,23 +16,70 @@ import java.util.Stack;
  */
 public class Context {
 	
-	private static class InvokeFrame {
-		CompiledScript script;
-		int instrPtr;
-		int[] localInts;
-		Object[] localObjs;
-	}
+	/**
+	 * The budget of a context which can run for as long as it likes
+	 */
+	public static final int UNLIMITED = -1;
+	
+	/**
+	 * The default limit on how deeply scripts can call each other
+	 */
+	public static final int DEFAULT_MAX_DEPTH = 512;
+	
+	/**
+	 * The entity of a context which isn't running a script for any entity
+	 */
+	public static final int NO_ENTITY = -1;
 	
 	private CompiledScript script;
 	public int instrPtr;
 	
+	/*
+	 * The local variables of every script on the invoke stack, held one frame after another in two arenas. 
+	 * The current script's locals start at intBase and objBase, and a call places the callee's frame straight after them, 
+	 * so calls only allocate when the arenas (or the frame arrays below) need to grow.
+	 */
 	protected int[] localInts;
 	protected Object[] localObjs;
+	int intBase;
+	int objBase;
+	
+	private static final int INITIAL_DEPTH = 8;
+	
+	/*
+	 * The saved state of each calling script, indexed by invoke depth
+	 */
+	private CompiledScript[] frameScripts = new CompiledScript[INITIAL_DEPTH];
+	private int[] frameInstrPtrs = new int[INITIAL_DEPTH];
+	private int[] frameIntBases = new int[INITIAL_DEPTH];
+	private int[] frameObjBases = new int[INITIAL_DEPTH];
+	private int depth;
+	
+	private int maxDepth = DEFAULT_MAX_DEPTH;
+	
+	private static final int INITIAL_STACK_SIZE = 16;
 	
-	private final Stack<Integer> intStack = new Stack<>();
-	private final Stack<Object> objStack = new Stack<>();
+	/*
+	 * The operand stacks are plain arrays indexed by the number of values they hold, 
+	 * so pushing and popping values never boxes or allocates once the arrays have grown to fit the script.
+	 */
+	private int[] intStack = new int[INITIAL_STACK_SIZE];
+	private int intStackSize;
 	
-	private final Stack<InvokeFrame> invokeStack = new Stack<>();
+	private Object[] objStack = new Object[INITIAL_STACK_SIZE];
+	private int objStackSize;
+	
+	private Executer executer;
+	
+	private Suspension suspension;
+	private int suspendValue;
+	
+	int budget = UNLIMITED;//Decremented directly by the interpreter
+	
+	private int entity = NO_ENTITY;
+	
+	private CompletableFuture<?> pendingResult;
+	private ApiFunction pendingFunction;
 	
 	public Context (CompiledScript script) {
 		this.script = script;
@@ -35,12 +87,47 @@ public class Context {
 		this.localObjs = new Object[script.getObjLocalCount()];
 	}
 	
+	/**
+	 * Clears this context so it can be used to run a new script from the start. 
+	 * The existing local variable arenas are reused unless the script needs more slots than they hold.
+	 * The maximum call depth is kept.
+	 * @param script The script to run
+	 */
+	public void reset (CompiledScript script) {
+		this.script = script;
+		this.instrPtr = 0;
+		int intLocalCount = script.getIntLocalCount();
+		if (localInts.length < intLocalCount) {
+			localInts = new int[intLocalCount];
+		} else {
+			Arrays.fill(localInts, 0, intLocalCount, 0);
+		}
+		int objLocalCount = script.getObjLocalCount();
+		if (localObjs.length < objLocalCount) {
+			localObjs = new Object[objLocalCount];
+		} else {
+			Arrays.fill(localObjs, null);//Clear every slot, so values from a previous (larger) script or a deeper frame aren't retained
+		}
+		intBase = 0;
+		objBase = 0;
+		intStackSize = 0;
+		Arrays.fill(objStack, 0, objStackSize, null);
+		objStackSize = 0;
+		Arrays.fill(frameScripts, 0, depth, null);
+		depth = 0;
+		suspension = null;
+		budget = UNLIMITED;
+		pendingResult = null;
+		pendingFunction = null;
+		entity = NO_ENTITY;
+	}
+	
 	public ScriptOpcode getInstruction () {
 		return script.getInstruction(instrPtr);
 	}
 	
 	public int getIntConstant () {
-		return (int) script.getConstant(instrPtr);
+		return script.getOperands()[instrPtr];
 	}
 	
 	public Object getConstant () {
@@ -60,65 +147,400 @@ public class Context {
 		instrPtr = pos;
 	}
 	
+	/**
+	 * Returns the executer which is running this context. Compiled scripts make their calls through it.
+	 * @return The executer, or null if this context hasn't been run yet
+	 */
+	public Executer getExecuter () {
+		return executer;
+	}
+	
+	void setExecuter (Executer executer) {
+		this.executer = executer;
+	}
+	
+	/**
+	 * Returns the reason the script suspended itself. A suspended context keeps its whole invoke stack, 
+	 * so it can be continued later (possibly on another thread) with {@link Executer#resume(Context)}.
+	 * @return The reason, or null if the context isn't suspended
+	 */
+	public Suspension getSuspension () {
+		return suspension;
+	}
+	
+	/**
+	 * @return The number of ticks to sleep for or the event to wait for, depending on the suspension (zero for a preempted script or an api call)
+	 */
+	public int getSuspendValue () {
+		return suspendValue;
+	}
+	
+	public boolean isSuspended () {
+		return suspension != null;
+	}
+	
+	void suspend (Suspension suspension, int value) {
+		this.suspension = suspension;
+		this.suspendValue = value;
+	}
+	
+	void clearSuspension () {
+		this.suspension = null;
+	}
+	
+	/**
+	 * Limits how long the script can run before it's preempted. 
+	 * The budget is only checked when the script jumps backwards or calls another script, so straight-line code always runs to the next loop or call. 
+	 * A backward jump costs the number of instructions it jumps over (roughly the length of the loop body), and a call costs one instruction.
+	 * @param instructions The number of instructions the script may run, or {@link #UNLIMITED}
+	 * @throws IllegalArgumentException If the budget is negative and not {@link #UNLIMITED}
+	 */
+	public void setBudget (int instructions) {
+		if (instructions < 0 && instructions != UNLIMITED) {
+			throw new IllegalArgumentException("Invalid budget: "+instructions);
+		}
+		this.budget = instructions;
+	}
+	
+	/**
+	 * @return The number of instructions left in the budget, or {@link #UNLIMITED}
+	 */
+	public int getBudget () {
+		return budget;
+	}
+	
+	/**
+	 * Binds the context to an entity, whose variables the script reads and writes (see {@link nz.org.francis.scriptmanager.EntityVariables}). 
+	 * The entity is kept for every script the context calls, until the context is reset.
+	 * @param entity The entity's ID, or {@link #NO_ENTITY}
+	 * @throws IllegalArgumentException If the ID is negative and not {@link #NO_ENTITY}
+	 */
+	public void setEntity (int entity) {
+		if (entity < 0 && entity != NO_ENTITY) {
+			throw new IllegalArgumentException("Invalid entity: "+entity);
+		}
+		this.entity = entity;
+	}
+	
+	/**
+	 * @return The ID of the entity the context is bound to, or {@link #NO_ENTITY}
+	 */
+	public int getEntity () {
+		return entity;
+	}
+	
+	/**
+	 * Called by an api function which completes asynchronously, instead of leaving its return values on the stacks. 
+	 * Once the function returns, the executer suspends the script with {@link Suspension#API_CALL} and frees the thread. 
+	 * When the script is resumed, the result is pushed onto the stacks as the function's return values: 
+	 * nothing for a function with no return values, the result itself for a function with one, or the elements of an Object[] for a function with several.
+	 * <p>
+	 * Where the script can't be suspended (in optimised scripts, or when it's run with {@link Executer#execute(CompiledScript)}), 
+	 * the executer waits for the result on the current thread instead.
+	 * @param result The future which completes with the function's return values
+	 * @throws IllegalStateException If the function has already provided a result
+	 */
+	public void await (CompletableFuture<?> result) {
+		if (pendingResult != null) {
+			throw new IllegalStateException("The api function has already provided a result");
+		}
+		this.pendingResult = result;
+	}
+	
+	/**
+	 * @return The result the script is waiting for, or null if it isn't waiting for an api function
+	 */
+	public CompletableFuture<?> getPendingResult () {
+		return pendingResult;
+	}
+	
+	/**
+	 * Pushes the result of an asynchronous api call onto the stacks, waiting for it to complete first if necessary
+	 * @param function The function which provided the result
+	 */
+	void completeApiCall (ApiFunction function) {
+		CompletableFuture<?> result = pendingResult;
+		pendingResult = null;
+		pendingFunction = null;
+		Object value;
+		try {
+			value = result.join();
+		} catch (CompletionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw ex;
+		}
+		List<ScriptDataType> returns = function.getReturnSignature();
+		if (returns.size() == 1) {
+			putValue(returns.get(0), value);
+		} else if (!returns.isEmpty()) {
+			Object[] values = (Object[]) value;
+			for (int i=0;i<returns.size();i++) {
+				putValue(returns.get(i), values[i]);
+			}
+		}
+	}
+	
+	private void putValue (ScriptDataType type, Object value) {
+		if (type == ScriptDataType.BOOLEAN) {
+			putInt(((Boolean) value) ? 1 : 0);
+		} else if (type.intBase()) {
+			putInt((Integer) value);
+		} else {
+			putObj(value);
+		}
+	}
+	
+	/**
+	 * Suspends the script until the result of the api function it just called is available
+	 */
+	void suspendForApiCall (ApiFunction function) {
+		this.pendingFunction = function;
+		suspend(Suspension.API_CALL, 0);
+	}
+	
+	ApiFunction getPendingFunction () {
+		return pendingFunction;
+	}
+	
+	/**
+	 * Shrinks the stacks and local variable arenas to fit the values they hold, so a context which will be idle for a while holds as little memory as possible. 
+	 * They grow again as needed once the script continues.
+	 */
+	public void trim () {
+		intStack = Arrays.copyOf(intStack, Math.max(intStackSize, 1));
+		objStack = Arrays.copyOf(objStack, Math.max(objStackSize, 1));
+		localInts = Arrays.copyOf(localInts, intBase + script.getIntLocalCount());
+		localObjs = Arrays.copyOf(localObjs, objBase + script.getObjLocalCount());
+	}
+	
+	/**
+	 * Limits how deeply scripts can call each other, which stops runaway recursion from growing the context without bound
+	 * @param maxDepth The largest number of scripts which can be waiting for calls to return
+	 * @throws IllegalArgumentException If the depth is negative
+	 */
+	public void setMaxDepth (int maxDepth) {
+		if (maxDepth < 0) {
+			throw new IllegalArgumentException("Invalid maximum depth: "+maxDepth);
+		}
+		this.maxDepth = maxDepth;
+	}
+	
+	public int getMaxDepth () {
+		return maxDepth;
+	}
+	
 	public CompiledScript getScript () {
 		return script;
 	}
 	
+	/**
+	 * Enters a new script, saving the state of the current script so it can be restored by {@link #returnOneLevel()}.
+	 * The new script's frame is placed after the current script's locals, and its parameters are popped from the stacks into it.
+	 * @param script The script to invoke
+	 * @throws IllegalStateException If the call would exceed the maximum call depth
+	 */
 	public void setInvokeScript (CompiledScript script) {
-		InvokeFrame frame = new InvokeFrame();
-		frame.script = script;
-		frame.instrPtr = instrPtr;
-		frame.localInts = localInts;
-		frame.localObjs = localObjs;
-		invokeStack.push(frame);
+		if (depth >= maxDepth) {
+			throw new IllegalStateException("Maximum call depth of "+maxDepth+" exceeded calling "+script.getName()+" from "+this.script.getName());
+		}
+		if (depth == frameScripts.length) {
+			int length = depth * 2;
+			frameScripts = Arrays.copyOf(frameScripts, length);
+			frameInstrPtrs = Arrays.copyOf(frameInstrPtrs, length);
+			frameIntBases = Arrays.copyOf(frameIntBases, length);
+			frameObjBases = Arrays.copyOf(frameObjBases, length);
+		}
+		frameScripts[depth] = this.script;
+		frameInstrPtrs[depth] = instrPtr;
+		frameIntBases[depth] = intBase;
+		frameObjBases[depth] = objBase;
+		depth++;
+		intBase += this.script.getIntLocalCount();
+		objBase += this.script.getObjLocalCount();
+		enterFrame(script);
+	}
+	
+	/**
+	 * Replaces the current script with a new one, for a call whose result the current script returns as it is.
+	 * The new script's frame takes the place of the current script's, so the depth doesn't change, and it returns straight to the current script's caller.
+	 * @param script The script to invoke
+	 */
+	public void setTailCallScript (CompiledScript script) {
+		Arrays.fill(localObjs, objBase, objBase + this.script.getObjLocalCount(), null);
+		enterFrame(script);
+	}
+	
+	/**
+	 * Sets up a frame for the script at the current bases, and pops its parameters into it
+	 */
+	private void enterFrame (CompiledScript script) {
 		this.script = script;
 		this.instrPtr = 0;
-		this.localInts = new int[script.getIntLocalCount()];
-		this.localObjs = new Object[script.getObjLocalCount()];
-		int intPos = 0;
-		int objPos = 0;
-		for (ScriptDataType param : script.getParams()) {
-			if (param.intBase()) {
-				this.localInts[intPos++] = getInt();
+		int intEnd = intBase + script.getIntLocalCount();
+		if (intEnd > localInts.length) {
+			localInts = Arrays.copyOf(localInts, Math.max(intEnd, localInts.length * 2));
+		}
+		Arrays.fill(localInts, intBase, intEnd, 0);
+		int objEnd = objBase + script.getObjLocalCount();
+		if (objEnd > localObjs.length) {
+			localObjs = Arrays.copyOf(localObjs, Math.max(objEnd, localObjs.length * 2));
+		}//Object slots are cleared as their frame is left, so they're already null
+		int intPos = intBase;
+		int objPos = objBase;
+		boolean[] intParams = script.getIntParams();
+		for (boolean intParam : intParams) {
+			if (intParam) {
+				intPos++;
 			} else {
-				this.localObjs[objPos++] = getObj();
+				objPos++;
 			}
 		}
+		for (int i=intParams.length-1;i>=0;i--) {//The last parameter is on top of the stack
+			if (intParams[i]) {
+				this.localInts[--intPos] = getInt();
+			} else {
+				this.localObjs[--objPos] = getObj();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of scripts waiting for an invoked script to return
+	 * @return The depth of the invoke stack
+	 */
+	public int getInvokeDepth () {
+		return depth;
 	}
 	
-	public void returnOneLevel () {
-		if (invokeStack.isEmpty()) {
+	/**
+	 * Returns from the current script to the script which invoked it. 
+	 * The instruction pointer is restored to the invoke instruction in the calling script.
+	 * @return True if control returned to a calling script, false if the top-level script has finished
+	 */
+	public boolean returnOneLevel () {
+		if (depth == 0) {
 			instrPtr = script.getInstructionCount();
+			return false;
 		} else {
-			InvokeFrame frame = invokeStack.pop();
-			this.script = frame.script;
-			this.instrPtr = frame.instrPtr;
-			this.localInts = frame.localInts;
-			this.localObjs = frame.localObjs;
+			Arrays.fill(localObjs, objBase, objBase + script.getObjLocalCount(), null);//Don't hold on to the returning script's objects
+			depth--;
+			this.script = frameScripts[depth];
+			frameScripts[depth] = null;
+			this.instrPtr = frameInstrPtrs[depth];
+			this.intBase = frameIntBases[depth];
+			this.objBase = frameObjBases[depth];
+			return true;
+		}
+	}
+	
+	/**
+	 * Sets the parameters of the current script, in the order they're declared. 
+	 * Int parameters take an {@link Integer}, boolean parameters take a {@link Boolean}, and any other parameter takes the value as it is.
+	 * @param args The arguments
+	 * @throws IllegalArgumentException If the number of arguments doesn't match the script's parameters, or an argument has the wrong type
+	 */
+	public void setArguments (Object... args) {
+		List<ScriptDataType> params = script.getParams();
+		if (args.length != params.size()) {
+			throw new IllegalArgumentException(script.getName()+" takes "+params.size()+" arguments, but "+args.length+" were provided");
+		}
+		int intPos = 0, objPos = 0;
+		for (int i=0;i<args.length;i++) {
+			ScriptDataType type = params.get(i);
+			if (type == ScriptDataType.BOOLEAN && args[i] instanceof Boolean) {
+				localInts[intBase + intPos++] = ((Boolean) args[i]) ? 1 : 0;
+			} else if (type.intBase() && args[i] instanceof Integer) {
+				localInts[intBase + intPos++] = (Integer) args[i];
+			} else if (type.intBase()) {
+				throw new IllegalArgumentException("Argument "+i+" must be "+type+": "+args[i]);
+			} else {
+				localObjs[objBase + objPos++] = args[i];
+			}
+		}
+	}
+	
+	/**
+	 * Removes the values returned by the script from the stacks, in the order they're declared. 
+	 * Int and boolean values are returned as {@link Integer}s and {@link Boolean}s.
+	 * @return The return values
+	 */
+	public Object[] takeReturnValues () {
+		List<ScriptDataType> returns = script.getReturns();
+		Object[] values = new Object[returns.size()];
+		for (int i=values.length-1;i>=0;i--) {//The last value is on top of the stack
+			ScriptDataType type = returns.get(i);
+			if (type == ScriptDataType.BOOLEAN) {
+				values[i] = getInt() == 1;
+			} else if (type.intBase()) {
+				values[i] = getInt();
+			} else {
+				values[i] = getObj();
+			}
 		}
+		return values;
 	}
 	
+	/**
+	 * @param id The local's ID within the current script
+	 * @return The value of the current script's int local
+	 */
 	public int getIntLocal (int id) {
-		return localInts[id];
+		return localInts[intBase + id];
 	}
 	
 	public void setIntLocal (int id, int value) {
-		localInts[id] = value;
+		localInts[intBase + id] = value;
+	}
+	
+	/**
+	 * @param id The local's ID within the current script
+	 * @return The value of the current script's object local
+	 */
+	public Object getObjLocal (int id) {
+		return localObjs[objBase + id];
+	}
+	
+	public void setObjLocal (int id, Object value) {
+		localObjs[objBase + id] = value;
 	}
 	
 	public int getInt () {
-		return intStack.pop();
+		if (intStackSize == 0) {
+			throw new EmptyStackException();
+		}
+		return intStack[--intStackSize];
 	}
 	
 	public void putInt (int value) {
-		intStack.push(value);
+		if (intStackSize == intStack.length) {
+			intStack = Arrays.copyOf(intStack, intStackSize * 2);
+		}
+		intStack[intStackSize++] = value;
 	}
 	
 	public Object getObj () {
-		return objStack.pop();
+		if (objStackSize == 0) {
+			throw new EmptyStackException();
+		}
+		Object value = objStack[--objStackSize];
+		objStack[objStackSize] = null;//Don't hold on to popped values
+		return value;
 	}
 	
 	public void putObj (Object value) {
-		objStack.push(value);
+		if (objStackSize == objStack.length) {
+			objStack = Arrays.copyOf(objStack, objStackSize * 2);
+		}
+		objStack[objStackSize++] = value;
+	}
+	
+	public int getIntStackSize () {
+		return intStackSize;
+	}
+	
+	public int getObjStackSize () {
+		return objStackSize;
 	}
 }
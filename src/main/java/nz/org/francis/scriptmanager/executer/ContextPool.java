@@ -0,0 +1,71 @@
+package nz.org.francis.scriptmanager.executer;
+
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+
+/**
+ * Keeps a small number of idle {@link Context}s per thread, so running a script doesn't need to allocate a new context 
+ * (along with its stacks and local variable arrays) every time.
+ * A thread only takes more than one context from the pool if scripts are executed re-entrantly (eg from an api function), 
+ * so the number of idle contexts kept per thread is bounded by the capacity of the pool.
+ * 
+ * @author Francis
+ */
+public class ContextPool {
+	
+	public static final int DEFAULT_CAPACITY = 4;
+	
+	private static class IdleContexts {
+		final Context[] contexts;
+		int size;
+		
+		IdleContexts (int capacity) {
+			this.contexts = new Context[capacity];
+		}
+	}
+	
+	private final ThreadLocal<IdleContexts> idle;
+	
+	public ContextPool () {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	public ContextPool (final int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1: "+capacity);
+		}
+		this.idle = new ThreadLocal<IdleContexts>() {
+			@Override
+			protected IdleContexts initialValue() {
+				return new IdleContexts(capacity);
+			}
+		};
+	}
+	
+	/**
+	 * Takes a context from the current thread's pool and resets it to run the provided script, 
+	 * or creates a new context if the pool is empty.
+	 * @param script The script to run
+	 * @return A context at the start of the script
+	 */
+	public Context acquire (CompiledScript script) {
+		IdleContexts pool = idle.get();
+		if (pool.size == 0) {
+			return new Context(script);
+		}
+		Context context = pool.contexts[--pool.size];
+		pool.contexts[pool.size] = null;
+		context.reset(script);
+		return context;
+	}
+	
+	/**
+	 * Returns a context to the current thread's pool. The context must not be used after it has been released.
+	 * @param context The context to return
+	 */
+	public void release (Context context) {
+		IdleContexts pool = idle.get();
+		if (pool.size < pool.contexts.length) {
+			pool.contexts[pool.size++] = context;
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package nz.org.francis.scriptmanager.executer;
+
+/**
+ * An optimised form of a {@link nz.org.francis.scriptmanager.compiler.CompiledScript}, which runs in place of the interpreter.
+ * 
+ * @author Francis
+ */
+public interface Executable {
+	
+	/**
+	 * Runs the script from the start. When this is called, the context has already entered the script 
+	 * (so the parameters are in its local variables). Any return values are left on the context's stacks.
+	 * @param context The context to run the script in
+	 */
+	public void invoke (Context context);
+}
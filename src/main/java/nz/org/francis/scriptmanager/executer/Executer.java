@@ -1,157 +1,662 @@
 package nz.org.francis.scriptmanager.executer;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import nz.org.francis.scriptmanager.compiler.CompiledScript;
 import nz.org.francis.scriptmanager.ScriptManager;
 import nz.org.francis.scriptmanager.ApiFunction;
+import nz.org.francis.scriptmanager.ApiHandler;
+import nz.org.francis.scriptmanager.ApiRegistry;
+import nz.org.francis.scriptmanager.EntityVariables;
+import nz.org.francis.scriptmanager.GlobalVariables;
+import nz.org.francis.scriptmanager.ScriptMath;
+import nz.org.francis.scriptmanager.ScriptTable;
+import nz.org.francis.scriptmanager.compiler.Opcodes;
 
 /**
+ * Runs compiled scripts, either through the interpreter or through the optimised form installed on the script. 
+ * An executer is bound to one {@link ScriptManager}, which it uses to resolve script calls and api functions, 
+ * so several independent script engines can run side by side in the same process.
+ * <p>
+ * An executer is immutable once constructed, and may be shared by any number of threads:
+ * <ul>
+ * <li>Each call to {@link #execute(CompiledScript)} runs on a context taken from a per-thread pool, so threads never share a context.</li>
+ * <li>A {@link Context} must only be used by one thread at a time. It remembers the executer running it, which compiled scripts use to make calls.</li>
+ * <li>{@link CompiledScript}s are read-only apart from their optimised form and hotness counts. The optimised form is published with a volatile write, 
+ * and the counts are deliberately unsynchronised, so they may undercount when several threads run the same script, but never skip the promotion threshold.</li>
+ * <li>The script manager must be safe to read from several threads, and its api functions must be safe to call concurrently.</li>
+ * </ul>
  *
  * @author Francis
  */
 public class Executer {	
 	
-	private static ScriptManager scriptManager;
-	
-	public static void setScriptManager (ScriptManager manager) {
-		Executer.scriptManager = manager;
-	}
-	
-	public static void execute (CompiledScript script) {
-		boolean running = true;
-		Context context = new Context(script);
-		while (running) {
-			executeInstr(context);
-			running = context.nextInstr();//Returns false when there are no more instructions
-		}
-	}
-	
-	private static void executeInstr (Context context) {
-		switch (context.getInstruction()) {
-			case LOAD_INT_CONST:
-				context.putInt(context.getIntConstant());
-				break;
-			case LOAD_STR_CONST:
-				context.putObj((String) context.getConstant());
-				break;
-			case LOAD_LOCAL:
-				context.putObj(context.localObjs[context.getIntConstant()]);
-				break;
-			case LOAD_INT_LOCAL:
-				context.putInt(context.localInts[context.getIntConstant()]);
-				break;
-			case ASSIGN_LOCAL:
-				context.localObjs[context.getIntConstant()] = context.getObj();
-				break;
-			case ASSIGN_LOCAL_INT:
-				context.localInts[context.getIntConstant()] = context.getInt();
-				break;
-			case LOAD_GLOBAL:
-			case ASSIGN_GLOBAL:
-				throw new UnsupportedOperationException("Global variables are not yet supported.");
-			case DROP_OBJ:
-				context.getObj();
-				break;
-			case DROP_INT:
-				context.getInt();
-				break;
-			case INVOKE_API:
-				ApiFunction function = scriptManager.getApiFuncType(context.getIntConstant());
-				if (function == null) {
-					throw new UnsupportedOperationException("Unsupported function: "+context.getIntConstant());
-				}
-				scriptManager.invokeApiFunction(function, context);
-				break;
-			case INVOKE_SCRIPT:
-				CompiledScript script = scriptManager.getById(context.getIntConstant());
-				if (script == null) {
-					throw new UnsupportedOperationException("Script not found: "+context.getIntConstant());
-				}
-				context.setInvokeScript(script);
-				break;
-			case RETURN:
-				context.returnOneLevel();
-				break;
-			case JUMP:
-				context.incrementPos(context.getInt());
-				break;
-			case JUMP_TRUE:
-				if (context.getInt() == 1) {
-					context.incrementPos(context.getInt());
-				}
-				break;
-			case JUMP_FALSE:
-				if (context.getInt() == 0) {
-					context.incrementPos(context.getInt());
-				}
-				break;
-			case JUMP_EQ:
-				if (context.getInt() == context.getInt()) {
-					context.incrementPos(context.getInt());
+	private final ScriptManager scriptManager;
+	
+	private final ContextPool contextPool = new ContextPool();
+	
+	private final TieredCompiler tieredCompiler;
+	
+	private final ApiRegistry apiRegistry;
+	
+	private final ScriptTable scriptTable;
+	
+	private final GlobalVariables globals;
+	
+	private final EntityVariables entities;
+	
+	/**
+	 * The pool used for batches when none is provided, created the first time it's needed
+	 */
+	private static class DefaultPool {
+		static final ForkJoinPool POOL = new ForkJoinPool();
+	}
+	
+	/**
+	 * Creates an executer which only interprets scripts, unless they already have an optimised form installed
+	 * @param scriptManager The manager used to look up scripts and api functions
+	 */
+	public Executer (ScriptManager scriptManager) {
+		this(scriptManager, null);
+	}
+	
+	/**
+	 * @param scriptManager The manager used to look up scripts and api functions
+	 * @param tieredCompiler The compiler used to promote hot scripts out of the interpreter. 
+	 * When this is null, the interpreter doesn't keep any hotness counts.
+	 */
+	public Executer (ScriptManager scriptManager, TieredCompiler tieredCompiler) {
+		if (scriptManager == null) {
+			throw new NullPointerException("scriptManager");
+		}
+		this.scriptManager = scriptManager;
+		this.tieredCompiler = tieredCompiler;
+		this.apiRegistry = scriptManager.getApiRegistry();
+		this.scriptTable = scriptManager.getScriptTable();
+		this.globals = scriptManager.getGlobalVariables();
+		this.entities = scriptManager.getEntityVariables();
+	}
+	
+	public ScriptManager getScriptManager () {
+		return scriptManager;
+	}
+	
+	public TieredCompiler getTieredCompiler () {
+		return tieredCompiler;
+	}
+	
+	/**
+	 * @return The registry api functions are called through, taken from the script manager when the executer was created, or null if it doesn't have one
+	 */
+	public ApiRegistry getApiRegistry () {
+		return apiRegistry;
+	}
+	
+	/**
+	 * Runs the script to completion on a pooled context. 
+	 * Scripts which suspend themselves must be run through a {@link ScriptScheduler} instead.
+	 * @param script The script to run
+	 * @throws IllegalStateException If the script suspends itself
+	 */
+	public void execute (CompiledScript script) {
+		execute(script, Context.NO_ENTITY);
+	}
+	
+	/**
+	 * Runs the script to completion on a pooled context bound to an entity, so the script reads and writes that entity's variables.
+	 * @param script The script to run
+	 * @param entity The entity's ID
+	 * @throws IllegalStateException If the script suspends itself
+	 */
+	public void execute (CompiledScript script, int entity) {
+		Context context = contextPool.acquire(script);
+		try {
+			context.setEntity(entity);
+			executeAndWait(context);
+		} finally {
+			if (!context.isSuspended()) {
+				contextPool.release(context);
+			}
+		}
+		if (context.isSuspended()) {
+			throw new IllegalStateException(script.getName()+" suspended itself, so it must be run by a scheduler");
+		}
+	}
+	
+	/**
+	 * Runs the script once for each set of arguments, in parallel on a shared {@link ForkJoinPool}.
+	 * @see #executeBatch(ForkJoinPool, CompiledScript, List)
+	 */
+	public List<Object[]> executeBatch (CompiledScript script, List<Object[]> arguments) {
+		return executeBatch(DefaultPool.POOL, script, arguments);
+	}
+	
+	/**
+	 * Runs the script once for each set of arguments, in parallel on the provided pool. 
+	 * The arguments are split into ranges, and each range runs on a single context taken from the worker thread's pool, 
+	 * so a batch only allocates a context the first time a worker runs it.
+	 * @param pool The pool to run the scripts on
+	 * @param script The script to run
+	 * @param arguments The arguments for each run, as accepted by {@link Context#setArguments(Object...)}
+	 * @return The return values of each run (see {@link Context#takeReturnValues()}), in the same order as the arguments
+	 * @throws RuntimeException If any run fails. The remaining runs may or may not have completed.
+	 */
+	public List<Object[]> executeBatch (ForkJoinPool pool, CompiledScript script, List<Object[]> arguments) {
+		Object[][] results = new Object[arguments.size()][];
+		if (!arguments.isEmpty()) {
+			int leafSize = Math.max(1, arguments.size() / (pool.getParallelism() * BatchTask.LEAVES_PER_THREAD));
+			pool.invoke(new BatchTask(this, script, arguments, results, 0, arguments.size(), leafSize));
+		}
+		return Arrays.asList(results);
+	}
+	
+	/**
+	 * Runs part of a batch on the current thread, reusing one context for every run
+	 */
+	void executeRange (CompiledScript script, List<Object[]> arguments, Object[][] results, int from, int to) {
+		Context context = contextPool.acquire(script);
+		try {
+			for (int i=from;i<to;i++) {
+				if (i > from) {
+					context.reset(script);
 				}
-				break;
-			case JUMP_NT_EQ:
-				if (context.getInt() != context.getInt()) {
-					context.incrementPos(context.getInt());
+				context.setArguments(arguments.get(i));
+				executeAndWait(context);
+				if (context.isSuspended()) {
+					context.reset(script);//Don't return a suspended context to the pool
+					throw new IllegalStateException(script.getName()+" suspended itself, so it can't be run in a batch");
 				}
-				break;
-			case JUMP_GT:
-				int val2 = context.getInt();
-				int val1 = context.getInt();
-				if (val1 > val2) {
-					context.incrementPos(context.getInt());
+				results[i] = context.takeReturnValues();
+			}
+		} finally {
+			contextPool.release(context);
+		}
+	}
+	
+	/**
+	 * Runs the current script in the provided context until it returns. 
+	 * If the script has an optimised form and is at its first instruction, the optimised form is used instead of the interpreter.
+	 * <p>
+	 * Optimised scripts can't be preempted, so a context with an instruction budget (see {@link Context#setBudget(int)}) is always interpreted. 
+	 * Once the budget runs out, the context is suspended with {@link Suspension#PREEMPT}, and can be continued with {@link #resume(Context)}.
+	 * @param context The context to run
+	 */
+	public void execute (Context context) {
+		context.setExecuter(this);
+		Executable executable = context.getScript().getExecutable();
+		if (executable != null && context.instrPtr == 0 && context.budget < 0) {
+			executable.invoke(context);
+		} else {
+			interpret(context, context.getInvokeDepth());
+		}
+	}
+	
+	/**
+	 * Runs the context like {@link #execute(Context)}, but waits on the current thread for any asynchronous api calls the script makes, 
+	 * rather than leaving the context suspended. Scripts which sleep, wait for events or run out of budget still leave the context suspended.
+	 * @param context The context to run
+	 */
+	public void executeAndWait (Context context) {
+		execute(context);
+		while (context.getSuspension() == Suspension.API_CALL) {
+			resume(context);
+		}
+	}
+	
+	/**
+	 * Continues a suspended context from where it stopped, until the script returns or suspends again. 
+	 * A preempted context should be given a new budget first, otherwise it will only run until its next loop iteration or call. 
+	 * A context waiting for an api call has the result pushed onto its stacks first, waiting for it if the call hasn't completed yet. 
+	 * Scripts can only suspend while they're being interpreted, so every script on the context's invoke stack is resumed in the interpreter.
+	 * @param context The suspended context
+	 * @throws IllegalStateException If the context isn't suspended
+	 */
+	public void resume (Context context) {
+		if (!context.isSuspended()) {
+			throw new IllegalStateException("The context isn't suspended");
+		}
+		ApiFunction function = context.getPendingFunction();
+		boolean apiCall = context.getSuspension() == Suspension.API_CALL;
+		context.clearSuspension();
+		context.setExecuter(this);
+		if (apiCall) {
+			context.completeApiCall(function);
+		}
+		interpret(context, 0);
+	}
+	
+	/**
+	 * Invokes a script from an optimised script, running it to completion before returning. 
+	 * The parameters are taken from the context's stacks, and the return values are left there.
+	 * @param context The context of the calling script
+	 * @param id The ID of the script to invoke
+	 */
+	public void invokeScript (Context context, int id) {
+		CompiledScript callee = getScript(id);
+		if (callee == null) {
+			throw new UnsupportedOperationException("Script not found: "+id);
+		}
+		context.setInvokeScript(callee);
+		execute(context);
+		context.returnOneLevel();
+	}
+	
+	/**
+	 * Invokes an api function from an optimised script
+	 * @param context The context of the calling script
+	 * @param id The opcode of the api function
+	 */
+	public void invokeApi (Context context, int id) {
+		callApi(context, id);
+		if (context.getPendingResult() != null) {
+			completeApiCall(context, getApiFunction(id));
+		}
+	}
+	
+	/**
+	 * Finds the script a call resolves to, in the script table if the script manager has one
+	 */
+	private CompiledScript getScript (int id) {
+		return scriptTable != null ? scriptTable.get(id) : scriptManager.getById(id);
+	}
+	
+	/**
+	 * @return The global variables, taken from the script manager when the executer was created
+	 * @throws UnsupportedOperationException If the script manager doesn't have any
+	 */
+	private GlobalVariables getGlobals () {
+		if (globals == null) {
+			throw new UnsupportedOperationException("The script manager doesn't provide global variables");
+		}
+		return globals;
+	}
+	
+	/**
+	 * @return The entity variables, taken from the script manager when the executer was created
+	 * @throws UnsupportedOperationException If the script manager doesn't have any
+	 */
+	private EntityVariables getEntities () {
+		if (entities == null) {
+			throw new UnsupportedOperationException("The script manager doesn't provide entity variables");
+		}
+		return entities;
+	}
+	
+	/**
+	 * Calls an api function, straight through its handler if the registry has one, or through the script manager otherwise
+	 */
+	private void callApi (Context context, int id) {
+		ApiHandler handler = apiRegistry == null ? null : apiRegistry.getHandler(id);
+		if (handler != null) {
+			handler.invoke(context);
+			return;
+		}
+		ApiFunction function = scriptManager.getApiFuncType(id);
+		if (function == null) {
+			throw new UnsupportedOperationException("Unsupported function: "+id);
+		}
+		scriptManager.invokeApiFunction(function, context);
+	}
+	
+	/**
+	 * Finds the signature of an api function, which is only needed once an asynchronous call has been made
+	 */
+	private ApiFunction getApiFunction (int id) {
+		return ApiRegistry.findFunction(scriptManager, id);
+	}
+	
+	/**
+	 * Waits for an asynchronous api call made by an optimised script, and pushes its result onto the stacks. 
+	 * Optimised scripts can't be suspended, so they block the current thread until the result is available.
+	 * @param context The context of the calling script
+	 * @param function The function which was called
+	 */
+	public void completeApiCall (Context context, ApiFunction function) {
+		context.completeApiCall(function);
+	}
+	
+	/**
+	 * Evaluates the comparison at the end of a fused compare-and-jump
+	 * @param opcode The comparison jump
+	 */
+	private static boolean compare (int opcode, int val1, int val2) {
+		switch (opcode) {
+			case Opcodes.JUMP_EQ:
+				return val1 == val2;
+			case Opcodes.JUMP_NT_EQ:
+				return val1 != val2;
+			case Opcodes.JUMP_GT:
+				return val1 > val2;
+			case Opcodes.JUMP_LT:
+				return val1 < val2;
+			case Opcodes.JUMP_GT_EQ:
+				return val1 >= val2;
+			case Opcodes.JUMP_LT_EQ:
+				return val1 <= val2;
+			default:
+				throw new UnsupportedOperationException("Unsupported comparison: "+opcode);
+		}
+	}
+	
+	/**
+	 * Interprets the context's current script
+	 * @param baseDepth The invoke depth to stop at. Returning from a script at this depth ends the call.
+	 */
+	private void interpret (Context context, int baseDepth) {
+		TieredCompiler tiering = tieredCompiler;
+		CompiledScript script = context.getScript();
+		if (tiering != null && context.instrPtr == 0) {
+			tiering.countInvocation(script);
+		}
+		int[] code = script.getCode();
+		int[] operands = script.getOperands();
+		Object[] constantPool = script.getConstantPool();
+		int pos = context.instrPtr;
+		int intBase = context.intBase;
+		int objBase = context.objBase;
+		int val1, val2;
+		while (true) {
+			if (pos >= code.length) {//Reached the end of the script without an explicit return
+				context.instrPtr = pos;
+				if (context.getInvokeDepth() == baseDepth) {
+					return;
 				}
-				break;
-			case JUMP_LT:
-				val2 = context.getInt();
-				val1 = context.getInt();
-				if (val1 < val2) {
-					context.incrementPos(context.getInt());
+				context.returnOneLevel();
+				script = context.getScript();
+				intBase = context.intBase;
+				objBase = context.objBase;
+				code = script.getCode();
+				operands = script.getOperands();
+				constantPool = script.getConstantPool();
+				pos = context.instrPtr + 1;
+				continue;
+			}
+			int operand = operands[pos];
+			int offset;
+			jump: {
+				switch (code[pos]) {
+					case Opcodes.LOAD_INT_CONST:
+						context.putInt(operand);
+						break;
+					case Opcodes.LOAD_STR_CONST:
+						context.putObj(constantPool[operand]);
+						break;
+					case Opcodes.LOAD_LOCAL:
+						context.putObj(context.localObjs[objBase + operand]);
+						break;
+					case Opcodes.LOAD_INT_LOCAL:
+						context.putInt(context.localInts[intBase + operand]);
+						break;
+					case Opcodes.ASSIGN_LOCAL:
+						context.localObjs[objBase + operand] = context.getObj();
+						break;
+					case Opcodes.ASSIGN_LOCAL_INT:
+						context.localInts[intBase + operand] = context.getInt();
+						break;
+					case Opcodes.LOAD_GLOBAL:
+						context.putObj(getGlobals().getObj(operand));
+						break;
+					case Opcodes.LOAD_INT_GLOBAL:
+						context.putInt(getGlobals().getInt(operand));
+						break;
+					case Opcodes.ASSIGN_GLOBAL:
+						getGlobals().setObj(operand, context.getObj());
+						break;
+					case Opcodes.ASSIGN_GLOBAL_INT:
+						getGlobals().setInt(operand, context.getInt());
+						break;
+					case Opcodes.LOAD_ENTITY_INT:
+						context.putInt(getEntities().getInt(operand, context.getEntity()));
+						break;
+					case Opcodes.ASSIGN_ENTITY_INT:
+						getEntities().setInt(operand, context.getEntity(), context.getInt());
+						break;
+					case Opcodes.DROP_OBJ:
+						context.getObj();
+						break;
+					case Opcodes.DROP_INT:
+						context.getInt();
+						break;
+					case Opcodes.INVOKE_API:
+						context.instrPtr = pos;
+						callApi(context, operand);
+						if (context.getPendingResult() != null) {
+							ApiFunction function = getApiFunction(operand);
+							if (baseDepth != 0) {//Can't suspend beneath a compiled script or api function, so wait here
+								context.completeApiCall(function);
+							} else {
+								context.suspendForApiCall(function);
+								context.instrPtr = pos + 1;
+								return;
+							}
+						}
+						break;
+					case Opcodes.TAIL_CALL:
+						//The frame this call was entered with is handed back to whoever entered it, so a tail call from it is made as an ordinary call
+						if (context.getInvokeDepth() > baseDepth) {
+							CompiledScript target = getScript(operand);
+							if (target != null && (target.getExecutable() == null || context.budget >= 0)) {
+								context.setTailCallScript(target);
+								if (tiering != null) {
+									tiering.countInvocation(target);
+								}
+								script = target;
+								intBase = context.intBase;
+								objBase = context.objBase;
+								code = script.getCode();
+								operands = script.getOperands();
+								constantPool = script.getConstantPool();
+								pos = 0;
+								if (context.budget >= 0 && --context.budget < 0) {
+									preempt(context, baseDepth, pos);
+									return;
+								}
+								continue;
+							}
+						}
+						//Otherwise call it normally, and let the following return (or the end of the script) return its results
+					case Opcodes.INVOKE_SCRIPT:
+						CompiledScript callee = getScript(operand);
+						if (callee == null) {
+							throw new UnsupportedOperationException("Script not found: "+operand);
+						}
+						context.instrPtr = pos;
+						context.setInvokeScript(callee);
+						Executable executable = callee.getExecutable();
+						if (executable != null && context.budget < 0) {
+							executable.invoke(context);
+							context.returnOneLevel();
+							break;
+						}
+						if (tiering != null) {
+							tiering.countInvocation(callee);
+						}
+						script = callee;
+						intBase = context.intBase;
+						objBase = context.objBase;
+						code = script.getCode();
+						operands = script.getOperands();
+						constantPool = script.getConstantPool();
+						pos = context.instrPtr;
+						if (context.budget >= 0 && --context.budget < 0) {
+							preempt(context, baseDepth, pos);
+							return;
+						}
+						continue;
+					case Opcodes.RETURN:
+						context.instrPtr = pos;
+						if (context.getInvokeDepth() == baseDepth) {
+							return;
+						}
+						context.returnOneLevel();
+						script = context.getScript();
+						intBase = context.intBase;
+						objBase = context.objBase;
+						code = script.getCode();
+						operands = script.getOperands();
+						constantPool = script.getConstantPool();
+						pos = context.instrPtr;
+						break;
+					case Opcodes.SLEEP:
+					case Opcodes.WAIT_EVENT:
+						if (baseDepth != 0) {//Anything below the base depth is waiting on the Java stack, so it can't be suspended
+							throw new IllegalStateException(script.getName()+" can't suspend while it's called from a compiled script or api function");
+						}
+						context.suspend(code[pos] == Opcodes.SLEEP ? Suspension.SLEEP : Suspension.EVENT, context.getInt());
+						context.instrPtr = pos + 1;
+						return;
+					case Opcodes.JUMP:
+						offset = operand;
+						break jump;
+					case Opcodes.JUMP_TRUE:
+						if (context.getInt() == 1) {
+							offset = operand;
+							break jump;
+						}
+						break;
+					case Opcodes.JUMP_FALSE:
+						if (context.getInt() == 0) {
+							offset = operand;
+							break jump;
+						}
+						break;
+					case Opcodes.JUMP_EQ:
+						if (context.getInt() == context.getInt()) {
+							offset = operand;
+							break jump;
+						}
+						break;
+					case Opcodes.JUMP_NT_EQ:
+						if (context.getInt() != context.getInt()) {
+							offset = operand;
+							break jump;
+						}
+						break;
+					case Opcodes.JUMP_GT:
+						val2 = context.getInt();
+						val1 = context.getInt();
+						if (val1 > val2) {
+							offset = operand;
+							break jump;
+						}
+						break;
+					case Opcodes.JUMP_LT:
+						val2 = context.getInt();
+						val1 = context.getInt();
+						if (val1 < val2) {
+							offset = operand;
+							break jump;
+						}
+						break;
+					case Opcodes.JUMP_GT_EQ:
+						val2 = context.getInt();
+						val1 = context.getInt();
+						if (val1 >= val2) {
+							offset = operand;
+							break jump;
+						}
+						break;
+					case Opcodes.JUMP_LT_EQ:
+						val2 = context.getInt();
+						val1 = context.getInt();
+						if (val1 <= val2) {
+							offset = operand;
+							break jump;
+						}
+						break;
+					case Opcodes.ADD:
+						val2 = context.getInt();
+						val1 = context.getInt();
+						context.putInt(val1 + val2);
+						break;
+					case Opcodes.SUBTRACT:
+						val2 = context.getInt();
+						val1 = context.getInt();
+						context.putInt(val1 - val2);
+						break;
+					case Opcodes.MULTIPLY:
+						val2 = context.getInt();
+						val1 = context.getInt();
+						context.putInt(val1 * val2);
+						break;
+					case Opcodes.DIVIDE:
+						val2 = context.getInt();
+						val1 = context.getInt();
+						context.putInt(val1 / val2);
+						break;
+					case Opcodes.POWER:
+						val2 = context.getInt();
+						val1 = context.getInt();
+						context.putInt(ScriptMath.power(val1, val2));
+						break;
+					case Opcodes.MODULO:
+						val2 = context.getInt();
+						val1 = context.getInt();
+						context.putInt(val1 % val2);
+						break;
+					case Opcodes.SHIFT_LEFT:
+						context.putInt(context.getInt() << operand);
+						break;
+					case Opcodes.LOCAL_ADD_CONST:
+						context.localInts[intBase + operands[pos+3]] = context.localInts[intBase + operand] + operands[pos+1];
+						pos += 3;
+						break;
+					case Opcodes.LOCAL_SUB_CONST:
+						context.localInts[intBase + operands[pos+3]] = context.localInts[intBase + operand] - operands[pos+1];
+						pos += 3;
+						break;
+					case Opcodes.JUMP_LOCAL_CONST:
+						pos += 2;
+						if (compare(code[pos], context.localInts[intBase + operand], operands[pos-1])) {
+							offset = operands[pos];
+							break jump;
+						}
+						break;
+					case Opcodes.JUMP_LOCAL_LOCAL:
+						pos += 2;
+						if (compare(code[pos], context.localInts[intBase + operand], context.localInts[intBase + operands[pos-1]])) {
+							offset = operands[pos];
+							break jump;
+						}
+						break;
+					case Opcodes.STORE_INT_CONST:
+						context.localInts[intBase + operands[pos+1]] = operand;
+						pos++;
+						break;
+					case Opcodes.COPY_INT_LOCAL:
+						context.localInts[intBase + operands[pos+1]] = context.localInts[intBase + operand];
+						pos++;
+						break;
+					default:
+						throw new UnsupportedOperationException("Unsupported instruction: "+code[pos]);
 				}
-				break;
-			case JUMP_GT_EQ:
-				val2 = context.getInt();
-				val1 = context.getInt();
-				if (val1 >= val2) {
-					context.incrementPos(context.getInt());
+				pos++;
+				continue;
+			}
+			//Only taken jumps reach this point
+			pos += offset + 1;
+			if (offset < 0) {
+				if (tiering != null) {
+					tiering.countBackEdge(script);
 				}
-				break;
-			case JUMP_LT_EQ:
-				val2 = context.getInt();
-				val1 = context.getInt();
-				if (val1 <= val2) {
-					context.incrementPos(context.getInt());
+				if (context.budget >= 0 && (context.budget += offset) < 0) {//Charge the loop for the instructions it jumped back over
+					preempt(context, baseDepth, pos);
+					return;
 				}
-				break;
-			case ADD:
-				val2 = context.getInt();
-				val1 = context.getInt();
-				context.putInt(val1 + val2);
-				break;
-			case SUBTRACT:
-				val2 = context.getInt();
-				val1 = context.getInt();
-				context.putInt(val1 - val2);
-				break;
-			case MULTIPLY:
-				val2 = context.getInt();
-				val1 = context.getInt();
-				context.putInt(val1 * val2);
-				break;
-			case DIVIDE:
-				val2 = context.getInt();
-				val1 = context.getInt();
-				context.putInt(val1 / val2);
-				break;
-			case POWER:
-				val2 = context.getInt();
-				val1 = context.getInt();
-				context.putInt((int) Math.pow(val1, val2));
-				break;
-			case MODULO:
-				val2 = context.getInt();
-				val1 = context.getInt();
-				context.putInt(val1 % val2);
-				break;
+			}
+		}
+	}
+	
+	/**
+	 * Suspends a script which has run out of budget, so it continues from the provided instruction when it's resumed
+	 */
+	private static void preempt (Context context, int baseDepth, int pos) {
+		if (baseDepth != 0) {
+			throw new IllegalStateException(context.getScript().getName()+" can't be preempted while it's called from a compiled script or api function");
 		}
+		context.budget = 0;
+		context.suspend(Suspension.PREEMPT, 0);
+		context.instrPtr = pos;
 	}
 }
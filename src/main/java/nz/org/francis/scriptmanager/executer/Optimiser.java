@@ -0,0 +1,18 @@
+package nz.org.francis.scriptmanager.executer;
+
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+
+/**
+ * Produces an optimised {@link Executable} form of a script, which replaces the interpreter for that script
+ * 
+ * @author Francis
+ */
+public interface Optimiser {
+	
+	/**
+	 * Builds the optimised form of the script
+	 * @param script The script to optimise
+	 * @return The optimised form, or null if the script can't be optimised
+	 */
+	public Executable compile (CompiledScript script);
+}
@@ -0,0 +1,307 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import nz.org.francis.scriptmanager.ScriptManager;
+import nz.org.francis.scriptmanager.ScriptTable;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.Opcodes;
+
+/**
+ * Runs scripts which suspend themselves with "yield", "sleep" or "wait", without holding a thread while they're suspended.
+ * <p>
+ * Scripts run on the provided worker pool until they return or suspend. A suspended context is parked:
+ * sleeping contexts go into a timing wheel, which {@link #tick()} advances, and contexts waiting for an event are kept until {@link #fire(int)} is called for it.
+ * Contexts waiting for an asynchronous api function (see {@link Context#await(java.util.concurrent.CompletableFuture)}) are resumed as soon as its result is available, 
+ * so any number of api calls can be outstanding without holding a thread each.
+ * Once a context is due, it's resumed on the worker pool.
+ * <p>
+ * A parked context only holds its invoke stack, local variables and the values on its stacks (which are trimmed to fit),
+ * and the scheduler refuses to start new scripts once its capacity is reached, so the memory used by parked scripts is bounded.
+ * <p>
+ * When the scheduler has a time slice, each script is given that many instructions (see {@link Context#setBudget(int)}) every time it runs. 
+ * A script which uses up its slice is preempted and sent to the back of the worker pool's queue, so with a first-in first-out pool 
+ * (such as {@link java.util.concurrent.Executors#newFixedThreadPool(int)}) the scripts take turns, and a few expensive scripts can't hold up the rest. 
+ * Scripts with a time slice are always interpreted, as optimised scripts can't be preempted. 
+ * Cancelling a script's future stops it the next time it's preempted or resumed, so runaway scripts can be stopped.
+ * <p>
+ * All methods may be called from any thread.
+ *
+ * @author Francis
+ */
+public class ScriptScheduler {
+
+	public static final int DEFAULT_CAPACITY = 1 << 20;
+
+	private static final int WHEEL_SIZE = 256;//Must be a power of two
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+	/**
+	 * A script started by the scheduler, which runs (or resumes) its context when submitted to the worker pool
+	 */
+	private final class Task implements Runnable {
+
+		final Context context;
+		final FutureTask<Object[]> result;
+		Throwable failure;
+		boolean started;
+		long wakeTick;
+
+		Task (Context context) {
+			this.context = context;
+			this.result = new FutureTask<>(new Callable<Object[]>() {
+				@Override
+				public Object[] call() throws Exception {
+					if (failure instanceof Exception) {
+						throw (Exception) failure;
+					} else if (failure != null) {
+						throw (Error) failure;
+					}
+					return Task.this.context.takeReturnValues();
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			if (result.isCancelled()) {
+				finish(this);
+				return;
+			}
+			context.setBudget(timeSlice);
+			try {
+				if (started) {
+					executer.resume(context);
+				} else {
+					started = true;
+					executer.execute(context);
+				}
+			} catch (Throwable ex) {//Including errors from host functions and compiled scripts, so the slot is freed and the future completes
+				failure = ex;
+			}
+			if (failure == null && context.getSuspension() == Suspension.PREEMPT) {
+				workers.execute(this);//Back of the queue
+			} else if (failure == null && context.getSuspension() == Suspension.API_CALL) {
+				awaitResult(this);
+			} else if (failure == null && context.isSuspended()) {
+				park(this);
+			} else {
+				finish(this);
+			}
+		}
+	}
+
+	private final Executer executer;
+	private final Executor workers;
+	private final int capacity;
+	private final int timeSlice;
+
+	private final List<ArrayDeque<Task>> wheel = new ArrayList<>(WHEEL_SIZE);
+	private final Map<Integer, ArrayDeque<Task>> waiting = new HashMap<>();
+
+	private long currentTick;
+	private int live;
+	private int parked;
+
+	public ScriptScheduler (Executer executer, Executor workers) {
+		this(executer, workers, DEFAULT_CAPACITY);
+	}
+
+	public ScriptScheduler (Executer executer, Executor workers, int capacity) {
+		this(executer, workers, capacity, Context.UNLIMITED);
+	}
+
+	/**
+	 * @param executer The executer used to run the scripts
+	 * @param workers The pool the scripts run on
+	 * @param capacity The maximum number of scripts which can be running or parked at once
+	 * @param timeSlice The number of instructions a script may run before it's preempted, or {@link Context#UNLIMITED} to let scripts run until they suspend themselves
+	 */
+	public ScriptScheduler (Executer executer, Executor workers, int capacity, int timeSlice) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1: "+capacity);
+		}
+		if (timeSlice < 1 && timeSlice != Context.UNLIMITED) {
+			throw new IllegalArgumentException("Invalid time slice: "+timeSlice);
+		}
+		this.executer = executer;
+		this.workers = workers;
+		this.capacity = capacity;
+		this.timeSlice = timeSlice;
+		for (int i=0;i<WHEEL_SIZE;i++) {
+			wheel.add(new ArrayDeque<Task>());
+		}
+	}
+
+	/**
+	 * Starts running a script on the worker pool
+	 * @param script The script to run
+	 * @param args The arguments for the script, as accepted by {@link Context#setArguments(Object...)}
+	 * @return The script's return values (see {@link Context#takeReturnValues()}), available once it has finished
+	 * @throws RejectedExecutionException If the scheduler is already at capacity
+	 */
+	public Future<Object[]> spawn (CompiledScript script, Object... args) {
+		Context context = new Context(script);
+		context.setArguments(args);
+		synchronized (this) {
+			if (live >= capacity) {
+				throw new RejectedExecutionException("The scheduler is full ("+capacity+" scripts)");
+			}
+			live++;
+		}
+		Task task = new Task(context);
+		workers.execute(task);
+		return task.result;
+	}
+
+	/**
+	 * Advances to the next tick, resuming every script whose sleep has finished
+	 * @return The number of scripts resumed
+	 */
+	public int tick () {
+		List<Task> ready = new ArrayList<>();
+		synchronized (this) {
+			currentTick++;
+			ArrayDeque<Task> bucket = wheel.get((int) (currentTick & WHEEL_MASK));
+			for (int i=bucket.size();i>0;i--) {
+				Task task = bucket.poll();
+				if (task.wakeTick <= currentTick) {
+					ready.add(task);
+				} else {
+					bucket.add(task);//Sleeping for more than a full turn of the wheel
+				}
+			}
+			parked -= ready.size();
+		}
+		for (Task task : ready) {
+			workers.execute(task);
+		}
+		return ready.size();
+	}
+
+	/**
+	 * Resumes every script waiting for the event
+	 * @param event The ID of the event
+	 * @return The number of scripts resumed
+	 */
+	public int fire (int event) {
+		ArrayDeque<Task> ready;
+		synchronized (this) {
+			ready = waiting.remove(event);
+			if (ready == null) {
+				return 0;
+			}
+			parked -= ready.size();
+		}
+		for (Task task : ready) {
+			workers.execute(task);
+		}
+		return ready.size();
+	}
+
+	private synchronized void park (Task task) {
+		Context context = task.context;
+		context.trim();
+		if (context.getSuspension() == Suspension.SLEEP) {
+			task.wakeTick = currentTick + Math.max(1, context.getSuspendValue());//Sleeping for zero ticks still waits for the next one
+			wheel.get((int) (task.wakeTick & WHEEL_MASK)).add(task);
+		} else {
+			ArrayDeque<Task> queue = waiting.get(context.getSuspendValue());
+			if (queue == null) {
+				queue = new ArrayDeque<>();
+				waiting.put(context.getSuspendValue(), queue);
+			}
+			queue.add(task);
+		}
+		parked++;
+	}
+
+	/**
+	 * Parks a script until its api call completes, then resumes it on the worker pool
+	 */
+	private void awaitResult (final Task task) {
+		synchronized (this) {
+			parked++;
+		}
+		task.context.getPendingResult().whenComplete(new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object value, Throwable failure) {
+				synchronized (ScriptScheduler.this) {
+					parked--;
+				}
+				workers.execute(task);//Failures are rethrown when the script is resumed
+			}
+		});
+	}
+
+	private void finish (Task task) {
+		synchronized (this) {
+			live--;
+		}
+		task.result.run();
+	}
+
+	/**
+	 * Checks whether running a script could suspend it, either directly or through one of the scripts it calls.
+	 * Compiled tiers can't suspend, so they use this to leave such scripts to the interpreter.
+	 * <p>
+	 * The answer is only worked out once, when a script is compiled, so it relies on callees not gaining the ability to suspend later.
+	 * Calls are resolved through the script manager's {@link ScriptTable} when it has one, as that's what the executer calls through,
+	 * and the table refuses to replace a script which couldn't suspend with one which can.
+	 * @param script The script to check
+	 * @param scriptManager The script manager used to resolve calls
+	 * @return True if the script, or any script it could call, contains a "yield", "sleep" or "wait"
+	 */
+	public static boolean maySuspend (CompiledScript script, ScriptManager scriptManager) {
+		ScriptTable table = scriptManager.getScriptTable();
+		Set<CompiledScript> visited = new HashSet<>();
+		ArrayDeque<CompiledScript> pending = new ArrayDeque<>();
+		pending.add(script);
+		visited.add(script);
+		while (!pending.isEmpty()) {
+			CompiledScript current = pending.poll();
+			int[] opcodes = current.getBaseCode();
+			int[] operands = current.getOperands();
+			for (int pos=0;pos<opcodes.length;pos++) {
+				if (opcodes[pos] == Opcodes.SLEEP || opcodes[pos] == Opcodes.WAIT_EVENT) {
+					return true;
+				} else if (opcodes[pos] == Opcodes.INVOKE_SCRIPT || opcodes[pos] == Opcodes.TAIL_CALL) {
+					CompiledScript callee = table != null ? table.get(operands[pos]) : scriptManager.getById(operands[pos]);
+					if (callee != null && visited.add(callee)) {
+						pending.add(callee);
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	public synchronized long getCurrentTick () {
+		return currentTick;
+	}
+
+	/**
+	 * @return The number of scripts which have been started but haven't finished, including parked scripts
+	 */
+	public synchronized int getLiveCount () {
+		return live;
+	}
+
+	/**
+	 * @return The number of scripts which are suspended and waiting for a tick or event
+	 */
+	public synchronized int getParkedCount () {
+		return parked;
+	}
+}
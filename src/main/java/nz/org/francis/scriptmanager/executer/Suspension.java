@@ -0,0 +1,25 @@
+package nz.org.francis.scriptmanager.executer;
+
+/**
+ * The reasons a script can suspend itself. The value the script suspended with is available from {@link Context#getSuspendValue()}.
+ * 
+ * @author Francis
+ */
+public enum Suspension {
+	/**
+	 * Waiting for a number of ticks to pass
+	 */
+	SLEEP,
+	/**
+	 * Waiting for an event to be fired
+	 */
+	EVENT,
+	/**
+	 * Ran out of its instruction budget (see {@link Context#setBudget(int)}), and is waiting for another turn
+	 */
+	PREEMPT,
+	/**
+	 * Waiting for an asynchronous api function to complete (see {@link Context#await(java.util.concurrent.CompletableFuture)})
+	 */
+	API_CALL;
+}
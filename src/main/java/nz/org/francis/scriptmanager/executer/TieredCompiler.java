@@ -0,0 +1,111 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+
+/**
+ * Promotes frequently run scripts from the interpreter to an optimised form. 
+ * The interpreter reports invocations and backward jumps to this class, and once a script passes either threshold 
+ * it is queued for compilation on a background thread. 
+ * <p>
+ * The optimised form is installed through {@link CompiledScript#setExecutable(Executable)}, which is a single volatile write. 
+ * Contexts already running the script keep interpreting it, and only pick up the new form on their next call into the script.
+ * 
+ * @author Francis
+ */
+public class TieredCompiler {
+	
+	public static final int DEFAULT_INVOCATION_THRESHOLD = 1000;
+	public static final int DEFAULT_BACK_EDGE_THRESHOLD = 10000;
+	
+	private final Optimiser optimiser;
+	private final int invocationThreshold;
+	private final int backEdgeThreshold;
+	private final ExecutorService compilerThread;
+	
+	public TieredCompiler (Optimiser optimiser) {
+		this(optimiser, DEFAULT_INVOCATION_THRESHOLD, DEFAULT_BACK_EDGE_THRESHOLD);
+	}
+	
+	/**
+	 * @param optimiser The compiler used to build the optimised form of hot scripts
+	 * @param invocationThreshold The number of interpreted invocations before a script is promoted
+	 * @param backEdgeThreshold The number of interpreted loop iterations before a script is promoted
+	 */
+	public TieredCompiler (Optimiser optimiser, int invocationThreshold, int backEdgeThreshold) {
+		if (invocationThreshold < 1 || backEdgeThreshold < 1) {
+			throw new IllegalArgumentException("Thresholds must be positive");
+		}
+		this.optimiser = optimiser;
+		this.invocationThreshold = invocationThreshold;
+		this.backEdgeThreshold = backEdgeThreshold;
+		this.compilerThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "script-compiler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	public int getInvocationThreshold () {
+		return invocationThreshold;
+	}
+	
+	public int getBackEdgeThreshold () {
+		return backEdgeThreshold;
+	}
+	
+	/**
+	 * Called by the interpreter each time it starts running a script
+	 */
+	public void countInvocation (CompiledScript script) {
+		if (script.countInvocation() == invocationThreshold) {
+			promote(script);
+		}
+	}
+	
+	/**
+	 * Called by the interpreter each time a script jumps backwards
+	 */
+	public void countBackEdge (CompiledScript script) {
+		if (script.countBackEdge() == backEdgeThreshold) {
+			promote(script);
+		}
+	}
+	
+	/**
+	 * Queues the script for compilation, unless it has already been queued
+	 * @param script The script to promote
+	 */
+	public void promote (final CompiledScript script) {
+		if (!script.requestPromotion()) {
+			return;
+		}
+		compilerThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				Executable executable;
+				try {
+					executable = optimiser.compile(script);
+				} catch (RuntimeException ex) {
+					//The script stays interpreted. It won't be queued again, as the request flag stays set.
+					return;
+				}
+				if (executable != null) {
+					script.setExecutable(executable);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Stops the compiler thread. Scripts which are already queued are still compiled.
+	 */
+	public void shutdown () {
+		compilerThread.shutdown();
+	}
+}
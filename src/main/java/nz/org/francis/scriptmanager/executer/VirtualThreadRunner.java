@@ -0,0 +1,183 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+
+/**
+ * Runs each script invocation on its own thread, so scripts which call blocking api functions (such as database lookups or file reads)
+ * only hold up their own thread rather than a shared worker.
+ * <p>
+ * The threads are virtual threads when the runtime supports them (Java 21 onwards), which only tie up a carrier thread while they're running,
+ * so thousands of scripts can be blocked in api functions at once. On older runtimes a new platform thread is started for each invocation instead.
+ * <p>
+ * The number of scripts running at once is limited, and {@link #submit(CompiledScript, Object...)} waits for a running script to finish once the limit is reached.
+ * {@link #shutdown()} stops new scripts from being submitted, and {@link #awaitTermination(long, TimeUnit)} waits for the scripts already submitted to finish.
+ * <p>
+ * Scripts run this way can't suspend themselves, as each one holds its thread until it returns. All methods may be called from any thread.
+ *
+ * @author Francis
+ */
+public class VirtualThreadRunner {
+
+	private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+	private final Executer executer;
+	private final ThreadFactory threadFactory;
+	private final int maxConcurrent;
+	private final Semaphore permits;
+
+	private volatile boolean shutdown;
+
+	/**
+	 * Creates a runner which uses virtual threads if they're available, or platform threads otherwise
+	 * @param executer The executer used to run the scripts
+	 * @param maxConcurrent The maximum number of scripts which can run at once
+	 */
+	public VirtualThreadRunner (Executer executer, int maxConcurrent) {
+		this(executer, maxConcurrent, VIRTUAL_THREADS != null ? VIRTUAL_THREADS : new PlatformThreadFactory());
+	}
+
+	/**
+	 * @param executer The executer used to run the scripts
+	 * @param maxConcurrent The maximum number of scripts which can run at once
+	 * @param threadFactory The factory which creates the thread for each invocation
+	 */
+	public VirtualThreadRunner (Executer executer, int maxConcurrent, ThreadFactory threadFactory) {
+		if (maxConcurrent < 1) {
+			throw new IllegalArgumentException("The concurrency limit must be at least 1: "+maxConcurrent);
+		}
+		this.executer = executer;
+		this.threadFactory = threadFactory;
+		this.maxConcurrent = maxConcurrent;
+		this.permits = new Semaphore(maxConcurrent);
+	}
+
+	/**
+	 * @return True if the runtime supports virtual threads, so runners created without a thread factory use them
+	 */
+	public static boolean virtualThreadsAvailable () {
+		return VIRTUAL_THREADS != null;
+	}
+
+	/**
+	 * Finds the virtual thread factory through reflection, as it isn't available on every runtime this library supports
+	 * @return The factory, or null if virtual threads aren't available
+	 */
+	private static ThreadFactory virtualThreadFactory () {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			Method name = builderType.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, "script-", 0L);
+			return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			return null;//Not supported, or still a preview feature
+		}
+	}
+
+	/**
+	 * Creates daemon threads, for runtimes without virtual threads
+	 */
+	private static class PlatformThreadFactory implements ThreadFactory {
+
+		private final AtomicLong count = new AtomicLong();
+
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "script-"+count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Starts running a script on a new thread, waiting first if the concurrency limit has been reached
+	 * @param script The script to run
+	 * @param args The arguments for the script, as accepted by {@link Context#setArguments(Object...)}
+	 * @return The script's return values (see {@link Context#takeReturnValues()}), available once it has finished
+	 * @throws RejectedExecutionException If the runner has been shut down
+	 * @throws InterruptedException If the current thread is interrupted while waiting for a running script to finish
+	 */
+	public Future<Object[]> submit (CompiledScript script, Object... args) throws InterruptedException {
+		final Context context = new Context(script);
+		context.setArguments(args);
+		permits.acquire();
+		if (shutdown) {
+			permits.release();
+			throw new RejectedExecutionException("The runner has been shut down");
+		}
+		final FutureTask<Object[]> result = new FutureTask<>(new Callable<Object[]>() {
+			@Override
+			public Object[] call() {
+				executer.executeAndWait(context);
+				if (context.isSuspended()) {
+					throw new IllegalStateException(context.getScript().getName()+" suspended itself, so it must be run by a scheduler");
+				}
+				return context.takeReturnValues();
+			}
+		});
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					result.run();
+				} finally {
+					permits.release();
+				}
+			}
+		};
+		try {
+			threadFactory.newThread(task).start();
+		} catch (RuntimeException | Error ex) {
+			permits.release();
+			throw ex;
+		}
+		return result;
+	}
+
+	/**
+	 * Stops new scripts from being submitted. Scripts which have already been submitted keep running.
+	 */
+	public void shutdown () {
+		shutdown = true;
+	}
+
+	public boolean isShutdown () {
+		return shutdown;
+	}
+
+	/**
+	 * Waits for every submitted script to finish, after the runner has been shut down
+	 * @param timeout The longest time to wait
+	 * @param unit The unit of the timeout
+	 * @return True if every script finished, false if the timeout passed first
+	 * @throws IllegalStateException If the runner hasn't been shut down, as more scripts could still be submitted
+	 * @throws InterruptedException If the current thread is interrupted while waiting
+	 */
+	public boolean awaitTermination (long timeout, TimeUnit unit) throws InterruptedException {
+		if (!shutdown) {
+			throw new IllegalStateException("The runner must be shut down first");
+		}
+		//Every running script holds a permit, so once all of them are free nothing is running
+		if (!permits.tryAcquire(maxConcurrent, timeout, unit)) {
+			return false;
+		}
+		permits.release(maxConcurrent);
+		return true;
+	}
+
+	/**
+	 * @return The number of scripts which are currently running
+	 */
+	public int getRunningCount () {
+		return maxConcurrent - permits.availablePermits();
+	}
+}
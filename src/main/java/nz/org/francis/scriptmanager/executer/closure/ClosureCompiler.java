@@ -0,0 +1,513 @@
+package nz.org.francis.scriptmanager.executer.closure;
+
+import java.util.ArrayList;
+import java.util.List;
+import nz.org.francis.scriptmanager.ApiFunction;
+import nz.org.francis.scriptmanager.ApiHandler;
+import nz.org.francis.scriptmanager.ApiRegistry;
+import nz.org.francis.scriptmanager.EntityVariables;
+import nz.org.francis.scriptmanager.GlobalVariables;
+import nz.org.francis.scriptmanager.ScriptManager;
+import nz.org.francis.scriptmanager.ScriptMath;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.Opcodes;
+import nz.org.francis.scriptmanager.executer.Context;
+import nz.org.francis.scriptmanager.executer.Executable;
+import nz.org.francis.scriptmanager.executer.Optimiser;
+import nz.org.francis.scriptmanager.executer.ScriptScheduler;
+
+/**
+ * Translates a {@link CompiledScript} into a tree of pre-resolved nodes.
+ * This is much cheaper to build than a JVM class, but still avoids the interpreter's per-instruction switch and operand lookups.
+ * <p>
+ * Integer instructions are gathered into expression trees, so "$total = $total + $i * $i" becomes a single step which reads the locals directly,
+ * rather than five pushes and pops on the context's int stack.
+ * Values are only written to the int stack when they have to be: at jump targets, and before calls, jumps and returns.
+ * The object stack is used as it is by the interpreter.
+ *
+ * @author Francis
+ */
+public class ClosureCompiler implements Optimiser {
+
+	private static final IntNode POP = new IntNode() {
+		@Override
+		int eval(Context context) {
+			return context.getInt();
+		}
+	};
+
+	private static final int END = Integer.MAX_VALUE;
+
+	private final ScriptManager scriptManager;
+
+	public ClosureCompiler (ScriptManager scriptManager) {
+		this.scriptManager = scriptManager;
+	}
+
+	/**
+	 * Builds the closure tree for the script
+	 * @param script The script to compile
+	 * @return The compiled script, or null if the script contains instructions which can't be compiled
+	 */
+	@Override
+	public Executable compile (CompiledScript script) {
+		int[] code = script.getBaseCode();
+		int[] operands = script.getOperands();
+		Object[] constantPool = script.getConstantPool();
+		int length = code.length;
+		if (ScriptScheduler.maySuspend(script, scriptManager)) {
+			return null;//Suspending needs every frame to be interpreted
+		}
+		final GlobalVariables globals = scriptManager.getGlobalVariables();
+		final EntityVariables entities = scriptManager.getEntityVariables();
+
+		boolean[] jumpTargets = new boolean[length+1];
+		for (int pos=0;pos<length;pos++) {
+			if (isJump(code[pos])) {
+				int target = pos + 1 + operands[pos];
+				if (target < 0 || target > length) {
+					return null;
+				}
+				jumpTargets[target] = true;
+			}
+		}
+
+		List<Step> steps = new ArrayList<>();
+		List<Step> jumps = new ArrayList<>();
+		List<IntNode> pending = new ArrayList<>();
+		int[] stepIndex = new int[length+1];
+		for (int pos=0;pos<length;pos++) {
+			if (jumpTargets[pos]) {
+				flush(pending, steps);
+			}
+			stepIndex[pos] = steps.size();
+			final int operand = operands[pos];
+			final IntNode value, left;
+			Step jump;
+			switch (code[pos]) {
+				case Opcodes.LOAD_INT_CONST:
+					pending.add(constant(operand));
+					break;
+				case Opcodes.LOAD_INT_LOCAL:
+					pending.add(local(operand));
+					break;
+				case Opcodes.ADD:
+				case Opcodes.SUBTRACT:
+				case Opcodes.MULTIPLY:
+				case Opcodes.DIVIDE:
+				case Opcodes.POWER:
+				case Opcodes.MODULO:
+					value = pop(pending);
+					left = pop(pending);
+					pending.add(arithmetic(code[pos], left, value));
+					break;
+				case Opcodes.SHIFT_LEFT:
+					value = pop(pending);
+					pending.add(new IntNode() {
+						@Override
+						int eval(Context context) {
+							return value.eval(context) << operand;
+						}
+					});
+					break;
+				case Opcodes.ASSIGN_LOCAL_INT:
+					value = pop(pending);
+					flush(pending, steps);
+					steps.add(new Step() {
+						@Override
+						int run(Context context, int next) {
+							context.setIntLocal(operand, value.eval(context));
+							return next;
+						}
+					});
+					break;
+				case Opcodes.DROP_INT:
+					value = pop(pending);
+					flush(pending, steps);
+					steps.add(new Step() {
+						@Override
+						int run(Context context, int next) {
+							value.eval(context);
+							return next;
+						}
+					});
+					break;
+				case Opcodes.LOAD_STR_CONST:
+					final Object constant = constantPool[operand];
+					steps.add(new Step() {
+						@Override
+						int run(Context context, int next) {
+							context.putObj(constant);
+							return next;
+						}
+					});
+					break;
+				case Opcodes.LOAD_LOCAL:
+					steps.add(new Step() {
+						@Override
+						int run(Context context, int next) {
+							context.putObj(context.getObjLocal(operand));
+							return next;
+						}
+					});
+					break;
+				case Opcodes.ASSIGN_LOCAL:
+					steps.add(new Step() {
+						@Override
+						int run(Context context, int next) {
+							context.setObjLocal(operand, context.getObj());
+							return next;
+						}
+					});
+					break;
+				case Opcodes.DROP_OBJ:
+					steps.add(new Step() {
+						@Override
+						int run(Context context, int next) {
+							context.getObj();
+							return next;
+						}
+					});
+					break;
+				case Opcodes.INVOKE_API:
+					flush(pending, steps);
+					steps.add(apiCall(operand));
+					break;
+				case Opcodes.INVOKE_SCRIPT:
+				case Opcodes.TAIL_CALL://Compiled calls go through the Java stack, so a tail call is an ordinary call followed by the return
+					flush(pending, steps);
+					steps.add(new Step() {
+						@Override
+						int run(Context context, int next) {
+							context.getExecuter().invokeScript(context, operand);
+							return next;
+						}
+					});
+					break;
+				case Opcodes.RETURN:
+					flush(pending, steps);
+					steps.add(new Step() {
+						@Override
+						int run(Context context, int next) {
+							return END;
+						}
+					});
+					break;
+				case Opcodes.LOAD_INT_GLOBAL:
+					if (globals == null) {
+						return null;//Left to the interpreter, which reports it
+					}
+					pending.add(new IntNode() {
+						@Override
+						int eval(Context context) {
+							return globals.getInt(operand);
+						}
+					});
+					break;
+				case Opcodes.ASSIGN_GLOBAL_INT:
+					if (globals == null) {
+						return null;
+					}
+					value = pop(pending);
+					flush(pending, steps);
+					steps.add(new Step() {
+						@Override
+						int run(Context context, int next) {
+							globals.setInt(operand, value.eval(context));
+							return next;
+						}
+					});
+					break;
+				case Opcodes.LOAD_ENTITY_INT:
+					if (entities == null) {
+						return null;
+					}
+					pending.add(new IntNode() {
+						@Override
+						int eval(Context context) {
+							return entities.getInt(operand, context.getEntity());
+						}
+					});
+					break;
+				case Opcodes.ASSIGN_ENTITY_INT:
+					if (entities == null) {
+						return null;
+					}
+					value = pop(pending);
+					flush(pending, steps);
+					steps.add(new Step() {
+						@Override
+						int run(Context context, int next) {
+							entities.setInt(operand, context.getEntity(), value.eval(context));
+							return next;
+						}
+					});
+					break;
+				case Opcodes.LOAD_GLOBAL:
+					if (globals == null) {
+						return null;
+					}
+					steps.add(new Step() {
+						@Override
+						int run(Context context, int next) {
+							context.putObj(globals.getObj(operand));
+							return next;
+						}
+					});
+					break;
+				case Opcodes.ASSIGN_GLOBAL:
+					if (globals == null) {
+						return null;
+					}
+					steps.add(new Step() {
+						@Override
+						int run(Context context, int next) {
+							globals.setObj(operand, context.getObj());
+							return next;
+						}
+					});
+					break;
+				case Opcodes.JUMP:
+					flush(pending, steps);
+					jump = new Step() {
+						@Override
+						int run(Context context, int next) {
+							return target;
+						}
+					};
+					jump.target = pos + 1 + operand;
+					steps.add(jump);
+					jumps.add(jump);
+					break;
+				case Opcodes.JUMP_TRUE:
+				case Opcodes.JUMP_FALSE:
+					value = pop(pending);
+					flush(pending, steps);
+					jump = test(code[pos] == Opcodes.JUMP_TRUE ? 1 : 0, value);
+					jump.target = pos + 1 + operand;
+					steps.add(jump);
+					jumps.add(jump);
+					break;
+				case Opcodes.JUMP_EQ:
+				case Opcodes.JUMP_NT_EQ:
+				case Opcodes.JUMP_GT:
+				case Opcodes.JUMP_LT:
+				case Opcodes.JUMP_GT_EQ:
+				case Opcodes.JUMP_LT_EQ:
+					value = pop(pending);
+					left = pop(pending);
+					flush(pending, steps);
+					jump = compare(code[pos], left, value);
+					jump.target = pos + 1 + operand;
+					steps.add(jump);
+					jumps.add(jump);
+					break;
+				default:
+					return null;
+			}
+		}
+		flush(pending, steps);
+		stepIndex[length] = steps.size();
+		for (Step step : jumps) {
+			step.target = stepIndex[step.target];
+		}
+		return new ClosureScript(steps.toArray(new Step[steps.size()]));
+	}
+
+	private static boolean isJump (int opcode) {
+		return opcode >= Opcodes.JUMP && opcode <= Opcodes.JUMP_LT_EQ;
+	}
+
+	/**
+	 * Takes the top value off the pending expressions.
+	 * If there are none left, the value was pushed before the current block, so it's read from the context's int stack.
+	 */
+	private static IntNode pop (List<IntNode> pending) {
+		if (pending.isEmpty()) {
+			return POP;
+		}
+		return pending.remove(pending.size()-1);
+	}
+
+	/**
+	 * Writes the pending expressions to the context's int stack, bottom first.
+	 * Only the bottom expression can read from the int stack, so it's evaluated before anything is pushed.
+	 */
+	private static void flush (List<IntNode> pending, List<Step> steps) {
+		for (final IntNode node : pending) {
+			steps.add(new Step() {
+				@Override
+				int run(Context context, int next) {
+					context.putInt(node.eval(context));
+					return next;
+				}
+			});
+		}
+		pending.clear();
+	}
+
+	private static IntNode constant (final int value) {
+		return new IntNode() {
+			@Override
+			int eval(Context context) {
+				return value;
+			}
+		};
+	}
+
+	private static IntNode local (final int slot) {
+		return new IntNode() {
+			@Override
+			int eval(Context context) {
+				return context.getIntLocal(slot);
+			}
+		};
+	}
+
+	private static IntNode arithmetic (int opcode, final IntNode left, final IntNode right) {
+		switch (opcode) {
+			case Opcodes.ADD:
+				return new IntNode() {
+					@Override
+					int eval(Context context) {
+						int val2 = right.eval(context);
+						return left.eval(context) + val2;
+					}
+				};
+			case Opcodes.SUBTRACT:
+				return new IntNode() {
+					@Override
+					int eval(Context context) {
+						int val2 = right.eval(context);
+						return left.eval(context) - val2;
+					}
+				};
+			case Opcodes.MULTIPLY:
+				return new IntNode() {
+					@Override
+					int eval(Context context) {
+						int val2 = right.eval(context);
+						return left.eval(context) * val2;
+					}
+				};
+			case Opcodes.DIVIDE:
+				return new IntNode() {
+					@Override
+					int eval(Context context) {
+						int val2 = right.eval(context);
+						return left.eval(context) / val2;
+					}
+				};
+			case Opcodes.POWER:
+				return new IntNode() {
+					@Override
+					int eval(Context context) {
+						int val2 = right.eval(context);
+						return ScriptMath.power(left.eval(context), val2);
+					}
+				};
+			case Opcodes.MODULO:
+				return new IntNode() {
+					@Override
+					int eval(Context context) {
+						int val2 = right.eval(context);
+						return left.eval(context) % val2;
+					}
+				};
+			default:
+				throw new IllegalArgumentException("Not an arithmetic instruction: "+opcode);
+		}
+	}
+
+	private static Step test (final int expected, final IntNode value) {
+		return new Step() {
+			@Override
+			int run(Context context, int next) {
+				return value.eval(context) == expected ? target : next;
+			}
+		};
+	}
+
+	private static Step compare (int opcode, final IntNode left, final IntNode right) {
+		switch (opcode) {
+			case Opcodes.JUMP_EQ:
+				return new Step() {
+					@Override
+					int run(Context context, int next) {
+						int val2 = right.eval(context);
+						return left.eval(context) == val2 ? target : next;
+					}
+				};
+			case Opcodes.JUMP_NT_EQ:
+				return new Step() {
+					@Override
+					int run(Context context, int next) {
+						int val2 = right.eval(context);
+						return left.eval(context) != val2 ? target : next;
+					}
+				};
+			case Opcodes.JUMP_GT:
+				return new Step() {
+					@Override
+					int run(Context context, int next) {
+						int val2 = right.eval(context);
+						return left.eval(context) > val2 ? target : next;
+					}
+				};
+			case Opcodes.JUMP_LT:
+				return new Step() {
+					@Override
+					int run(Context context, int next) {
+						int val2 = right.eval(context);
+						return left.eval(context) < val2 ? target : next;
+					}
+				};
+			case Opcodes.JUMP_GT_EQ:
+				return new Step() {
+					@Override
+					int run(Context context, int next) {
+						int val2 = right.eval(context);
+						return left.eval(context) >= val2 ? target : next;
+					}
+				};
+			case Opcodes.JUMP_LT_EQ:
+				return new Step() {
+					@Override
+					int run(Context context, int next) {
+						int val2 = right.eval(context);
+						return left.eval(context) <= val2 ? target : next;
+					}
+				};
+			default:
+				throw new IllegalArgumentException("Not a comparison instruction: "+opcode);
+		}
+	}
+
+	private Step apiCall (final int id) {
+		final ApiRegistry registry = scriptManager.getApiRegistry();
+		final ApiFunction function = ApiRegistry.findFunction(scriptManager, id);
+		if (function == null) {
+			return new Step() {
+				@Override
+				int run(Context context, int next) {
+					throw new UnsupportedOperationException("Unsupported function: "+id);
+				}
+			};
+		}
+		return new Step() {
+			@Override
+			int run(Context context, int next) {
+				ApiHandler handler = registry == null ? null : registry.getHandler(id);//Looked up each time, as handlers can be replaced
+				if (handler != null) {
+					handler.invoke(context);
+				} else {
+					scriptManager.invokeApiFunction(function, context);
+				}
+				if (context.getPendingResult() != null) {
+					context.getExecuter().completeApiCall(context, function);
+				}
+				return next;
+			}
+		};
+	}
+}
@@ -0,0 +1,27 @@
+package nz.org.francis.scriptmanager.executer.closure;
+
+import nz.org.francis.scriptmanager.executer.Context;
+import nz.org.francis.scriptmanager.executer.Executable;
+
+/**
+ * The closure-compiled form of a script
+ * 
+ * @author Francis
+ */
+final class ClosureScript implements Executable {
+	
+	private final Step[] steps;
+	
+	ClosureScript (Step[] steps) {
+		this.steps = steps;
+	}
+	
+	@Override
+	public void invoke(Context context) {
+		Step[] steps = this.steps;
+		int pos = 0;
+		while (pos < steps.length) {
+			pos = steps[pos].run(context, pos + 1);
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package nz.org.francis.scriptmanager.executer.closure;
+
+import nz.org.francis.scriptmanager.executer.Context;
+
+/**
+ * An integer expression in a closure-compiled script. 
+ * Binary nodes evaluate their right operand first, so any values they take from the context's int stack come off in the right order.
+ * 
+ * @author Francis
+ */
+abstract class IntNode {
+	
+	abstract int eval (Context context);
+}
@@ -0,0 +1,24 @@
+package nz.org.francis.scriptmanager.executer.closure;
+
+import nz.org.francis.scriptmanager.executer.Context;
+
+/**
+ * A single statement in a closure-compiled script
+ * 
+ * @author Francis
+ */
+abstract class Step {
+	
+	/**
+	 * The step to continue from when a jump is taken, filled in once every step has been built
+	 */
+	int target;
+	
+	/**
+	 * Runs the step
+	 * @param context The context of the script
+	 * @param next The index of the following step
+	 * @return The index of the step to run next
+	 */
+	abstract int run (Context context, int next);
+}
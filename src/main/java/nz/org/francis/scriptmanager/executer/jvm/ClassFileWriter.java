@@ -0,0 +1,242 @@
+package nz.org.francis.scriptmanager.executer.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a minimal Java class file. Only the features needed for generated classes are supported:
+ * a constant pool, implemented interfaces, fields without attributes and methods with a code attribute.
+ * <p>
+ * Classes are written as version 49 (Java 5), so the methods don't need a StackMapTable and are checked by the type-inferencing verifier.
+ *
+ * @author Francis
+ */
+public class ClassFileWriter {
+
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_STATIC = 0x0008;
+	public static final int ACC_FINAL = 0x0010;
+	public static final int ACC_SUPER = 0x0020;
+
+	private static final int MAJOR_VERSION = 49;
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_STRING = 8;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_INTERFACE_METHODREF = 11;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+	private static class Method {
+		int access;
+		int name;
+		int descriptor;
+		byte[] code;
+		int maxStack;
+		int maxLocals;
+	}
+
+	private static class Field {
+		int access;
+		int name;
+		int descriptor;
+	}
+
+	private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(poolBytes);
+	private final Map<String, Integer> poolLookup = new HashMap<>();
+	private int poolCount = 1;
+
+	private final int access;
+	private final int thisClass;
+	private final int superClass;
+	private final int[] interfaces;
+	private final List<Field> fields = new ArrayList<>();
+	private final List<Method> methods = new ArrayList<>();
+
+	/**
+	 * @param access The access flags for the class
+	 * @param name The internal name of the class (eg "java/lang/Object")
+	 * @param superName The internal name of the super class
+	 * @param interfaceNames The internal names of the interfaces implemented by the class
+	 */
+	public ClassFileWriter (int access, String name, String superName, String... interfaceNames) {
+		this.access = access;
+		this.thisClass = classRef(name);
+		this.superClass = classRef(superName);
+		this.interfaces = new int[interfaceNames.length];
+		for (int i=0;i<interfaceNames.length;i++) {
+			interfaces[i] = classRef(interfaceNames[i]);
+		}
+	}
+
+	private int addEntry (String key, int tag, int... values) {
+		Integer index = poolLookup.get(key);
+		if (index != null) {
+			return index;
+		}
+		try {
+			pool.writeByte(tag);
+			for (int value : values) {
+				pool.writeShort(value);
+			}
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);//Writing to a byte array can't fail
+		}
+		poolLookup.put(key, poolCount);
+		return poolCount++;
+	}
+
+	public int utf8 (String value) {
+		String key = "U"+value;
+		Integer index = poolLookup.get(key);
+		if (index != null) {
+			return index;
+		}
+		try {
+			pool.writeByte(CONSTANT_UTF8);
+			pool.writeUTF(value);
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("Constant is too long: "+value.length()+" characters", ex);
+		}
+		poolLookup.put(key, poolCount);
+		return poolCount++;
+	}
+
+	public int integer (int value) {
+		String key = "I"+value;
+		Integer index = poolLookup.get(key);
+		if (index != null) {
+			return index;
+		}
+		try {
+			pool.writeByte(CONSTANT_INTEGER);
+			pool.writeInt(value);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		poolLookup.put(key, poolCount);
+		return poolCount++;
+	}
+
+	public int string (String value) {
+		int utf8 = utf8(value);
+		return addEntry("S"+value, CONSTANT_STRING, utf8);
+	}
+
+	public int classRef (String internalName) {
+		int utf8 = utf8(internalName);
+		return addEntry("C"+internalName, CONSTANT_CLASS, utf8);
+	}
+
+	private int nameAndType (String name, String descriptor) {
+		int nameIndex = utf8(name);
+		int descIndex = utf8(descriptor);
+		return addEntry("N"+name+":"+descriptor, CONSTANT_NAME_AND_TYPE, nameIndex, descIndex);
+	}
+
+	public int fieldRef (String owner, String name, String descriptor) {
+		int classIndex = classRef(owner);
+		int natIndex = nameAndType(name, descriptor);
+		return addEntry("F"+owner+"."+name+":"+descriptor, CONSTANT_FIELDREF, classIndex, natIndex);
+	}
+
+	public int methodRef (String owner, String name, String descriptor) {
+		int classIndex = classRef(owner);
+		int natIndex = nameAndType(name, descriptor);
+		return addEntry("M"+owner+"."+name+descriptor, CONSTANT_METHODREF, classIndex, natIndex);
+	}
+
+	public int interfaceMethodRef (String owner, String name, String descriptor) {
+		int classIndex = classRef(owner);
+		int natIndex = nameAndType(name, descriptor);
+		return addEntry("IM"+owner+"."+name+descriptor, CONSTANT_INTERFACE_METHODREF, classIndex, natIndex);
+	}
+
+	/**
+	 * Adds a field to the class
+	 * @param access The access flags for the field
+	 * @param name The name of the field
+	 * @param descriptor The field descriptor (eg "I")
+	 */
+	public void addField (int access, String name, String descriptor) {
+		Field field = new Field();
+		field.access = access;
+		field.name = utf8(name);
+		field.descriptor = utf8(descriptor);
+		fields.add(field);
+	}
+
+	/**
+	 * Adds a method to the class
+	 * @param access The access flags for the method
+	 * @param name The name of the method
+	 * @param descriptor The method descriptor (eg "(I)V")
+	 * @param code The bytecode for the method body
+	 * @param maxStack The maximum depth of the operand stack
+	 * @param maxLocals The number of local variable slots used by the method, including "this" and the parameters
+	 */
+	public void addMethod (int access, String name, String descriptor, byte[] code, int maxStack, int maxLocals) {
+		Method method = new Method();
+		method.access = access;
+		method.name = utf8(name);
+		method.descriptor = utf8(descriptor);
+		method.code = code;
+		method.maxStack = maxStack;
+		method.maxLocals = maxLocals;
+		methods.add(method);
+	}
+
+	public byte[] toByteArray () {
+		int codeAttribute = utf8("Code");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);//Minor version
+			out.writeShort(MAJOR_VERSION);
+			out.writeShort(poolCount);
+			pool.flush();
+			poolBytes.writeTo(out);
+			out.writeShort(access);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(interfaces.length);
+			for (int iface : interfaces) {
+				out.writeShort(iface);
+			}
+			out.writeShort(fields.size());
+			for (Field field : fields) {
+				out.writeShort(field.access);
+				out.writeShort(field.name);
+				out.writeShort(field.descriptor);
+				out.writeShort(0);//Attributes
+			}
+			out.writeShort(methods.size());
+			for (Method method : methods) {
+				out.writeShort(method.access);
+				out.writeShort(method.name);
+				out.writeShort(method.descriptor);
+				out.writeShort(1);//Attributes: just the code
+				out.writeShort(codeAttribute);
+				out.writeInt(12 + method.code.length);
+				out.writeShort(method.maxStack);
+				out.writeShort(method.maxLocals);
+				out.writeInt(method.code.length);
+				out.write(method.code);
+				out.writeShort(0);//Exception table
+				out.writeShort(0);//Code attributes
+			}
+			out.writeShort(0);//Class attributes
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		return bytes.toByteArray();
+	}
+}
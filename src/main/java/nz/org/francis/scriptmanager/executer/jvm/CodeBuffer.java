@@ -0,0 +1,196 @@
+package nz.org.francis.scriptmanager.executer.jvm;
+
+import java.util.Arrays;
+
+/**
+ * Builds the bytecode for a single method. Branches are written against labels, which are resolved by {@link #toByteArray()}.
+ *
+ * @author Francis
+ */
+public class CodeBuffer {
+
+	public static final int ACONST_NULL = 0x01;
+	public static final int ICONST_0 = 0x03;
+	public static final int BIPUSH = 0x10;
+	public static final int SIPUSH = 0x11;
+	public static final int LDC = 0x12;
+	public static final int LDC_W = 0x13;
+	public static final int ILOAD = 0x15;
+	public static final int ALOAD = 0x19;
+	public static final int ISTORE = 0x36;
+	public static final int ASTORE = 0x3a;
+	public static final int POP = 0x57;
+	public static final int IADD = 0x60;
+	public static final int ISUB = 0x64;
+	public static final int IMUL = 0x68;
+	public static final int IDIV = 0x6c;
+	public static final int IREM = 0x70;
+	public static final int ISHL = 0x78;
+	public static final int IFEQ = 0x99;
+	public static final int IFNE = 0x9a;
+	public static final int IF_ICMPEQ = 0x9f;
+	public static final int IF_ICMPNE = 0xa0;
+	public static final int IF_ICMPLT = 0xa1;
+	public static final int IF_ICMPGE = 0xa2;
+	public static final int IF_ICMPGT = 0xa3;
+	public static final int IF_ICMPLE = 0xa4;
+	public static final int GOTO = 0xa7;
+	public static final int RETURN = 0xb1;
+	public static final int GETSTATIC = 0xb2;
+	public static final int PUTSTATIC = 0xb3;
+	public static final int INVOKEVIRTUAL = 0xb6;
+	public static final int INVOKESPECIAL = 0xb7;
+	public static final int INVOKESTATIC = 0xb8;
+	public static final int CHECKCAST = 0xc0;
+	public static final int WIDE = 0xc4;
+
+	private final ClassFileWriter classFile;
+
+	private byte[] code = new byte[256];
+	private int length;
+
+	private int[] labels = new int[16];
+	private int labelCount;
+
+	private int[] fixups = new int[16];//Pairs of (branch instruction offset, label)
+	private int fixupCount;
+
+	public CodeBuffer (ClassFileWriter classFile) {
+		this.classFile = classFile;
+	}
+
+	public int length () {
+		return length;
+	}
+
+	private void put (int value) {
+		if (length == code.length) {
+			code = Arrays.copyOf(code, length * 2);
+		}
+		code[length++] = (byte) value;
+	}
+
+	private void putShort (int value) {
+		put(value >> 8);
+		put(value);
+	}
+
+	public void op (int opcode) {
+		put(opcode);
+	}
+
+	/**
+	 * Writes an instruction which takes a local variable index, using the wide form if needed
+	 */
+	public void local (int opcode, int index) {
+		if (index < 256) {
+			put(opcode);
+			put(index);
+		} else {
+			put(WIDE);
+			put(opcode);
+			putShort(index);
+		}
+	}
+
+	public void pushInt (int value) {
+		if (value >= -1 && value <= 5) {
+			put(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			put(BIPUSH);
+			put(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			put(SIPUSH);
+			putShort(value);
+		} else {
+			loadConstant(classFile.integer(value));
+		}
+	}
+
+	public void pushString (String value) {
+		loadConstant(classFile.string(value));
+	}
+
+	public void pushClass (String internalName) {
+		loadConstant(classFile.classRef(internalName));
+	}
+
+	private void loadConstant (int index) {
+		if (index < 256) {
+			put(LDC);
+			put(index);
+		} else {
+			put(LDC_W);
+			putShort(index);
+		}
+	}
+
+	public void invoke (int opcode, String owner, String name, String descriptor) {
+		put(opcode);
+		putShort(classFile.methodRef(owner, name, descriptor));
+	}
+
+	public void field (int opcode, String owner, String name, String descriptor) {
+		put(opcode);
+		putShort(classFile.fieldRef(owner, name, descriptor));
+	}
+
+	public void type (int opcode, String internalName) {
+		put(opcode);
+		putShort(classFile.classRef(internalName));
+	}
+
+	/**
+	 * Creates a new label, which must be placed with {@link #mark(int)} before the code is finished
+	 * @return The label
+	 */
+	public int newLabel () {
+		if (labelCount == labels.length) {
+			labels = Arrays.copyOf(labels, labelCount * 2);
+		}
+		labels[labelCount] = -1;
+		return labelCount++;
+	}
+
+	/**
+	 * Places the label at the current position in the code
+	 */
+	public void mark (int label) {
+		labels[label] = length;
+	}
+
+	/**
+	 * Writes a branch instruction to the provided label
+	 */
+	public void branch (int opcode, int label) {
+		if (fixupCount + 2 > fixups.length) {
+			fixups = Arrays.copyOf(fixups, fixups.length * 2);
+		}
+		fixups[fixupCount++] = length;
+		fixups[fixupCount++] = label;
+		put(opcode);
+		putShort(0);
+	}
+
+	/**
+	 * Resolves the branches and returns the finished code
+	 * @return The bytecode for the method
+	 * @throws IllegalStateException If a branch target is unplaced, or too far away for a 16-bit offset
+	 */
+	public byte[] toByteArray () {
+		for (int i=0;i<fixupCount;i+=2) {
+			int from = fixups[i];
+			int target = labels[fixups[i+1]];
+			if (target < 0) {
+				throw new IllegalStateException("Label "+fixups[i+1]+" was never placed");
+			}
+			int offset = target - from;
+			if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+				throw new IllegalStateException("Branch offset out of range: "+offset);
+			}
+			code[from+1] = (byte) (offset >> 8);
+			code[from+2] = (byte) offset;
+		}
+		return Arrays.copyOf(code, length);
+	}
+}
@@ -0,0 +1,468 @@
+package nz.org.francis.scriptmanager.executer.jvm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import nz.org.francis.scriptmanager.ApiFunction;
+import nz.org.francis.scriptmanager.ApiRegistry;
+import nz.org.francis.scriptmanager.ScriptDataType;
+import nz.org.francis.scriptmanager.ScriptManager;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.Opcodes;
+import nz.org.francis.scriptmanager.executer.Executable;
+import nz.org.francis.scriptmanager.executer.Optimiser;
+import nz.org.francis.scriptmanager.executer.ScriptScheduler;
+
+/**
+ * Translates a {@link CompiledScript} into a JVM class, so the script can be optimised by the JIT rather than interpreted.
+ * <p>
+ * The script's local variables become JVM local variables and the int stack becomes the JVM operand stack,
+ * so arithmetic, comparisons and jumps map directly onto JVM instructions.
+ * The object stack stays in the {@link nz.org.francis.scriptmanager.executer.Context}, as do the arguments and return values
+ * for calls to other scripts and api functions, which are made through the {@link nz.org.francis.scriptmanager.executer.Executer} running the context.
+ * <p>
+ * Scripts which use unsupported instructions, or whose int stack height can't be determined at every instruction, are not compiled.
+ *
+ * @author Francis
+ */
+public class JvmCompiler implements Optimiser {
+
+	private static final Logger logger = Logger.getLogger(JvmCompiler.class.getName());
+
+	private static final String CONTEXT = "nz/org/francis/scriptmanager/executer/Context";
+	private static final String EXECUTER = "nz/org/francis/scriptmanager/executer/Executer";
+	private static final String EXECUTABLE = "nz/org/francis/scriptmanager/executer/Executable";
+	private static final String SCRIPT_MATH = "nz/org/francis/scriptmanager/ScriptMath";
+	private static final String CLASS_PREFIX = "nz/org/francis/scriptmanager/executer/jvm/Script";
+
+	private static final int MAX_CODE_LENGTH = 65535;
+
+	private static final int THIS_SLOT = 0;
+	private static final int CONTEXT_SLOT = 1;
+	private static final int FIRST_LOCAL_SLOT = 2;
+
+	private static final AtomicInteger classCounter = new AtomicInteger();
+
+	private final ScriptManager scriptManager;
+
+	public JvmCompiler (ScriptManager scriptManager) {
+		this.scriptManager = scriptManager;
+	}
+
+	/**
+	 * Compiles the script into a JVM class and loads it
+	 * @param script The script to compile
+	 * @return The compiled script, or null if the script can't be compiled
+	 */
+	@Override
+	public Executable compile (CompiledScript script) {
+		String name = CLASS_PREFIX+script.getId()+"_"+classCounter.incrementAndGet();
+		byte[] classFile = generate(script, name);
+		if (classFile == null) {
+			return null;
+		}
+		ScriptClassLoader loader = new ScriptClassLoader(JvmCompiler.class.getClassLoader());
+		try {
+			Class<?> type = loader.define(name.replace('/', '.'), classFile);
+			return (Executable) type.getConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError ex) {
+			logger.log(Level.WARNING, "Failed to load compiled class for script "+script.getName(), ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Generates the class file for the script
+	 * @param script The script to compile
+	 * @param name The internal name of the class to generate
+	 * @return The class file, or null if the script can't be compiled
+	 */
+	protected byte[] generate (CompiledScript script, String name) {
+		int[] code = script.getBaseCode();
+		int[] operands = script.getOperands();
+		int length = code.length;
+
+		int[] intArgs = new int[length];
+		int[] intReturns = new int[length];
+		if (!resolveCalls(code, operands, intArgs, intReturns) || ScriptScheduler.maySuspend(script, scriptManager)) {
+			return null;
+		}
+		int[] heights = computeStackHeights(code, operands, intArgs, intReturns);
+		if (heights == null) {
+			return null;
+		}
+
+		int intLocalCount = script.getIntLocalCount();
+		int objLocalCount = script.getObjLocalCount();
+		int objSlot = FIRST_LOCAL_SLOT + intLocalCount;
+		int tempSlot = objSlot + objLocalCount;
+		int maxHeight = 0;
+		int tempCount = 1;
+		for (int pos=0;pos<length;pos++) {
+			maxHeight = Math.max(maxHeight, heights[pos]);
+			tempCount = Math.max(tempCount, Math.max(intArgs[pos], intReturns[pos]));
+			if (code[pos] == Opcodes.RETURN) {
+				tempCount = Math.max(tempCount, heights[pos]);
+			}
+		}
+
+		ClassFileWriter classFile = new ClassFileWriter(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_FINAL | ClassFileWriter.ACC_SUPER,
+				name, "java/lang/Object", EXECUTABLE);
+
+		CodeBuffer init = new CodeBuffer(classFile);
+		init.local(CodeBuffer.ALOAD, THIS_SLOT);
+		init.invoke(CodeBuffer.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+		init.op(CodeBuffer.RETURN);
+		classFile.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", init.toByteArray(), 1, 1);
+
+		CodeBuffer body = new CodeBuffer(classFile);
+		writePrologue(body, script, objSlot);
+
+		int[] labels = new int[length+1];
+		for (int pos=0;pos<=length;pos++) {
+			labels[pos] = body.newLabel();
+		}
+		Object[] constantPool = script.getConstantPool();
+		for (int pos=0;pos<length;pos++) {
+			body.mark(labels[pos]);
+			if (heights[pos] < 0) {
+				continue;//Unreachable
+			}
+			int operand = operands[pos];
+			switch (code[pos]) {
+				case Opcodes.LOAD_INT_CONST:
+					body.pushInt(operand);
+					break;
+				case Opcodes.LOAD_STR_CONST:
+					body.local(CodeBuffer.ALOAD, CONTEXT_SLOT);
+					body.pushString((String) constantPool[operand]);
+					body.invoke(CodeBuffer.INVOKEVIRTUAL, CONTEXT, "putObj", "(Ljava/lang/Object;)V");
+					break;
+				case Opcodes.LOAD_LOCAL:
+					body.local(CodeBuffer.ALOAD, CONTEXT_SLOT);
+					body.local(CodeBuffer.ALOAD, objSlot + operand);
+					body.invoke(CodeBuffer.INVOKEVIRTUAL, CONTEXT, "putObj", "(Ljava/lang/Object;)V");
+					break;
+				case Opcodes.LOAD_INT_LOCAL:
+					body.local(CodeBuffer.ILOAD, FIRST_LOCAL_SLOT + operand);
+					break;
+				case Opcodes.ASSIGN_LOCAL:
+					body.local(CodeBuffer.ALOAD, CONTEXT_SLOT);
+					body.invoke(CodeBuffer.INVOKEVIRTUAL, CONTEXT, "getObj", "()Ljava/lang/Object;");
+					body.local(CodeBuffer.ASTORE, objSlot + operand);
+					break;
+				case Opcodes.ASSIGN_LOCAL_INT:
+					body.local(CodeBuffer.ISTORE, FIRST_LOCAL_SLOT + operand);
+					break;
+				case Opcodes.DROP_OBJ:
+					body.local(CodeBuffer.ALOAD, CONTEXT_SLOT);
+					body.invoke(CodeBuffer.INVOKEVIRTUAL, CONTEXT, "getObj", "()Ljava/lang/Object;");
+					body.op(CodeBuffer.POP);
+					break;
+				case Opcodes.DROP_INT:
+					body.op(CodeBuffer.POP);
+					break;
+				case Opcodes.INVOKE_API:
+					spillInts(body, intArgs[pos], tempSlot);
+					body.local(CodeBuffer.ALOAD, CONTEXT_SLOT);
+					body.invoke(CodeBuffer.INVOKEVIRTUAL, CONTEXT, "getExecuter", "()L"+EXECUTER+";");
+					body.local(CodeBuffer.ALOAD, CONTEXT_SLOT);
+					body.pushInt(operand);
+					body.invoke(CodeBuffer.INVOKEVIRTUAL, EXECUTER, "invokeApi", "(L"+CONTEXT+";I)V");
+					unspillInts(body, intReturns[pos], tempSlot);
+					break;
+				case Opcodes.INVOKE_SCRIPT:
+				case Opcodes.TAIL_CALL://Made as an ordinary call, followed by the return
+					spillInts(body, intArgs[pos], tempSlot);
+					body.local(CodeBuffer.ALOAD, CONTEXT_SLOT);
+					body.invoke(CodeBuffer.INVOKEVIRTUAL, CONTEXT, "getExecuter", "()L"+EXECUTER+";");
+					body.local(CodeBuffer.ALOAD, CONTEXT_SLOT);
+					body.pushInt(operand);
+					body.invoke(CodeBuffer.INVOKEVIRTUAL, EXECUTER, "invokeScript", "(L"+CONTEXT+";I)V");
+					unspillInts(body, intReturns[pos], tempSlot);
+					break;
+				case Opcodes.RETURN:
+					spillInts(body, heights[pos], tempSlot);
+					body.op(CodeBuffer.RETURN);
+					break;
+				case Opcodes.JUMP:
+					body.branch(CodeBuffer.GOTO, labels[pos+1+operand]);
+					break;
+				case Opcodes.JUMP_TRUE:
+					body.pushInt(1);
+					body.branch(CodeBuffer.IF_ICMPEQ, labels[pos+1+operand]);
+					break;
+				case Opcodes.JUMP_FALSE:
+					body.branch(CodeBuffer.IFEQ, labels[pos+1+operand]);
+					break;
+				case Opcodes.JUMP_EQ:
+					body.branch(CodeBuffer.IF_ICMPEQ, labels[pos+1+operand]);
+					break;
+				case Opcodes.JUMP_NT_EQ:
+					body.branch(CodeBuffer.IF_ICMPNE, labels[pos+1+operand]);
+					break;
+				case Opcodes.JUMP_GT:
+					body.branch(CodeBuffer.IF_ICMPGT, labels[pos+1+operand]);
+					break;
+				case Opcodes.JUMP_LT:
+					body.branch(CodeBuffer.IF_ICMPLT, labels[pos+1+operand]);
+					break;
+				case Opcodes.JUMP_GT_EQ:
+					body.branch(CodeBuffer.IF_ICMPGE, labels[pos+1+operand]);
+					break;
+				case Opcodes.JUMP_LT_EQ:
+					body.branch(CodeBuffer.IF_ICMPLE, labels[pos+1+operand]);
+					break;
+				case Opcodes.ADD:
+					body.op(CodeBuffer.IADD);
+					break;
+				case Opcodes.SUBTRACT:
+					body.op(CodeBuffer.ISUB);
+					break;
+				case Opcodes.MULTIPLY:
+					body.op(CodeBuffer.IMUL);
+					break;
+				case Opcodes.DIVIDE:
+					body.op(CodeBuffer.IDIV);
+					break;
+				case Opcodes.MODULO:
+					body.op(CodeBuffer.IREM);
+					break;
+				case Opcodes.POWER:
+					body.invoke(CodeBuffer.INVOKESTATIC, SCRIPT_MATH, "power", "(II)I");
+					break;
+				case Opcodes.SHIFT_LEFT:
+					body.pushInt(operand);
+					body.op(CodeBuffer.ISHL);
+					break;
+				default:
+					return null;
+			}
+		}
+		body.mark(labels[length]);
+		body.op(CodeBuffer.RETURN);
+
+		byte[] bytecode;
+		try {
+			bytecode = body.toByteArray();
+		} catch (IllegalStateException ex) {
+			return null;
+		}
+		if (bytecode.length > MAX_CODE_LENGTH) {
+			return null;
+		}
+		int maxStack = maxHeight + 3;//Room for the executer, the context and an argument on top of the int stack
+		classFile.addMethod(ClassFileWriter.ACC_PUBLIC, "invoke", "(L"+CONTEXT+";)V", bytecode, maxStack, tempSlot + tempCount);
+		return classFile.toByteArray();
+	}
+
+	/**
+	 * Loads the parameters from the context into their local variables, and initialises the remaining local variables
+	 */
+	private void writePrologue (CodeBuffer body, CompiledScript script, int objSlot) {
+		int intParams = 0, objParams = 0;
+		for (ScriptDataType param : script.getParams()) {
+			if (param.intBase()) {
+				intParams++;
+			} else {
+				objParams++;
+			}
+		}
+		for (int id=0;id<script.getIntLocalCount();id++) {
+			if (id < intParams) {
+				body.local(CodeBuffer.ALOAD, CONTEXT_SLOT);
+				body.pushInt(id);
+				body.invoke(CodeBuffer.INVOKEVIRTUAL, CONTEXT, "getIntLocal", "(I)I");
+			} else {
+				body.pushInt(0);
+			}
+			body.local(CodeBuffer.ISTORE, FIRST_LOCAL_SLOT + id);
+		}
+		for (int id=0;id<script.getObjLocalCount();id++) {
+			if (id < objParams) {
+				body.local(CodeBuffer.ALOAD, CONTEXT_SLOT);
+				body.pushInt(id);
+				body.invoke(CodeBuffer.INVOKEVIRTUAL, CONTEXT, "getObjLocal", "(I)Ljava/lang/Object;");
+			} else {
+				body.op(CodeBuffer.ACONST_NULL);
+			}
+			body.local(CodeBuffer.ASTORE, objSlot + id);
+		}
+	}
+
+	/**
+	 * Moves the top values on the JVM operand stack onto the context's int stack, keeping their order
+	 */
+	private void spillInts (CodeBuffer body, int count, int tempSlot) {
+		for (int i=count-1;i>=0;i--) {
+			body.local(CodeBuffer.ISTORE, tempSlot + i);
+		}
+		for (int i=0;i<count;i++) {
+			body.local(CodeBuffer.ALOAD, CONTEXT_SLOT);
+			body.local(CodeBuffer.ILOAD, tempSlot + i);
+			body.invoke(CodeBuffer.INVOKEVIRTUAL, CONTEXT, "putInt", "(I)V");
+		}
+	}
+
+	/**
+	 * Moves the top values on the context's int stack onto the JVM operand stack, keeping their order
+	 */
+	private void unspillInts (CodeBuffer body, int count, int tempSlot) {
+		for (int i=count-1;i>=0;i--) {
+			body.local(CodeBuffer.ALOAD, CONTEXT_SLOT);
+			body.invoke(CodeBuffer.INVOKEVIRTUAL, CONTEXT, "getInt", "()I");
+			body.local(CodeBuffer.ISTORE, tempSlot + i);
+		}
+		for (int i=0;i<count;i++) {
+			body.local(CodeBuffer.ILOAD, tempSlot + i);
+		}
+	}
+
+	/**
+	 * Finds the number of int-based arguments and return values for each call in the script
+	 * @return False if any call target can't be resolved
+	 */
+	private boolean resolveCalls (int[] code, int[] operands, int[] intArgs, int[] intReturns) {
+		for (int pos=0;pos<code.length;pos++) {
+			List<ScriptDataType> params, returns;
+			if (code[pos] == Opcodes.INVOKE_SCRIPT || code[pos] == Opcodes.TAIL_CALL) {
+				CompiledScript callee = scriptManager.getById(operands[pos]);
+				if (callee == null) {
+					return false;
+				}
+				params = callee.getParams();
+				returns = callee.getReturns();
+			} else if (code[pos] == Opcodes.INVOKE_API) {
+				ApiFunction function = ApiRegistry.findFunction(scriptManager, operands[pos]);
+				if (function == null) {
+					return false;
+				}
+				params = function.getParamSignature();
+				returns = function.getReturnSignature();
+			} else {
+				continue;
+			}
+			intArgs[pos] = countIntBase(params);
+			intReturns[pos] = countIntBase(returns);
+		}
+		return true;
+	}
+
+	private static int countIntBase (List<ScriptDataType> types) {
+		int count = 0;
+		for (ScriptDataType type : types) {
+			if (type.intBase()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Works out the height of the int stack before each instruction.
+	 * The JVM requires the operand stack to be the same height on every path into an instruction.
+	 * @return The height before each instruction (-1 for unreachable instructions), or null if the heights are inconsistent
+	 */
+	private int[] computeStackHeights (int[] code, int[] operands, int[] intArgs, int[] intReturns) {
+		int length = code.length;
+		int[] heights = new int[length+1];
+		Arrays.fill(heights, -1);
+		Deque<Integer> pending = new ArrayDeque<>();
+		mergeHeight(heights, pending, 0, 0);
+		while (!pending.isEmpty()) {
+			int pos = pending.pop();
+			if (pos == length) {
+				continue;
+			}
+			int height = heights[pos];
+			int jumpTarget = -1;
+			boolean fallsThrough = true;
+			switch (code[pos]) {
+				case Opcodes.LOAD_INT_CONST:
+				case Opcodes.LOAD_INT_LOCAL:
+					height++;
+					break;
+				case Opcodes.LOAD_STR_CONST:
+				case Opcodes.LOAD_LOCAL:
+				case Opcodes.ASSIGN_LOCAL:
+				case Opcodes.DROP_OBJ:
+				case Opcodes.SHIFT_LEFT:
+					break;
+				case Opcodes.ASSIGN_LOCAL_INT:
+				case Opcodes.DROP_INT:
+				case Opcodes.ADD:
+				case Opcodes.SUBTRACT:
+				case Opcodes.MULTIPLY:
+				case Opcodes.DIVIDE:
+				case Opcodes.POWER:
+				case Opcodes.MODULO:
+					height--;
+					break;
+				case Opcodes.INVOKE_API:
+				case Opcodes.INVOKE_SCRIPT:
+				case Opcodes.TAIL_CALL:
+					height -= intArgs[pos];
+					if (height < 0) {
+						return null;
+					}
+					height += intReturns[pos];
+					break;
+				case Opcodes.RETURN:
+					fallsThrough = false;
+					break;
+				case Opcodes.JUMP:
+					jumpTarget = pos+1+operands[pos];
+					fallsThrough = false;
+					break;
+				case Opcodes.JUMP_TRUE:
+				case Opcodes.JUMP_FALSE:
+					height--;
+					jumpTarget = pos+1+operands[pos];
+					break;
+				case Opcodes.JUMP_EQ:
+				case Opcodes.JUMP_NT_EQ:
+				case Opcodes.JUMP_GT:
+				case Opcodes.JUMP_LT:
+				case Opcodes.JUMP_GT_EQ:
+				case Opcodes.JUMP_LT_EQ:
+					height -= 2;
+					jumpTarget = pos+1+operands[pos];
+					break;
+				default:
+					return null;//Unsupported instruction
+			}
+			if (height < 0) {
+				return null;
+			}
+			if (jumpTarget != -1) {
+				if (jumpTarget < 0 || jumpTarget > length || !mergeHeight(heights, pending, jumpTarget, height)) {
+					return null;
+				}
+			}
+			if (fallsThrough && !mergeHeight(heights, pending, pos+1, height)) {
+				return null;
+			}
+		}
+		if (heights[length] > 0) {
+			return null;//The end of the script must be reached with an empty stack
+		}
+		return heights;
+	}
+
+	/**
+	 * Records the stack height on a path into an instruction, queueing the instruction if it hasn't been reached before
+	 * @return False if the instruction has already been reached with a different height
+	 */
+	private boolean mergeHeight (int[] heights, Deque<Integer> pending, int pos, int height) {
+		if (heights[pos] == -1) {
+			heights[pos] = height;
+			pending.push(pos);
+			return true;
+		}
+		return heights[pos] == height;
+	}
+}
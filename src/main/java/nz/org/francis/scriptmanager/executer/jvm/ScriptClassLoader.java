@@ -0,0 +1,18 @@
+package nz.org.francis.scriptmanager.executer.jvm;
+
+/**
+ * Loads the class generated for a single compiled script. 
+ * Each script gets its own loader, so the generated class can be unloaded once the script is replaced.
+ *
+ * @author Francis
+ */
+class ScriptClassLoader extends ClassLoader {
+
+	ScriptClassLoader (ClassLoader parent) {
+		super(parent);
+	}
+
+	Class<?> define (String name, byte[] classFile) {
+		return defineClass(name, classFile, 0, classFile.length);
+	}
+}
@@ -0,0 +1,289 @@
+package nz.org.francis.scriptmanager.executer.register;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.Opcodes;
+import nz.org.francis.scriptmanager.executer.Executable;
+import nz.org.francis.scriptmanager.executer.Optimiser;
+
+/**
+ * Translates a {@link CompiledScript} from the stack-based instruction set into the register-based one (see {@link RegisterOpcodes}).
+ * <p>
+ * The registers are laid out as the script's int locals, followed by its int constants, followed by temporary values.
+ * Loads of locals and constants don't produce any instructions; the register they name is used directly by the instruction which consumes it.
+ * So "$total = $total + $i * $i" becomes two instructions ("MUL t0 = i, i" and "ADD total = total, t0"), rather than six stack instructions.
+ * <p>
+ * As with the closure tier, values are only written to the context's int stack at jump targets, and before calls, jumps and returns.
+ * Values pushed before the current block are read back with POP_INT.
+ *
+ * @author Francis
+ */
+public class RegisterCompiler implements Optimiser {
+
+	private int[] code;
+	private int length;
+
+	private List<Integer> stack;//Registers holding the values which would be on the int stack
+	private BitSet temps;
+	private int tempBase;
+	private int maxTemps;
+
+	/**
+	 * Translates the script into register instructions
+	 * @param script The script to translate
+	 * @return The translated script, or null if the script contains instructions which can't be translated
+	 */
+	@Override
+	public synchronized Executable compile (CompiledScript script) {
+		int[] opcodes = script.getBaseCode();
+		int[] operands = script.getOperands();
+		int count = opcodes.length;
+		int intLocalCount = script.getIntLocalCount();
+
+		boolean[] jumpTargets = new boolean[count+1];
+		Map<Integer, Integer> constants = new HashMap<>();
+		List<Integer> constantValues = new ArrayList<>();
+		for (int pos=0;pos<count;pos++) {
+			if (isJump(opcodes[pos])) {
+				int target = pos + 1 + operands[pos];
+				if (target < 0 || target > count) {
+					return null;
+				}
+				jumpTargets[target] = true;
+			} else if (opcodes[pos] == Opcodes.LOAD_INT_CONST && !constants.containsKey(operands[pos])) {
+				constants.put(operands[pos], intLocalCount + constantValues.size());
+				constantValues.add(operands[pos]);
+			} else if ((opcodes[pos] == Opcodes.LOAD_INT_LOCAL || opcodes[pos] == Opcodes.ASSIGN_LOCAL_INT)
+					&& (operands[pos] < 0 || operands[pos] >= intLocalCount)) {
+				return null;
+			}
+		}
+
+		code = new int[count * RegisterOpcodes.WIDTH];
+		length = 0;
+		stack = new ArrayList<>();
+		temps = new BitSet();
+		tempBase = intLocalCount + constantValues.size();
+		maxTemps = 0;
+		try {
+			int[] instrIndex = new int[count+1];
+			List<Integer> jumps = new ArrayList<>();//Positions of the target operands, which hold stack instruction positions until they're fixed up
+			for (int pos=0;pos<count;pos++) {
+				if (jumpTargets[pos]) {
+					flush();
+				}
+				instrIndex[pos] = length;
+				int opcode = opcodes[pos];
+				int operand = operands[pos];
+				int left, right;
+				switch (opcode) {
+					case Opcodes.LOAD_INT_CONST:
+						stack.add(constants.get(operand));
+						break;
+					case Opcodes.LOAD_INT_LOCAL:
+						stack.add(operand);
+						break;
+					case Opcodes.ADD:
+					case Opcodes.SUBTRACT:
+					case Opcodes.MULTIPLY:
+					case Opcodes.DIVIDE:
+					case Opcodes.MODULO:
+					case Opcodes.POWER:
+						right = pop();
+						left = pop();
+						release(right);
+						release(left);
+						int result = allocate();
+						emit(arithmetic(opcode), result, left, right);
+						stack.add(result);
+						break;
+					case Opcodes.SHIFT_LEFT:
+						left = pop();
+						release(left);
+						result = allocate();
+						emit(RegisterOpcodes.SHIFT_LEFT, result, left, operand);
+						stack.add(result);
+						break;
+					case Opcodes.ASSIGN_LOCAL_INT:
+						assign(operand, pop());
+						break;
+					case Opcodes.DROP_INT:
+						release(pop());
+						break;
+					case Opcodes.LOAD_STR_CONST:
+						emit(RegisterOpcodes.PUSH_OBJ_CONST, operand, 0, 0);
+						break;
+					case Opcodes.LOAD_LOCAL:
+						emit(RegisterOpcodes.LOAD_OBJ_LOCAL, operand, 0, 0);
+						break;
+					case Opcodes.ASSIGN_LOCAL:
+						emit(RegisterOpcodes.STORE_OBJ_LOCAL, operand, 0, 0);
+						break;
+					case Opcodes.DROP_OBJ:
+						emit(RegisterOpcodes.DROP_OBJ, 0, 0, 0);
+						break;
+					case Opcodes.INVOKE_SCRIPT:
+					case Opcodes.TAIL_CALL://Made as an ordinary call, followed by the return
+						flush();
+						emit(RegisterOpcodes.INVOKE_SCRIPT, operand, 0, 0);
+						break;
+					case Opcodes.INVOKE_API:
+						flush();
+						emit(RegisterOpcodes.INVOKE_API, operand, 0, 0);
+						break;
+					case Opcodes.RETURN:
+						flush();
+						emit(RegisterOpcodes.RETURN, 0, 0, 0);
+						break;
+					case Opcodes.JUMP:
+						flush();
+						jumps.add(length+1);
+						emit(RegisterOpcodes.JUMP, pos + 1 + operand, 0, 0);
+						break;
+					case Opcodes.JUMP_TRUE:
+					case Opcodes.JUMP_FALSE:
+						left = pop();
+						release(left);
+						flush();
+						jumps.add(length+1);
+						emit(opcode == Opcodes.JUMP_TRUE ? RegisterOpcodes.JUMP_TRUE : RegisterOpcodes.JUMP_FALSE, pos + 1 + operand, left, 0);
+						break;
+					case Opcodes.JUMP_EQ:
+					case Opcodes.JUMP_NT_EQ:
+					case Opcodes.JUMP_GT:
+					case Opcodes.JUMP_LT:
+					case Opcodes.JUMP_GT_EQ:
+					case Opcodes.JUMP_LT_EQ:
+						right = pop();
+						left = pop();
+						release(right);
+						release(left);
+						flush();
+						jumps.add(length+1);
+						emit(RegisterOpcodes.JUMP_EQ + opcode - Opcodes.JUMP_EQ, pos + 1 + operand, left, right);
+						break;
+					default:
+						return null;
+				}
+			}
+			flush();
+			instrIndex[count] = length;
+			for (int jump : jumps) {
+				code[jump] = instrIndex[code[jump]];
+			}
+
+			int[] registers = new int[tempBase + maxTemps];
+			for (int i=0;i<constantValues.size();i++) {
+				registers[intLocalCount + i] = constantValues.get(i);
+			}
+			return new RegisterScript(Arrays.copyOf(code, length), script.getConstantPool(), registers, intLocalCount);
+		} finally {
+			code = null;
+			stack = null;
+			temps = null;
+		}
+	}
+
+	private static boolean isJump (int opcode) {
+		return opcode >= Opcodes.JUMP && opcode <= Opcodes.JUMP_LT_EQ;
+	}
+
+	private static int arithmetic (int opcode) {
+		switch (opcode) {
+			case Opcodes.ADD:
+				return RegisterOpcodes.ADD;
+			case Opcodes.SUBTRACT:
+				return RegisterOpcodes.SUBTRACT;
+			case Opcodes.MULTIPLY:
+				return RegisterOpcodes.MULTIPLY;
+			case Opcodes.DIVIDE:
+				return RegisterOpcodes.DIVIDE;
+			case Opcodes.MODULO:
+				return RegisterOpcodes.MODULO;
+			case Opcodes.POWER:
+				return RegisterOpcodes.POWER;
+			default:
+				throw new IllegalArgumentException("Not an arithmetic instruction: "+opcode);
+		}
+	}
+
+	private void emit (int opcode, int a, int b, int c) {
+		if (length + RegisterOpcodes.WIDTH > code.length) {
+			code = Arrays.copyOf(code, Math.max(16, code.length * 2));
+		}
+		code[length++] = opcode;
+		code[length++] = a;
+		code[length++] = b;
+		code[length++] = c;
+	}
+
+	private int allocate () {
+		int temp = temps.nextClearBit(0);
+		temps.set(temp);
+		maxTemps = Math.max(maxTemps, temp+1);
+		return tempBase + temp;
+	}
+
+	private void release (int register) {
+		if (register >= tempBase) {
+			temps.clear(register - tempBase);
+		}
+	}
+
+	/**
+	 * Takes the register holding the top value of the int stack.
+	 * If the stack is empty, the value was pushed before the current block, so it's popped from the context into a new temporary.
+	 */
+	private int pop () {
+		if (stack.isEmpty()) {
+			int temp = allocate();
+			emit(RegisterOpcodes.POP_INT, temp, 0, 0);
+			return temp;
+		}
+		return stack.remove(stack.size()-1);
+	}
+
+	/**
+	 * Writes the value in the provided register to an int local.
+	 * Where possible the instruction which produced the value writes straight into the local instead.
+	 */
+	private void assign (int local, int register) {
+		boolean shared = false;
+		for (int i=0;i<stack.size();i++) {
+			if (stack.get(i) == local) {
+				//The old value of the local is still on the stack, so keep a copy of it
+				int temp = allocate();
+				emit(RegisterOpcodes.MOVE, temp, local, 0);
+				stack.set(i, temp);
+				shared = true;
+			}
+		}
+		release(register);//Only once the copies have their temporaries, or one of them could be given the register holding the new value
+		int last = length - RegisterOpcodes.WIDTH;
+		if (!shared && register >= tempBase && last >= 0 && writesRegister(code[last]) && code[last+1] == register) {
+			code[last+1] = local;
+		} else if (register != local) {
+			emit(RegisterOpcodes.MOVE, local, register, 0);
+		}
+	}
+
+	private static boolean writesRegister (int opcode) {
+		return opcode <= RegisterOpcodes.SHIFT_LEFT || opcode == RegisterOpcodes.POP_INT;
+	}
+
+	/**
+	 * Writes the values held in registers to the context's int stack, bottom first
+	 */
+	private void flush () {
+		for (int register : stack) {
+			emit(RegisterOpcodes.PUSH_INT, register, 0, 0);
+			release(register);
+		}
+		stack.clear();
+	}
+}
@@ -0,0 +1,48 @@
+package nz.org.francis.scriptmanager.executer.register;
+
+/**
+ * The instruction set for register-based scripts. 
+ * Every instruction takes four ints: the opcode, followed by up to three operands. 
+ * Int values are held in registers, which cover the script's int locals, its int constants and temporary values. 
+ * Object values stay on the context's object stack, as in the stack-based instruction set.
+ * 
+ * @author Francis
+ */
+public final class RegisterOpcodes {
+	
+	public static final int WIDTH = 4;
+	
+	public static final int MOVE = 0;//dst, src
+	public static final int ADD = 1;//dst, a, b
+	public static final int SUBTRACT = 2;
+	public static final int MULTIPLY = 3;
+	public static final int DIVIDE = 4;
+	public static final int MODULO = 5;
+	public static final int POWER = 6;
+	public static final int SHIFT_LEFT = 7;//dst, a, shift
+	
+	public static final int PUSH_INT = 10;//src: pushes a register onto the context's int stack
+	public static final int POP_INT = 11;//dst: pops the context's int stack into a register
+	public static final int PUSH_OBJ_CONST = 12;//pool index
+	public static final int LOAD_OBJ_LOCAL = 13;//local
+	public static final int STORE_OBJ_LOCAL = 14;//local
+	public static final int DROP_OBJ = 15;
+	
+	public static final int INVOKE_SCRIPT = 20;//script id
+	public static final int INVOKE_API = 21;//function id
+	public static final int RETURN = 22;
+	
+	public static final int JUMP = 30;//target
+	public static final int JUMP_TRUE = 31;//target, a
+	public static final int JUMP_FALSE = 32;//target, a
+	public static final int JUMP_EQ = 33;//target, a, b
+	public static final int JUMP_NT_EQ = 34;
+	public static final int JUMP_GT = 35;
+	public static final int JUMP_LT = 36;
+	public static final int JUMP_GT_EQ = 37;
+	public static final int JUMP_LT_EQ = 38;
+	
+	private RegisterOpcodes () {
+		
+	}
+}
@@ -0,0 +1,171 @@
+package nz.org.francis.scriptmanager.executer.register;
+
+import nz.org.francis.scriptmanager.ScriptMath;
+import nz.org.francis.scriptmanager.executer.Context;
+import nz.org.francis.scriptmanager.executer.Executable;
+
+/**
+ * Runs a script which has been translated into the register-based instruction set (see {@link RegisterOpcodes}). 
+ * The script's int locals are copied into the registers when it starts, and back into the context when it finishes.
+ * 
+ * @author Francis
+ */
+public final class RegisterScript implements Executable {
+	
+	private final int[] code;
+	private final Object[] constantPool;
+	private final int[] registerTemplate;
+	private final int intLocalCount;
+	
+	/**
+	 * @param code The instructions
+	 * @param constantPool The object constants used by the instructions
+	 * @param registerTemplate The initial registers, with the constant registers filled in
+	 * @param intLocalCount The number of registers at the start which hold the script's int locals
+	 */
+	RegisterScript (int[] code, Object[] constantPool, int[] registerTemplate, int intLocalCount) {
+		this.code = code;
+		this.constantPool = constantPool;
+		this.registerTemplate = registerTemplate;
+		this.intLocalCount = intLocalCount;
+	}
+	
+	/**
+	 * @return The number of instructions
+	 */
+	public int getInstructionCount () {
+		return code.length / RegisterOpcodes.WIDTH;
+	}
+	
+	/**
+	 * @return The instructions. The returned array is shared, so it must not be modified.
+	 */
+	public int[] getCode () {
+		return code;
+	}
+
+	@Override
+	public void invoke(Context context) {
+		int[] code = this.code;
+		int[] regs = registerTemplate.clone();
+		for (int i=0;i<intLocalCount;i++) {
+			regs[i] = context.getIntLocal(i);
+		}
+		int pc = 0;
+		run:
+		while (pc < code.length) {
+			int a = code[pc+1];
+			int b = code[pc+2];
+			int c = code[pc+3];
+			switch (code[pc]) {
+				case RegisterOpcodes.MOVE:
+					regs[a] = regs[b];
+					break;
+				case RegisterOpcodes.ADD:
+					regs[a] = regs[b] + regs[c];
+					break;
+				case RegisterOpcodes.SUBTRACT:
+					regs[a] = regs[b] - regs[c];
+					break;
+				case RegisterOpcodes.MULTIPLY:
+					regs[a] = regs[b] * regs[c];
+					break;
+				case RegisterOpcodes.DIVIDE:
+					regs[a] = regs[b] / regs[c];
+					break;
+				case RegisterOpcodes.MODULO:
+					regs[a] = regs[b] % regs[c];
+					break;
+				case RegisterOpcodes.POWER:
+					regs[a] = ScriptMath.power(regs[b], regs[c]);
+					break;
+				case RegisterOpcodes.SHIFT_LEFT:
+					regs[a] = regs[b] << c;
+					break;
+				case RegisterOpcodes.PUSH_INT:
+					context.putInt(regs[a]);
+					break;
+				case RegisterOpcodes.POP_INT:
+					regs[a] = context.getInt();
+					break;
+				case RegisterOpcodes.PUSH_OBJ_CONST:
+					context.putObj(constantPool[a]);
+					break;
+				case RegisterOpcodes.LOAD_OBJ_LOCAL:
+					context.putObj(context.getObjLocal(a));
+					break;
+				case RegisterOpcodes.STORE_OBJ_LOCAL:
+					context.setObjLocal(a, context.getObj());
+					break;
+				case RegisterOpcodes.DROP_OBJ:
+					context.getObj();
+					break;
+				case RegisterOpcodes.INVOKE_SCRIPT:
+					context.getExecuter().invokeScript(context, a);
+					break;
+				case RegisterOpcodes.INVOKE_API:
+					context.getExecuter().invokeApi(context, a);
+					break;
+				case RegisterOpcodes.RETURN:
+					break run;
+				case RegisterOpcodes.JUMP:
+					pc = a;
+					continue;
+				case RegisterOpcodes.JUMP_TRUE:
+					if (regs[b] == 1) {
+						pc = a;
+						continue;
+					}
+					break;
+				case RegisterOpcodes.JUMP_FALSE:
+					if (regs[b] == 0) {
+						pc = a;
+						continue;
+					}
+					break;
+				case RegisterOpcodes.JUMP_EQ:
+					if (regs[b] == regs[c]) {
+						pc = a;
+						continue;
+					}
+					break;
+				case RegisterOpcodes.JUMP_NT_EQ:
+					if (regs[b] != regs[c]) {
+						pc = a;
+						continue;
+					}
+					break;
+				case RegisterOpcodes.JUMP_GT:
+					if (regs[b] > regs[c]) {
+						pc = a;
+						continue;
+					}
+					break;
+				case RegisterOpcodes.JUMP_LT:
+					if (regs[b] < regs[c]) {
+						pc = a;
+						continue;
+					}
+					break;
+				case RegisterOpcodes.JUMP_GT_EQ:
+					if (regs[b] >= regs[c]) {
+						pc = a;
+						continue;
+					}
+					break;
+				case RegisterOpcodes.JUMP_LT_EQ:
+					if (regs[b] <= regs[c]) {
+						pc = a;
+						continue;
+					}
+					break;
+				default:
+					throw new UnsupportedOperationException("Unsupported register instruction: "+code[pc]);
+			}
+			pc += RegisterOpcodes.WIDTH;
+		}
+		for (int i=0;i<intLocalCount;i++) {
+			context.setIntLocal(i, regs[i]);
+		}
+	}
+}
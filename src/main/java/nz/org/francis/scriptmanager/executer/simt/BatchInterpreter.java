@@ -0,0 +1,431 @@
+package nz.org.francis.scriptmanager.executer.simt;
+
+import java.util.Arrays;
+import nz.org.francis.scriptmanager.ScriptDataType;
+import nz.org.francis.scriptmanager.ScriptMath;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.Opcodes;
+import nz.org.francis.scriptmanager.executer.Context;
+import nz.org.francis.scriptmanager.executer.Executer;
+
+/**
+ * Runs one script for many sets of arguments at once, applying each instruction to every lane (set of arguments) before moving on to the next.
+ * This pays the cost of decoding and dispatching an instruction once per batch rather than once per run.
+ * <p>
+ * The int locals and int stacks of all lanes are held in struct-of-arrays form: slot <i>s</i> of lane <i>l</i> is at <code>s * lanes + l</code>,
+ * so each instruction is a simple loop over consecutive array elements, which the JIT can unroll and vectorise.
+ * The height of the int stack at each instruction is worked out in advance, so it's the same for every lane.
+ * <p>
+ * While every lane is at the same instruction, the lanes share a single instruction pointer.
+ * When a conditional jump goes different ways for different lanes, each lane gets its own instruction pointer,
+ * and the lanes at the earliest instruction run next (with the others masked out), until they all meet up again.
+ * <p>
+ * Only scripts which use int values and no calls can be run this way (see {@link #supports(CompiledScript)}).
+ * Other scripts are run one lane at a time with the scalar {@link Executer}.
+ *
+ * @author Francis
+ */
+public class BatchInterpreter {
+
+	private final Executer fallback;
+
+	/**
+	 * @param fallback The executer used for scripts which can't be run in lanes
+	 */
+	public BatchInterpreter (Executer fallback) {
+		this.fallback = fallback;
+	}
+
+	/**
+	 * Checks whether the script can be run in lanes.
+	 * It must only take int-based parameters, and only use int constants, int locals, arithmetic, jumps and returns.
+	 * @param script The script to check
+	 * @return True if the script can be run in lanes, false if it will be run by the fallback executer
+	 */
+	public static boolean supports (CompiledScript script) {
+		return stackHeights(script) != null;
+	}
+
+	/**
+	 * Runs the script once for each set of arguments.
+	 * @param script The script to run
+	 * @param args The int-based arguments for each run. Booleans are passed as 1 or 0.
+	 * @return The values left on the int stack by each run, bottom first, in the same order as the arguments
+	 * @throws IllegalArgumentException If the script takes parameters which aren't int-based, or a lane has the wrong number of arguments
+	 * @throws ArithmeticException If any run divides by zero
+	 */
+	public int[][] execute (CompiledScript script, int[][] args) {
+		if (!intParams(script)) {
+			throw new IllegalArgumentException(script.getName()+" takes parameters which aren't int-based");
+		}
+		for (int[] laneArgs : args) {
+			if (laneArgs.length != script.getParams().size()) {
+				throw new IllegalArgumentException(script.getName()+" takes "+script.getParams().size()+" arguments, but "+laneArgs.length+" were provided");
+			}
+		}
+		int[] heights = stackHeights(script);
+		if (heights == null) {
+			return executeScalar(script, args);
+		}
+		int lanes = args.length;
+		int[][] results = new int[lanes][];
+		if (lanes == 0) {
+			return results;
+		}
+		int[] code = script.getBaseCode();
+		int[] operands = script.getOperands();
+		int maxHeight = 0;
+		for (int height : heights) {
+			maxHeight = Math.max(maxHeight, height);
+		}
+		int[] stack = new int[maxHeight * lanes];
+		int[] locals = new int[script.getIntLocalCount() * lanes];
+		for (int lane=0;lane<lanes;lane++) {
+			for (int slot=0;slot<args[lane].length;slot++) {
+				locals[slot * lanes + lane] = args[lane][slot];
+			}
+		}
+
+		boolean[] active = new boolean[lanes];//Lanes running the current instruction
+		boolean[] taken = new boolean[lanes];//Lanes which take the current conditional jump
+		int[] pcs = null;//Each lane's instruction pointer, once the lanes have diverged. Finished lanes are set to Integer.MAX_VALUE.
+		int remaining = lanes;
+		int pc = 0;
+		Arrays.fill(active, true);
+		while (remaining > 0) {
+			if (pcs != null) {
+				pc = Integer.MAX_VALUE;
+				for (int lane=0;lane<lanes;lane++) {
+					pc = Math.min(pc, pcs[lane]);
+				}
+				int count = 0;
+				for (int lane=0;lane<lanes;lane++) {
+					active[lane] = pcs[lane] == pc;
+					count += active[lane] ? 1 : 0;
+				}
+				if (count == remaining) {//Every lane is at the same instruction again
+					pcs = null;
+				}
+			}
+			int opcode = pc < code.length ? code[pc] : Opcodes.RETURN;//Running off the end is an implicit return
+			int height = heights[pc];
+			if (opcode == Opcodes.RETURN) {
+				for (int lane=0;lane<lanes;lane++) {
+					if (active[lane]) {
+						results[lane] = new int[height];
+						for (int slot=0;slot<height;slot++) {
+							results[lane][slot] = stack[slot * lanes + lane];
+						}
+						active[lane] = false;
+						remaining--;
+						if (pcs != null) {
+							pcs[lane] = Integer.MAX_VALUE;
+						}
+					}
+				}
+				continue;
+			}
+			int next = pc + 1;
+			boolean conditional = opcode >= Opcodes.JUMP_TRUE && opcode <= Opcodes.JUMP_LT_EQ;
+			for (int from=0;from<lanes;) {//Run the instruction over each run of consecutive active lanes
+				if (!active[from]) {
+					from++;
+					continue;
+				}
+				int to = from + 1;
+				while (to < lanes && active[to]) {
+					to++;
+				}
+				if (conditional) {
+					test(opcode, height, lanes, stack, taken, from, to);
+				} else {
+					next = step(opcode, operands[pc], pc, height, lanes, stack, locals, from, to);
+				}
+				from = to;
+			}
+			if (conditional) {
+				int target = pc + 1 + operands[pc];
+				int takenCount = 0;
+				for (int lane=0;lane<lanes;lane++) {
+					takenCount += active[lane] && taken[lane] ? 1 : 0;
+				}
+				if (pcs == null && (takenCount == 0 || takenCount == remaining)) {
+					pc = takenCount == 0 ? pc + 1 : target;
+				} else {
+					if (pcs == null) {
+						pcs = new int[lanes];
+						Arrays.fill(pcs, Integer.MAX_VALUE);
+					}
+					for (int lane=0;lane<lanes;lane++) {
+						if (active[lane]) {
+							pcs[lane] = taken[lane] ? target : pc + 1;
+						}
+					}
+				}
+			} else if (pcs == null) {
+				pc = next;
+			} else {
+				for (int lane=0;lane<lanes;lane++) {
+					if (active[lane]) {
+						pcs[lane] = next;
+					}
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Runs a non-jumping instruction, or an unconditional jump, over lanes [from, to)
+	 * @return The next instruction
+	 */
+	private static int step (int opcode, int operand, int pc, int height, int lanes, int[] stack, int[] locals, int from, int to) {
+		int top = (height - 1) * lanes;
+		int push = height * lanes;
+		int second = (height - 2) * lanes;
+		switch (opcode) {
+			case Opcodes.LOAD_INT_CONST:
+				for (int lane=from;lane<to;lane++) {
+					stack[push + lane] = operand;
+				}
+				break;
+			case Opcodes.LOAD_INT_LOCAL:
+				int local = operand * lanes;
+				for (int lane=from;lane<to;lane++) {
+					stack[push + lane] = locals[local + lane];
+				}
+				break;
+			case Opcodes.ASSIGN_LOCAL_INT:
+				local = operand * lanes;
+				for (int lane=from;lane<to;lane++) {
+					locals[local + lane] = stack[top + lane];
+				}
+				break;
+			case Opcodes.DROP_INT:
+				break;
+			case Opcodes.ADD:
+				for (int lane=from;lane<to;lane++) {
+					stack[second + lane] += stack[top + lane];
+				}
+				break;
+			case Opcodes.SUBTRACT:
+				for (int lane=from;lane<to;lane++) {
+					stack[second + lane] -= stack[top + lane];
+				}
+				break;
+			case Opcodes.MULTIPLY:
+				for (int lane=from;lane<to;lane++) {
+					stack[second + lane] *= stack[top + lane];
+				}
+				break;
+			case Opcodes.DIVIDE:
+				for (int lane=from;lane<to;lane++) {
+					stack[second + lane] /= stack[top + lane];
+				}
+				break;
+			case Opcodes.MODULO:
+				for (int lane=from;lane<to;lane++) {
+					stack[second + lane] %= stack[top + lane];
+				}
+				break;
+			case Opcodes.POWER:
+				for (int lane=from;lane<to;lane++) {
+					stack[second + lane] = ScriptMath.power(stack[second + lane], stack[top + lane]);
+				}
+				break;
+			case Opcodes.SHIFT_LEFT:
+				for (int lane=from;lane<to;lane++) {
+					stack[top + lane] <<= operand;
+				}
+				break;
+			case Opcodes.JUMP:
+				return pc + 1 + operand;
+			default:
+				throw new UnsupportedOperationException("Unsupported instruction: "+opcode);
+		}
+		return pc + 1;
+	}
+
+	/**
+	 * Works out which of the lanes [from, to) take a conditional jump
+	 */
+	private static void test (int opcode, int height, int lanes, int[] stack, boolean[] taken, int from, int to) {
+		int top = (height - 1) * lanes;
+		int second = (height - 2) * lanes;
+		switch (opcode) {
+			case Opcodes.JUMP_TRUE:
+				for (int lane=from;lane<to;lane++) {
+					taken[lane] = stack[top + lane] == 1;
+				}
+				break;
+			case Opcodes.JUMP_FALSE:
+				for (int lane=from;lane<to;lane++) {
+					taken[lane] = stack[top + lane] == 0;
+				}
+				break;
+			case Opcodes.JUMP_EQ:
+				for (int lane=from;lane<to;lane++) {
+					taken[lane] = stack[second + lane] == stack[top + lane];
+				}
+				break;
+			case Opcodes.JUMP_NT_EQ:
+				for (int lane=from;lane<to;lane++) {
+					taken[lane] = stack[second + lane] != stack[top + lane];
+				}
+				break;
+			case Opcodes.JUMP_GT:
+				for (int lane=from;lane<to;lane++) {
+					taken[lane] = stack[second + lane] > stack[top + lane];
+				}
+				break;
+			case Opcodes.JUMP_LT:
+				for (int lane=from;lane<to;lane++) {
+					taken[lane] = stack[second + lane] < stack[top + lane];
+				}
+				break;
+			case Opcodes.JUMP_GT_EQ:
+				for (int lane=from;lane<to;lane++) {
+					taken[lane] = stack[second + lane] >= stack[top + lane];
+				}
+				break;
+			case Opcodes.JUMP_LT_EQ:
+				for (int lane=from;lane<to;lane++) {
+					taken[lane] = stack[second + lane] <= stack[top + lane];
+				}
+				break;
+			default:
+				throw new UnsupportedOperationException("Unsupported jump: "+opcode);
+		}
+	}
+
+	/**
+	 * Works out the height of the int stack before each instruction, and before the implicit return at the end of the script
+	 * @return The heights, or null if the script can't be run in lanes
+	 */
+	private static int[] stackHeights (CompiledScript script) {
+		if (!intParams(script)) {
+			return null;
+		}
+		int[] code = script.getBaseCode();
+		int[] operands = script.getOperands();
+		int length = code.length;
+		int[] heights = new int[length+1];
+		Arrays.fill(heights, -1);
+		int[] worklist = new int[length+1];
+		int pending = 0;
+		heights[0] = 0;
+		worklist[pending++] = 0;
+		while (pending > 0) {
+			int pc = worklist[--pending];
+			if (pc == length) {
+				continue;
+			}
+			int height = heights[pc];
+			int pops = 0, pushes = 0;
+			boolean fallsThrough = true;
+			int target = -1;
+			switch (code[pc]) {
+				case Opcodes.LOAD_INT_CONST:
+					pushes = 1;
+					break;
+				case Opcodes.LOAD_INT_LOCAL:
+				case Opcodes.ASSIGN_LOCAL_INT:
+					if (operands[pc] < 0 || operands[pc] >= script.getIntLocalCount()) {
+						return null;
+					}
+					pops = code[pc] == Opcodes.ASSIGN_LOCAL_INT ? 1 : 0;
+					pushes = 1 - pops;
+					break;
+				case Opcodes.DROP_INT:
+					pops = 1;
+					break;
+				case Opcodes.ADD:
+				case Opcodes.SUBTRACT:
+				case Opcodes.MULTIPLY:
+				case Opcodes.DIVIDE:
+				case Opcodes.MODULO:
+				case Opcodes.POWER:
+					pops = 2;
+					pushes = 1;
+					break;
+				case Opcodes.SHIFT_LEFT:
+					pops = 1;
+					pushes = 1;
+					break;
+				case Opcodes.RETURN:
+					fallsThrough = false;
+					break;
+				case Opcodes.JUMP:
+					fallsThrough = false;
+					target = pc + 1 + operands[pc];
+					break;
+				case Opcodes.JUMP_TRUE:
+				case Opcodes.JUMP_FALSE:
+					pops = 1;
+					target = pc + 1 + operands[pc];
+					break;
+				case Opcodes.JUMP_EQ:
+				case Opcodes.JUMP_NT_EQ:
+				case Opcodes.JUMP_GT:
+				case Opcodes.JUMP_LT:
+				case Opcodes.JUMP_GT_EQ:
+				case Opcodes.JUMP_LT_EQ:
+					pops = 2;
+					target = pc + 1 + operands[pc];
+					break;
+				default:
+					return null;
+			}
+			if (height < pops) {
+				return null;
+			}
+			int after = height - pops + pushes;
+			for (int successor : new int[] { fallsThrough ? pc + 1 : -1, target }) {
+				if (successor < 0) {
+					continue;
+				}
+				if (successor > length) {
+					return null;
+				}
+				if (heights[successor] == -1) {
+					heights[successor] = after;
+					worklist[pending++] = successor;
+				} else if (heights[successor] != after) {
+					return null;
+				}
+			}
+		}
+		return heights;
+	}
+
+	private static boolean intParams (CompiledScript script) {
+		for (ScriptDataType param : script.getParams()) {
+			if (!param.intBase()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int[][] executeScalar (CompiledScript script, int[][] args) {
+		int[][] results = new int[args.length][];
+		Context context = new Context(script);
+		for (int lane=0;lane<args.length;lane++) {
+			if (lane > 0) {
+				context.reset(script);
+			}
+			for (int slot=0;slot<args[lane].length;slot++) {
+				context.setIntLocal(slot, args[lane][slot]);
+			}
+			fallback.executeAndWait(context);
+			if (context.isSuspended()) {
+				throw new IllegalStateException(script.getName()+" suspended itself, so it can't be run in a batch");
+			}
+			results[lane] = new int[context.getIntStackSize()];
+			for (int slot=results[lane].length-1;slot>=0;slot--) {
+				results[lane][slot] = context.getInt();
+			}
+		}
+		return results;
+	}
+}
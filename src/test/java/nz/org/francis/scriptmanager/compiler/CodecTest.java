@@ -55,4 +55,23 @@ public class CodecTest {
 		assertEquals(script, newScript);
 		 
 	}
+	
+	@Test
+	public void testFlattenedForm() {
+		ScriptOpcode[] instructions = { ScriptOpcode.LOAD_STR_CONST, ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.LOAD_STR_CONST, ScriptOpcode.ADD, ScriptOpcode.JUMP };
+		Map<Integer, Object> constants = new HashMap<>();
+		constants.put(0, "Hello!");
+		constants.put(1, 500);
+		constants.put(2, "Hello!");
+		constants.put(4, -5);
+		List<ScriptDataType> empty = Arrays.asList(new ScriptDataType[0]);
+		CompiledScript script = CompiledScript.construct(1, "Script1", instructions, constants, empty, empty, 0, 0);
+		assertArrayEquals(new int[]{ Opcodes.LOAD_STR_CONST, Opcodes.LOAD_INT_CONST, Opcodes.LOAD_STR_CONST, Opcodes.ADD, Opcodes.JUMP }, script.getCode());
+		assertArrayEquals(new int[]{ 0, 500, 0, 0, -5 }, script.getOperands());
+		assertArrayEquals(new Object[]{ "Hello!" }, script.getConstantPool());//Identical strings share a pool entry
+		for (int pos=0;pos<instructions.length;pos++) {
+			assertEquals(instructions[pos], script.getInstruction(pos));
+			assertEquals(constants.get(pos), script.getConstant(pos));
+		}
+	}
 }
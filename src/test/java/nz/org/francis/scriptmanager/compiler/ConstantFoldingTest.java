@@ -0,0 +1,156 @@
+package nz.org.francis.scriptmanager.compiler;
+
+import nz.org.francis.scriptmanager.ScriptMath;
+import nz.org.francis.scriptmanager.executer.Context;
+import nz.org.francis.scriptmanager.executer.Executer;
+import nz.org.francis.scriptmanager.executer.TestScriptManager;
+import nz.org.francis.scriptmanager.executer.TestScripts;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Francis
+ */
+public class ConstantFoldingTest {
+	
+	private static final String SOURCE = 
+			"[test,millis]()(Int) {\n"
+			+ "	return 2 * 60 * 1000;\n"
+			+ "}\n"
+			+ "[test,times8](Int $x)(Int) {\n"
+			+ "	return $x * 8;\n"
+			+ "}\n"
+			+ "[test,div8](Int $x)(Int) {\n"
+			+ "	return $x / 8;\n"
+			+ "}\n"
+			+ "[test,identity](Int $x)(Int) {\n"
+			+ "	return ($x + 0) * 1 - 0;\n"
+			+ "}\n"
+			+ "[test,cube](Int $x)(Int) {\n"
+			+ "	return $x ^ 3 + 2 ^ 10;\n"
+			+ "}\n"
+			+ "[test,divzero]()(Int) {\n"
+			+ "	return 1 / 0;\n"
+			+ "}\n"
+			+ "[test,mixed](Int $x)(Int) {\n"
+			+ "	return 1 + 2 * 3 + $x * 4;\n"
+			+ "}\n"
+			+ "[test,precedence](Int $x)(Int) {\n"
+			+ "	return $x - 2 * 3 - $x * $x + 2 ^ 3 ^ 2;\n"
+			+ "}\n";
+	
+	private TestScriptManager manager;
+	
+	private Executer executer;
+	
+	public ConstantFoldingTest() {
+		
+	}
+	
+	@Before
+	public void setUp() throws ParserException {
+		ParserCompiler compiler = new ParserCompiler();
+		compiler.setOptimiser(null);//Only check what the parser emits
+		compiler.compileScriptFromString(SOURCE);
+		manager = new TestScriptManager();
+		for (CompiledScript script : compiler.getScripts()) {
+			manager.register(script);
+		}
+		executer = new Executer(manager);
+	}
+	
+	private String describe (String name) {
+		CompiledScript script = manager.getByName(name);
+		StringBuilder builder = new StringBuilder();
+		for (int pos=0;pos<script.getInstructionCount();pos++) {
+			if (pos > 0) {
+				builder.append(' ');
+			}
+			ScriptOpcode opcode = script.getInstruction(pos);
+			builder.append(opcode);
+			if (opcode.hasIntConst()) {
+				builder.append('(').append(script.getConstant(pos)).append(')');
+			}
+		}
+		return builder.toString();
+	}
+	
+	private int run (String name, Object... args) {
+		Context context = TestScripts.prepare(manager.getByName(name), args);
+		executer.execute(context);
+		return context.getInt();
+	}
+	
+	@Test
+	public void testConstantExpression () {
+		assertEquals("LOAD_INT_CONST(120000) RETURN", describe("millis"));
+		assertEquals(120000, run("millis"));
+	}
+	
+	@Test
+	public void testMultiplyByPowerOfTwo () {
+		assertEquals("LOAD_INT_LOCAL(0) SHIFT_LEFT(3) RETURN", describe("times8"));
+		assertEquals(24, run("times8", 3));
+		assertEquals(-40, run("times8", -5));
+		assertEquals(Integer.MAX_VALUE * 8, run("times8", Integer.MAX_VALUE));
+	}
+	
+	@Test
+	public void testDivideByPowerOfTwo () {
+		//Shifting would round -9/8 down to -2
+		assertEquals("LOAD_INT_LOCAL(0) LOAD_INT_CONST(8) DIVIDE RETURN", describe("div8"));
+		assertEquals(-1, run("div8", -9));
+		assertEquals(2, run("div8", 17));
+	}
+	
+	@Test
+	public void testIdentities () {
+		assertEquals("LOAD_INT_LOCAL(0) RETURN", describe("identity"));
+		assertEquals(-7, run("identity", -7));
+	}
+	
+	@Test
+	public void testPower () {
+		assertEquals("LOAD_INT_LOCAL(0) LOAD_INT_CONST(3) POWER LOAD_INT_CONST(1024) ADD RETURN", describe("cube"));
+		assertEquals(1149, run("cube", 5));
+		assertEquals(1024 - 27, run("cube", -3));
+	}
+	
+	@Test
+	public void testDivisionByZeroIsNotFolded () {
+		assertEquals("LOAD_INT_CONST(1) LOAD_INT_CONST(0) DIVIDE RETURN", describe("divzero"));
+		try {
+			run("divzero");
+			fail("Expected an ArithmeticException");
+		} catch (ArithmeticException ex) {
+			//Expected
+		}
+	}
+	
+	@Test
+	public void testPartialFolding () {
+		assertEquals("LOAD_INT_CONST(7) LOAD_INT_LOCAL(0) SHIFT_LEFT(2) ADD RETURN", describe("mixed"));
+		assertEquals(27, run("mixed", 5));
+	}
+	
+	@Test
+	public void testPrecedence () {
+		//Subtraction is left-associative, while power is right-associative (2^9, not 8^2)
+		assertEquals(10 - 6 - 100 + 512, run("precedence", 10));
+	}
+	
+	@Test
+	public void testIntegerPower () {
+		assertEquals(1, ScriptMath.power(7, 0));
+		assertEquals(-128, ScriptMath.power(-2, 7));
+		assertEquals(0, ScriptMath.power(2, -1));
+		assertEquals(-1, ScriptMath.power(-1, -3));
+		int expected = 1;
+		for (int i=0;i<40;i++) {//Overflow wraps, like multiplication
+			assertEquals(expected, ScriptMath.power(3, i));
+			expected *= 3;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package nz.org.francis.scriptmanager.compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import nz.org.francis.scriptmanager.executer.Context;
+import nz.org.francis.scriptmanager.executer.Executer;
+import nz.org.francis.scriptmanager.executer.TestScriptManager;
+import nz.org.francis.scriptmanager.executer.TestScripts;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Francis
+ */
+public class OptimiserTest {
+	
+	public OptimiserTest() {
+		
+	}
+	
+	/**
+	 * Builds an instruction list. Each opcode may be followed by its constant.
+	 */
+	private static InstructionList code (Object... instructions) {
+		List<ScriptOpcode> opcodes = new ArrayList<>();
+		Map<Integer, Object> constants = new HashMap<>();
+		for (Object instruction : instructions) {
+			if (instruction instanceof ScriptOpcode) {
+				opcodes.add((ScriptOpcode) instruction);
+			} else {
+				constants.put(opcodes.size()-1, instruction);
+			}
+		}
+		return new InstructionList(opcodes, constants);
+	}
+	
+	private static String describe (InstructionList code) {
+		ScriptOpcode[] instructions = code.toInstructions();
+		Map<Integer, Object> constants = code.toConstants();
+		StringBuilder builder = new StringBuilder();
+		for (int pos=0;pos<instructions.length;pos++) {
+			if (pos > 0) {
+				builder.append(' ');
+			}
+			builder.append(instructions[pos]);
+			if (constants.containsKey(pos)) {
+				builder.append('(').append(constants.get(pos)).append(')');
+			}
+		}
+		return builder.toString();
+	}
+	
+	@Test
+	public void testJumpToNext () {
+		InstructionList code = code(ScriptOpcode.JUMP, 0, ScriptOpcode.LOAD_INT_CONST, 5, ScriptOpcode.RETURN);
+		assertTrue(new PeepholePass().apply(code));
+		assertEquals("LOAD_INT_CONST(5) RETURN", describe(code));
+	}
+	
+	@Test
+	public void testLoadThenDrop () {
+		InstructionList code = code(ScriptOpcode.LOAD_INT_LOCAL, 0, ScriptOpcode.DROP_INT, 
+				ScriptOpcode.LOAD_STR_CONST, "a", ScriptOpcode.DROP_OBJ, ScriptOpcode.RETURN);
+		assertTrue(new PeepholePass().apply(code));
+		assertEquals("RETURN", describe(code));
+	}
+	
+	@Test
+	public void testDropAtJumpTargetIsKept () {
+		//The drop is shared with the jump, so it can't be removed with the load
+		InstructionList code = code(ScriptOpcode.LOAD_INT_CONST, 1, ScriptOpcode.LOAD_INT_CONST, 2, 
+				ScriptOpcode.JUMP_TRUE, 1, ScriptOpcode.LOAD_INT_CONST, 3, ScriptOpcode.DROP_INT, ScriptOpcode.RETURN);
+		new PeepholePass().apply(code);
+		assertEquals("LOAD_INT_CONST(1) LOAD_INT_CONST(3) DROP_INT RETURN", describe(code));
+	}
+	
+	@Test
+	public void testConditionInverted () {
+		//if ($x < 0) { $x = 1; }
+		InstructionList code = code(ScriptOpcode.LOAD_INT_LOCAL, 0, ScriptOpcode.LOAD_INT_CONST, 0, ScriptOpcode.JUMP_LT, 1, 
+				ScriptOpcode.JUMP, 2, ScriptOpcode.LOAD_INT_CONST, 1, ScriptOpcode.ASSIGN_LOCAL_INT, 0);
+		assertTrue(new PeepholePass().apply(code));
+		assertEquals("LOAD_INT_LOCAL(0) LOAD_INT_CONST(0) JUMP_GT_EQ(2) LOAD_INT_CONST(1) ASSIGN_LOCAL_INT(0)", describe(code));
+	}
+	
+	@Test
+	public void testConstantConditions () {
+		InstructionList code = code(ScriptOpcode.LOAD_INT_CONST, 1, ScriptOpcode.JUMP_TRUE, 3, 
+				ScriptOpcode.LOAD_INT_CONST, 3, ScriptOpcode.LOAD_INT_CONST, 4, ScriptOpcode.JUMP_GT, 0, ScriptOpcode.RETURN);
+		InstructionOptimiser.standard().optimise(code);
+		assertEquals("RETURN", describe(code));
+	}
+	
+	@Test
+	public void testJumpThreading () {
+		InstructionList code = code(ScriptOpcode.LOAD_INT_LOCAL, 0, ScriptOpcode.JUMP_TRUE, 2, 
+				ScriptOpcode.LOAD_INT_CONST, 1, ScriptOpcode.DROP_INT, ScriptOpcode.JUMP, 0, ScriptOpcode.JUMP, 1, 
+				ScriptOpcode.LOAD_INT_CONST, 2, ScriptOpcode.LOAD_INT_CONST, 3);
+		assertTrue(new JumpThreadingPass().apply(code));
+		assertEquals(7, code.getTarget(1));
+		assertEquals(7, code.getTarget(4));
+	}
+	
+	@Test
+	public void testJumpToReturn () {
+		InstructionList code = code(ScriptOpcode.LOAD_INT_CONST, 1, ScriptOpcode.JUMP, 1, ScriptOpcode.LOAD_INT_CONST, 2, ScriptOpcode.RETURN);
+		InstructionOptimiser.standard().optimise(code);
+		assertEquals("LOAD_INT_CONST(1) RETURN", describe(code));
+	}
+	
+	@Test
+	public void testUnreachableCode () {
+		InstructionList code = code(ScriptOpcode.LOAD_INT_LOCAL, 0, ScriptOpcode.JUMP_FALSE, 3, ScriptOpcode.LOAD_INT_CONST, 1, 
+				ScriptOpcode.RETURN, ScriptOpcode.LOAD_INT_CONST, 9, ScriptOpcode.LOAD_INT_CONST, 2, ScriptOpcode.RETURN);
+		assertTrue(new UnreachableCodePass().apply(code));
+		assertEquals("LOAD_INT_LOCAL(0) JUMP_FALSE(2) LOAD_INT_CONST(1) RETURN LOAD_INT_CONST(2) RETURN", describe(code));
+	}
+	
+	@Test
+	public void testTailCalls () {
+		//return ~a($x); ~b(); return 1, ~c();
+		InstructionList code = code(ScriptOpcode.LOAD_INT_LOCAL, 0, ScriptOpcode.INVOKE_SCRIPT, 1, ScriptOpcode.RETURN, 
+				ScriptOpcode.INVOKE_SCRIPT, 2, ScriptOpcode.LOAD_INT_CONST, 1, ScriptOpcode.INVOKE_SCRIPT, 3);
+		assertTrue(new TailCallPass().apply(code));
+		assertEquals("LOAD_INT_LOCAL(0) TAIL_CALL(1) RETURN INVOKE_SCRIPT(2) LOAD_INT_CONST(1) TAIL_CALL(3)", describe(code));
+		assertFalse(new TailCallPass().apply(code));
+	}
+	
+	@Test
+	public void testCorpusConformance () throws ParserException {
+		ParserCompiler plain = new ParserCompiler();
+		plain.setOptimiser(null);
+		TestScriptManager plainManager = TestScripts.compileCorpus(plain);
+		TestScriptManager optimisedManager = TestScripts.compileCorpus(new ParserCompiler());
+		int plainSize = 0, optimisedSize = 0;
+		for (CompiledScript script : plainManager.getScripts()) {
+			plainSize += script.getInstructionCount();
+			optimisedSize += optimisedManager.getByName(script.getName()).getInstructionCount();
+		}
+		assertTrue("Optimised "+optimisedSize+" instructions, originally "+plainSize, optimisedSize < plainSize);
+		for (TestScripts.Case testCase : TestScripts.CASES) {
+			assertEquals("Case "+testCase, run(plainManager, testCase), run(optimisedManager, testCase));
+		}
+	}
+	
+	private static TestScripts.Result run (TestScriptManager manager, TestScripts.Case testCase) {
+		Context context = TestScripts.prepare(manager.getByName(testCase.script), testCase.args);
+		new Executer(manager).execute(context);
+		return TestScripts.collect(context, manager);
+	}
+}
@@ -54,6 +54,20 @@ public class ParserCompilerTest {
 		assertEquals(0, parser.getReturnSignature().size());
 	}
 	
+	@Test
+	public void testSkipNestedBody () throws ParserException {
+		parser.setSource("{ while (true) { if (true) { } } } [test,next]()() {}");
+		parser.skipBody();
+		parser.parseHeader();
+		assertEquals("next", parser.getBinding());
+	}
+	
+	@Test(expected=ParserException.class)
+	public void testUnterminatedBody () throws ParserException {
+		parser.setSource("{ while (true) { }");
+		parser.skipBody();
+	}
+	
 	@Test(expected=ParserException.class)
 	public void testInvalidHeader () throws ParserException {		
 		String source = "[test,test7](int1,int2)() {}";
@@ -243,17 +257,34 @@ public class ParserCompilerTest {
 		parser.setSource(source);
 		parser.parseParams(Token.EOF);
 		
-		assertEquals(5, parser.instructions.size());
+		//Constant expressions are folded, so precedence shows up in the result (not 24)
+		assertEquals(1, parser.instructions.size());
+		assertEquals(ScriptOpcode.LOAD_INT_CONST, parser.instructions.get(0));
+		assertEquals(17, parser.constants.get(0));
+		assertEquals(1, parser.constants.size());
+	}
+	
+	@Test
+	public void testSuspendStatements () throws ParserException {
+		String source = "yield;";
+		parser.setSource(source);
+		parser.parseBlockStatement();
+		assertEquals(2, parser.instructions.size());
 		assertEquals(ScriptOpcode.LOAD_INT_CONST, parser.instructions.get(0));
-		assertTrue(parser.constants.containsKey(0));
 		assertEquals(1, parser.constants.get(0));
-		assertEquals(ScriptOpcode.LOAD_INT_CONST, parser.instructions.get(1));
-		assertTrue(parser.constants.containsKey(1));
-		assertEquals(2, parser.constants.get(1));
-		assertEquals(ScriptOpcode.LOAD_INT_CONST, parser.instructions.get(2));
-		assertTrue(parser.constants.containsKey(2));
-		assertEquals(8, parser.constants.get(2));
-		assertEquals(ScriptOpcode.MULTIPLY, parser.instructions.get(3));
-		assertEquals(ScriptOpcode.ADD, parser.instructions.get(4));
+		assertEquals(ScriptOpcode.SLEEP, parser.instructions.get(1));
+		
+		parser = new ScriptParser(linker);
+		parser.setSource("wait 4 * 3;");
+		parser.parseBlockStatement();
+		assertEquals(2, parser.instructions.size());
+		assertEquals(12, parser.constants.get(0));
+		assertEquals(ScriptOpcode.WAIT_EVENT, parser.instructions.get(1));
+	}
+	
+	@Test(expected=ParserException.class)
+	public void testInvalidSleep () throws ParserException {
+		parser.setSource("sleep \"soon\";");
+		parser.parseBlockStatement();
 	}
 }
@@ -0,0 +1,120 @@
+package nz.org.francis.scriptmanager.compiler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import nz.org.francis.scriptmanager.ScriptDataType;
+import nz.org.francis.scriptmanager.executer.Context;
+import nz.org.francis.scriptmanager.executer.Executer;
+import nz.org.francis.scriptmanager.executer.TestScriptManager;
+import nz.org.francis.scriptmanager.executer.TestScripts;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Francis
+ */
+public class SuperinstructionTest {
+	
+	public SuperinstructionTest() {
+		
+	}
+	
+	private static List<ScriptOpcode> instructions (CompiledScript script) {
+		List<ScriptOpcode> list = new ArrayList<>();
+		for (int pos=0;pos<script.getInstructionCount();pos++) {
+			list.add(script.getInstruction(pos));
+		}
+		return list;
+	}
+	
+	@Test
+	public void testLoopIsFused () throws ParserException {
+		TestScriptManager manager = TestScripts.compileCorpus(new ParserCompiler());
+		CompiledScript sum = manager.getByName("sum");
+		List<ScriptOpcode> fused = instructions(sum);
+		assertTrue(fused.toString(), fused.contains(ScriptOpcode.STORE_INT_CONST));//Int $i = 0;
+		assertTrue(fused.toString(), fused.contains(ScriptOpcode.JUMP_LOCAL_LOCAL));//while ($i < $n)
+		assertTrue(fused.toString(), fused.contains(ScriptOpcode.LOCAL_ADD_CONST));//$i = $i + 1;
+		for (int opcode : sum.getBaseCode()) {
+			assertEquals(ScriptOpcode.forOpcode(opcode), ScriptOpcode.forOpcode(opcode).getBase());
+		}
+		Context context = TestScripts.prepare(sum, 1000);
+		new Executer(manager).execute(context);
+		assertEquals(332833500, context.getInt());
+	}
+	
+	@Test
+	public void testJumpIntoSequence () {
+		//The loop jumps back to the ADD, so the increment can't be fused
+		InstructionList code = new InstructionList(Arrays.asList(ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.ADD, 
+				ScriptOpcode.ASSIGN_LOCAL_INT, ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.ASSIGN_LOCAL_INT, ScriptOpcode.JUMP),
+				constants(0, 0, 1, 1, 3, 0, 4, 7, 5, 0, 6, -5));
+		assertTrue(new SuperinstructionPass().apply(code));
+		assertEquals(ScriptOpcode.LOAD_INT_LOCAL, code.get(0));
+		assertEquals(ScriptOpcode.ADD, code.get(2));
+		assertEquals(ScriptOpcode.STORE_INT_CONST, code.get(4));//Nothing jumps between the constant and the assignment
+		assertEquals(7, code.getConstant(4));
+	}
+	
+	@Test
+	public void testSubtractAndCompareWithConstant () {
+		InstructionList code = new InstructionList(Arrays.asList(ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.SUBTRACT, 
+				ScriptOpcode.ASSIGN_LOCAL_INT, ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.JUMP_GT, 
+				ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.ASSIGN_LOCAL_INT),
+				constants(0, 0, 1, 3, 3, 0, 4, 0, 5, 10, 6, -7, 7, 0, 8, 1));
+		new SuperinstructionPass().apply(code);
+		assertEquals(ScriptOpcode.LOCAL_SUB_CONST, code.get(0));
+		assertEquals(ScriptOpcode.JUMP_LOCAL_CONST, code.get(4));
+		assertEquals(ScriptOpcode.COPY_INT_LOCAL, code.get(7));
+		CompiledScript script = CompiledScript.construct(1, "countdown", code.toInstructions(), code.toConstants(), 
+				Arrays.asList(ScriptDataType.INT), Arrays.asList(ScriptDataType.INT), 2, 0);
+		//do { $a = $a - 3; } while ($a > 10); $b = $a;
+		Context context = TestScripts.prepare(script, 30);
+		new Executer(new TestScriptManager()).execute(context);
+		assertEquals(9, context.getIntLocal(0));
+		assertEquals(9, context.getIntLocal(1));
+	}
+	
+	private static Map<Integer, Object> constants (Object... pairs) {
+		Map<Integer, Object> map = new HashMap<>();
+		for (int i=0;i<pairs.length;i+=2) {
+			map.put((Integer) pairs[i], pairs[i+1]);
+		}
+		return map;
+	}
+	
+	@Test
+	public void testCodec () throws IOException, ParserException {
+		TestScriptManager manager = TestScripts.compileCorpus(new ParserCompiler());
+		for (CompiledScript script : manager.getScripts()) {
+			ByteBuffer buffer = ByteBuffer.allocate(script.getEncodedSize());
+			script.encode(buffer);
+			buffer.flip();
+			CompiledScript decoded = new CompiledScript(script.getId());
+			decoded.decode(buffer);
+			assertEquals(script, decoded);
+			assertArrayEquals(script.getBaseCode(), decoded.getBaseCode());
+		}
+	}
+	
+	@Test
+	public void testDecodeVersion1 () throws IOException {
+		ScriptOpcode[] instructions = { ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.ASSIGN_LOCAL_INT, ScriptOpcode.LOAD_STR_CONST, ScriptOpcode.DROP_OBJ };
+		Map<Integer, Object> constants = constants(0, 42, 1, 0, 2, "Hello!");
+		List<ScriptDataType> empty = Arrays.asList(new ScriptDataType[0]);
+		CompiledScript script = CompiledScript.construct(1, "old", instructions, constants, empty, empty, 1, 0);
+		ByteBuffer buffer = ByteBuffer.allocate(script.getEncodedSize());
+		script.encode(buffer);
+		buffer.put(0, (byte) 1);//Scripts without new instructions are encoded the same way in version 1
+		buffer.flip();
+		CompiledScript decoded = new CompiledScript(1);
+		decoded.decode(buffer);
+		assertEquals(script, decoded);
+	}
+}
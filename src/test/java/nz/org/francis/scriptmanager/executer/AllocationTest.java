@@ -0,0 +1,150 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import nz.org.francis.scriptmanager.ApiRegistry;
+import nz.org.francis.scriptmanager.EntityVariables;
+import nz.org.francis.scriptmanager.GlobalVariables;
+import nz.org.francis.scriptmanager.ScriptDataType;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+/**
+ *
+ * @author Francis
+ */
+public class AllocationTest {
+
+	private com.sun.management.ThreadMXBean threadBean;
+	
+	private final Executer executer = new Executer(new TestScriptManager());
+
+	public AllocationTest() {
+
+	}
+
+	@Before
+	public void setUp() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		threadBean = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	private long allocatedBytes (CompiledScript script) {
+		long threadId = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		executer.execute(script);
+		return threadBean.getThreadAllocatedBytes(threadId) - before;
+	}
+
+	@Test
+	public void testLoopDoesNotAllocate() {
+		int shortIterations = 10;
+		int longIterations = 200000;
+		CompiledScript shortScript = TestScripts.loop(shortIterations);
+		CompiledScript longScript = TestScripts.loop(longIterations);
+		for (int i=0;i<20;i++) {//Warm up
+			executer.execute(shortScript);
+			executer.execute(longScript);
+		}
+		long shortAlloc = allocatedBytes(shortScript);
+		long longAlloc = allocatedBytes(longScript);
+		long extraInstructions = (long) (longIterations - shortIterations) * TestScripts.LOOP_BODY_SIZE;
+		//Setting up the context has a fixed cost, but the instructions themselves should never allocate
+		assertTrue("Allocated "+(longAlloc-shortAlloc)+" bytes over "+extraInstructions+" instructions",
+				longAlloc - shortAlloc < 1024);
+	}
+
+	private long allocatedBytes (Executer executer, Context context, CompiledScript script, int arg) {
+		long threadId = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		context.reset(script);
+		context.setIntLocal(0, arg);
+		executer.execute(context);
+		context.getInt();
+		return threadBean.getThreadAllocatedBytes(threadId) - before;
+	}
+
+	@Test
+	public void testCallsDoNotAllocate() throws ParserException {
+		TestScriptManager manager = TestScripts.compileCorpus(new ParserCompiler());
+		Executer executer = new Executer(manager);
+		CompiledScript fib = manager.getByName("fib");
+		Context context = new Context(fib);
+		for (int i=0;i<20;i++) {//Warm up, and grow the frames to their full depth
+			allocatedBytes(executer, context, fib, 20);
+		}
+		long shortAlloc = allocatedBytes(executer, context, fib, 5);
+		long longAlloc = allocatedBytes(executer, context, fib, 20);
+		//fib(20) makes over 20000 calls, whose frames should all come from the context's arenas
+		assertTrue("Allocated "+(longAlloc-shortAlloc)+" bytes over 20000 calls", longAlloc - shortAlloc < 1024);
+	}
+
+	@Test
+	public void testTailCallsDoNotAllocate() throws ParserException {
+		TestScriptManager manager = TestScripts.compileCorpus(new ParserCompiler());
+		Executer executer = new Executer(manager);
+		CompiledScript countdown = manager.getByName("countdown");
+		Context context = new Context(countdown);
+		for (int i=0;i<20;i++) {//Warm up
+			allocatedBytes(executer, context, countdown, 50000);
+		}
+		long shortAlloc = allocatedBytes(executer, context, countdown, 10);
+		long longAlloc = allocatedBytes(executer, context, countdown, 50000);
+		assertTrue("Allocated "+(longAlloc-shortAlloc)+" bytes over 50000 tail calls", longAlloc - shortAlloc < 1024);
+	}
+
+	@Test
+	public void testEntityVariablesDoNotAllocate() throws ParserException {
+		final EntityVariables entities = new EntityVariables();
+		entities.declare("xp", ScriptDataType.INT);
+		entities.declare("level", ScriptDataType.INT);
+		TestScriptManager manager = new TestScriptManager() {
+			@Override
+			public EntityVariables getEntityVariables() {
+				return entities;
+			}
+		};
+		CompiledScript script = new ParserCompiler(new ApiRegistry(), new GlobalVariables(), entities).compileScriptFromString(EntityVariablesTest.SOURCE);
+		manager.register(script);
+		Executer executer = new Executer(manager);
+		int xp = entities.get("xp").getId();
+		for (int entity=0;entity<100000;entity++) {//Fills every chunk the loop below uses
+			entities.setInt(xp, entity, 150);
+			executer.execute(script, entity);
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		for (int entity=0;entity<100000;entity++) {
+			entities.setInt(xp, entity, 150);
+			executer.execute(script, entity);
+		}
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		//The values live in the columns, so there's nothing to allocate per entity
+		assertTrue("Allocated "+allocated+" bytes over 100000 entities", allocated < 1024);
+		assertEquals(2, entities.getInt(entities.get("level").getId(), 99999));
+	}
+
+	@Test
+	public void testPooledExecutionDoesNotAllocate() {
+		CompiledScript script = TestScripts.event();
+		for (int i=0;i<10000;i++) {//Warm up
+			executer.execute(script);
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		for (int i=0;i<10000;i++) {
+			executer.execute(script);
+		}
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		//Contexts are reused, so running an event shouldn't allocate anything
+		assertTrue("Allocated "+allocated+" bytes over 10000 events", allocated < 1024);
+	}
+}
@@ -0,0 +1,132 @@
+package nz.org.francis.scriptmanager.executer;
+
+import nz.org.francis.scriptmanager.ApiFunction;
+import nz.org.francis.scriptmanager.ApiHandler;
+import nz.org.francis.scriptmanager.ApiRegistry;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.executer.closure.ClosureCompiler;
+
+/**
+ * Compares calling an api function through {@link nz.org.francis.scriptmanager.ScriptManager#invokeApiFunction(ApiFunction, Context)}
+ * with calling its handler directly from the {@link ApiRegistry}.
+ * <p>
+ * Run with: <code>java -cp target/classes:target/test-classes nz.org.francis.scriptmanager.executer.ApiDispatchBenchmark [manager|registry]</code>
+ *
+ * @author Francis
+ */
+public class ApiDispatchBenchmark {
+
+	private static final String SOURCE =
+			"[test,adds](Int $n)(Int) {\n"
+			+ "	Int $i = 0;\n"
+			+ "	Int $total = 0;\n"
+			+ "	while ($i < $n) {\n"
+			+ "		$total = add($total, $i);\n"
+			+ "		$i = $i + 1;\n"
+			+ "	}\n"
+			+ "	return $total;\n"
+			+ "}\n";
+
+	private static final int ADD_OPCODE = 100;
+	private static final int CALLS = 1000000;
+	private static final int WARMUP_ROUNDS = 10;
+	private static final int ROUNDS = 10;
+
+	/**
+	 * Implements add the way a script manager would without a registry, by looking at which function was called
+	 */
+	private static class DispatchingScriptManager extends TestScriptManager {
+
+		final ApiRegistry registry;
+
+		DispatchingScriptManager (ApiRegistry registry) {
+			this.registry = registry;
+		}
+
+		@Override
+		public ApiFunction getApiFuncType(int id) {
+			return registry.getFunction(id);
+		}
+
+		@Override
+		public void invokeApiFunction(ApiFunction function, Context ctx) {
+			switch (function.getOpcode()) {
+				case ADD_OPCODE:
+					int right = ctx.getInt();
+					int left = ctx.getInt();
+					ctx.putInt(left + right);
+					break;
+				default:
+					super.invokeApiFunction(function, ctx);
+			}
+		}
+	}
+
+	/**
+	 * The same script manager, but with add's handler in the registry
+	 */
+	private static class DirectScriptManager extends DispatchingScriptManager {
+
+		DirectScriptManager (ApiRegistry registry) {
+			super(registry);
+		}
+
+		@Override
+		public ApiRegistry getApiRegistry() {
+			return registry;
+		}
+	}
+
+	/**
+	 * @return The time per loop iteration of the best round, in nanoseconds
+	 */
+	private static double measure (Executer executer, CompiledScript script) {
+		double best = Double.MAX_VALUE;
+		for (int i=0;i<ROUNDS;i++) {
+			long start = System.nanoTime();
+			Context context = TestScripts.prepare(script, CALLS);
+			executer.execute(context);
+			context.getInt();
+			best = Math.min(best, (System.nanoTime() - start) / (double) CALLS);
+		}
+		return best;
+	}
+
+	private static void report (String name, TestScriptManager manager, ParserCompiler compiler) {
+		for (CompiledScript script : compiler.getScripts()) {
+			manager.register(script);
+		}
+		CompiledScript script = manager.getByName("adds");
+		Executer executer = new Executer(manager);
+		script.setExecutable(null);
+		for (int i=0;i<WARMUP_ROUNDS;i++) {
+			measure(executer, script);
+		}
+		double interpreted = measure(executer, script);
+		script.setExecutable(new ClosureCompiler(manager).compile(script));
+		for (int i=0;i<WARMUP_ROUNDS;i++) {
+			measure(executer, script);
+		}
+		double closure = measure(executer, script);
+		System.out.printf("%-22s interpreter %6.2f ns/call, closure tier %6.2f ns/call%n", name, interpreted, closure);
+	}
+
+	public static void main(String[] args) throws Exception {
+		ApiRegistry registry = new ApiRegistry();
+		registry.register(ADD_OPCODE, "add", new ApiHandler.IntIntToInt() {
+			@Override
+			public int apply(int left, int right) {
+				return left + right;
+			}
+		});
+		ParserCompiler compiler = new ParserCompiler(registry);
+		compiler.compileScriptFromString(SOURCE);
+		//Each run should have a JVM to itself, so the first doesn't skew how the second is compiled
+		if (args.length > 0 && args[0].equals("registry")) {
+			report("Registry handler", new DirectScriptManager(registry), compiler);
+		} else {
+			report("Script manager", new DispatchingScriptManager(registry), compiler);
+		}
+	}
+}
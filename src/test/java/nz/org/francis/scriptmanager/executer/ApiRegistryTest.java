@@ -0,0 +1,155 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import nz.org.francis.scriptmanager.ApiFunction;
+import nz.org.francis.scriptmanager.ApiFunctionType;
+import nz.org.francis.scriptmanager.ApiHandler;
+import nz.org.francis.scriptmanager.ApiRegistry;
+import nz.org.francis.scriptmanager.ScriptDataType;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.executer.closure.ClosureCompiler;
+import nz.org.francis.scriptmanager.executer.jvm.JvmCompiler;
+import nz.org.francis.scriptmanager.executer.register.RegisterCompiler;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that api functions with handlers in the registry are called directly, in every tier
+ *
+ * @author Francis
+ */
+public class ApiRegistryTest {
+
+	private static final String SOURCE =
+			"[test,host](Int $a, Int $b)(Int) {\n"
+			+ "	Int $sum = add($a, $b);\n"
+			+ "	log(\"added\");\n"
+			+ "	print(\"done\");\n"
+			+ "	return double($sum) + length(\"four\");\n"
+			+ "}\n";
+
+	/**
+	 * A script manager which only calls functions through its registry
+	 */
+	private static class RegistryScriptManager extends TestScriptManager {
+
+		final ApiRegistry registry;
+
+		RegistryScriptManager (ApiRegistry registry) {
+			this.registry = registry;
+		}
+
+		@Override
+		public ApiRegistry getApiRegistry() {
+			return registry;
+		}
+
+		@Override
+		public void invokeApiFunction(ApiFunction function, Context ctx) {
+			throw new AssertionError(function.getName()+" should have been called through the registry");
+		}
+	}
+
+	private ApiRegistry registry;
+
+	private RegistryScriptManager manager;
+
+	private final List<String> log = new ArrayList<>();
+
+	public ApiRegistryTest() {
+
+	}
+
+	@Before
+	public void setUp() throws ParserException {
+		registry = new ApiRegistry();
+		registry.register(100, "add", new ApiHandler.IntIntToInt() {
+			@Override
+			public int apply(int left, int right) {
+				return left + right;
+			}
+		});
+		registry.register(101, "double", new ApiHandler.IntToInt() {
+			@Override
+			public int apply(int value) {
+				return value * 2;
+			}
+		});
+		registry.register(102, "log", new ApiHandler.StringToVoid() {
+			@Override
+			public void apply(String value) {
+				log.add(value);
+			}
+		});
+		registry.register(103, "length", new ApiHandler.StringToInt() {
+			@Override
+			public int apply(String value) {
+				return value.length();
+			}
+		});
+		registry.register(ApiFunctionType.PRINT, new ApiHandler.StringToVoid() {
+			@Override
+			public void apply(String value) {
+				log.add("print "+value);
+			}
+		});
+		ParserCompiler compiler = new ParserCompiler(registry);
+		compiler.compileScriptFromString(SOURCE);
+		manager = new RegistryScriptManager(registry);
+		for (CompiledScript script : compiler.getScripts()) {
+			manager.register(script);
+		}
+	}
+
+	@Test
+	public void testLookup() {
+		assertSame(ApiFunctionType.PRINT, registry.getFunction(ApiFunctionType.PRINT.getOpcode()));
+		assertSame(ApiFunctionType.PRINT, registry.getFunction("print"));
+		assertEquals(100, registry.getFunction("add").getOpcode());
+		assertEquals(Arrays.asList(ScriptDataType.INT, ScriptDataType.INT), registry.getFunction(100).getParamSignature());
+		assertNull(registry.getFunction(5000));
+		assertNull(registry.getHandler(-1));
+		assertNull(new ApiRegistry().getHandler(ApiFunctionType.PRINT.getOpcode()));//Built in functions start without a handler
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOpcodeConflict() {
+		registry.register(100, "subtract", new ApiHandler.IntIntToInt() {
+			@Override
+			public int apply(int left, int right) {
+				return left - right;
+			}
+		});
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSignatureMismatch() {
+		registry.register(ApiFunctionType.PRINT, new ApiHandler.IntToVoid() {
+			@Override
+			public void apply(int value) {
+
+			}
+		});
+	}
+
+	@Test
+	public void testAllTiers() {
+		CompiledScript script = manager.getByName("host");
+		List<Optimiser> optimisers = Arrays.asList(null, new ClosureCompiler(manager), new RegisterCompiler(), new JvmCompiler(manager));
+		for (Optimiser optimiser : optimisers) {
+			script.setExecutable(optimiser == null ? null : optimiser.compile(script));
+			assertTrue(optimiser == null || script.getExecutable() != null);
+			log.clear();
+			Context context = new Context(script);
+			context.setArguments(3, 4);
+			new Executer(manager).execute(context);
+			assertArrayEquals("Tier "+optimiser, new Object[] { 18 }, context.takeReturnValues());
+			assertEquals(Arrays.asList("added", "print done"), log);
+		}
+	}
+}
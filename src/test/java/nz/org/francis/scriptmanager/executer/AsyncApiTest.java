@@ -0,0 +1,267 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import nz.org.francis.scriptmanager.ApiFunction;
+import nz.org.francis.scriptmanager.ScriptDataType;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ScriptOpcode;
+import nz.org.francis.scriptmanager.executer.closure.ClosureCompiler;
+import nz.org.francis.scriptmanager.executer.register.RegisterCompiler;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that scripts calling asynchronous api functions are suspended until the result is available, rather than blocking a thread
+ *
+ * @author Francis
+ */
+public class AsyncApiTest {
+
+	private static final int LOOKUP_OPCODE = 100;
+
+	/**
+	 * lookup(Int $key)(Int), which completes with ten times the key
+	 */
+	private static final ApiFunction LOOKUP = new ApiFunction() {
+		@Override
+		public int getOpcode() {
+			return LOOKUP_OPCODE;
+		}
+
+		@Override
+		public String getName() {
+			return "lookup";
+		}
+
+		@Override
+		public List<ScriptDataType> getParamSignature() {
+			return Arrays.asList(ScriptDataType.INT);
+		}
+
+		@Override
+		public List<ScriptDataType> getReturnSignature() {
+			return Arrays.asList(ScriptDataType.INT);
+		}
+	};
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private static class Call {
+		final int key;
+		final CompletableFuture<Object> result = new CompletableFuture<>();
+
+		Call (int key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * A script manager whose lookup function completes when the test decides, or straight away if it's immediate
+	 */
+	private static class AsyncScriptManager extends TestScriptManager {
+
+		final ConcurrentLinkedQueue<Call> pending = new ConcurrentLinkedQueue<>();
+		boolean immediate;
+
+		@Override
+		public ApiFunction getApiFuncType(int id) {
+			return id == LOOKUP_OPCODE ? LOOKUP : super.getApiFuncType(id);
+		}
+
+		@Override
+		public void invokeApiFunction(ApiFunction function, Context ctx) {
+			if (function != LOOKUP) {
+				super.invokeApiFunction(function, ctx);
+				return;
+			}
+			int key = ctx.getInt();
+			if (immediate) {
+				ctx.await(CompletableFuture.completedFuture(key * 10));
+			} else {
+				Call call = new Call(key);
+				pending.add(call);
+				ctx.await(call.result);
+			}
+		}
+
+		/**
+		 * Completes the oldest outstanding call
+		 * @return The key it was called with
+		 */
+		int completeNext () {
+			Call call = pending.poll();
+			call.result.complete(call.key * 10);
+			return call.key;
+		}
+
+		/**
+		 * Completes every outstanding call
+		 * @return The number of calls completed
+		 */
+		int completeAll () {
+			int count = 0;
+			for (Call call = pending.poll();call != null;call = pending.poll()) {
+				call.result.complete(call.key * 10);
+				count++;
+			}
+			return count;
+		}
+	}
+
+	private AsyncScriptManager manager;
+
+	private Executer executer;
+
+	public AsyncApiTest() {
+
+	}
+
+	@Before
+	public void setUp() {
+		manager = new AsyncScriptManager();
+		manager.register(lookupTwice());
+		manager.register(caller());
+		executer = new Executer(manager);
+	}
+
+	/**
+	 * Builds the equivalent of "return lookup($key) + lookup($key + 1);"
+	 */
+	private static CompiledScript lookupTwice () {
+		ScriptOpcode[] instructions = {
+			ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.INVOKE_API,
+			ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.ADD, ScriptOpcode.INVOKE_API,
+			ScriptOpcode.ADD, ScriptOpcode.RETURN
+		};
+		Map<Integer, Object> constants = new HashMap<>();
+		constants.put(0, 0);
+		constants.put(1, LOOKUP_OPCODE);
+		constants.put(2, 0);
+		constants.put(3, 1);
+		constants.put(5, LOOKUP_OPCODE);
+		return CompiledScript.construct(1, "lookupTwice", instructions, constants,
+				Arrays.asList(ScriptDataType.INT), Arrays.asList(ScriptDataType.INT), 1, 0);
+	}
+
+	/**
+	 * Builds the equivalent of "return ~lookupTwice($key) + 1000;"
+	 */
+	private static CompiledScript caller () {
+		ScriptOpcode[] instructions = {
+			ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.INVOKE_SCRIPT,
+			ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.ADD, ScriptOpcode.RETURN
+		};
+		Map<Integer, Object> constants = new HashMap<>();
+		constants.put(0, 0);
+		constants.put(1, 1);
+		constants.put(2, 1000);
+		return CompiledScript.construct(2, "caller", instructions, constants,
+				Arrays.asList(ScriptDataType.INT), Arrays.asList(ScriptDataType.INT), 1, 0);
+	}
+
+	private static int expected (int key) {
+		return key * 10 + (key + 1) * 10 + 1000;
+	}
+
+	@Test
+	public void testSuspendsUntilComplete() throws Exception {
+		ScriptScheduler scheduler = new ScriptScheduler(executer, DIRECT);
+		Future<Object[]> result = scheduler.spawn(manager.getByName("caller"), 5);
+		assertFalse(result.isDone());
+		assertEquals(1, scheduler.getParkedCount());
+		assertEquals(5, manager.completeNext());
+
+		//Resumed inside the called script, which then makes its second call
+		assertFalse(result.isDone());
+		assertEquals(1, scheduler.getParkedCount());
+		assertEquals(6, manager.completeNext());
+		assertArrayEquals(new Object[] { expected(5) }, result.get());
+		assertEquals(0, scheduler.getParkedCount());
+		assertEquals(0, scheduler.getLiveCount());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		ScriptScheduler scheduler = new ScriptScheduler(executer, DIRECT);
+		Future<Object[]> result = scheduler.spawn(manager.getByName("caller"), 5);
+		manager.pending.poll().result.completeExceptionally(new IllegalArgumentException("Lookup failed"));
+		try {
+			result.get();
+			fail("Expected the script to fail");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof IllegalArgumentException);
+		}
+		assertEquals(0, scheduler.getLiveCount());
+	}
+
+	@Test
+	public void testManyOutstandingCalls() throws Exception {
+		int count = 20000;
+		ExecutorService workers = Executors.newFixedThreadPool(2);
+		try {
+			ScriptScheduler scheduler = new ScriptScheduler(executer, workers);
+			List<Future<Object[]>> results = new ArrayList<>();
+			for (int i=0;i<count;i++) {
+				results.add(scheduler.spawn(manager.getByName("caller"), i));
+			}
+			//Every script is waiting for a call at once, while only two threads exist to run them
+			long end = System.currentTimeMillis() + 30000;
+			while (scheduler.getParkedCount() < count && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			assertEquals(count, scheduler.getParkedCount());
+			while (scheduler.getLiveCount() > 0 && System.currentTimeMillis() < end) {
+				manager.completeAll();
+				Thread.sleep(1);
+			}
+			for (int i=0;i<count;i++) {
+				assertArrayEquals(new Object[] { expected(i) }, results.get(i).get(30, TimeUnit.SECONDS));
+			}
+		} finally {
+			workers.shutdown();
+		}
+	}
+
+	@Test
+	public void testWaitsWhenItCantSuspend() {
+		manager.immediate = true;
+		executer.execute(manager.getByName("caller"));//Doesn't throw, as the call is waited for instead
+
+		Context context = new Context(manager.getByName("caller"));
+		context.setArguments(7);
+		executer.executeAndWait(context);
+		assertFalse(context.isSuspended());
+		assertArrayEquals(new Object[] { expected(7) }, context.takeReturnValues());
+
+		//Optimised scripts can't suspend at all
+		CompiledScript script = manager.getByName("lookupTwice");
+		for (Optimiser optimiser : Arrays.asList(new ClosureCompiler(manager), new RegisterCompiler())) {
+			script.setExecutable(optimiser.compile(script));
+			assertNotNull(script.getExecutable());
+			context.reset(manager.getByName("caller"));
+			context.setArguments(7);
+			executer.execute(context);
+			assertFalse(context.isSuspended());
+			assertArrayEquals(new Object[] { expected(7) }, context.takeReturnValues());
+		}
+		assertTrue(manager.pending.isEmpty());
+	}
+}
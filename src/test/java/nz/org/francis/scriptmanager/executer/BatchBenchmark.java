@@ -0,0 +1,64 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+
+/**
+ * Measures how {@link Executer#executeBatch(ForkJoinPool, CompiledScript, List)} scales with the size of the pool, 
+ * running the same script for a batch of entities as would happen in one game tick.
+ * <p>
+ * Run with: <code>java -cp target/classes:target/test-classes nz.org.francis.scriptmanager.executer.BatchBenchmark</code>
+ *
+ * @author Francis
+ */
+public class BatchBenchmark {
+
+	private static final int ENTITIES = 100000;
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 10;
+
+	private static double measure (ForkJoinPool pool, Executer executer, CompiledScript script, List<Object[]> arguments) {
+		long start = System.nanoTime();
+		executer.executeBatch(pool, script, arguments);
+		return arguments.size() / ((System.nanoTime() - start) / 1e9);
+	}
+
+	public static void main(String[] args) throws Exception {
+		TestScriptManager manager = TestScripts.compileCorpus(new ParserCompiler());
+		Executer executer = new Executer(manager);
+		CompiledScript script = manager.getByName("primes");
+		List<Object[]> arguments = new ArrayList<>();
+		for (int i=0;i<ENTITIES;i++) {
+			arguments.add(new Object[] { 20 + i % 50 });
+		}
+		int processors = Runtime.getRuntime().availableProcessors();
+		List<Integer> poolSizes = new ArrayList<>();
+		for (int threads=1;threads<processors;threads*=2) {
+			poolSizes.add(threads);
+		}
+		poolSizes.add(processors);
+		double single = 0;
+		for (int threads : poolSizes) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				for (int i=0;i<WARMUP_ROUNDS;i++) {
+					measure(pool, executer, script, arguments);
+				}
+				double total = 0;
+				for (int i=0;i<ROUNDS;i++) {
+					total += measure(pool, executer, script, arguments);
+				}
+				double rate = total / ROUNDS;
+				if (threads == 1) {
+					single = rate;
+				}
+				System.out.printf("%2d threads: %,.0f entities/sec (%.2fx)%n", threads, rate, rate / single);
+			} finally {
+				pool.shutdown();
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+
+/**
+ * A load test for scripts which call a blocking api function, comparing a fixed pool of platform threads
+ * with a {@link VirtualThreadRunner}, which gives each script its own (virtual, where supported) thread.
+ * <p>
+ * Run with: <code>java -cp target/classes:target/test-classes nz.org.francis.scriptmanager.executer.BlockingApiBenchmark</code>
+ *
+ * @author Francis
+ */
+public class BlockingApiBenchmark {
+
+	private static final int SCRIPTS = 5000;
+	private static final long API_DELAY_MILLIS = 10;
+	private static final int MAX_CONCURRENT = 1000;
+	private static final int ROUNDS = 3;
+
+	private static double measurePool (final Executer executer, final CompiledScript script, int threads) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int i=0;i<SCRIPTS;i++) {
+				final String name = "name"+i;
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						Context context = new Context(script);
+						context.setArguments(name, 1);
+						executer.execute(context);
+						return null;
+					}
+				});
+			}
+			long start = System.nanoTime();
+			for (Future<Void> result : pool.invokeAll(tasks)) {
+				result.get();
+			}
+			return SCRIPTS / ((System.nanoTime() - start) / 1e9);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static double measureRunner (Executer executer, CompiledScript script) throws Exception {
+		VirtualThreadRunner runner = new VirtualThreadRunner(executer, MAX_CONCURRENT);
+		long start = System.nanoTime();
+		List<Future<Object[]>> results = new ArrayList<>();
+		for (int i=0;i<SCRIPTS;i++) {
+			results.add(runner.submit(script, "name"+i, 1));
+		}
+		runner.shutdown();
+		runner.awaitTermination(1, TimeUnit.MINUTES);
+		double rate = SCRIPTS / ((System.nanoTime() - start) / 1e9);
+		for (Future<Object[]> result : results) {
+			result.get();
+		}
+		return rate;
+	}
+
+	public static void main(String[] args) throws Exception {
+		SlowScriptManager manager = new SlowScriptManager(TestScripts.compileCorpus(new ParserCompiler()), API_DELAY_MILLIS);
+		Executer executer = new Executer(manager);
+		CompiledScript script = manager.getByName("greet");
+		int threads = Runtime.getRuntime().availableProcessors() * 2;
+		System.out.println(SCRIPTS+" scripts, each blocking for "+API_DELAY_MILLIS+"ms in an api function");
+		System.out.println("Virtual threads "+(VirtualThreadRunner.virtualThreadsAvailable() ? "are" : "aren't")+" available on this runtime");
+		measurePool(executer, script, threads);
+		measureRunner(executer, script);
+		double pool = 0, runner = 0;
+		for (int i=0;i<ROUNDS;i++) {
+			pool += measurePool(executer, script, threads);
+			runner += measureRunner(executer, script);
+		}
+		pool /= ROUNDS;
+		runner /= ROUNDS;
+		System.out.printf("Fixed pool (%d platform threads): %,10.0f scripts/sec%n", threads, pool);
+		System.out.printf("Thread per script (limit %d):   %,10.0f scripts/sec (%.1fx)%n", MAX_CONCURRENT, runner, runner / pool);
+	}
+}
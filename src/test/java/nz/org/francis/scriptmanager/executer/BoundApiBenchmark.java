@@ -0,0 +1,136 @@
+package nz.org.francis.scriptmanager.executer;
+
+import nz.org.francis.scriptmanager.ApiHandler;
+import nz.org.francis.scriptmanager.ApiRegistry;
+import nz.org.francis.scriptmanager.ScriptFunction;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.executer.closure.ClosureCompiler;
+
+/**
+ * Compares calling a host method bound with {@link ScriptFunction} with calling a hand written {@link ApiHandler.IntIntToInt}.
+ * The handler is timed on its own, as well as from a script, since the rest of the script loop hides most of the difference.
+ * <p>
+ * Run with: <code>java -cp target/classes:target/test-classes nz.org.francis.scriptmanager.executer.BoundApiBenchmark [handler|bound]</code>
+ *
+ * @author Francis
+ */
+public class BoundApiBenchmark {
+
+	private static final String SOURCE =
+			"[test,adds](Int $n)(Int) {\n"
+			+ "	Int $i = 0;\n"
+			+ "	Int $total = 0;\n"
+			+ "	while ($i < $n) {\n"
+			+ "		$total = add($total, $i);\n"
+			+ "		$i = $i + 1;\n"
+			+ "	}\n"
+			+ "	return $total;\n"
+			+ "}\n";
+
+	private static final int ADD_OPCODE = 100;
+	private static final int CALLS = 1000000;
+	private static final int WARMUP_ROUNDS = 10;
+	private static final int ROUNDS = 10;
+
+	private static class Host {
+
+		@ScriptFunction(opcode = ADD_OPCODE)
+		public int add (int left, int right) {
+			return left + right;
+		}
+	}
+
+	private static class RegistryScriptManager extends TestScriptManager {
+
+		final ApiRegistry registry;
+
+		RegistryScriptManager (ApiRegistry registry) {
+			this.registry = registry;
+		}
+
+		@Override
+		public ApiRegistry getApiRegistry() {
+			return registry;
+		}
+	}
+
+	/**
+	 * @return The time per loop iteration of the best round, in nanoseconds
+	 */
+	private static double measure (Executer executer, CompiledScript script) {
+		double best = Double.MAX_VALUE;
+		for (int i=0;i<ROUNDS;i++) {
+			long start = System.nanoTime();
+			Context context = TestScripts.prepare(script, CALLS);
+			executer.execute(context);
+			context.getInt();
+			best = Math.min(best, (System.nanoTime() - start) / (double) CALLS);
+		}
+		return best;
+	}
+
+	/**
+	 * @return The time per call of the best round, in nanoseconds
+	 */
+	private static double measureHandler (ApiHandler handler, Context context) {
+		double best = Double.MAX_VALUE;
+		for (int i=0;i<ROUNDS;i++) {
+			long start = System.nanoTime();
+			int total = 0;
+			for (int j=0;j<CALLS;j++) {
+				context.putInt(total);
+				context.putInt(j);
+				handler.invoke(context);
+				total = context.getInt();
+			}
+			best = Math.min(best, (System.nanoTime() - start) / (double) CALLS);
+			if (total == 42) {
+				System.out.println();//Keeps the total live
+			}
+		}
+		return best;
+	}
+
+	public static void main(String[] args) throws Exception {
+		ApiRegistry registry = new ApiRegistry();
+		//Each run should have a JVM to itself, so the first doesn't skew how the second is compiled
+		boolean bound = args.length > 0 && args[0].equals("bound");
+		if (bound) {
+			registry.registerAll(new Host());
+		} else {
+			registry.register(ADD_OPCODE, "add", new ApiHandler.IntIntToInt() {
+				@Override
+				public int apply(int left, int right) {
+					return left + right;
+				}
+			});
+		}
+		ParserCompiler compiler = new ParserCompiler(registry);
+		compiler.compileScriptFromString(SOURCE);
+		TestScriptManager manager = new RegistryScriptManager(registry);
+		for (CompiledScript script : compiler.getScripts()) {
+			manager.register(script);
+		}
+		CompiledScript script = manager.getByName("adds");
+		ApiHandler handler = registry.getHandler(ADD_OPCODE);
+		Context handlerContext = new Context(script);
+		for (int i=0;i<WARMUP_ROUNDS;i++) {
+			measureHandler(handler, handlerContext);
+		}
+		double direct = measureHandler(handler, handlerContext);
+		Executer executer = new Executer(manager);
+		script.setExecutable(null);
+		for (int i=0;i<WARMUP_ROUNDS;i++) {
+			measure(executer, script);
+		}
+		double interpreted = measure(executer, script);
+		script.setExecutable(new ClosureCompiler(manager).compile(script));
+		for (int i=0;i<WARMUP_ROUNDS;i++) {
+			measure(executer, script);
+		}
+		double closure = measure(executer, script);
+		System.out.printf("%-14s handler %6.2f ns/call, interpreter %6.2f ns/call, closure tier %6.2f ns/call%n",
+				bound ? "Bound method" : "Hand written", direct, interpreted, closure);
+	}
+}
@@ -0,0 +1,50 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.lang.management.ManagementFactory;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+
+/**
+ * Measures the cost of script calls, and how much they allocate, by running the recursive fib script from the corpus,
+ * or the countdown script, which recurses through tail calls.
+ * <p>
+ * Run with: <code>java -cp target/classes:target/test-classes nz.org.francis.scriptmanager.executer.CallBenchmark [fib|countdown]</code>
+ *
+ * @author Francis
+ */
+public class CallBenchmark {
+
+	private static final int N = 25;
+	private static final int CALLS = 242785;//The number of calls fib(25) makes, including the first
+	private static final int COUNTDOWN_CALLS = 250000;
+	private static final int WARMUP_ROUNDS = 20;
+	private static final int ROUNDS = 20;
+
+	public static void main(String[] args) throws Exception {
+		TestScriptManager manager = TestScripts.compileCorpus(new ParserCompiler());
+		boolean tail = args.length > 0 && args[0].equals("countdown");
+		CompiledScript script = manager.getByName(tail ? "countdown" : "fib");
+		int calls = tail ? COUNTDOWN_CALLS + 1 : CALLS;
+		Executer executer = new Executer(manager);
+		Context context = new Context(script);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		double best = Double.MAX_VALUE;
+		long allocated = 0;
+		for (int i=0;i<WARMUP_ROUNDS+ROUNDS;i++) {
+			long before = threads.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			context.reset(script);
+			context.setIntLocal(0, tail ? COUNTDOWN_CALLS : N);
+			executer.execute(context);
+			context.getInt();
+			long time = System.nanoTime() - start;
+			if (i >= WARMUP_ROUNDS) {
+				best = Math.min(best, time / (double) calls);
+				allocated = threads.getThreadAllocatedBytes(threadId) - before;
+			}
+		}
+		System.out.printf("%s: %6.2f ns/call, %.1f bytes allocated per call%n", tail ? "countdown("+COUNTDOWN_CALLS+")" : "fib("+N+")", 
+				best, allocated / (double) calls);
+	}
+}
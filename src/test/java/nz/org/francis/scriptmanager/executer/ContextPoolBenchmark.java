@@ -0,0 +1,50 @@
+package nz.org.francis.scriptmanager.executer;
+
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+
+/**
+ * Compares the number of short event scripts executed per second when every event allocates a new {@link Context}, 
+ * against running them through the {@link ContextPool} used by {@link Executer#execute(CompiledScript)}.
+ * <p>
+ * Run with: <code>java -cp target/classes:target/test-classes nz.org.francis.scriptmanager.executer.ContextPoolBenchmark</code>
+ * 
+ * @author Francis
+ */
+public class ContextPoolBenchmark {
+	
+	private static final int EVENTS_PER_ROUND = 2000000;
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 10;
+	
+	private static double unpooled (Executer executer, CompiledScript script) {
+		long start = System.nanoTime();
+		for (int i=0;i<EVENTS_PER_ROUND;i++) {
+			executer.execute(new Context(script));
+		}
+		return EVENTS_PER_ROUND / ((System.nanoTime() - start) / 1e9);
+	}
+	
+	private static double pooled (Executer executer, CompiledScript script) {
+		long start = System.nanoTime();
+		for (int i=0;i<EVENTS_PER_ROUND;i++) {
+			executer.execute(script);
+		}
+		return EVENTS_PER_ROUND / ((System.nanoTime() - start) / 1e9);
+	}
+
+	public static void main(String[] args) {
+		CompiledScript script = TestScripts.event();
+		Executer executer = new Executer(new TestScriptManager());
+		for (int i=0;i<WARMUP_ROUNDS;i++) {
+			unpooled(executer, script);
+			pooled(executer, script);
+		}
+		double unpooledTotal = 0, pooledTotal = 0;
+		for (int i=0;i<ROUNDS;i++) {
+			unpooledTotal += unpooled(executer, script);
+			pooledTotal += pooled(executer, script);
+		}
+		System.out.printf("New context per event: %,.0f events/sec%n", unpooledTotal / ROUNDS);
+		System.out.printf("Pooled contexts:       %,.0f events/sec%n", pooledTotal / ROUNDS);
+	}
+}
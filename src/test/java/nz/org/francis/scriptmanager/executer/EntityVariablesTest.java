@@ -0,0 +1,186 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import nz.org.francis.scriptmanager.ApiRegistry;
+import nz.org.francis.scriptmanager.EntityVariables;
+import nz.org.francis.scriptmanager.GlobalVariables;
+import nz.org.francis.scriptmanager.ScriptDataType;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.executer.closure.ClosureCompiler;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that each entity's variables are kept apart, in their columns and when scripts use them
+ *
+ * @author Francis
+ */
+public class EntityVariablesTest {
+
+	static final String SOURCE =
+			"[test,gain](Int $xp)(Int) {\n"
+			+ "	@xp = @xp + $xp;\n"
+			+ "	while (@xp >= 100) {\n"
+			+ "		@level = @level + 1;\n"
+			+ "		@xp = @xp - 100;\n"
+			+ "	}\n"
+			+ "	return @level;\n"
+			+ "}\n";
+
+	private final EntityVariables entities = new EntityVariables();
+
+	private final TestScriptManager manager = new TestScriptManager() {
+		@Override
+		public EntityVariables getEntityVariables() {
+			return entities;
+		}
+	};
+
+	public EntityVariablesTest() {
+		entities.declare("xp", ScriptDataType.INT);
+		entities.declare("level", ScriptDataType.INT);
+	}
+
+	private CompiledScript compile () throws ParserException {
+		ParserCompiler compiler = new ParserCompiler(new ApiRegistry(), new GlobalVariables(), entities);
+		CompiledScript script = compiler.compileScriptFromString(SOURCE);
+		manager.register(script);
+		return script;
+	}
+
+	private int gain (CompiledScript script, int entity, int xp) {
+		Context context = new Context(script);
+		context.setEntity(entity);
+		context.setArguments(xp);
+		new Executer(manager).execute(context);
+		return (Integer) context.takeReturnValues()[0];
+	}
+
+	@Test
+	public void testDeclare() {
+		assertEquals(0, entities.get("xp").getId());
+		assertEquals(1, entities.get("level").getId());
+		assertSame(entities.get("xp"), entities.declare("xp", ScriptDataType.INT));
+		try {
+			entities.declare("name", ScriptDataType.STRING);
+			fail("Declared an object entity variable");
+		} catch (IllegalArgumentException ex) {
+		}
+		try {
+			entities.declare("xp", ScriptDataType.BOOLEAN);
+			fail("Redeclared with a different type");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	@Test
+	public void testColumns() {
+		int xp = entities.get("xp").getId();
+		int level = entities.get("level").getId();
+		int[] ids = { 0, EntityVariables.CHUNK_SIZE - 1, EntityVariables.CHUNK_SIZE, 99999 };
+		for (int entity : ids) {
+			assertEquals(0, entities.getInt(xp, entity));
+			entities.setInt(xp, entity, entity + 1);
+		}
+		for (int entity : ids) {
+			assertEquals(entity + 1, entities.getInt(xp, entity));
+			assertEquals(0, entities.getInt(level, entity));
+		}
+		assertEquals(0, entities.getInt(xp, 1));
+		entities.clear(99999);
+		assertEquals(0, entities.getInt(xp, 99999));
+		assertEquals(1, entities.getInt(xp, 0));
+		try {
+			entities.setInt(xp, -5, 1);
+			fail("Wrote to a negative entity");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	@Test
+	public void testScripts() throws ParserException {
+		CompiledScript script = compile();
+		assertEquals(0, gain(script, 7, 60));
+		assertEquals(1, gain(script, 7, 60));
+		assertEquals(3, gain(script, 50000, 310));
+		script.setExecutable(new ClosureCompiler(manager).compile(script));
+		assertNotNull(script.getExecutable());
+		assertEquals(2, gain(script, 7, 100));
+		assertEquals(3, gain(script, 50000, 0));
+		assertEquals(20, entities.getInt(entities.get("xp").getId(), 7));
+		assertEquals(10, entities.getInt(entities.get("xp").getId(), 50000));
+
+		entities.setInt(entities.get("xp").getId(), 8, 250);
+		new Executer(manager).execute(script, 8);//Pooled contexts start with their parameters at 0
+		assertEquals(2, entities.getInt(entities.get("level").getId(), 8));
+		assertEquals(50, entities.getInt(entities.get("xp").getId(), 8));
+	}
+
+	@Test
+	public void testGrowWhileReading() throws InterruptedException {
+		final EntityVariables columns = new EntityVariables();
+		final int count = 128;
+		for (int i=0;i<count;i++) {
+			columns.declare("v"+i, ScriptDataType.INT);
+		}
+		final AtomicInteger misses = new AtomicInteger();
+		final Thread grower = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int id=0;id<count;id++) {
+					for (int chunk=1;chunk<=4096;chunk*=2) {//Each write past the end copies the column's chunk array
+						columns.setInt(id, chunk * EntityVariables.CHUNK_SIZE, 1);
+					}
+				}
+			}
+		});
+		List<Thread> readers = new ArrayList<>();
+		for (int i=0;i<4;i++) {
+			final int entity = i;//All in the first chunk, which every copy of a column shares
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int value=1;grower.isAlive() || value < 100;value++) {
+						for (int id=0;id<count;id++) {
+							columns.setInt(id, entity, value);
+							if (columns.getInt(id, entity) != value) {
+								misses.incrementAndGet();
+							}
+						}
+					}
+				}
+			});
+			readers.add(reader);
+		}
+		grower.start();
+		for (Thread reader : readers) {
+			reader.start();
+		}
+		grower.join();
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		assertEquals(0, misses.get());
+		for (int id=0;id<count;id++) {
+			assertEquals(1, columns.getInt(id, 4096 * EntityVariables.CHUNK_SIZE));
+			assertEquals(0, columns.getInt(id, 5));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoEntity() throws ParserException {
+		CompiledScript script = compile();
+		Context context = new Context(script);
+		context.setArguments(10);
+		new Executer(manager).execute(context);
+	}
+
+	@Test(expected = ParserException.class)
+	public void testUndeclared() throws ParserException {
+		new ParserCompiler(new ApiRegistry(), new GlobalVariables(), entities).compileScriptFromString("[test,bad]()(Int) {\n	return @missing;\n}\n");
+	}
+}
@@ -0,0 +1,230 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.executer.closure.ClosureCompiler;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that executers are independent of each other, and can be shared between threads
+ *
+ * @author Francis
+ */
+public class ExecuterTest {
+
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 200;
+
+	private TestScriptManager manager;
+
+	public ExecuterTest() {
+
+	}
+
+	@Before
+	public void setUp() throws ParserException {
+		manager = TestScripts.compileCorpus(new ParserCompiler());
+	}
+
+	private static List<Integer> run (Executer executer, TestScriptManager manager, TestScripts.Case testCase) {
+		Context context = TestScripts.prepare(manager.getByName(testCase.script), testCase.args);
+		executer.execute(context);
+		List<Integer> ints = new ArrayList<>();
+		while (context.getIntStackSize() > 0) {
+			ints.add(0, context.getInt());
+		}
+		return ints;
+	}
+
+	@Test
+	public void testIndependentExecuters() {
+		Executer executer = new Executer(manager);
+		Context context = TestScripts.prepare(manager.getByName("hypot"), 3, 4);
+		executer.execute(context);
+		assertSame(executer, context.getExecuter());
+		assertEquals(25, context.getInt());
+
+		//Calls are resolved through the executer's own script manager, which doesn't know about "square"
+		Executer other = new Executer(new TestScriptManager());
+		try {
+			other.execute(TestScripts.prepare(manager.getByName("hypot"), 3, 4));
+			fail("Expected the call to fail");
+		} catch (UnsupportedOperationException ex) {
+			//Expected
+		}
+	}
+
+	@Test
+	public void testConcurrentExecution() throws Exception {
+		final List<TestScripts.Case> cases = new ArrayList<>();
+		for (TestScripts.Case testCase : TestScripts.CASES) {
+			if (!testCase.script.equals("greet") && !testCase.script.equals("callvoid")) {//Printing order isn't deterministic across threads
+				cases.add(testCase);
+			}
+		}
+		final List<List<Integer>> expected = new ArrayList<>();
+		Executer interpreter = new Executer(manager);
+		for (TestScripts.Case testCase : cases) {
+			expected.add(run(interpreter, manager, testCase));
+		}
+
+		//Promote scripts part way through, so some threads switch tiers while others are still interpreting the same script
+		TieredCompiler tiering = new TieredCompiler(new ClosureCompiler(manager), 50, 500);
+		final Executer executer = new Executer(manager, tiering);
+		ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (int t=0;t<THREADS;t++) {
+				results.add(threads.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int round=0;round<ROUNDS;round++) {
+							for (int i=0;i<cases.size();i++) {
+								assertEquals("Case "+cases.get(i), expected.get(i), run(executer, manager, cases.get(i)));
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} finally {
+			threads.shutdown();
+			tiering.shutdown();
+		}
+	}
+
+	@Test
+	public void testArgumentsAndReturnValues() {
+		Executer executer = new Executer(manager);
+		Context context = new Context(manager.getByName("flags"));
+		context.setArguments(500);
+		executer.execute(context);
+		assertArrayEquals(new Object[] { true, 10 }, context.takeReturnValues());
+		
+		context.reset(manager.getByName("greet"));
+		context.setArguments("hi", 2);
+		executer.execute(context);
+		assertArrayEquals(new Object[] { "done", 2 }, context.takeReturnValues());
+		assertEquals(0, context.getIntStackSize());
+		assertEquals(0, context.getObjStackSize());
+	}
+
+	@Test
+	public void testMaxDepth() throws ParserException {
+		Executer executer = new Executer(manager);
+		CompiledScript fib = manager.getByName("fib");
+		Context context = new Context(fib);
+		context.setMaxDepth(5);
+		context.setArguments(5);//Nests four calls deep
+		executer.execute(context);
+		assertArrayEquals(new Object[] { 5 }, context.takeReturnValues());
+		context.reset(fib);
+		context.setArguments(7);
+		try {
+			executer.execute(context);
+			fail("Exceeded the maximum depth");
+		} catch (IllegalStateException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().contains("depth of 5"));
+		}
+		
+		ParserCompiler compiler = new ParserCompiler();
+		CompiledScript forever = compiler.compileScriptFromString("[test,forever](Int $n)(Int) {\n	return ~forever($n + 1) + 1;\n}\n");
+		manager.register(forever);
+		context = new Context(forever);
+		try {
+			executer.execute(context);
+			fail("Unbounded recursion should be stopped");
+		} catch (IllegalStateException ex) {
+			assertEquals(Context.DEFAULT_MAX_DEPTH, context.getInvokeDepth());
+		}
+	}
+
+	@Test
+	public void testTailCalls() {
+		Executer executer = new Executer(manager);
+		CompiledScript countdown = manager.getByName("countdown");
+		Context context = new Context(countdown);
+		context.setMaxDepth(1);//Only the first call needs a frame of its own, as each tail call reuses it
+		context.setArguments(50000, 0);
+		executer.execute(context);
+		assertArrayEquals(new Object[] { 1250025000 }, context.takeReturnValues());
+		
+		context.reset(countdown);
+		context.setArguments(1000, 0);
+		context.setBudget(100);
+		executer.execute(context);
+		while (context.isSuspended()) {
+			context.setBudget(100);
+			executer.resume(context);
+		}
+		assertArrayEquals(new Object[] { 500500 }, context.takeReturnValues());
+	}
+
+	@Test
+	public void testBudget() {
+		Executer executer = new Executer(manager);
+		CompiledScript script = manager.getByName("sum");
+		script.setExecutable(new ClosureCompiler(manager).compile(script));//Budgeted contexts must still be interpreted
+		Context context = TestScripts.prepare(script, 1000);
+		context.setBudget(200);
+		executer.execute(context);
+		int slices = 1;
+		while (context.isSuspended()) {
+			assertEquals(Suspension.PREEMPT, context.getSuspension());
+			assertEquals(0, context.getBudget());
+			context.setBudget(200);
+			executer.resume(context);
+			slices++;
+		}
+		assertTrue("Only ran "+slices+" slices", slices > 10);
+		assertEquals(run(executer, manager, new TestScripts.Case("sum", 1000)), Arrays.asList(context.getInt()));
+		
+		context.reset(script);
+		assertEquals(Context.UNLIMITED, context.getBudget());
+	}
+	
+	@Test
+	public void testBatch() {
+		Executer executer = new Executer(manager);
+		List<Object[]> arguments = new ArrayList<>();
+		for (int i=0;i<1000;i++) {
+			arguments.add(new Object[] { i * 7, i % 13 + 1 });
+		}
+		List<Object[]> results = executer.executeBatch(new ForkJoinPool(4), manager.getByName("divmod"), arguments);
+		assertEquals(arguments.size(), results.size());
+		for (int i=0;i<arguments.size();i++) {
+			int b = i % 13 + 1;
+			assertArrayEquals("Run "+i, new Object[] { i * 7 / b, i * 7 % b }, results.get(i));
+		}
+	}
+
+	@Test
+	public void testBatchFailure() {
+		Executer executer = new Executer(manager);
+		List<Object[]> arguments = new ArrayList<>();
+		for (int i=0;i<100;i++) {
+			arguments.add(new Object[] { 10, i == 57 ? 0 : 3 });
+		}
+		try {
+			executer.executeBatch(new ForkJoinPool(4), manager.getByName("divmod"), arguments);
+			fail("Expected the division by zero to be thrown");
+		} catch (ArithmeticException ex) {
+			//Expected
+		}
+		assertTrue(executer.executeBatch(manager.getByName("divmod"), new ArrayList<Object[]>()).isEmpty());
+	}
+}
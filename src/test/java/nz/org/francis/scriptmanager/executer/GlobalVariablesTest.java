@@ -0,0 +1,139 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayList;
+import java.util.List;
+import nz.org.francis.scriptmanager.ApiRegistry;
+import nz.org.francis.scriptmanager.GlobalVariables;
+import nz.org.francis.scriptmanager.ScriptDataType;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.executer.closure.ClosureCompiler;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that scripts can read and write global variables, and that each access mode behaves as declared
+ *
+ * @author Francis
+ */
+public class GlobalVariablesTest {
+
+	private static final String SOURCE =
+			"[test,visit](String $who)(Int) {\n"
+			+ "	%visits = %visits + 1;\n"
+			+ "	%last = $who;\n"
+			+ "	return %visits * 10 + %limit;\n"
+			+ "}\n"
+			+ "[test,last]()(String) {\n"
+			+ "	return %last;\n"
+			+ "}\n";
+
+	private final GlobalVariables globals = new GlobalVariables();
+
+	private final TestScriptManager manager = new TestScriptManager() {
+		@Override
+		public GlobalVariables getGlobalVariables() {
+			return globals;
+		}
+	};
+
+	public GlobalVariablesTest() {
+		globals.declare("limit", ScriptDataType.INT, GlobalVariables.Access.PLAIN);
+		globals.declare("visits", ScriptDataType.INT, GlobalVariables.Access.ATOMIC);
+		globals.declare("last", ScriptDataType.STRING, GlobalVariables.Access.VOLATILE);
+	}
+
+	private void compile () throws ParserException {
+		ParserCompiler compiler = new ParserCompiler(new ApiRegistry(), globals);
+		compiler.compileScriptFromString(SOURCE);
+		for (CompiledScript script : compiler.getScripts()) {
+			manager.register(script);
+		}
+	}
+
+	private Object run (String name, Object... args) {
+		Context context = new Context(manager.getByName(name));
+		context.setArguments(args);
+		new Executer(manager).execute(context);
+		return context.takeReturnValues()[0];
+	}
+
+	@Test
+	public void testDeclare() {
+		GlobalVariables.Variable limit = globals.get("limit");
+		assertEquals(0, limit.getId());
+		assertEquals(1, globals.get("visits").getId());
+		assertEquals(0, globals.get("last").getId());//Object variables are numbered separately
+		assertSame(limit, globals.declare("limit", ScriptDataType.INT, GlobalVariables.Access.PLAIN));
+		try {
+			globals.declare("limit", ScriptDataType.INT, GlobalVariables.Access.VOLATILE);
+			fail("Redeclared with a different access mode");
+		} catch (IllegalArgumentException ex) {
+		}
+		GlobalVariables full = new GlobalVariables(1);
+		full.declare("a", ScriptDataType.BOOLEAN, GlobalVariables.Access.PLAIN);
+		full.declare("b", ScriptDataType.STRING, GlobalVariables.Access.PLAIN);
+		try {
+			full.declare("c", ScriptDataType.INT, GlobalVariables.Access.PLAIN);
+			fail("Declared past the capacity");
+		} catch (IllegalStateException ex) {
+		}
+	}
+
+	@Test
+	public void testScriptsShareGlobals() throws ParserException {
+		compile();
+		globals.setInt(globals.get("limit").getId(), 7);
+		assertEquals(17, run("visit", "ann"));
+		CompiledScript visit = manager.getByName("visit");
+		visit.setExecutable(new ClosureCompiler(manager).compile(visit));
+		assertNotNull(visit.getExecutable());
+		assertEquals(27, run("visit", "bob"));
+		assertEquals("bob", run("last"));
+		assertEquals(2, globals.getInt(globals.get("visits").getId()));
+	}
+
+	@Test(expected = ParserException.class)
+	public void testUndeclared() throws ParserException {
+		new ParserCompiler(new ApiRegistry(), globals).compileScriptFromString("[test,bad]()(Int) {\n	return %missing;\n}\n");
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testManagerWithoutGlobals() throws ParserException {
+		ParserCompiler compiler = new ParserCompiler(new ApiRegistry(), globals);
+		CompiledScript script = compiler.compileScriptFromString("[test,read]()(Int) {\n	return %limit;\n}\n");
+		TestScriptManager plain = new TestScriptManager();
+		plain.register(script);
+		new Executer(plain).execute(new Context(script));
+	}
+
+	@Test
+	public void testAtomicUpdates() throws InterruptedException {
+		final int visits = globals.get("visits").getId();
+		try {
+			globals.getAndAddInt(globals.get("limit").getId(), 1);
+			fail("Updated a plain variable");
+		} catch (IllegalStateException ex) {
+		}
+		assertTrue(globals.compareAndSetInt(visits, 0, 5));
+		assertFalse(globals.compareAndSetInt(visits, 0, 6));
+		List<Thread> threads = new ArrayList<>();
+		for (int i=0;i<4;i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j=0;j<10000;j++) {
+						globals.getAndAddInt(visits, 1);
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40005, globals.getInt(visits));
+	}
+}
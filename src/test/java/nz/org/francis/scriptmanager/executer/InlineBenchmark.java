@@ -0,0 +1,74 @@
+package nz.org.francis.scriptmanager.executer;
+
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.Inliner;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.executer.closure.ClosureCompiler;
+
+/**
+ * Compares a loop which calls a small helper script with the same loop after the helper has been inlined by the {@link Inliner}.
+ * <p>
+ * Run with: <code>java -cp target/classes:target/test-classes nz.org.francis.scriptmanager.executer.InlineBenchmark [call|inline]</code>
+ *
+ * @author Francis
+ */
+public class InlineBenchmark {
+
+	private static final String SOURCE =
+			"[test,square](Int $x)(Int) {\n"
+			+ "	return $x * $x;\n"
+			+ "}\n"
+			+ "[test,squares](Int $n)(Int) {\n"
+			+ "	Int $i = 0;\n"
+			+ "	Int $total = 0;\n"
+			+ "	while ($i < $n) {\n"
+			+ "		$total = $total + ~square($i);\n"
+			+ "		$i = $i + 1;\n"
+			+ "	}\n"
+			+ "	return $total;\n"
+			+ "}\n";
+
+	private static final int CALLS = 1000000;
+	private static final int WARMUP_ROUNDS = 10;
+	private static final int ROUNDS = 10;
+
+	/**
+	 * @return The time per loop iteration of the best round, in nanoseconds
+	 */
+	private static double measure (Executer executer, CompiledScript script) {
+		double best = Double.MAX_VALUE;
+		for (int i=0;i<ROUNDS;i++) {
+			long start = System.nanoTime();
+			Context context = TestScripts.prepare(script, CALLS);
+			executer.execute(context);
+			context.getInt();
+			best = Math.min(best, (System.nanoTime() - start) / (double) CALLS);
+		}
+		return best;
+	}
+
+	public static void main(String[] args) throws Exception {
+		//Each run should have a JVM to itself, so the first doesn't skew how the second is compiled
+		boolean inline = args.length > 0 && args[0].equals("inline");
+		ParserCompiler compiler = new ParserCompiler();
+		compiler.setInliner(inline ? new Inliner() : null);
+		compiler.compileScriptFromString(SOURCE);
+		compiler.link();
+		TestScriptManager manager = new TestScriptManager();
+		for (CompiledScript script : compiler.getScripts()) {
+			manager.register(script);
+		}
+		CompiledScript script = manager.getByName("squares");
+		Executer executer = new Executer(manager);
+		for (int i=0;i<WARMUP_ROUNDS;i++) {
+			measure(executer, script);
+		}
+		double interpreted = measure(executer, script);
+		script.setExecutable(new ClosureCompiler(manager).compile(script));
+		for (int i=0;i<WARMUP_ROUNDS;i++) {
+			measure(executer, script);
+		}
+		double closure = measure(executer, script);
+		System.out.printf("%-8s interpreter %6.2f ns/iteration, closure tier %6.2f ns/iteration%n", inline ? "Inlined" : "Called", interpreted, closure);
+	}
+}
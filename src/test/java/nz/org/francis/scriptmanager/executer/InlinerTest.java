@@ -0,0 +1,174 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import nz.org.francis.scriptmanager.CompilationException;
+import nz.org.francis.scriptmanager.ScriptTable;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.Inliner;
+import nz.org.francis.scriptmanager.compiler.Opcodes;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.executer.closure.ClosureCompiler;
+import nz.org.francis.scriptmanager.executer.jvm.JvmCompiler;
+import nz.org.francis.scriptmanager.executer.register.RegisterCompiler;
+import nz.org.francis.scriptmanager.executer.simt.BatchInterpreter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that scripts with inlined calls behave exactly like the originals, in every tier
+ *
+ * @author Francis
+ */
+public class InlinerTest {
+
+	private static final String COUNTERS =
+			"[test,bump](Int $a)(Int) {\n"
+			+ "	Int $x;\n"
+			+ "	$x = $x + $a;\n"
+			+ "	return $x;\n"
+			+ "}\n"
+			+ "[test,bumps](Int $n)(Int) {\n"
+			+ "	Int $i = 0;\n"
+			+ "	Int $total = 0;\n"
+			+ "	while ($i < $n) {\n"
+			+ "		$total = $total + ~bump($i);\n"
+			+ "		$i = $i + 1;\n"
+			+ "	}\n"
+			+ "	return $total;\n"
+			+ "}\n";
+
+	public InlinerTest() {
+
+	}
+
+	private static TestScriptManager compileLinked (Inliner inliner, String source) throws ParserException {
+		ParserCompiler compiler = new ParserCompiler();
+		compiler.setInliner(inliner);
+		compiler.compileScriptFromString(source);
+		compiler.link();
+		TestScriptManager manager = new TestScriptManager();
+		for (CompiledScript script : compiler.getScripts()) {
+			manager.register(script);
+		}
+		return manager;
+	}
+
+	private static boolean hasCalls (CompiledScript script) {
+		for (int opcode : script.getBaseCode()) {
+			if (opcode == Opcodes.INVOKE_SCRIPT) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static TestScripts.Result run (TestScriptManager manager, Optimiser optimiser, String name, Object... args) {
+		CompiledScript script = manager.getByName(name);
+		script.setExecutable(optimiser == null ? null : optimiser.compile(script));
+		Context context = TestScripts.prepare(script, args);
+		new Executer(manager).execute(context);
+		return TestScripts.collect(context, manager);
+	}
+
+	@Test
+	public void testInlinedCalls() throws ParserException {
+		TestScriptManager manager = compileLinked(new Inliner(), TestScripts.CORPUS);
+		CompiledScript hypot = manager.getByName("hypot");
+		assertFalse(hasCalls(hypot));
+		assertArrayEquals(new int[] { manager.getByName("square").getId() }, hypot.getInlinedScripts());
+		assertFalse(hasCalls(manager.getByName("calldiff")));
+		assertFalse(hasCalls(manager.getByName("callvoid")));
+		assertTrue(hasCalls(manager.getByName("fib")));//Recursive calls stay as calls
+		assertArrayEquals(new int[0], manager.getByName("fib").getInlinedScripts());
+	}
+
+	@Test
+	public void testMaxSize() throws ParserException {
+		TestScriptManager manager = compileLinked(new Inliner(0), TestScripts.CORPUS);
+		assertTrue(hasCalls(manager.getByName("hypot")));
+		assertArrayEquals(new int[0], manager.getByName("hypot").getInlinedScripts());
+	}
+
+	/**
+	 * Runs the script as a single lane of the batch interpreter, if it only takes ints
+	 * @return The ints it returned, or null if it can't be run in a batch
+	 */
+	private static List<Integer> runBatch (TestScriptManager manager, String name, Object... args) {
+		CompiledScript script = manager.getByName(name);
+		int[] lane = new int[args.length];
+		for (int i=0;i<args.length;i++) {
+			if (!(args[i] instanceof Integer)) {
+				return null;
+			}
+			lane[i] = (Integer) args[i];
+		}
+		script.setExecutable(null);
+		List<Integer> ints = new ArrayList<>();
+		for (int value : new BatchInterpreter(new Executer(manager)).execute(script, new int[][] { lane })[0]) {
+			ints.add(value);
+		}
+		return ints;
+	}
+
+	@Test
+	public void testCorpus() throws ParserException {
+		TestScriptManager plain = compileLinked(null, TestScripts.CORPUS);
+		TestScriptManager inlined = compileLinked(new Inliner(), TestScripts.CORPUS);
+		//Inlined callees share their local slots between calls, so every tier has to cope with a local being written while its old value is still on the stack
+		List<Optimiser> optimisers = Arrays.asList(null, new ClosureCompiler(inlined), new RegisterCompiler(), new JvmCompiler(inlined));
+		for (TestScripts.Case test : TestScripts.CASES) {
+			TestScripts.Result expected = run(plain, null, test.script, test.args);
+			for (Optimiser optimiser : optimisers) {
+				assertEquals(test+" tier "+optimiser, expected, run(inlined, optimiser, test.script, test.args));
+			}
+			List<Integer> batch = expected.output.isEmpty() ? runBatch(inlined, test.script, test.args) : null;//Lanes only return ints
+			if (batch != null) {
+				assertEquals(test+" batch", expected.ints, batch);
+			}
+		}
+		for (String name : new String[] { "hypot", "calldiff", "twotwice", "twoplus" }) {
+			assertTrue(name, BatchInterpreter.supports(inlined.getByName(name)));//Without their calls these run in lanes, rather than falling back to the executer
+		}
+	}
+
+	@Test
+	public void testLocalsStartAtZero() throws ParserException {
+		TestScriptManager plain = compileLinked(null, COUNTERS);
+		TestScriptManager inlined = compileLinked(new Inliner(), COUNTERS);
+		assertFalse(hasCalls(inlined.getByName("bumps")));
+		TestScripts.Result expected = run(plain, null, "bumps", 10);
+		assertEquals(Arrays.asList(45), expected.ints);
+		assertEquals(expected, run(inlined, null, "bumps", 10));
+	}
+
+	@Test
+	public void testReplaceInlined() throws ParserException, CompilationException {
+		ParserCompiler compiler = new ParserCompiler();
+		compiler.compileScriptFromString(TestScripts.CORPUS);
+		compiler.link();
+		ScriptTable table = new ScriptTable();
+		table.load(compiler.getScripts());
+		CompiledScript square = compiler.getScript(compiler.compileScriptFromString("[test,square](Int $x)(Int) {\n	return $x * $x + 1;\n}\n").getId());
+		try {
+			table.load(square);
+			fail("Replaced a script which was inlined into a loaded script");
+		} catch (CompilationException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().contains("hypot"));
+		}
+		compiler.link();//Relinking inlines the new square, so hypot can be loaded with it
+		table.load(compiler.getScripts());
+		CompiledScript hypot = null;
+		for (CompiledScript script : compiler.getScripts()) {
+			if (script.getName().equals("hypot")) {
+				hypot = script;
+			}
+		}
+		assertSame(hypot, table.get(hypot.getId()));
+		Context context = TestScripts.prepare(hypot, 3, 4);
+		new Executer(new TestScriptManager()).execute(context);
+		assertEquals(27, context.getInt());
+	}
+}
@@ -0,0 +1,88 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+
+/**
+ * Measures how long cheap scripts take to finish when they're started behind a few expensive ones,
+ * with and without time slicing in the {@link ScriptScheduler}.
+ * <p>
+ * Run with: <code>java -cp target/classes:target/test-classes nz.org.francis.scriptmanager.executer.SchedulerLatencyBenchmark</code>
+ *
+ * @author Francis
+ */
+public class SchedulerLatencyBenchmark {
+
+	private static final int EXPENSIVE = 8;
+	private static final int CHEAP = 2000;
+	private static final int EXPENSIVE_ITERATIONS = 2000000;
+	private static final int CHEAP_ITERATIONS = 100;
+	private static final int TIME_SLICE = 10000;
+	private static final int ROUNDS = 3;
+
+	/**
+	 * Starts the expensive scripts followed by the cheap ones, and records how long each cheap script took to finish
+	 * @return The latencies of the cheap scripts in milliseconds, sorted
+	 */
+	private static double[] measure (Executer executer, CompiledScript script, int threads, int timeSlice) throws Exception {
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		try {
+			ScriptScheduler scheduler = new ScriptScheduler(executer, workers, ScriptScheduler.DEFAULT_CAPACITY, timeSlice);
+			long start = System.nanoTime();
+			List<Future<Object[]>> expensive = new ArrayList<>();
+			for (int i=0;i<EXPENSIVE;i++) {
+				expensive.add(scheduler.spawn(script, EXPENSIVE_ITERATIONS));
+			}
+			List<Future<Object[]>> cheap = new ArrayList<>();
+			for (int i=0;i<CHEAP;i++) {
+				cheap.add(scheduler.spawn(script, CHEAP_ITERATIONS));
+			}
+			double[] latencies = new double[CHEAP];
+			int remaining = CHEAP;
+			while (remaining > 0) {//Poll for completion, as the futures don't record when they finished
+				for (int i=0;i<CHEAP;i++) {
+					if (latencies[i] == 0 && cheap.get(i).isDone()) {
+						latencies[i] = (System.nanoTime() - start) / 1e6;
+						remaining--;
+					}
+				}
+				Thread.sleep(1);
+			}
+			for (Future<Object[]> result : expensive) {
+				result.get();
+			}
+			Arrays.sort(latencies);
+			return latencies;
+		} finally {
+			workers.shutdown();
+		}
+	}
+
+	private static void report (String name, Executer executer, CompiledScript script, int threads, int timeSlice) throws Exception {
+		measure(executer, script, threads, timeSlice);//Warm up
+		double p50 = 0, p99 = 0, max = 0;
+		for (int i=0;i<ROUNDS;i++) {
+			double[] latencies = measure(executer, script, threads, timeSlice);
+			p50 += latencies[latencies.length / 2];
+			p99 += latencies[latencies.length * 99 / 100];
+			max += latencies[latencies.length - 1];
+		}
+		System.out.printf("%-14s p50 %8.1f ms, p99 %8.1f ms, max %8.1f ms%n", name, p50 / ROUNDS, p99 / ROUNDS, max / ROUNDS);
+	}
+
+	public static void main(String[] args) throws Exception {
+		TestScriptManager manager = TestScripts.compileCorpus(new ParserCompiler());
+		Executer executer = new Executer(manager);
+		CompiledScript script = manager.getByName("sum");
+		int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+		System.out.println(EXPENSIVE+" expensive and "+CHEAP+" cheap scripts on "+threads+" threads");
+		report("run to finish", executer, script, threads, Context.UNLIMITED);
+		report("time sliced", executer, script, threads, TIME_SLICE);
+	}
+}
@@ -0,0 +1,284 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import nz.org.francis.scriptmanager.ApiFunction;
+import nz.org.francis.scriptmanager.ApiHandler;
+import nz.org.francis.scriptmanager.ApiRegistry;
+import nz.org.francis.scriptmanager.ScriptDataType;
+import nz.org.francis.scriptmanager.ScriptFunction;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.executer.closure.ClosureCompiler;
+import nz.org.francis.scriptmanager.executer.jvm.JvmCompiler;
+import nz.org.francis.scriptmanager.executer.register.RegisterCompiler;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that host methods marked with {@link ScriptFunction} are bound with the right signatures, and called correctly in every tier
+ *
+ * @author Francis
+ */
+public class ScriptFunctionTest {
+
+	private static final String SOURCE =
+			"[test,bound](Int $a, Int $b)(Int, Boolean, String) {\n"
+			+ "	Int $sum = add($a, $b);\n"
+			+ "	Boolean $even = isEven($sum);\n"
+			+ "	note(greet(\"Bob\"));\n"
+			+ "	if (isEven(7)) {\n"
+			+ "		note(\"wrong\");\n"
+			+ "	}\n"
+			+ "	return twice($sum), $even, describe($sum, $even, \"sum\");\n"
+			+ "}\n";
+
+	private static class Host {
+
+		final List<String> notes = new ArrayList<>();
+
+		@ScriptFunction(opcode = 100)
+		public int add (int left, int right) {
+			return left + right;
+		}
+
+		@ScriptFunction(name = "isEven")
+		private boolean even (int value) {
+			return value % 2 == 0;
+		}
+
+		@ScriptFunction
+		public void note (String value) {
+			notes.add(value);
+		}
+
+		@ScriptFunction
+		public String greet (String name) {
+			return "Hello "+name;
+		}
+
+		@ScriptFunction
+		public static int twice (int value) {
+			return value * 2;
+		}
+
+		@ScriptFunction
+		public String describe (int value, boolean flag, String label) {
+			return label+"="+value+(flag ? " even" : " odd");
+		}
+
+		public int notBound (int value) {
+			return value;
+		}
+	}
+
+	private static class LongHost {
+
+		@ScriptFunction
+		public long big (int value) {
+			return value;
+		}
+	}
+
+	private static class BaseHost {
+
+		@ScriptFunction
+		public int level (int xp) {
+			return xp / 100;
+		}
+
+		@ScriptFunction(name = "baseTag")
+		public String tag (String value) {
+			return value;
+		}
+
+		@ScriptFunction
+		public boolean inherited (boolean value) {
+			return !value;
+		}
+	}
+
+	private static class InheritedHost extends BaseHost {
+
+		@Override
+		@ScriptFunction
+		public int level (int xp) {
+			return xp / 50;
+		}
+
+		@Override
+		@ScriptFunction(name = "subTag")
+		public String tag (String value) {
+			return "sub "+value;
+		}
+	}
+
+	private interface Source<T> {
+		T value ();
+	}
+
+	private static class Sink<T> {
+
+		@ScriptFunction
+		public void take (T value) {
+		}
+	}
+
+	/**
+	 * javac gives this class bridge methods for value() and take(Object), carrying the same annotations, which use types scripts can't
+	 */
+	private static class GenericHost extends Sink<String> implements Source<String> {
+
+		@Override
+		@ScriptFunction
+		public String value () {
+			return "generic";
+		}
+
+		@Override
+		@ScriptFunction
+		public void take (String value) {
+		}
+	}
+
+	private static class PartlyBadHost {
+
+		@ScriptFunction
+		public int fine (int value) {
+			return value;
+		}
+
+		@ScriptFunction
+		public long big (int value) {
+			return value;
+		}
+	}
+
+	/**
+	 * A script manager which only calls functions through its registry
+	 */
+	private static class RegistryScriptManager extends TestScriptManager {
+
+		final ApiRegistry registry;
+
+		RegistryScriptManager (ApiRegistry registry) {
+			this.registry = registry;
+		}
+
+		@Override
+		public ApiRegistry getApiRegistry() {
+			return registry;
+		}
+
+		@Override
+		public void invokeApiFunction(ApiFunction function, Context ctx) {
+			throw new AssertionError(function.getName()+" should have been called through the registry");
+		}
+	}
+
+	private ApiRegistry registry;
+
+	private Host host;
+
+	private List<ApiFunction> bound;
+
+	public ScriptFunctionTest() {
+
+	}
+
+	@Before
+	public void setUp() {
+		registry = new ApiRegistry();
+		host = new Host();
+		bound = registry.registerAll(host);
+	}
+
+	@Test
+	public void testSignatures() {
+		assertEquals(6, bound.size());
+		assertEquals(100, registry.getFunction("add").getOpcode());
+		assertEquals(Arrays.asList(ScriptDataType.INT, ScriptDataType.INT), registry.getFunction("add").getParamSignature());
+		assertEquals(Arrays.asList(ScriptDataType.BOOLEAN), registry.getFunction("isEven").getReturnSignature());
+		assertEquals(Arrays.asList(), registry.getFunction("note").getReturnSignature());
+		assertEquals(Arrays.asList(ScriptDataType.INT, ScriptDataType.BOOLEAN, ScriptDataType.STRING), registry.getFunction("describe").getParamSignature());
+		assertNull(registry.getFunction("even"));
+		assertNull(registry.getFunction("notBound"));
+		for (ApiFunction function : bound) {
+			assertSame(function, registry.getFunction(function.getOpcode()));
+			assertNotNull(registry.getHandler(function.getOpcode()));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedType() {
+		registry.registerAll(new LongHost());
+	}
+
+	@Test
+	public void testNameConflict() {
+		ApiHandler add = registry.getHandler(100);
+		try {
+			registry.registerAll(new Host());//Every function is already bound, with a different opcode for the ones without a fixed opcode
+			fail("Registered the functions again");
+		} catch (IllegalArgumentException ex) {
+		}
+		assertSame(add, registry.getHandler(100));//add has a fixed opcode, so binding it again would have been allowed on its own
+		for (ApiFunction function : bound) {
+			assertSame("Replaced "+function.getName(), function, registry.getFunction(function.getName()));
+		}
+	}
+
+	@Test
+	public void testFailureLeavesRegistry() {
+		try {
+			registry.registerAll(new PartlyBadHost());
+			fail("Registered a method returning a long");
+		} catch (IllegalArgumentException ex) {
+		}
+		assertNull(registry.getFunction("fine"));
+		assertNull(registry.getFunction("big"));
+	}
+
+	@Test
+	public void testInheritedHost() {
+		List<ApiFunction> functions = registry.registerAll(new InheritedHost());
+		assertEquals(3, functions.size());
+		assertEquals(Arrays.asList(ScriptDataType.INT), registry.getFunction("level").getParamSignature());
+		assertEquals(Arrays.asList(ScriptDataType.STRING), registry.getFunction("subTag").getReturnSignature());
+		assertEquals(Arrays.asList(ScriptDataType.BOOLEAN), registry.getFunction("inherited").getReturnSignature());
+		assertNull(registry.getFunction("baseTag"));//Overridden, so only the subclass's annotation counts
+	}
+
+	@Test
+	public void testGenericHost() {
+		List<ApiFunction> functions = registry.registerAll(new GenericHost());
+		assertEquals(2, functions.size());
+		assertEquals(Arrays.asList(), registry.getFunction("value").getParamSignature());
+		assertEquals(Arrays.asList(ScriptDataType.STRING), registry.getFunction("value").getReturnSignature());
+		assertEquals(Arrays.asList(ScriptDataType.STRING), registry.getFunction("take").getParamSignature());
+	}
+
+	@Test
+	public void testAllTiers() throws ParserException {
+		ParserCompiler compiler = new ParserCompiler(registry);
+		compiler.compileScriptFromString(SOURCE);
+		RegistryScriptManager manager = new RegistryScriptManager(registry);
+		for (CompiledScript script : compiler.getScripts()) {
+			manager.register(script);
+		}
+		CompiledScript script = manager.getByName("bound");
+		List<Optimiser> optimisers = Arrays.asList(null, new ClosureCompiler(manager), new RegisterCompiler(), new JvmCompiler(manager));
+		for (Optimiser optimiser : optimisers) {
+			script.setExecutable(optimiser == null ? null : optimiser.compile(script));
+			host.notes.clear();
+			Context context = new Context(script);
+			context.setArguments(3, 5);
+			new Executer(manager).execute(context);
+			assertArrayEquals("Tier "+optimiser, new Object[] { 16, true, "sum=8 even" }, context.takeReturnValues());
+			assertEquals(Arrays.asList("Hello Bob"), host.notes);
+		}
+	}
+}
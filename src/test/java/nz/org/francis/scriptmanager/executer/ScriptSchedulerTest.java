@@ -0,0 +1,303 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import nz.org.francis.scriptmanager.ApiFunction;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.executer.closure.ClosureCompiler;
+import nz.org.francis.scriptmanager.executer.jvm.JvmCompiler;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that scripts can suspend themselves and be resumed by the scheduler
+ *
+ * @author Francis
+ */
+public class ScriptSchedulerTest {
+	
+	private static final String SOURCE = 
+			"[test,counter](Int $n)(Int) {\n"
+			+ "	Int $i = 0;\n"
+			+ "	while ($i < $n) {\n"
+			+ "		yield;\n"
+			+ "		$i = $i + 1;\n"
+			+ "	}\n"
+			+ "	return $i;\n"
+			+ "}\n"
+			+ "[test,sleepy](Int $ticks)(Int) {\n"
+			+ "	sleep $ticks;\n"
+			+ "	return $ticks * 2;\n"
+			+ "}\n"
+			+ "[test,nested](String $name)(String, Int) {\n"
+			+ "	Int $x = ~sleepy(3) + ~sleepy(2);\n"
+			+ "	return $name, $x;\n"
+			+ "}\n"
+			+ "[test,waiter](Int $event)(Int) {\n"
+			+ "	wait $event;\n"
+			+ "	return $event + 100;\n"
+			+ "}\n"
+			+ "[test,spinner](Int $n)(Int) {\n"
+			+ "	Int $i = 0;\n"
+			+ "	while ($i < $n) {\n"
+			+ "		$i = $i + 1;\n"
+			+ "	}\n"
+			+ "	return $i;\n"
+			+ "}\n"
+			+ "[test,forever]()() {\n"
+			+ "	Int $i = 0;\n"
+			+ "	while (true) {\n"
+			+ "		$i = $i + 1;\n"
+			+ "	}\n"
+			+ "}\n";
+	
+	/**
+	 * Runs tasks on the calling thread, so the tests can check exactly when scripts run
+	 */
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+	
+	/**
+	 * Queues tasks until the test runs them, so the tests can check the order scripts take turns in
+	 */
+	private static class QueueExecutor implements Executor {
+		
+		final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+		
+		@Override
+		public void execute(Runnable command) {
+			queue.add(command);
+		}
+		
+		void runNext () {
+			queue.poll().run();
+		}
+		
+		void runAll () {
+			while (!queue.isEmpty()) {
+				runNext();
+			}
+		}
+	}
+	
+	private TestScriptManager manager;
+	
+	private Executer executer;
+	
+	public ScriptSchedulerTest() {
+		
+	}
+	
+	@Before
+	public void setUp() throws ParserException {
+		ParserCompiler compiler = new ParserCompiler();
+		compiler.compileScriptFromString(SOURCE);
+		manager = new TestScriptManager();
+		for (CompiledScript script : compiler.getScripts()) {
+			manager.register(script);
+		}
+		executer = new Executer(manager);
+	}
+	
+	@Test
+	public void testYield() throws Exception {
+		ScriptScheduler scheduler = new ScriptScheduler(executer, DIRECT);
+		Future<Object[]> result = scheduler.spawn(manager.getByName("counter"), 3);
+		for (int i=0;i<3;i++) {
+			assertFalse(result.isDone());
+			assertEquals(1, scheduler.getParkedCount());
+			assertEquals(1, scheduler.tick());
+		}
+		assertTrue(result.isDone());
+		assertArrayEquals(new Object[] { 3 }, result.get());
+		assertEquals(0, scheduler.getLiveCount());
+	}
+	
+	@Test
+	public void testSleepInsideCall() throws Exception {
+		ScriptScheduler scheduler = new ScriptScheduler(executer, DIRECT);
+		Future<Object[]> result = scheduler.spawn(manager.getByName("nested"), "entity");
+		for (int i=0;i<4;i++) {
+			scheduler.tick();
+		}
+		assertFalse(result.isDone());//Still in the second call
+		scheduler.tick();
+		assertArrayEquals(new Object[] { "entity", 10 }, result.get());
+	}
+	
+	@Test
+	public void testLongSleep() throws Exception {
+		ScriptScheduler scheduler = new ScriptScheduler(executer, DIRECT);
+		Future<Object[]> result = scheduler.spawn(manager.getByName("sleepy"), 600);//More than two turns of the timing wheel
+		for (int i=0;i<599;i++) {
+			assertEquals(0, scheduler.tick());
+		}
+		assertFalse(result.isDone());
+		assertEquals(1, scheduler.tick());
+		assertArrayEquals(new Object[] { 1200 }, result.get());
+	}
+	
+	@Test
+	public void testWaitForEvent() throws Exception {
+		ScriptScheduler scheduler = new ScriptScheduler(executer, DIRECT);
+		Future<Object[]> first = scheduler.spawn(manager.getByName("waiter"), 7);
+		Future<Object[]> second = scheduler.spawn(manager.getByName("waiter"), 7);
+		Future<Object[]> other = scheduler.spawn(manager.getByName("waiter"), 8);
+		scheduler.tick();
+		assertEquals(0, scheduler.fire(9));
+		assertEquals(2, scheduler.fire(7));
+		assertArrayEquals(new Object[] { 107 }, first.get());
+		assertArrayEquals(new Object[] { 107 }, second.get());
+		assertFalse(other.isDone());
+		assertEquals(1, scheduler.getParkedCount());
+	}
+	
+	@Test
+	public void testCapacity() {
+		ScriptScheduler scheduler = new ScriptScheduler(executer, DIRECT, 2);
+		scheduler.spawn(manager.getByName("sleepy"), 1);
+		scheduler.spawn(manager.getByName("sleepy"), 1);
+		try {
+			scheduler.spawn(manager.getByName("sleepy"), 1);
+			fail("Expected the scheduler to be full");
+		} catch (RejectedExecutionException ex) {
+			//Expected
+		}
+		scheduler.tick();
+		assertEquals(0, scheduler.getLiveCount());
+		scheduler.spawn(manager.getByName("sleepy"), 1);
+	}
+	
+	@Test
+	public void testFailure() throws InterruptedException {
+		ScriptScheduler scheduler = new ScriptScheduler(new Executer(new TestScriptManager()), DIRECT);
+		Future<Object[]> result = scheduler.spawn(manager.getByName("nested"), "entity");//The executer can't find the called script
+		try {
+			result.get();
+			fail("Expected the script to fail");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof UnsupportedOperationException);
+		}
+	}
+	
+	@Test
+	public void testErrorFreesSlot() throws Exception {
+		TestScriptManager failing = new TestScriptManager() {
+			@Override
+			public void invokeApiFunction(ApiFunction function, Context ctx) {
+				throw new LinkageError("Host function failed");
+			}
+		};
+		ParserCompiler compiler = new ParserCompiler();
+		CompiledScript script = compiler.compileScriptFromString("[test,printer]()() {\n	print(\"x\");\n}\n");
+		failing.register(script);
+		ScriptScheduler scheduler = new ScriptScheduler(new Executer(failing), DIRECT, 1);
+		for (int i=0;i<2;i++) {//The second spawn would be rejected if the first failure had kept its slot
+			Future<Object[]> result = scheduler.spawn(script);
+			try {
+				result.get(30, TimeUnit.SECONDS);
+				fail("Expected the script to fail");
+			} catch (ExecutionException ex) {
+				assertTrue(ex.getCause() instanceof LinkageError);
+			}
+			assertEquals(0, scheduler.getLiveCount());
+		}
+	}
+	
+	@Test
+	public void testTimeSlicing() throws Exception {
+		QueueExecutor workers = new QueueExecutor();
+		ScriptScheduler scheduler = new ScriptScheduler(executer, workers, ScriptScheduler.DEFAULT_CAPACITY, 100);
+		Future<Object[]> expensive = scheduler.spawn(manager.getByName("spinner"), 100000);
+		List<Future<Object[]>> cheap = new ArrayList<>();
+		for (int i=0;i<3;i++) {
+			cheap.add(scheduler.spawn(manager.getByName("spinner"), 5));
+		}
+		for (int i=0;i<4;i++) {
+			workers.runNext();
+		}
+		//The expensive script was preempted and sent to the back of the queue, so the others finished first
+		assertFalse(expensive.isDone());
+		for (Future<Object[]> result : cheap) {
+			assertArrayEquals(new Object[] { 5 }, result.get());
+		}
+		workers.runAll();
+		assertArrayEquals(new Object[] { 100000 }, expensive.get());
+		assertEquals(0, scheduler.getParkedCount());
+	}
+	
+	@Test
+	public void testRunawayScript() throws Exception {
+		ExecutorService workers = Executors.newFixedThreadPool(1);
+		try {
+			ScriptScheduler scheduler = new ScriptScheduler(executer, workers, ScriptScheduler.DEFAULT_CAPACITY, 1000);
+			Future<Object[]> runaway = scheduler.spawn(manager.getByName("forever"));
+			Future<Object[]> result = scheduler.spawn(manager.getByName("spinner"), 50);
+			assertArrayEquals(new Object[] { 50 }, result.get(30, TimeUnit.SECONDS));
+			assertFalse(runaway.isDone());
+			runaway.cancel(false);
+			long end = System.currentTimeMillis() + 30000;
+			while (scheduler.getLiveCount() > 0 && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			assertEquals(0, scheduler.getLiveCount());
+		} finally {
+			workers.shutdown();
+		}
+	}
+	
+	@Test
+	public void testSuspendingScriptsStayInterpreted() {
+		assertTrue(ScriptScheduler.maySuspend(manager.getByName("nested"), manager));
+		assertNull(new ClosureCompiler(manager).compile(manager.getByName("nested")));
+		assertNull(new JvmCompiler(manager).compile(manager.getByName("nested")));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testSuspendWithoutScheduler() {
+		executer.execute(manager.getByName("sleepy"));
+	}
+	
+	@Test
+	public void testManyParkedScripts() throws Exception {
+		int count = 200000;
+		ExecutorService workers = Executors.newFixedThreadPool(4);
+		try {
+			ScriptScheduler scheduler = new ScriptScheduler(executer, workers);
+			CompiledScript script = manager.getByName("sleepy");
+			List<Future<Object[]>> results = new ArrayList<>();
+			for (int i=0;i<count;i++) {
+				results.add(scheduler.spawn(script, 1 + i % 5));
+			}
+			long end = System.currentTimeMillis() + 30000;
+			while (scheduler.getParkedCount() < count && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			assertEquals(count, scheduler.getParkedCount());
+			for (int i=0;i<5;i++) {
+				scheduler.tick();
+			}
+			for (int i=0;i<count;i++) {
+				assertArrayEquals(new Object[] { 2 * (1 + i % 5) }, results.get(i).get(30, TimeUnit.SECONDS));
+			}
+			assertEquals(0, scheduler.getLiveCount());
+		} finally {
+			workers.shutdown();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.Arrays;
+import java.util.List;
+import nz.org.francis.scriptmanager.CompilationException;
+import nz.org.francis.scriptmanager.ScriptTable;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.executer.closure.ClosureCompiler;
+import nz.org.francis.scriptmanager.executer.jvm.JvmCompiler;
+import nz.org.francis.scriptmanager.executer.register.RegisterCompiler;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that script calls are linked when they're loaded into a {@link ScriptTable}, and that reloading a callee switches every caller to it
+ *
+ * @author Francis
+ */
+public class ScriptTableTest {
+
+	private static final String SOURCE =
+			"[test,callee](Int $x)(Int) {\n"
+			+ "	return $x + 1;\n"
+			+ "}\n"
+			+ "[test,caller](Int $x)(Int) {\n"
+			+ "	return ~callee($x) * 10;\n"
+			+ "}\n";
+
+	/**
+	 * A script manager which looks scripts up in its table
+	 */
+	private static class TableScriptManager extends TestScriptManager {
+
+		final ScriptTable table = new ScriptTable();
+
+		@Override
+		public ScriptTable getScriptTable() {
+			return table;
+		}
+
+		@Override
+		public CompiledScript getById(int id) {
+			return table.get(id);
+		}
+	}
+
+	private ParserCompiler compiler;
+
+	private TableScriptManager manager;
+
+	public ScriptTableTest() {
+
+	}
+
+	@Before
+	public void setUp() throws ParserException {
+		compiler = new ParserCompiler();
+		compiler.compileScriptFromString(SOURCE);
+		manager = new TableScriptManager();
+	}
+
+	private CompiledScript find (String name) {
+		for (CompiledScript script : compiler.getScripts()) {
+			if (script.getName().equals(name)) {
+				return script;
+			}
+		}
+		return null;
+	}
+
+	private int run (CompiledScript script, int arg) {
+		Context context = new Context(script);
+		context.setArguments(arg);
+		new Executer(manager).execute(context);
+		return (Integer) context.takeReturnValues()[0];
+	}
+
+	@Test
+	public void testLinkedCall() throws CompilationException {
+		manager.table.load(compiler.getScripts());
+		assertSame(find("callee"), manager.table.get(find("callee").getId()));
+		assertEquals(50, run(find("caller"), 4));
+	}
+
+	@Test
+	public void testMissingCallee() throws CompilationException {
+		CompiledScript caller = find("caller");
+		try {
+			manager.table.load(caller);
+			fail("The caller was loaded without its callee");
+		} catch (CompilationException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().contains("caller"));
+		}
+		assertNull(manager.table.get(caller.getId()));//Nothing from a failed load is published
+		manager.table.load(find("callee"));
+		manager.table.load(caller);
+		assertEquals(50, run(caller, 4));
+	}
+
+	@Test
+	public void testReplaceCallee() throws CompilationException, ParserException {
+		manager.table.load(compiler.getScripts());
+		CompiledScript caller = find("caller");
+		CompiledScript original = find("callee");
+		compiler.compileScriptFromString("[test,callee](Int $x)(Int) {\n	return $x + 2;\n}\n");
+		CompiledScript replacement = compiler.getScript(original.getId());
+		assertEquals("callee", replacement.getName());
+		List<Optimiser> optimisers = Arrays.asList(null, new ClosureCompiler(manager), new RegisterCompiler(), new JvmCompiler(manager));
+		for (Optimiser optimiser : optimisers) {
+			manager.table.load(original);
+			caller.setExecutable(optimiser == null ? null : optimiser.compile(caller));
+			assertEquals("Tier "+optimiser, 50, run(caller, 4));
+			manager.table.load(replacement);//The caller, including its compiled form, should pick up the new callee without being relinked
+			assertSame(replacement, manager.table.get(original.getId()));
+			assertEquals("Tier "+optimiser, 60, run(caller, 4));
+		}
+	}
+
+	@Test(expected = CompilationException.class)
+	public void testReplaceSignature() throws CompilationException, ParserException {
+		manager.table.load(compiler.getScripts());
+		compiler.compileScriptFromString("[test,callee](Int $x, Int $y)(Int) {\n	return $x + $y;\n}\n");
+		manager.table.load(compiler.getScript(find("callee").getId()));
+	}
+
+	@Test
+	public void testReplaceWithSuspending() throws CompilationException, ParserException {
+		manager.table.load(compiler.getScripts());
+		CompiledScript original = find("callee");
+		compiler.compileScriptFromString("[test,callee](Int $x)(Int) {\n	sleep 1;\n	return $x + 2;\n}\n");
+		CompiledScript sleepy = compiler.getScript(original.getId());
+		try {
+			manager.table.load(sleepy);
+			fail("Replaced a script which couldn't suspend with one which can");
+		} catch (CompilationException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().contains("suspend"));
+		}
+		assertSame(original, manager.table.get(original.getId()));
+		compiler.compileScriptFromString("[test,sleeper]()() {\n	sleep 1;\n}\n"
+				+ "[test,callee](Int $x)(Int) {\n	~sleeper();\n	return $x + 2;\n}\n");
+		try {
+			manager.table.load(compiler.getScripts());
+			fail("Replaced a script with one which can suspend through a call");
+		} catch (CompilationException ex) {
+		}
+		assertSame(original, manager.table.get(original.getId()));
+
+		ScriptTable table = new ScriptTable();
+		table.load(sleepy);
+		compiler.compileScriptFromString("[test,callee](Int $x)(Int) {\n	sleep 2;\n	return $x + 3;\n}\n");
+		table.load(compiler.getScript(original.getId()));//Callers already had to allow for the original suspending
+	}
+
+	@Test
+	public void testCompiledCallerKeepsCallee() throws CompilationException, ParserException {
+		manager.table.load(compiler.getScripts());
+		CompiledScript caller = find("caller");
+		assertFalse(ScriptScheduler.maySuspend(caller, manager));
+		caller.setExecutable(new JvmCompiler(manager).compile(caller));
+		assertNotNull(caller.getExecutable());
+		compiler.compileScriptFromString("[test,callee](Int $x)(Int) {\n	wait 3;\n	return $x + 2;\n}\n");
+		try {
+			manager.table.load(compiler.getScript(find("callee").getId()));
+			fail("Gave a compiled caller a callee which can suspend");
+		} catch (CompilationException ex) {
+		}
+		assertEquals(50, run(caller, 4));
+	}
+}
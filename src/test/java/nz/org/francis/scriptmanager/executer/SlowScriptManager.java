@@ -0,0 +1,53 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import nz.org.francis.scriptmanager.ApiFunction;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+
+/**
+ * A script manager whose api functions block for a while before running, like a database lookup or file read would. 
+ * It also records the most api calls which were blocked at once.
+ * 
+ * @author Francis
+ */
+public class SlowScriptManager extends TestScriptManager {
+	
+	private final long delayMillis;
+	
+	private final AtomicInteger blocked = new AtomicInteger();
+	private final AtomicInteger maxBlocked = new AtomicInteger();
+	
+	/**
+	 * @param scripts The manager holding the scripts to run
+	 * @param delayMillis How long each api call blocks for
+	 */
+	public SlowScriptManager (TestScriptManager scripts, long delayMillis) {
+		this.delayMillis = delayMillis;
+		for (CompiledScript script : scripts.getScripts()) {
+			register(script);
+		}
+	}
+	
+	public int getMaxBlocked () {
+		return maxBlocked.get();
+	}
+
+	@Override
+	public void invokeApiFunction(ApiFunction function, Context ctx) {
+		int count = blocked.incrementAndGet();
+		while (true) {
+			int max = maxBlocked.get();
+			if (count <= max || maxBlocked.compareAndSet(max, count)) {
+				break;
+			}
+		}
+		try {
+			Thread.sleep(delayMillis);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			blocked.decrementAndGet();
+		}
+		super.invokeApiFunction(function, ctx);
+	}
+}
@@ -0,0 +1,64 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import nz.org.francis.scriptmanager.ApiFunction;
+import nz.org.francis.scriptmanager.ApiFunctionType;
+import nz.org.francis.scriptmanager.ScriptManager;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+
+/**
+ * A script manager for tests, which records anything printed by the scripts it runs
+ * 
+ * @author Francis
+ */
+public class TestScriptManager implements ScriptManager {
+	
+	private final Map<Integer, CompiledScript> scripts = new HashMap<>();
+	
+	private final List<String> output = Collections.synchronizedList(new ArrayList<String>());
+	
+	public void register (CompiledScript script) {
+		scripts.put(script.getId(), script);
+	}
+	
+	public CompiledScript getByName (String name) {
+		for (CompiledScript script : scripts.values()) {
+			if (script.getName().equals(name)) {
+				return script;
+			}
+		}
+		return null;
+	}
+	
+	public Collection<CompiledScript> getScripts () {
+		return scripts.values();
+	}
+	
+	public List<String> getOutput () {
+		return output;
+	}
+
+	@Override
+	public CompiledScript getById(int id) {
+		return scripts.get(id);
+	}
+
+	@Override
+	public ApiFunction getApiFuncType(int id) {
+		return ApiFunctionType.forOpcode(id);
+	}
+
+	@Override
+	public void invokeApiFunction(ApiFunction function, Context ctx) {
+		switch ((ApiFunctionType) function) {
+			case PRINT:
+				output.add((String) ctx.getObj());
+				break;
+		}
+	}
+}
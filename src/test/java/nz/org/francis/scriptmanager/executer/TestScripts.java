@@ -0,0 +1,351 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import nz.org.francis.scriptmanager.ScriptDataType;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.compiler.ScriptOpcode;
+
+/**
+ * Hand-assembled scripts shared by the executer tests and benchmarks
+ * 
+ * @author Francis
+ */
+public class TestScripts {
+	
+	/**
+	 * Source for the scripts which every execution tier must run identically
+	 */
+	public static final String CORPUS = 
+			"[test,arith](Int $a, Int $b)(Int) {\n"
+			+ "	Int $c = $a * $b + 7 - $a / 3;\n"
+			+ "	return $c % 1000;\n"
+			+ "}\n"
+			+ "[test,sum](Int $n)(Int) {\n"
+			+ "	Int $i = 0;\n"
+			+ "	Int $total = 0;\n"
+			+ "	while ($i < $n) {\n"
+			+ "		$total = $total + $i * $i;\n"
+			+ "		$i = $i + 1;\n"
+			+ "	}\n"
+			+ "	return $total;\n"
+			+ "}\n"
+			+ "[test,classify](Int $x)(Int) {\n"
+			+ "	if ($x < 0) {\n"
+			+ "		return -1;\n"
+			+ "	} else if ($x == 0 || $x > 1000) {\n"
+			+ "		return 0;\n"
+			+ "	} else if ($x >= 10 && $x <= 20) {\n"
+			+ "		return 2;\n"
+			+ "	}\n"
+			+ "	return 1;\n"
+			+ "}\n"
+			+ "[test,square](Int $x)(Int) {\n"
+			+ "	return $x * $x;\n"
+			+ "}\n"
+			+ "[test,hypot](Int $a, Int $b)(Int) {\n"
+			+ "	return ~square($a) + ~square($b);\n"
+			+ "}\n"
+			+ "[test,diff](Int $a, Int $b)(Int) {\n"
+			+ "	return $a - $b;\n"
+			+ "}\n"
+			+ "[test,calldiff](Int $a, Int $b)(Int) {\n"
+			+ "	return ~diff($a, $b) * 2;\n"
+			+ "}\n"
+			+ "[test,divmod](Int $a, Int $b)(Int, Int) {\n"
+			+ "	return $a / $b, $a % $b;\n"
+			+ "}\n"
+			+ "[test,fib](Int $n)(Int) {\n"
+			+ "	if ($n < 2) {\n"
+			+ "		return $n;\n"
+			+ "	}\n"
+			+ "	return ~fib($n - 1) + ~fib($n - 2);\n"
+			+ "}\n"
+			+ "[test,countdown](Int $n, Int $total)(Int) {\n"
+			+ "	if ($n == 0) {\n"
+			+ "		return $total;\n"
+			+ "	}\n"
+			+ "	return ~countdown($n - 1, $total + $n);\n"
+			+ "}\n"
+			+ "[test,greet](String $name, Int $times)(String, Int) {\n"
+			+ "	Int $i = 0;\n"
+			+ "	while ($i < $times) {\n"
+			+ "		print($name);\n"
+			+ "		$i = $i + 1;\n"
+			+ "	}\n"
+			+ "	String $s = \"done\";\n"
+			+ "	return $s, $i;\n"
+			+ "}\n"
+			+ "[test,flags](Int $x)(Boolean, Int) {\n"
+			+ "	Boolean $big = false;\n"
+			+ "	Int $r = 0;\n"
+			+ "	if ($x > 100) {\n"
+			+ "		$big = true;\n"
+			+ "	}\n"
+			+ "	if (!$big) {\n"
+			+ "		$r = 1;\n"
+			+ "	}\n"
+			+ "	if ($big) {\n"
+			+ "		$r = $r + 10;\n"
+			+ "	}\n"
+			+ "	return $big, $r;\n"
+			+ "}\n"
+			+ "[test,primes](Int $limit)(Int) {\n"
+			+ "	Int $count = 0;\n"
+			+ "	Int $n = 2;\n"
+			+ "	while ($n <= $limit) {\n"
+			+ "		Int $d = 2;\n"
+			+ "		Int $prime = 1;\n"
+			+ "		while ($d * $d <= $n && $prime == 1) {\n"
+			+ "			if ($n % $d == 0) {\n"
+			+ "				$prime = 0;\n"
+			+ "			}\n"
+			+ "			$d = $d + 1;\n"
+			+ "		}\n"
+			+ "		$count = $count + $prime;\n"
+			+ "		$n = $n + 1;\n"
+			+ "	}\n"
+			+ "	return $count;\n"
+			+ "}\n"
+			+ "[test,shout](String $msg)() {\n"
+			+ "	print($msg);\n"
+			+ "	print(\"!\");\n"
+			+ "}\n"
+			+ "[test,callvoid]()(Int) {\n"
+			+ "	~shout(\"hey\");\n"
+			+ "	~square(3);\n"
+			+ "	return 5;\n"
+			+ "}\n"
+			+ "[test,scale](Int $x)(Int) {\n"
+			+ "	return $x * 16 - $x ^ 3 + 2 ^ 2 ^ 3 - $x / 4;\n"
+			+ "}\n"
+			+ "[test,twice](Int $v)(Int) {\n"
+			+ "	$v = $v * 2;\n"
+			+ "	return $v;\n"
+			+ "}\n"
+			+ "[test,plus](Int $v, Int $n)(Int) {\n"
+			+ "	Int $r = $v + $n;\n"
+			+ "	return $r;\n"
+			+ "}\n"
+			+ "[test,twotwice](Int $x, Int $y)(Int) {\n"
+			+ "	return ~twice($x * 3) + ~twice($y * 3);\n"//Once inlined, the second call writes locals whose values from the first are still on the stack
+			+ "}\n"
+			+ "[test,twoplus](Int $x, Int $y)(Int) {\n"
+			+ "	return ~plus($x, 3) + ~plus($y * 2, 1);\n"
+			+ "}\n";
+	
+	/**
+	 * A script from the corpus along with the arguments to run it with
+	 */
+	public static class Case {
+		public final String script;
+		public final Object[] args;
+		
+		Case (String script, Object... args) {
+			this.script = script;
+			this.args = args;
+		}
+
+		@Override
+		public String toString() {
+			return script+Arrays.toString(args);
+		}
+	}
+	
+	/**
+	 * The scripts and arguments which the execution tiers are checked against
+	 */
+	public static final List<Case> CASES = Collections.unmodifiableList(Arrays.asList(
+		new Case("arith", 6, 7), new Case("arith", -45, 1000), new Case("arith", 0, 0),
+		new Case("sum", 0), new Case("sum", 10), new Case("sum", 1000),
+		new Case("classify", -5), new Case("classify", 0), new Case("classify", 5), new Case("classify", 15), new Case("classify", 20), new Case("classify", 5000),
+		new Case("hypot", 3, 4),
+		new Case("calldiff", 10, 3), new Case("calldiff", 3, 10),
+		new Case("divmod", 47, 5), new Case("divmod", -47, 5),
+		new Case("fib", 0), new Case("fib", 1), new Case("fib", 15),
+		new Case("countdown", 0, 0), new Case("countdown", 100, 0),
+		new Case("greet", "bob", 3), new Case("greet", "nobody", 0),
+		new Case("flags", 5), new Case("flags", 500),
+		new Case("primes", 100),
+		new Case("callvoid"),
+		new Case("scale", 7), new Case("scale", -13), new Case("scale", 5000),
+		new Case("twotwice", 1, 2), new Case("twotwice", -4, 9),
+		new Case("twoplus", 1, 2), new Case("twoplus", 20, -3)
+	));
+	
+	/**
+	 * The values left on the stacks after a script returns, along with anything printed while it ran
+	 */
+	public static class Result {
+		public final List<Integer> ints = new ArrayList<>();
+		public final List<Object> objs = new ArrayList<>();
+		public final List<String> output = new ArrayList<>();
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Result)) {
+				return false;
+			}
+			Result other = (Result) obj;
+			return ints.equals(other.ints) && objs.equals(other.objs) && output.equals(other.output);
+		}
+
+		@Override
+		public int hashCode() {
+			return ints.hashCode() ^ objs.hashCode() ^ output.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return "ints="+ints+", objs="+objs+", output="+output;
+		}
+	}
+	
+	/**
+	 * Compiles the corpus and registers every script with a new script manager
+	 * @param compiler The compiler to use
+	 * @return The script manager
+	 * @throws ParserException If the corpus fails to compile
+	 */
+	public static TestScriptManager compileCorpus (ParserCompiler compiler) throws ParserException {
+		compiler.compileScriptFromString(CORPUS);
+		TestScriptManager manager = new TestScriptManager();
+		for (CompiledScript script : compiler.getScripts()) {
+			manager.register(script);
+		}
+		return manager;
+	}
+	
+	/**
+	 * Creates a context for the script, with the arguments in the parameter local variables
+	 * @param script The script to run
+	 * @param args The arguments for the script. Integers and booleans are passed as int locals, anything else as an object local
+	 * @return The context
+	 */
+	public static Context prepare (CompiledScript script, Object... args) {
+		Context context = new Context(script);
+		int intPos = 0, objPos = 0;
+		for (Object arg : args) {
+			if (arg instanceof Integer) {
+				context.setIntLocal(intPos++, (Integer) arg);
+			} else if (arg instanceof Boolean) {
+				context.setIntLocal(intPos++, ((Boolean) arg) ? 1 : 0);
+			} else {
+				context.setObjLocal(objPos++, arg);
+			}
+		}
+		return context;
+	}
+	
+	/**
+	 * Collects the values left on the context's stacks, bottom first
+	 * @param context The context which has finished running
+	 * @param manager The script manager the context ran with
+	 * @return The result
+	 */
+	public static Result collect (Context context, TestScriptManager manager) {
+		Result result = new Result();
+		while (context.getIntStackSize() > 0) {
+			result.ints.add(0, context.getInt());
+		}
+		while (context.getObjStackSize() > 0) {
+			result.objs.add(0, context.getObj());
+		}
+		result.output.addAll(manager.getOutput());
+		manager.getOutput().clear();
+		return result;
+	}
+	
+	/**
+	 * The number of instructions executed by each iteration of {@link #loop(int)}
+	 */
+	public static final int LOOP_BODY_SIZE = 14;
+
+	/**
+	 * Builds the equivalent of:
+	 * <pre>
+	 * Int $i = 0;
+	 * Int $sum = 0;
+	 * while ($i &lt; iterations) {
+	 *     $sum = $sum + $i * 3;
+	 *     $i = $i + 1;
+	 * }
+	 * </pre>
+	 * @param iterations The number of times to run the loop body
+	 * @return The script
+	 */
+	public static CompiledScript loop (int iterations) {
+		ScriptOpcode[] instructions = {
+			ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.ASSIGN_LOCAL_INT,
+			ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.ASSIGN_LOCAL_INT,
+			ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.JUMP_GT_EQ,
+			ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.MULTIPLY, ScriptOpcode.ADD, ScriptOpcode.ASSIGN_LOCAL_INT,
+			ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.ADD, ScriptOpcode.ASSIGN_LOCAL_INT,
+			ScriptOpcode.JUMP
+		};
+		Map<Integer, Object> constants = new HashMap<>();
+		constants.put(0, 0);
+		constants.put(1, 0);
+		constants.put(2, 0);
+		constants.put(3, 1);
+		constants.put(4, 0);
+		constants.put(5, iterations);
+		constants.put(6, 11);//Jump to the end of the script
+		constants.put(7, 1);
+		constants.put(8, 0);
+		constants.put(9, 3);
+		constants.put(12, 1);
+		constants.put(13, 0);
+		constants.put(14, 1);
+		constants.put(16, 0);
+		constants.put(17, -14);//Jump back to the loop condition
+		return CompiledScript.construct(1, "loop", instructions, constants,
+				Collections.<ScriptDataType>emptyList(), Collections.<ScriptDataType>emptyList(), 2, 0);
+	}
+	
+	/**
+	 * Builds a short, straight-line script typical of an event handler:
+	 * <pre>
+	 * Int $a = 12;
+	 * Int $b = $a * 4 + 7;
+	 * String $s = "event";
+	 * if ($b &gt; 50) {
+	 *     $a = $b % 9;
+	 * }
+	 * </pre>
+	 * @return The script
+	 */
+	public static CompiledScript event () {
+		ScriptOpcode[] instructions = {
+			ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.ASSIGN_LOCAL_INT,
+			ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.MULTIPLY, ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.ADD, ScriptOpcode.ASSIGN_LOCAL_INT,
+			ScriptOpcode.LOAD_STR_CONST, ScriptOpcode.ASSIGN_LOCAL,
+			ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.JUMP_GT, ScriptOpcode.JUMP,
+			ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.LOAD_INT_CONST, ScriptOpcode.MODULO, ScriptOpcode.ASSIGN_LOCAL_INT
+		};
+		Map<Integer, Object> constants = new HashMap<>();
+		constants.put(0, 12);
+		constants.put(1, 0);
+		constants.put(2, 0);
+		constants.put(3, 4);
+		constants.put(5, 7);
+		constants.put(7, 1);
+		constants.put(8, "event");
+		constants.put(9, 0);
+		constants.put(10, 1);
+		constants.put(11, 50);
+		constants.put(12, 1);//Skip the 'false' jump
+		constants.put(13, 4);//Jump to the end of the script
+		constants.put(14, 1);
+		constants.put(15, 9);
+		constants.put(17, 0);
+		return CompiledScript.construct(2, "event", instructions, constants,
+				Collections.<ScriptDataType>emptyList(), Collections.<ScriptDataType>emptyList(), 2, 1);
+	}
+}
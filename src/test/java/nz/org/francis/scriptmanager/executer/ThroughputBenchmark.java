@@ -0,0 +1,77 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+
+/**
+ * Measures how the number of scripts run per second scales with the number of threads sharing one {@link Executer}
+ * and one set of compiled scripts, from a single thread up to the number of available processors.
+ * <p>
+ * Run with: <code>java -cp target/classes:target/test-classes nz.org.francis.scriptmanager.executer.ThroughputBenchmark</code>
+ *
+ * @author Francis
+ */
+public class ThroughputBenchmark {
+
+	private static final int RUNS_PER_THREAD = 20000;
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 5;
+
+	private static double measure (ExecutorService pool, int threads, final Executer executer, final CompiledScript script) throws Exception {
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (int t=0;t<threads;t++) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i=0;i<RUNS_PER_THREAD;i++) {
+						executer.execute(TestScripts.prepare(script, 100));
+					}
+					return null;
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Future<Void> result : pool.invokeAll(tasks)) {
+			result.get();
+		}
+		return (long) threads * RUNS_PER_THREAD / ((System.nanoTime() - start) / 1e9);
+	}
+
+	public static void main(String[] args) throws Exception {
+		TestScriptManager manager = TestScripts.compileCorpus(new ParserCompiler());
+		Executer executer = new Executer(manager);
+		CompiledScript script = manager.getByName("sum");
+		int processors = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(processors);
+		try {
+			List<Integer> threadCounts = new ArrayList<>();
+			for (int threads=1;threads<processors;threads*=2) {
+				threadCounts.add(threads);
+			}
+			threadCounts.add(processors);
+			double single = 0;
+			for (int threads : threadCounts) {
+				for (int i=0;i<WARMUP_ROUNDS;i++) {
+					measure(pool, threads, executer, script);
+				}
+				double total = 0;
+				for (int i=0;i<ROUNDS;i++) {
+					total += measure(pool, threads, executer, script);
+				}
+				double rate = total / ROUNDS;
+				if (threads == 1) {
+					single = rate;
+				}
+				System.out.printf("%2d threads: %,.0f runs/sec (%.2fx)%n", threads, rate, rate / single);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package nz.org.francis.scriptmanager.executer;
+
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.executer.jvm.JvmCompiler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Francis
+ */
+public class TieredCompilerTest {
+	
+	private TestScriptManager manager;
+	
+	private Executer executer;
+	
+	private TieredCompiler tiering;
+	
+	public TieredCompilerTest() {
+		
+	}
+	
+	@Before
+	public void setUp() throws ParserException {
+		manager = TestScripts.compileCorpus(new ParserCompiler());
+		executer = new Executer(manager);
+	}
+	
+	@After
+	public void tearDown() {
+		if (tiering != null) {
+			tiering.shutdown();
+		}
+	}
+	
+	private void enable (int invocationThreshold, int backEdgeThreshold) {
+		tiering = new TieredCompiler(new JvmCompiler(manager), invocationThreshold, backEdgeThreshold);
+		executer = new Executer(manager, tiering);
+	}
+	
+	private int run (String name, Object... args) {
+		Context context = TestScripts.prepare(manager.getByName(name), args);
+		executer.execute(context);
+		return context.getInt();
+	}
+	
+	private static Executable awaitExecutable (CompiledScript script) throws InterruptedException {
+		long end = System.currentTimeMillis() + 10000;
+		while (script.getExecutable() == null && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		return script.getExecutable();
+	}
+	
+	@Test
+	public void testInvocationPromotion() throws InterruptedException {
+		enable(5, Integer.MAX_VALUE);
+		for (int i=0;i<5;i++) {
+			assertEquals(25, run("hypot", 3, 4));
+		}
+		assertNotNull(awaitExecutable(manager.getByName("hypot")));
+		assertNotNull(awaitExecutable(manager.getByName("square")));
+		assertNull(manager.getByName("diff").getExecutable());
+		assertEquals(25, run("hypot", 3, 4));
+		assertEquals(5, manager.getByName("hypot").getInvocationCount());
+	}
+	
+	@Test
+	public void testBackEdgePromotion() throws InterruptedException {
+		enable(Integer.MAX_VALUE, 50);
+		//The running invocation stays in the interpreter, but later ones use the compiled form
+		assertEquals(328350, run("sum", 100));
+		CompiledScript sum = manager.getByName("sum");
+		assertEquals(1, sum.getInvocationCount());
+		assertEquals(100, sum.getBackEdgeCount());
+		assertNotNull(awaitExecutable(sum));
+		assertEquals(285, run("sum", 10));
+		assertEquals(100, sum.getBackEdgeCount());
+	}
+	
+	@Test
+	public void testColdScriptsAreNotCounted() {
+		assertEquals(328350, run("sum", 100));
+		CompiledScript sum = manager.getByName("sum");
+		assertEquals(0, sum.getInvocationCount());
+		assertEquals(0, sum.getBackEdgeCount());
+		assertNull(sum.getExecutable());
+	}
+}
@@ -0,0 +1,85 @@
+package nz.org.francis.scriptmanager.executer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the virtual thread runner limits how many scripts run at once, and drains cleanly when it's shut down
+ *
+ * @author Francis
+ */
+public class VirtualThreadRunnerTest {
+	
+	private TestScriptManager scripts;
+	
+	public VirtualThreadRunnerTest() {
+		
+	}
+	
+	@Before
+	public void setUp() throws ParserException {
+		scripts = TestScripts.compileCorpus(new ParserCompiler());
+	}
+	
+	@Test
+	public void testResults() throws Exception {
+		VirtualThreadRunner runner = new VirtualThreadRunner(new Executer(scripts), 16);
+		List<Future<Object[]>> results = new ArrayList<>();
+		for (int i=0;i<200;i++) {
+			results.add(runner.submit(scripts.getByName("divmod"), i, 7));
+		}
+		for (int i=0;i<results.size();i++) {
+			assertArrayEquals(new Object[] { i / 7, i % 7 }, results.get(i).get());
+		}
+		runner.shutdown();
+		assertTrue(runner.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(0, runner.getRunningCount());
+	}
+	
+	@Test
+	public void testConcurrencyLimit() throws Exception {
+		SlowScriptManager manager = new SlowScriptManager(scripts, 20);
+		VirtualThreadRunner runner = new VirtualThreadRunner(new Executer(manager), 4);
+		List<Future<Object[]>> results = new ArrayList<>();
+		for (int i=0;i<40;i++) {
+			results.add(runner.submit(manager.getByName("greet"), "name"+i, 1));
+		}
+		for (Future<Object[]> result : results) {
+			assertArrayEquals(new Object[] { "done", 1 }, result.get());
+		}
+		assertEquals(40, manager.getOutput().size());
+		assertTrue("Too many scripts ran at once: "+manager.getMaxBlocked(), manager.getMaxBlocked() <= 4);
+		assertTrue("The scripts didn't run concurrently", manager.getMaxBlocked() > 1);
+	}
+	
+	@Test
+	public void testShutdown() throws Exception {
+		SlowScriptManager manager = new SlowScriptManager(scripts, 300);
+		VirtualThreadRunner runner = new VirtualThreadRunner(new Executer(manager), 4);
+		Future<Object[]> result = runner.submit(manager.getByName("greet"), "slow", 1);
+		runner.shutdown();
+		try {
+			runner.submit(manager.getByName("greet"), "late", 1);
+			fail("Expected the runner to reject new scripts");
+		} catch (RejectedExecutionException ex) {
+			//Expected
+		}
+		assertFalse(runner.awaitTermination(1, TimeUnit.MILLISECONDS));
+		assertTrue(runner.awaitTermination(10, TimeUnit.SECONDS));
+		assertTrue(result.isDone());
+		assertArrayEquals(new Object[] { "done", 1 }, result.get());
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testAwaitWithoutShutdown() throws InterruptedException {
+		new VirtualThreadRunner(new Executer(scripts), 1).awaitTermination(1, TimeUnit.SECONDS);
+	}
+}
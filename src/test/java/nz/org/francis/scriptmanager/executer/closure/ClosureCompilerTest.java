@@ -0,0 +1,95 @@
+package nz.org.francis.scriptmanager.executer.closure;
+
+import java.util.ArrayList;
+import java.util.List;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.executer.Context;
+import nz.org.francis.scriptmanager.executer.Executable;
+import nz.org.francis.scriptmanager.executer.Executer;
+import nz.org.francis.scriptmanager.executer.TestScriptManager;
+import nz.org.francis.scriptmanager.executer.TestScripts;
+import nz.org.francis.scriptmanager.executer.jvm.JvmCompiler;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that closure-compiled scripts behave identically to the interpreter
+ *
+ * @author Francis
+ */
+public class ClosureCompilerTest {
+	
+	private TestScriptManager manager;
+	
+	private Executer executer;
+	
+	public ClosureCompilerTest() {
+		
+	}
+	
+	@Before
+	public void setUp() throws ParserException {
+		manager = TestScripts.compileCorpus(new ParserCompiler());
+		executer = new Executer(manager);
+	}
+	
+	private List<TestScripts.Result> runCases () {
+		List<TestScripts.Result> results = new ArrayList<>();
+		for (TestScripts.Case testCase : TestScripts.CASES) {
+			Context context = TestScripts.prepare(manager.getByName(testCase.script), testCase.args);
+			executer.execute(context);
+			results.add(TestScripts.collect(context, manager));
+		}
+		return results;
+	}
+	
+	@Test
+	public void testConformance () {
+		List<TestScripts.Result> interpreted = runCases();
+		ClosureCompiler compiler = new ClosureCompiler(manager);
+		for (CompiledScript script : manager.getScripts()) {
+			Executable executable = compiler.compile(script);
+			assertNotNull("Failed to compile "+script.getName(), executable);
+			script.setExecutable(executable);
+		}
+		List<TestScripts.Result> compiled = runCases();
+		for (int i=0;i<interpreted.size();i++) {
+			assertEquals("Case "+TestScripts.CASES.get(i), interpreted.get(i), compiled.get(i));
+		}
+	}
+	
+	@Test
+	public void testMixedTiers () {
+		List<TestScripts.Result> interpreted = runCases();
+		ClosureCompiler closures = new ClosureCompiler(manager);
+		JvmCompiler classes = new JvmCompiler(manager);
+		int i = 0;
+		for (CompiledScript script : manager.getScripts()) {//Alternate between closures, JVM classes and the interpreter
+			if (i % 3 == 0) {
+				script.setExecutable(closures.compile(script));
+			} else if (i % 3 == 1) {
+				script.setExecutable(classes.compile(script));
+			}
+			i++;
+		}
+		List<TestScripts.Result> mixed = runCases();
+		for (i=0;i<interpreted.size();i++) {
+			assertEquals("Case "+TestScripts.CASES.get(i), interpreted.get(i), mixed.get(i));
+		}
+	}
+	
+	@Test
+	public void testLoopScript () {
+		CompiledScript script = TestScripts.loop(1000);
+		Context interpreted = new Context(script);
+		executer.execute(interpreted);
+		script.setExecutable(new ClosureCompiler(manager).compile(script));
+		Context compiled = new Context(script);
+		executer.execute(compiled);
+		assertEquals(interpreted.getIntStackSize(), compiled.getIntStackSize());
+		assertEquals(interpreted.getIntLocal(1), compiled.getIntLocal(1));
+	}
+}
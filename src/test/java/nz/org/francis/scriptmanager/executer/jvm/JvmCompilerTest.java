@@ -0,0 +1,103 @@
+package nz.org.francis.scriptmanager.executer.jvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.executer.Context;
+import nz.org.francis.scriptmanager.executer.Executable;
+import nz.org.francis.scriptmanager.executer.Executer;
+import nz.org.francis.scriptmanager.executer.TestScriptManager;
+import nz.org.francis.scriptmanager.executer.TestScripts;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that scripts compiled into JVM classes behave identically to the interpreter
+ *
+ * @author Francis
+ */
+public class JvmCompilerTest {
+	
+	private TestScriptManager manager;
+	
+	private Executer executer;
+	
+	public JvmCompilerTest() {
+		
+	}
+	
+	@Before
+	public void setUp() throws ParserException {
+		manager = TestScripts.compileCorpus(new ParserCompiler());
+		executer = new Executer(manager);
+	}
+	
+	private List<TestScripts.Result> runCases () {
+		List<TestScripts.Result> results = new ArrayList<>();
+		for (TestScripts.Case testCase : TestScripts.CASES) {
+			Context context = TestScripts.prepare(manager.getByName(testCase.script), testCase.args);
+			executer.execute(context);
+			results.add(TestScripts.collect(context, manager));
+		}
+		return results;
+	}
+	
+	private void compileAll () {
+		JvmCompiler compiler = new JvmCompiler(manager);
+		for (CompiledScript script : manager.getScripts()) {
+			Executable executable = compiler.compile(script);
+			assertNotNull("Failed to compile "+script.getName(), executable);
+			script.setExecutable(executable);
+		}
+	}
+	
+	@Test
+	public void testInterpreterResults () {
+		List<TestScripts.Result> results = runCases();
+		assertEquals("[47]", results.get(TestScripts.CASES.indexOf(find("arith", 6, 7))).ints.toString());
+		assertEquals("[285]", results.get(TestScripts.CASES.indexOf(find("sum", 10))).ints.toString());
+		assertEquals("[14]", results.get(TestScripts.CASES.indexOf(find("calldiff", 10, 3))).ints.toString());
+		assertEquals("[9, 2]", results.get(TestScripts.CASES.indexOf(find("divmod", 47, 5))).ints.toString());
+		assertEquals("[610]", results.get(TestScripts.CASES.indexOf(find("fib", 15))).ints.toString());
+		assertEquals("[25]", results.get(TestScripts.CASES.indexOf(find("primes", 100))).ints.toString());
+		assertEquals("ints=[3], objs=[done], output=[bob, bob, bob]", results.get(TestScripts.CASES.indexOf(find("greet", "bob", 3))).toString());
+		assertEquals("ints=[5], objs=[], output=[hey, !]", results.get(TestScripts.CASES.indexOf(find("callvoid"))).toString());
+	}
+	
+	private TestScripts.Case find (String script, Object... args) {
+		for (TestScripts.Case testCase : TestScripts.CASES) {
+			if (testCase.toString().equals(script+Arrays.toString(args))) {
+				return testCase;
+			}
+		}
+		throw new IllegalArgumentException(script);
+	}
+	
+	@Test
+	public void testConformance () {
+		List<TestScripts.Result> interpreted = runCases();
+		compileAll();
+		List<TestScripts.Result> compiled = runCases();
+		for (int i=0;i<interpreted.size();i++) {
+			assertEquals("Case "+TestScripts.CASES.get(i), interpreted.get(i), compiled.get(i));
+		}
+	}
+	
+	@Test
+	public void testMixedTiers () {
+		List<TestScripts.Result> interpreted = runCases();
+		JvmCompiler compiler = new JvmCompiler(manager);
+		for (String name : new String[]{ "square", "diff", "shout" }) {//Compiled callees, interpreted callers
+			CompiledScript script = manager.getByName(name);
+			script.setExecutable(compiler.compile(script));
+		}
+		List<TestScripts.Result> mixed = runCases();
+		for (int i=0;i<interpreted.size();i++) {
+			assertEquals("Case "+TestScripts.CASES.get(i), interpreted.get(i), mixed.get(i));
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package nz.org.francis.scriptmanager.executer.register;
+
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.executer.Executer;
+import nz.org.francis.scriptmanager.executer.TestScriptManager;
+import nz.org.francis.scriptmanager.executer.TestScripts;
+
+/**
+ * Compares the stack-based interpreter against register-translated scripts, 
+ * using the hand-assembled loop script and the loop and recursion scripts from the test corpus.
+ * <p>
+ * Run with: <code>java -cp target/classes:target/test-classes nz.org.francis.scriptmanager.executer.register.RegisterBenchmark</code>
+ * 
+ * @author Francis
+ */
+public class RegisterBenchmark {
+	
+	private static final int RUNS_PER_ROUND = 2000;
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 10;
+	
+	private static double run (Executer executer, CompiledScript script, Object... args) {
+		long start = System.nanoTime();
+		for (int i=0;i<RUNS_PER_ROUND;i++) {
+			executer.execute(TestScripts.prepare(script, args));
+		}
+		return RUNS_PER_ROUND / ((System.nanoTime() - start) / 1e9);
+	}
+	
+	private static double measure (TestScriptManager manager, CompiledScript script, Object... args) {
+		Executer executer = new Executer(manager);
+		for (int i=0;i<WARMUP_ROUNDS;i++) {
+			run(executer, script, args);
+		}
+		double total = 0;
+		for (int i=0;i<ROUNDS;i++) {
+			total += run(executer, script, args);
+		}
+		return total / ROUNDS;
+	}
+	
+	/**
+	 * Runs the same script from both managers. Calls are resolved through the script manager, so each script must run with its own.
+	 */
+	private static void compare (TestScriptManager stack, TestScriptManager register, CompiledScript stackScript, CompiledScript registerScript, Object... args) {
+		double stackRate = measure(stack, stackScript, args);
+		double registerRate = measure(register, registerScript, args);
+		System.out.printf("%s (%d stack instructions, %d register instructions)%n", stackScript.getName(), 
+				stackScript.getInstructionCount(), ((RegisterScript) registerScript.getExecutable()).getInstructionCount());
+		System.out.printf("  Stack interpreter: %,.0f runs/sec%n", stackRate);
+		System.out.printf("  Register VM:       %,.0f runs/sec (%.2fx)%n", registerRate, registerRate / stackRate);
+	}
+
+	public static void main(String[] args) throws ParserException {
+		TestScriptManager stack = TestScripts.compileCorpus(new ParserCompiler());
+		TestScriptManager register = TestScripts.compileCorpus(new ParserCompiler());
+		RegisterCompiler compiler = new RegisterCompiler();
+		for (CompiledScript script : register.getScripts()) {
+			script.setExecutable(compiler.compile(script));
+		}
+		CompiledScript registerLoop = TestScripts.loop(10000);
+		registerLoop.setExecutable(compiler.compile(registerLoop));
+		
+		compare(stack, register, TestScripts.loop(10000), registerLoop);
+		compare(stack, register, stack.getByName("sum"), register.getByName("sum"), 1000);
+		compare(stack, register, stack.getByName("fib"), register.getByName("fib"), 15);
+		compare(stack, register, stack.getByName("arith"), register.getByName("arith"), 12, 7);
+	}
+}
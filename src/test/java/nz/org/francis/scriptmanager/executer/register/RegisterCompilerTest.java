@@ -0,0 +1,154 @@
+package nz.org.francis.scriptmanager.executer.register;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import nz.org.francis.scriptmanager.ScriptDataType;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.Inliner;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.compiler.ScriptOpcode;
+import nz.org.francis.scriptmanager.executer.Context;
+import nz.org.francis.scriptmanager.executer.Executable;
+import nz.org.francis.scriptmanager.executer.Executer;
+import nz.org.francis.scriptmanager.executer.TestScriptManager;
+import nz.org.francis.scriptmanager.executer.TestScripts;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that register-translated scripts behave identically to the interpreter
+ *
+ * @author Francis
+ */
+public class RegisterCompilerTest {
+	
+	private TestScriptManager manager;
+	
+	private Executer executer;
+	
+	public RegisterCompilerTest() {
+		
+	}
+	
+	@Before
+	public void setUp() throws ParserException {
+		manager = TestScripts.compileCorpus(new ParserCompiler());
+		executer = new Executer(manager);
+	}
+	
+	private List<TestScripts.Result> runCases () {
+		List<TestScripts.Result> results = new ArrayList<>();
+		for (TestScripts.Case testCase : TestScripts.CASES) {
+			Context context = TestScripts.prepare(manager.getByName(testCase.script), testCase.args);
+			executer.execute(context);
+			results.add(TestScripts.collect(context, manager));
+		}
+		return results;
+	}
+	
+	@Test
+	public void testConformance () {
+		List<TestScripts.Result> interpreted = runCases();
+		RegisterCompiler compiler = new RegisterCompiler();
+		for (CompiledScript script : manager.getScripts()) {
+			Executable executable = compiler.compile(script);
+			assertNotNull("Failed to translate "+script.getName(), executable);
+			script.setExecutable(executable);
+		}
+		List<TestScripts.Result> translated = runCases();
+		for (int i=0;i<interpreted.size();i++) {
+			assertEquals("Case "+TestScripts.CASES.get(i), interpreted.get(i), translated.get(i));
+		}
+	}
+	
+	@Test
+	public void testLoopScript () {
+		CompiledScript script = TestScripts.loop(1000);
+		Context interpreted = new Context(script);
+		executer.execute(interpreted);
+		RegisterScript translated = (RegisterScript) new RegisterCompiler().compile(script);
+		script.setExecutable(translated);
+		Context context = new Context(script);
+		executer.execute(context);
+		assertEquals(interpreted.getIntStackSize(), context.getIntStackSize());
+		assertEquals(interpreted.getIntLocal(0), context.getIntLocal(0));
+		assertEquals(interpreted.getIntLocal(1), context.getIntLocal(1));
+		
+		//Two initial assignments, then a compare, multiply, two adds and a jump in the loop
+		assertEquals(7, translated.getInstructionCount());
+	}
+	
+	@Test
+	public void testOperandOrder () {
+		CompiledScript script = manager.getByName("sum");
+		RegisterScript translated = (RegisterScript) new RegisterCompiler().compile(script);
+		int[] code = translated.getCode();
+		int multiply = -1;
+		for (int pc=0;pc<code.length;pc+=RegisterOpcodes.WIDTH) {
+			if (code[pc] == RegisterOpcodes.MULTIPLY) {
+				multiply = pc;
+			}
+		}
+		assertTrue(multiply >= 0);
+		//$i * $i reads the local directly, and the addition writes straight into $total
+		assertEquals(code[multiply+2], code[multiply+3]);
+		assertEquals(RegisterOpcodes.ADD, code[multiply+RegisterOpcodes.WIDTH]);
+		assertEquals(code[multiply+RegisterOpcodes.WIDTH+1], code[multiply+RegisterOpcodes.WIDTH+2]);
+	}
+	
+	@Test
+	public void testLocalStillOnStack () {
+		//Equivalent to "return $a, ($a = $b), $a;", which leaves the old value of $a on the stack while it's overwritten
+		ScriptOpcode[] instructions = {
+			ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.ASSIGN_LOCAL_INT,
+			ScriptOpcode.LOAD_INT_LOCAL, ScriptOpcode.RETURN
+		};
+		Map<Integer, Object> constants = new HashMap<>();
+		constants.put(0, 0);
+		constants.put(1, 1);
+		constants.put(2, 0);
+		constants.put(3, 0);
+		CompiledScript script = CompiledScript.construct(3, "swap", instructions, constants,
+				Collections.<ScriptDataType>emptyList(), Collections.<ScriptDataType>emptyList(), 2, 0);
+		Context expected = TestScripts.prepare(script, 3, 4);
+		executer.execute(expected);
+		script.setExecutable(new RegisterCompiler().compile(script));
+		Context actual = TestScripts.prepare(script, 3, 4);
+		executer.execute(actual);
+		assertEquals(2, actual.getIntStackSize());
+		assertEquals(TestScripts.collect(expected, manager), TestScripts.collect(actual, manager));
+	}
+	
+	@Test
+	public void testInlinedCallsReuseLocals () throws ParserException {
+		//Each inlined call to twice writes its parameter while the previous call's result is still on the stack in that slot
+		ParserCompiler compiler = new ParserCompiler();
+		compiler.setInliner(new Inliner());
+		compiler.compileScriptFromString(TestScripts.CORPUS);
+		compiler.link();
+		TestScriptManager inlined = new TestScriptManager();
+		for (CompiledScript script : compiler.getScripts()) {
+			inlined.register(script);
+		}
+		Executer inlinedExecuter = new Executer(inlined);
+		int[][] args = { { 1, 2 }, { -4, 9 }, { 20, -3 }, { 0, 0 } };
+		for (String name : new String[] { "twotwice", "twoplus" }) {
+			CompiledScript script = inlined.getByName(name);
+			assertArrayEquals(new int[] { inlined.getByName(name.substring(3)).getId() }, script.getInlinedScripts());
+			for (int[] pair : args) {
+				script.setExecutable(null);
+				Context expected = TestScripts.prepare(script, pair[0], pair[1]);
+				inlinedExecuter.execute(expected);
+				script.setExecutable(new RegisterCompiler().compile(script));
+				Context actual = TestScripts.prepare(script, pair[0], pair[1]);
+				inlinedExecuter.execute(actual);
+				assertEquals(name+" "+pair[0]+", "+pair[1], TestScripts.collect(expected, inlined), TestScripts.collect(actual, inlined));
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package nz.org.francis.scriptmanager.executer.simt;
+
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.executer.Context;
+import nz.org.francis.scriptmanager.executer.Executer;
+import nz.org.francis.scriptmanager.executer.TestScriptManager;
+import nz.org.francis.scriptmanager.executer.TestScripts;
+
+/**
+ * Compares running a script for every entity with the scalar {@link Executer} against running all entities at once in lanes.
+ * <p>
+ * Run with: <code>java -cp target/classes:target/test-classes nz.org.francis.scriptmanager.executer.simt.BatchInterpreterBenchmark</code>
+ *
+ * @author Francis
+ */
+public class BatchInterpreterBenchmark {
+	
+	private static final int ENTITIES = 10000;
+	private static final int WARMUP_ROUNDS = 300;
+	private static final int ROUNDS = 100;
+	
+	private static double scalar (Executer executer, CompiledScript script, int[][] args) {
+		long start = System.nanoTime();
+		Context context = new Context(script);
+		for (int[] laneArgs : args) {
+			context.reset(script);
+			for (int i=0;i<laneArgs.length;i++) {
+				context.setIntLocal(i, laneArgs[i]);
+			}
+			executer.execute(context);
+			int[] result = new int[context.getIntStackSize()];//Collect the results, as the batch interpreter does
+			for (int i=result.length-1;i>=0;i--) {
+				result[i] = context.getInt();
+			}
+		}
+		return args.length / ((System.nanoTime() - start) / 1e9);
+	}
+	
+	private static double batched (BatchInterpreter batch, CompiledScript script, int[][] args) {
+		long start = System.nanoTime();
+		batch.execute(script, args);
+		return args.length / ((System.nanoTime() - start) / 1e9);
+	}
+	
+	private static void compare (Executer executer, BatchInterpreter batch, CompiledScript script, int[][] args) {
+		for (int i=0;i<WARMUP_ROUNDS;i++) {
+			scalar(executer, script, args);
+			batched(batch, script, args);
+		}
+		double scalarTotal = 0, batchTotal = 0;
+		for (int i=0;i<ROUNDS;i++) {
+			scalarTotal += scalar(executer, script, args);
+			batchTotal += batched(batch, script, args);
+		}
+		System.out.printf("%s%n", script.getName());
+		System.out.printf("  Scalar: %,.0f entities/sec%n", scalarTotal / ROUNDS);
+		System.out.printf("  Lanes:  %,.0f entities/sec (%.2fx)%n", batchTotal / ROUNDS, batchTotal / scalarTotal);
+	}
+
+	public static void main(String[] args) throws ParserException {
+		TestScriptManager manager = TestScripts.compileCorpus(new ParserCompiler());
+		Executer executer = new Executer(manager);
+		BatchInterpreter batch = new BatchInterpreter(executer);
+		
+		int[][] arithArgs = new int[ENTITIES][];
+		int[][] sumArgs = new int[ENTITIES][];
+		int[][] classifyArgs = new int[ENTITIES][];
+		for (int i=0;i<ENTITIES;i++) {
+			arithArgs[i] = new int[] { i, i % 97 };
+			sumArgs[i] = new int[] { 50 };
+			classifyArgs[i] = new int[] { i % 1500 - 100 };
+		}
+		compare(executer, batch, manager.getByName("arith"), arithArgs);
+		compare(executer, batch, manager.getByName("sum"), sumArgs);
+		compare(executer, batch, manager.getByName("classify"), classifyArgs);
+	}
+}
@@ -0,0 +1,119 @@
+package nz.org.francis.scriptmanager.executer.simt;
+
+import java.util.Random;
+import nz.org.francis.scriptmanager.compiler.CompiledScript;
+import nz.org.francis.scriptmanager.compiler.ParserCompiler;
+import nz.org.francis.scriptmanager.compiler.ParserException;
+import nz.org.francis.scriptmanager.executer.Context;
+import nz.org.francis.scriptmanager.executer.Executer;
+import nz.org.francis.scriptmanager.executer.TestScriptManager;
+import nz.org.francis.scriptmanager.executer.TestScripts;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks every lane of the batch interpreter against the scalar executer
+ *
+ * @author Francis
+ */
+public class BatchInterpreterTest {
+	
+	private static final int LANES = 257;
+	
+	private TestScriptManager manager;
+	
+	private Executer executer;
+	
+	private BatchInterpreter batch;
+	
+	public BatchInterpreterTest() {
+		
+	}
+	
+	@Before
+	public void setUp() throws ParserException {
+		manager = TestScripts.compileCorpus(new ParserCompiler());
+		executer = new Executer(manager);
+		batch = new BatchInterpreter(executer);
+	}
+	
+	private int[] scalar (CompiledScript script, int[] args) {
+		Context context = new Context(script);
+		for (int i=0;i<args.length;i++) {
+			context.setIntLocal(i, args[i]);
+		}
+		executer.execute(context);
+		int[] result = new int[context.getIntStackSize()];
+		for (int i=result.length-1;i>=0;i--) {
+			result[i] = context.getInt();
+		}
+		return result;
+	}
+	
+	private void crossCheck (String name, int min, int max) {
+		CompiledScript script = manager.getByName(name);
+		Random random = new Random(name.hashCode());
+		int[][] args = new int[LANES][script.getParams().size()];
+		for (int[] laneArgs : args) {
+			for (int i=0;i<laneArgs.length;i++) {
+				laneArgs[i] = min + random.nextInt(max - min + 1);
+			}
+		}
+		int[][] results = batch.execute(script, args);
+		assertEquals(LANES, results.length);
+		for (int lane=0;lane<LANES;lane++) {
+			assertArrayEquals(name+" lane "+lane, scalar(script, args[lane]), results[lane]);
+		}
+	}
+	
+	@Test
+	public void testSupportedScripts() {
+		for (String name : new String[] { "arith", "sum", "classify", "square", "diff", "fib", "primes", "flags", "scale" }) {
+			assertEquals(name, !name.equals("fib"), BatchInterpreter.supports(manager.getByName(name)));
+		}
+		assertFalse(BatchInterpreter.supports(manager.getByName("greet")));
+		assertFalse(BatchInterpreter.supports(manager.getByName("hypot")));
+	}
+	
+	@Test
+	public void testConvergentLanes() {
+		crossCheck("arith", -1000, 1000);
+		crossCheck("square", -100, 100);
+		crossCheck("scale", -50, 50);
+	}
+	
+	@Test
+	public void testDivergentLanes() {
+		crossCheck("classify", -20, 1200);
+		crossCheck("flags", 0, 200);
+		crossCheck("sum", 0, 200);
+		crossCheck("primes", 0, 300);
+		crossCheck("divmod", 1, 50);
+	}
+	
+	@Test
+	public void testFallback() {
+		crossCheck("fib", 0, 12);
+		crossCheck("hypot", -30, 30);
+	}
+	
+	@Test
+	public void testPartiallyMaskedLoop() {
+		//Lanes leave the loop one at a time, so later iterations only run a few lanes
+		CompiledScript script = manager.getByName("sum");
+		int[][] args = new int[64][1];
+		for (int lane=0;lane<args.length;lane++) {
+			args[lane][0] = (lane * 37) % 64;
+		}
+		int[][] results = batch.execute(script, args);
+		for (int lane=0;lane<args.length;lane++) {
+			assertArrayEquals(scalar(script, args[lane]), results[lane]);
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testObjectParameters() {
+		batch.execute(manager.getByName("greet"), new int[][] { { 1 } });
+	}
+}